@@ -1,13 +1,18 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, grouped by any number of columns, are
+ * computed in one pass over the child.
+ * <p>
+ * Given several children, e.g. the partitions of a scan, it aggregates
+ * them in two phases: each child is drained on a worker thread into its
+ * own partial aggregator, and the partials are then combined.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -30,23 +35,73 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     private DbIterator child;
-    private int afield, gfield;
-    private Aggregator.Op aop;
+    /** the inputs of a two-phase aggregate; child is the first */
+    private DbIterator[] children;
+    private int[] afields, gfields;
+    private Aggregator.Op[] aops;
     private Aggregator res;
-    private Type gtype;
     private DbIterator itr;
 
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
     // some code goes here
-        this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
-        if(gfield == -1) gtype = null;
-        else gtype = child.getTupleDesc().getFieldType(gfield);
-        if(child.getTupleDesc().getFieldType(afield).equals(Type.INT_TYPE))
-          res = new IntegerAggregator(gfield, gtype, afield, aop);
-        else res = new StringAggregator(gfield, gtype, afield, aop);
+        this(child, new int[]{afield}, gfield == -1 ? new int[0] : new int[]{gfield},
+             new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for several aggregates and group-by columns.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates
+     * @param gfields
+     *            The columns over which we are grouping the result, none if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator of each aggregate column
+     * @throws IllegalArgumentException if an aggregate other than COUNT is
+     *            over a column that isn't INT_TYPE
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(new DbIterator[]{child}, afields, gfields, aops);
+    }
+
+    /**
+     * Constructor for a two-phase aggregate of the union of several
+     * children, which must have the same schema.
+     */
+    public Aggregate(DbIterator[] children, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        if(afields.length != aops.length || afields.length == 0)
+            throw new IllegalArgumentException("need one operator per aggregate column");
+        this.children = children;
+        this.child = children[0];
+        this.afields = afields;
+        this.gfields = gfields;
+        this.aops = aops;
+        if(!single())
+            for(int a = 0; a < afields.length; a++)
+                if(aops[a] != Aggregator.Op.COUNT
+                        && child.getTupleDesc().getFieldType(afields[a]) != Type.INT_TYPE)
+                    throw new IllegalArgumentException(aops[a] + " needs an INT_TYPE column");
+        res = newAggregator();
+    }
+
+    /** @return true if this is one aggregate, over at most one group-by column */
+    private boolean single() {
+        return afields.length == 1 && gfields.length <= 1;
+    }
+
+    private Aggregator newAggregator() {
+        TupleDesc td = child.getTupleDesc();
+        if(single() && !td.getFieldType(afields[0]).equals(Type.INT_TYPE)){
+            int gfield = groupField();
+            return new StringAggregator(gfield, gfield == -1 ? null : td.getFieldType(gfield),
+                                        afields[0], aops[0]);
+        }
+        Type[] gtypes = new Type[gfields.length];
+        for(int i = 0; i < gfields.length; i++) gtypes[i] = td.getFieldType(gfields[i]);
+        return new IntegerAggregator(gfields, gtypes, afields, aops);
     }
 
     /**
@@ -56,7 +111,22 @@ public class Aggregate extends Operator {
      * */
     public int groupField() {
     // some code goes here
-        return gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /** @return the group-by field indexes in the input tuples, in order */
+    public int[] groupFields() {
+        return gfields;
+    }
+
+    /** @return the aggregate field indexes in the input tuples, in order */
+    public int[] aggregateFields() {
+        return afields;
+    }
+
+    /** @return the aggregate operators, one per aggregate field */
+    public Aggregator.Op[] aggregateOps() {
+        return aops;
     }
 
     /**
@@ -66,8 +136,8 @@ public class Aggregate extends Operator {
      * */
     public String groupFieldName() {
     // some code goes here
-        if(gfield == -1) return null;
-        else return child.getTupleDesc().getFieldName(gfield);
+        if(gfields.length == 0) return null;
+        else return child.getTupleDesc().getFieldName(gfields[0]);
     }
 
     /**
@@ -75,7 +145,7 @@ public class Aggregate extends Operator {
      * */
     public int aggregateField() {
     // some code goes here
-        return afield;
+        return afields[0];
     }
 
     /**
@@ -84,7 +154,7 @@ public class Aggregate extends Operator {
      * */
     public String aggregateFieldName() {
     // some code goes here
-	return child.getTupleDesc().getFieldName(afield);
+	return child.getTupleDesc().getFieldName(afields[0]);
     }
 
     /**
@@ -92,7 +162,7 @@ public class Aggregate extends Operator {
      * */
     public Aggregator.Op aggregateOp() {
 	// some code goes here
-	return this.aop;
+	return this.aops[0];
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -103,18 +173,74 @@ public class Aggregate extends Operator {
 	    TransactionAbortedException {
     // some code goes here
         super.open();
-        child.open();
-        while(child.hasNext())  res.mergeTupleIntoGroup(child.next());
+        res = newAggregator(); // reopening aggregates the child again
+        if(children.length == 1){
+            child.open();
+            drain(child, res);
+        }
+        else for(Aggregator partial : partials()) res.combine(partial);
         itr = res.iterator();
         itr.open();
     }
 
+    private static void drain(DbIterator in, Aggregator agg)
+            throws DbException, TransactionAbortedException {
+        if(in instanceof BatchIterator){
+            // read the child a batch at a time
+            Batch b;
+            while((b = ((BatchIterator) in).nextBatch()) != null) agg.mergeBatch(b);
+        }
+        else while(in.hasNext())  agg.mergeTupleIntoGroup(in.next());
+    }
+
+    /**
+     * Open the children and aggregate each into a partial aggregator on a
+     * worker thread of its own.
+     *
+     * @return the partial aggregators, once all are done
+     */
+    private Aggregator[] partials() throws DbException, TransactionAbortedException {
+        final Aggregator[] partials = new Aggregator[children.length];
+        final Throwable[] failure = new Throwable[1];
+        final CountDownLatch done = new CountDownLatch(children.length);
+        for(int i = 0; i < children.length; i++){
+            final int part = i;
+            partials[i] = res.emptyCopy();
+            Database.getWorkers().execute(new Runnable() {
+                public void run() {
+                    try{
+                        children[part].open();
+                        drain(children[part], partials[part]);
+                    }catch(Throwable e){
+                        synchronized(failure){
+                            failure[0] = e;
+                        }
+                    }finally{
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try{
+            done.await();
+        }catch(InterruptedException e){
+            throw new TransactionAbortedException();
+        }
+        synchronized(failure){
+            if(failure[0] instanceof TransactionAbortedException) throw (TransactionAbortedException) failure[0];
+            if(failure[0] instanceof DbException) throw (DbException) failure[0];
+            if(failure[0] != null) throw new DbException("partial aggregate failed: " + failure[0]);
+        }
+        return partials;
+    }
+
     /**
      * Returns the next tuple. If there is a group by field, then the first
      * field is the field by which we are grouping, and the second field is the
      * result of computing the aggregate, If there is no group by field, then
      * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * aggregate. With several, the group by fields come first, in order, and
+     * then the aggregates. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
     // some code goes here
@@ -122,10 +248,18 @@ public class Aggregate extends Operator {
 	return null;
     }
 
+    /**
+     * @return the next batch of results; there are only as many as there
+     *         are groups, so they are gathered from the tuples
+     */
+    public Batch nextBatch() throws TransactionAbortedException, DbException {
+        return BatchAdapter.fill(this);
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
 	// some code goes here
         itr.rewind();
-        child.rewind();
+        for(DbIterator c : children) c.rewind();
     }
 
     /**
@@ -141,28 +275,39 @@ public class Aggregate extends Operator {
      */
     public TupleDesc getTupleDesc() {
     // some code goes here
-        if(gfield == -1) return new TupleDesc(new Type[]{child.getTupleDesc().getFieldType(afield)}, new String[]{child.getTupleDesc().getFieldName(afield)});
-        else return new TupleDesc(new Type[]{child.getTupleDesc().getFieldType(gfield), child.getTupleDesc().getFieldType(afield)}, 
-                                 new String[]{child.getTupleDesc().getFieldName(gfield), child.getTupleDesc().getFieldName(afield)});
+        TupleDesc ctd = child.getTupleDesc();
+        int n = gfields.length;
+        Type[] types = new Type[n + afields.length];
+        String[] names = new String[n + afields.length];
+        for(int i = 0; i < n; i++){
+            types[i] = ctd.getFieldType(gfields[i]);
+            names[i] = ctd.getFieldName(gfields[i]);
+        }
+        for(int a = 0; a < afields.length; a++){
+            types[n + a] = Type.INT_TYPE;
+            names[n + a] = ctd.getFieldName(afields[a]);
+        }
+        return new TupleDesc(types, names);
     }
 
     public void close() {
     // some code goes here
         super.close();
-        child.close();
-        itr.close();
+        for(DbIterator c : children) c.close();
+        if(itr != null) itr.close();
     }
 
     @Override
     public DbIterator[] getChildren() {
 	// some code goes here
-	return new DbIterator[]{child};
+	return children;
     }
 
     @Override
     public void setChildren(DbIterator[] children) {
     // some code goes here
-        children[0] = child;
+        this.children = children;
+        this.child = children[0];
     }
     
 }
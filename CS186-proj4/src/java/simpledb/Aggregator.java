@@ -57,6 +57,28 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the live rows of a batch, as mergeTupleIntoGroup would merge
+     * them one at a time.
+     *
+     * @param b a Batch whose rows hold an aggregate field and a group-by field
+     */
+    public void mergeBatch(Batch b);
+
+    /**
+     * @return a new, empty aggregator computing the same aggregates, for a
+     *   partial aggregation whose state is later merged into this one with
+     *   {@link #combine}
+     */
+    public Aggregator emptyCopy();
+
+    /**
+     * Merge the state of other, an {@link #emptyCopy} of this aggregator
+     * that has merged some other tuples, into this one; the result is as if
+     * this had merged those tuples too.
+     */
+    public void combine(Aggregator other);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
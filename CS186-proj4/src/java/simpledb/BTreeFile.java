@@ -0,0 +1,647 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * BTreeFile is a secondary index on one field of a table, kept as a B+tree
+ * of {@link BTreePage}s. Leaves hold (key, record id) entries in order and
+ * are chained left to right, so a lookup reads one page per level and a
+ * range scan then walks the leaves.
+ * <p>
+ * Like every DbFile, the index is read and written through the BufferPool.
+ * Transactions lock the leaves, which hold the entries, but not the meta
+ * page and the inner nodes: a latch of the file guards those, held only
+ * while walking down to a leaf or while a split adds its separator. The
+ * separator is written to the file right away, and stays there even if
+ * the transaction that split aborts; its right leaf then goes back to a
+ * free page, and walks skip the separators of free pages. A walk that
+ * waited for its leaf while the tree changed walks again.
+ * {@link #insertTuple} and {@link #deleteEntry}
+ * take tuples of the indexed table, which must already carry their record
+ * id; the BufferPool calls them for every index of a table when it adds or
+ * removes a tuple. A delete that leaves a leaf less than half full merges
+ * the next leaf into it if they fit in one; the next leaf becomes free
+ * and its separator is skipped like that of an aborted split, so the
+ * inner nodes never shrink until the index is rebuilt.
+ * <p>
+ * Use {@link #create} to build an index over an existing table.
+ *
+ * @see IndexScan
+ */
+public class BTreeFile implements DbFile {
+
+    private static final long serialVersionUID = 1L;
+    /** the meta page, which points to the root */
+    static final int META_PAGE = 0;
+
+    private final File file;
+    private final int tableid;
+    private final int keyField;
+    private final Type keyType;
+    private final PageFile pageFile;
+    /** guards the meta page and the inner nodes */
+    private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock();
+    /** bumped by every change of the inner nodes */
+    private volatile int structureVersion = 0;
+
+    /**
+     * Open the index stored in f.
+     *
+     * @param f the file that stores the index
+     * @param tableid the table the index is on
+     * @param keyField the indexed field of that table
+     */
+    public BTreeFile(File f, int tableid, int keyField) {
+        this.file = f;
+        this.tableid = tableid;
+        this.keyField = keyField;
+        this.keyType = Database.getCatalog().getTupleDesc(tableid).getFieldType(keyField);
+        this.pageFile = PageFile.open(f, BufferPool.PAGE_SIZE);
+    }
+
+    /**
+     * Build an index on field keyField of table tableid in f, replacing
+     * whatever f held. The entries are sorted and packed into full leaves
+     * bottom up, which is much faster than inserting them one by one. The
+     * table is read straight from disk, so this is meant for loading, not
+     * for use while transactions are running.
+     */
+    public static BTreeFile create(File f, int tableid, int keyField) throws IOException {
+        BTreeFile index = new BTreeFile(f, tableid, keyField);
+        index.bulkLoad();
+        return index;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** @return the id of the indexed table */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the indexed field */
+    public int getKeyField() {
+        return keyField;
+    }
+
+    public Type getKeyType() {
+        return keyType;
+    }
+
+    public int getId() {
+        return file.getAbsoluteFile().hashCode();
+    }
+
+    /** The tuples an index returns are those of its table. */
+    public TupleDesc getTupleDesc() {
+        return Database.getCatalog().getTupleDesc(tableid);
+    }
+
+    public int numPages() {
+        try {
+            return pageFile.numPages();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        try {
+            return new BTreePage((BTreePageId) pid, pageFile.readPage(pid.pageNumber()), keyType);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        pageFile.writePage(page.getId().pageNumber(), page.getPageData());
+    }
+
+    /** @return the height of the tree, counting the leaves */
+    public int getHeight(TransactionId tid) throws DbException, TransactionAbortedException {
+        structure.readLock().lock();
+        try {
+            return unlocked(META_PAGE).height;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add an entry for t, a tuple of the indexed table. Only the leaf is
+     * locked; if it overflows, it is split and the separator added to the
+     * inner nodes under the latch of the file.
+     *
+     * @return the pages that were changed
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Field key = t.getField(keyField);
+        RecordId rid = t.getRecordId();
+        int page = rid.getPageId().pageNumber(), slot = rid.tupleno();
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+
+        BTreePage leaf = findLeaf(tid, key, page, slot, Permissions.READ_WRITE);
+        leaf.insertAt(leaf.lowerBound(key, page, slot), key, page, slot, 0);
+        dirty(tid, leaf, dirtied);
+        if (leaf.n > capacity(leaf)) {
+            BTreePage right = allocate(tid, BTreePage.LEAF);
+            leaf.splitInto(right);
+            dirty(tid, right, dirtied);
+            addSeparator(right.keys[0], right.ridPage[0], right.ridSlot[0], right.pid.pageNumber());
+        }
+        return dirtied;
+    }
+
+    /**
+     * Add the separator of a split leaf to the inner nodes, splitting them
+     * upwards while they overflow. This changes only how entries are found,
+     * so it is not part of any transaction: the nodes are written to the
+     * file at once, new ones first and then the old ones from the top down,
+     * so that the tree in the file can always be walked.
+     *
+     * @param right the page of the leaf that split off
+     */
+    private void addSeparator(Field key, int page, int slot, int right) throws DbException, IOException {
+        structure.writeLock().lock();
+        try {
+            BTreePage meta = unlocked(META_PAGE);
+            ArrayList<BTreePage> path = new ArrayList<BTreePage>();
+            int pgNo = meta.next;
+            for (int level = meta.height; level > 1; level--) {
+                BTreePage node = unlocked(pgNo);
+                path.add(node);
+                pgNo = node.childFor(key, page, slot);
+            }
+
+            ArrayList<BTreePage> created = new ArrayList<BTreePage>();
+            // bottom up
+            ArrayList<BTreePage> changed = new ArrayList<BTreePage>();
+            for (int level = path.size() - 1; ; level--) {
+                BTreePage parent;
+                if (level < 0) {
+                    // the root split: grow the tree by one level
+                    parent = allocateInner();
+                    parent.children[0] = meta.next;
+                    meta.next = parent.pid.pageNumber();
+                    meta.height++;
+                    created.add(parent);
+                    changed.add(meta);
+                } else {
+                    parent = path.get(level);
+                    changed.add(parent);
+                }
+                parent.insertAt(parent.lowerBound(key, page, slot), key, page, slot, right);
+                if (parent.n <= capacity(parent))
+                    break;
+                BTreePage sibling = allocateInner();
+                parent.splitInto(sibling);
+                created.add(sibling);
+                key = parent.keys[parent.n];
+                page = parent.ridPage[parent.n];
+                slot = parent.ridSlot[parent.n];
+                parent.keys[parent.n] = null;
+                right = sibling.pid.pageNumber();
+            }
+            for (BTreePage p : created)
+                writePage(p);
+            for (int i = changed.size() - 1; i >= 0; i--)
+                writePage(changed.get(i));
+            structureVersion++;
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the entry of t, a tuple of the indexed table, without merging
+     * leaves; the BufferPool uses {@link #deleteEntry} instead.
+     *
+     * @return the leaf the entry was removed from
+     * @throws DbException if the index has no entry for t
+     */
+    public Page deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BTreePage leaf = removeEntry(tid, t);
+        leaf.markDirty(true, tid);
+        return leaf;
+    }
+
+    /**
+     * Remove the entry of t, a tuple of the indexed table. If that leaves
+     * the leaf less than half full, the next leaf is merged into it; see
+     * {@link #mergeNext}.
+     *
+     * @return the pages that were changed
+     * @throws DbException if the index has no entry for t
+     */
+    public ArrayList<Page> deleteEntry(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        BTreePage leaf = removeEntry(tid, t);
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        dirty(tid, leaf, dirtied);
+        if (leaf.n < capacity(leaf) / 2)
+            mergeNext(tid, leaf, dirtied);
+        return dirtied;
+    }
+
+    /** Remove the entry of t from its leaf. @return the leaf */
+    private BTreePage removeEntry(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        Field key = t.getField(keyField);
+        RecordId rid = t.getRecordId();
+        if (rid == null)
+            throw new DbException("tuple has no record id");
+        int page = rid.getPageId().pageNumber(), slot = rid.tupleno();
+        BTreePage leaf = findLeaf(tid, key, page, slot, Permissions.READ_WRITE);
+        int i = leaf.lowerBound(key, page, slot);
+        if (i == leaf.n || leaf.compareEntry(i, key, page, slot) != 0)
+            throw new DbException("no index entry for " + t);
+        leaf.removeAt(i);
+        return leaf;
+    }
+
+    /**
+     * Move the entries of the leaf after leaf in the chain into it, if
+     * they fit and that leaf can be locked without waiting, and free it.
+     * Both leaves are changed under the transaction, but the inner nodes
+     * are not touched: the separator of the freed leaf stays, and walks
+     * skip it to the leaf on its left, which now holds its entries. If the
+     * transaction aborts, both leaves get their entries back and the
+     * separator leads to the right one again.
+     */
+    private void mergeNext(TransactionId tid, BTreePage leaf, ArrayList<Page> dirtied)
+            throws DbException {
+        if (leaf.next == 0)
+            return;
+        BufferPool bp = Database.getBufferPool();
+        BTreePageId pid = new BTreePageId(getId(), leaf.next);
+        boolean held = bp.holdsLock(tid, pid);
+        BTreePage next = (BTreePage) bp.getPageIfAvailable(tid, pid, Permissions.READ_WRITE);
+        if (next == null)
+            return; // in use: leave both as they are
+        if (leaf.n + next.n > capacity(leaf)) {
+            if (!held)
+                bp.releasePage(tid, pid);
+            return;
+        }
+        leaf.mergeFrom(next);
+        dirty(tid, next, dirtied);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, null, null);
+    }
+
+    /**
+     * @return an iterator over the tuples of the table whose key satisfies
+     *   (key op operand), in key order. Only the leaves that can hold such
+     *   keys are read. With a null op, all tuples are returned.
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate.Op op, Field operand) {
+        return new IndexIterator(tid, op, operand);
+    }
+
+    private class IndexIterator implements DbFileIterator {
+        private static final long serialVersionUID = 1L;
+        private final TransactionId tid;
+        private final Predicate.Op op;
+        private final Field operand;
+        private BTreePage leaf;
+        private int pos;
+        private Tuple nextTuple;
+        /** the last entry returned, to find our place again by */
+        private Field lastKey;
+        private int lastPage, lastSlot;
+
+        IndexIterator(TransactionId tid, Predicate.Op op, Field operand) {
+            this.tid = tid;
+            this.op = op;
+            this.operand = operand;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            boolean seek = op == Predicate.Op.EQUALS || op == Predicate.Op.GREATER_THAN
+                    || op == Predicate.Op.GREATER_THAN_OR_EQ;
+            if (seek) {
+                leaf = findLeaf(tid, operand, Integer.MIN_VALUE, Integer.MIN_VALUE,
+                        Permissions.READ_ONLY);
+                pos = leaf.lowerBound(operand, Integer.MIN_VALUE, Integer.MIN_VALUE);
+            } else {
+                leaf = leftmostLeaf(tid);
+                pos = 0;
+            }
+            nextTuple = null;
+            lastKey = null;
+        }
+
+        /**
+         * Find our place again after the last entry returned, in case this
+         * transaction changed the leaf since, as a Delete over the scan
+         * does: its entries may have moved, or, if it was merged into the
+         * leaf to its left, the leaf may be free.
+         */
+        private void reposition() throws DbException, TransactionAbortedException {
+            if (lastKey == null) {
+                if (!leaf.isLeaf())
+                    open();
+                return;
+            }
+            if (!leaf.isLeaf())
+                leaf = findLeaf(tid, lastKey, lastPage, lastSlot, Permissions.READ_ONLY);
+            pos = leaf.lowerBound(lastKey, lastPage, lastSlot);
+            if (pos < leaf.n && leaf.compareEntry(pos, lastKey, lastPage, lastSlot) == 0)
+                pos++;
+        }
+
+        /** @return true if no entry from position pos on can match */
+        private boolean pastEnd(Field key) {
+            if (op == null) return false;
+            int c = BTreePage.compareKeys(key, operand);
+            switch (op) {
+            case EQUALS:
+            case LESS_THAN_OR_EQ:
+                return c > 0;
+            case LESS_THAN:
+                return c >= 0;
+            default:
+                return false;
+            }
+        }
+
+        private Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (leaf != null)
+                reposition();
+            while (leaf != null) {
+                if (pos >= leaf.n) {
+                    leaf = leaf.next == 0 ? null : getPage(tid, leaf.next, Permissions.READ_ONLY);
+                    pos = 0;
+                    continue;
+                }
+                Field key = leaf.keys[pos];
+                if (pastEnd(key)) {
+                    leaf = null;
+                    return null;
+                }
+                int page = leaf.ridPage[pos], slot = leaf.ridSlot[pos];
+                pos++;
+                lastKey = key;
+                lastPage = page;
+                lastSlot = slot;
+                if (op != null && !key.compare(op, operand))
+                    continue;
+                HeapPage hp = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(tableid, page), Permissions.READ_ONLY);
+                Tuple t = hp.getTuple(slot);
+                if (t != null)
+                    return t;
+            }
+            return null;
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (nextTuple == null)
+                nextTuple = fetchNext();
+            return nextTuple != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = nextTuple;
+            nextTuple = null;
+            return t;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            open();
+        }
+
+        public void close() {
+            leaf = null;
+            nextTuple = null;
+            lastKey = null;
+        }
+    }
+
+    private BTreePage getPage(TransactionId tid, int pgNo, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        return (BTreePage) Database.getBufferPool().getPage(tid, new BTreePageId(getId(), pgNo), perm);
+    }
+
+    /** @return a page of the index, not locked; see the class comment */
+    private BTreePage unlocked(int pgNo) throws DbException {
+        return (BTreePage) Database.getBufferPool().getPageUnlocked(new BTreePageId(getId(), pgNo));
+    }
+
+    /**
+     * Find the leaf that holds (key, page, slot) and lock it with perm.
+     * If the tree changed while the leaf was being locked, the leaf may no
+     * longer be the right one, so the walk is done again; a leaf locked
+     * only for the walk is then let go. The walk reads the leaves as they
+     * are, so it may have gone left past a leaf that a merge had freed
+     * and then taken back by aborting; once the leaf is locked, no merge
+     * into it can be running, so checking the walk again catches that.
+     */
+    private BTreePage findLeaf(TransactionId tid, Field key, int page, int slot, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        BTreePageId lockedHere = null;
+        while (true) {
+            int version;
+            BTreePageId pid;
+            structure.readLock().lock();
+            try {
+                version = structureVersion;
+                pid = new BTreePageId(getId(), leafFor(key, page, slot));
+            } finally {
+                structure.readLock().unlock();
+            }
+            if (lockedHere != null && !lockedHere.equals(pid)) {
+                bp.releasePage(tid, lockedHere);
+                lockedHere = null;
+            }
+            if (lockedHere == null && !bp.holdsLock(tid, pid))
+                lockedHere = pid;
+            BTreePage leaf = (BTreePage) bp.getPage(tid, pid, perm);
+            // split or merged while we waited, or taken back by an abort
+            if (!leaf.isLeaf() || version != structureVersion)
+                continue;
+            structure.readLock().lock();
+            try {
+                if (version == structureVersion && leafFor(key, page, slot) == pid.pageNumber())
+                    return leaf;
+            } finally {
+                structure.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the page of the leaf that holds (key, page, slot); the
+     *   caller holds the latch of the file
+     */
+    private int leafFor(Field key, int page, int slot) throws DbException {
+        BTreePage meta = unlocked(META_PAGE);
+        return leafFor(meta.next, meta.height, key, page, slot);
+    }
+
+    /**
+     * @return the page of the leaf under node pgNo, height levels up, that
+     *   holds (key, page, slot), or -1 if all leaves it could be in are
+     *   free. A free leaf was split off by a transaction that aborted, or
+     *   merged into the leaf to its left, so its entries are in that leaf.
+     */
+    private int leafFor(int pgNo, int height, Field key, int page, int slot) throws DbException {
+        BTreePage node = unlocked(pgNo);
+        if (height == 1)
+            return node.isLeaf() ? pgNo : -1;
+        for (int c = node.childIndexFor(key, page, slot); c >= 0; c--) {
+            int leaf = leafFor(node.children[c], height - 1, key, page, slot);
+            if (leaf >= 0)
+                return leaf;
+        }
+        return -1;
+    }
+
+    private BTreePage leftmostLeaf(TransactionId tid) throws DbException, TransactionAbortedException {
+        int pgNo;
+        structure.readLock().lock();
+        try {
+            BTreePage meta = unlocked(META_PAGE);
+            pgNo = meta.next;
+            for (int level = meta.height; level > 1; level--)
+                pgNo = unlocked(pgNo).children[0];
+        } finally {
+            structure.readLock().unlock();
+        }
+        // splits keep the left half where it was
+        return getPage(tid, pgNo, Permissions.READ_ONLY);
+    }
+
+    private int capacity(BTreePage p) {
+        return p.isLeaf() ? BTreePage.leafCapacity(keyType) : BTreePage.innerCapacity(keyType);
+    }
+
+    private static void dirty(TransactionId tid, BTreePage p, ArrayList<Page> dirtied) {
+        p.markDirty(true, tid);
+        if (!dirtied.contains(p))
+            dirtied.add(p);
+    }
+
+    /** Add a free page to the end of the file. @return its number */
+    private synchronized int newPage() throws IOException {
+        int pgNo = pageFile.numPages();
+        pageFile.writePage(pgNo, BTreePage.createEmptyPageData());
+        return pgNo;
+    }
+
+    /**
+     * Add a page to the end of the file and return it, write-locked and
+     * set up as an empty node of the given kind.
+     */
+    private BTreePage allocate(TransactionId tid, byte kind)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreePage p = getPage(tid, newPage(), Permissions.READ_WRITE);
+        p.init(kind);
+        return p;
+    }
+
+    /**
+     * Add an empty inner node to the end of the file, for a split of the
+     * inner nodes; like them, it is not locked.
+     */
+    private BTreePage allocateInner() throws DbException, IOException {
+        BTreePage p = unlocked(newPage());
+        p.init(BTreePage.INNER);
+        return p;
+    }
+
+    /** Sort all entries of the table and write the tree bottom up. */
+    private void bulkLoad() throws IOException {
+        HeapFile table = (HeapFile) Database.getCatalog().getDbFile(tableid);
+        final ArrayList<Field> keys = new ArrayList<Field>();
+        final ArrayList<int[]> rids = new ArrayList<int[]>();
+        for (int p = 0; p < table.numPages(); p++) {
+            HeapPage hp = (HeapPage) table.readPage(new HeapPageId(tableid, p));
+            Iterator<Tuple> it = hp.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                keys.add(t.getField(keyField));
+                rids.add(new int[] { p, t.getRecordId().tupleno() });
+            }
+        }
+        Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int[] ra = rids.get(a), rb = rids.get(b);
+                return BTreePage.compare(keys.get(a), ra[0], ra[1], keys.get(b), rb[0], rb[1]);
+            }
+        });
+
+        pageFile.truncate(0);
+        int nextPage = META_PAGE + 1;
+        // first entry and page number of each node of the level being built
+        ArrayList<Integer> level = new ArrayList<Integer>();
+        ArrayList<Integer> firsts = new ArrayList<Integer>();
+
+        int leafCap = BTreePage.leafCapacity(keyType);
+        int numLeaves = Math.max(1, (order.length + leafCap - 1) / leafCap);
+        for (int l = 0; l < numLeaves; l++) {
+            BTreePage leaf = emptyPage(nextPage, BTreePage.LEAF);
+            int from = l * leafCap, to = Math.min(order.length, from + leafCap);
+            for (int i = from; i < to; i++) {
+                int e = order[i];
+                leaf.insertAt(leaf.n, keys.get(e), rids.get(e)[0], rids.get(e)[1], 0);
+            }
+            leaf.next = l + 1 < numLeaves ? nextPage + 1 : 0;
+            pageFile.writePage(nextPage, leaf.getPageData());
+            level.add(nextPage++);
+            firsts.add(from);
+        }
+
+        int height = 1;
+        int fanout = BTreePage.innerCapacity(keyType) + 1;
+        while (level.size() > 1) {
+            ArrayList<Integer> up = new ArrayList<Integer>();
+            ArrayList<Integer> upFirsts = new ArrayList<Integer>();
+            for (int c = 0; c < level.size(); c += fanout) {
+                BTreePage inner = emptyPage(nextPage, BTreePage.INNER);
+                inner.children[0] = level.get(c);
+                for (int i = c + 1; i < Math.min(level.size(), c + fanout); i++) {
+                    int e = order[firsts.get(i)];
+                    inner.insertAt(inner.n, keys.get(e), rids.get(e)[0], rids.get(e)[1], level.get(i));
+                }
+                pageFile.writePage(nextPage, inner.getPageData());
+                up.add(nextPage++);
+                upFirsts.add(firsts.get(c));
+            }
+            level = up;
+            firsts = upFirsts;
+            height++;
+        }
+
+        BTreePage meta = emptyPage(META_PAGE, BTreePage.META);
+        meta.next = level.get(0);
+        meta.height = height;
+        pageFile.writePage(META_PAGE, meta.getPageData());
+        pageFile.force();
+    }
+
+    private BTreePage emptyPage(int pgNo, byte kind) throws IOException {
+        BTreePage p = new BTreePage(new BTreePageId(getId(), pgNo), BTreePage.createEmptyPageData(), keyType);
+        p.init(kind);
+        return p;
+    }
+}
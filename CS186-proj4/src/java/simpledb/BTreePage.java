@@ -0,0 +1,328 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * A page of a {@link BTreeFile}. Page 0 of every index is the meta page,
+ * which records the root page and the height of the tree; every other page
+ * is a leaf, an inner node, or free.
+ * <p>
+ * An entry is a key together with the record id of its tuple in the heap
+ * file. Entries are ordered by key and then by record id, so equal keys
+ * still give distinct entries and an entry can be found again to delete it.
+ * <p>
+ * Layout, all ints big-endian:
+ * <pre>
+ *   byte 0      kind (free, meta, leaf or inner)
+ *   bytes 4-7   number of entries n
+ *   meta:  bytes 8-11 root page, bytes 12-15 height
+ *   leaf:  bytes 8-11 right sibling (0 if none), then n x (key, page, slot)
+ *   inner: bytes 8-11 unused, bytes 12-15 child 0,
+ *          then n x (key, page, slot, child)
+ * </pre>
+ * In an inner node, child i holds the entries that are at least entry i-1
+ * and less than entry i.
+ */
+public class BTreePage implements Page {
+
+    static final byte FREE = 0;
+    static final byte META = 1;
+    static final byte LEAF = 2;
+    static final byte INNER = 3;
+
+    private static final int LEAF_HEADER = 12;
+    private static final int INNER_HEADER = 16;
+
+    final BTreePageId pid;
+    final Type keyType;
+    private TransactionId dirtytid;
+    byte[] oldData;
+
+    byte kind;
+    int n;
+    /** leaf: right sibling; meta: root page */
+    int next;
+    /** meta only */
+    int height;
+
+    /** entries; one slot more than the capacity, so a full node can overflow before it is split */
+    Field[] keys;
+    int[] ridPage;
+    int[] ridSlot;
+    /** inner nodes only; children[i+1] follows keys[i] */
+    int[] children;
+
+    /**
+     * Create a BTreePage from a set of bytes of data read from disk. The
+     * key type is that of the index, looked up in the catalog.
+     */
+    public BTreePage(BTreePageId id, byte[] data) throws IOException {
+        this(id, data, ((BTreeFile) Database.getCatalog().getDbFile(id.getTableId())).getKeyType());
+    }
+
+    public BTreePage(BTreePageId id, byte[] data, Type keyType) throws IOException {
+        this.pid = id;
+        this.keyType = keyType;
+        if (data.length != BufferPool.PAGE_SIZE)
+            throw new IOException("page is " + data.length + " bytes, not " + BufferPool.PAGE_SIZE);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        kind = dis.readByte();
+        dis.skipBytes(3);
+        n = dis.readInt();
+        next = dis.readInt();
+        int cap = Math.max(leafCapacity(keyType), innerCapacity(keyType)) + 1;
+        keys = new Field[cap];
+        ridPage = new int[cap];
+        ridSlot = new int[cap];
+        try {
+            if (kind == META) {
+                height = dis.readInt();
+            } else if (kind == LEAF) {
+                for (int i = 0; i < n; i++)
+                    readEntry(dis, i);
+            } else if (kind == INNER) {
+                children = new int[cap + 1];
+                children[0] = dis.readInt();
+                for (int i = 0; i < n; i++) {
+                    readEntry(dis, i);
+                    children[i + 1] = dis.readInt();
+                }
+            }
+        } catch (ParseException e) {
+            throw new IOException("bad key on " + id + ": " + e.getMessage());
+        }
+        setBeforeImage();
+    }
+
+    private void readEntry(DataInputStream dis, int i) throws IOException, ParseException {
+        keys[i] = keyType.parse(dis);
+        ridPage[i] = dis.readInt();
+        ridSlot[i] = dis.readInt();
+    }
+
+    /** @return the number of entries that fit in a leaf */
+    public static int leafCapacity(Type keyType) {
+        return (BufferPool.PAGE_SIZE - LEAF_HEADER) / (keyType.getLen() + 8);
+    }
+
+    /** @return the number of keys that fit in an inner node */
+    public static int innerCapacity(Type keyType) {
+        return (BufferPool.PAGE_SIZE - INNER_HEADER) / (keyType.getLen() + 12);
+    }
+
+    public BTreePageId getId() {
+        return pid;
+    }
+
+    public boolean isLeaf() {
+        return kind == LEAF;
+    }
+
+    /** @return true if the page has no room for another entry */
+    boolean isFull() {
+        return n >= (kind == LEAF ? leafCapacity(keyType) : innerCapacity(keyType));
+    }
+
+    /** Turn this page into an empty leaf or inner node. */
+    void init(byte kind) {
+        this.kind = kind;
+        this.n = 0;
+        this.next = 0;
+        this.children = kind == INNER ? new int[keys.length + 1] : null;
+    }
+
+    /**
+     * Compare entry i of this page with (key, page, slot): by key, then by
+     * record id.
+     */
+    int compareEntry(int i, Field key, int page, int slot) {
+        return compare(keys[i], ridPage[i], ridSlot[i], key, page, slot);
+    }
+
+    static int compare(Field k1, int p1, int s1, Field k2, int p2, int s2) {
+        int c = compareKeys(k1, k2);
+        if (c != 0) return c;
+        if (p1 != p2) return p1 < p2 ? -1 : 1;
+        return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+    }
+
+    static int compareKeys(Field a, Field b) {
+        if (a instanceof IntField) {
+            int x = ((IntField) a).getValue(), y = ((IntField) b).getValue();
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+        return ((StringField) a).getValue().compareTo(((StringField) b).getValue());
+    }
+
+    /**
+     * @return the position of the first entry that is not less than
+     *   (key, page, slot), or n if there is none
+     */
+    int lowerBound(Field key, int page, int slot) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareEntry(mid, key, page, slot) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** @return the child of this inner node that may hold (key, page, slot) */
+    int childFor(Field key, int page, int slot) {
+        return children[childIndexFor(key, page, slot)];
+    }
+
+    /** @return the position in children of childFor(key, page, slot) */
+    int childIndexFor(Field key, int page, int slot) {
+        // the number of separators that are <= the entry
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareEntry(mid, key, page, slot) <= 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** Put an entry at position i, and for inner nodes its right child. */
+    void insertAt(int i, Field key, int page, int slot, int rightChild) {
+        System.arraycopy(keys, i, keys, i + 1, n - i);
+        System.arraycopy(ridPage, i, ridPage, i + 1, n - i);
+        System.arraycopy(ridSlot, i, ridSlot, i + 1, n - i);
+        if (kind == INNER)
+            System.arraycopy(children, i + 1, children, i + 2, n - i);
+        keys[i] = key;
+        ridPage[i] = page;
+        ridSlot[i] = slot;
+        if (kind == INNER)
+            children[i + 1] = rightChild;
+        n++;
+    }
+
+    /** Remove the entry at position i of a leaf. */
+    void removeAt(int i) {
+        System.arraycopy(keys, i + 1, keys, i, n - i - 1);
+        System.arraycopy(ridPage, i + 1, ridPage, i, n - i - 1);
+        System.arraycopy(ridSlot, i + 1, ridSlot, i, n - i - 1);
+        n--;
+        keys[n] = null;
+    }
+
+    /**
+     * Move the upper half of this node into right, an empty page of the
+     * same kind. For a leaf, the first entry of right is the separator to
+     * put in the parent. For an inner node the middle entry moves up
+     * instead of to right; it is left at position n of this node, just
+     * past its last entry, for the caller to pick up.
+     */
+    void splitInto(BTreePage right) {
+        int oldN = n;
+        int mid = n / 2;
+        if (kind == LEAF) {
+            int moved = n - mid;
+            System.arraycopy(keys, mid, right.keys, 0, moved);
+            System.arraycopy(ridPage, mid, right.ridPage, 0, moved);
+            System.arraycopy(ridSlot, mid, right.ridSlot, 0, moved);
+            right.n = moved;
+            right.next = next;
+            next = right.pid.pageNumber();
+            Arrays.fill(keys, mid, oldN, null);
+        } else {
+            int moved = n - mid - 1;
+            System.arraycopy(keys, mid + 1, right.keys, 0, moved);
+            System.arraycopy(ridPage, mid + 1, right.ridPage, 0, moved);
+            System.arraycopy(ridSlot, mid + 1, right.ridSlot, 0, moved);
+            System.arraycopy(children, mid + 1, right.children, 0, moved + 1);
+            right.n = moved;
+            Arrays.fill(keys, mid + 1, oldN, null);
+        }
+        n = mid;
+    }
+
+    /**
+     * Move every entry of right, the leaf after this one in the chain, to
+     * the end of this leaf and take right out of the chain. right becomes
+     * a free page.
+     */
+    void mergeFrom(BTreePage right) {
+        System.arraycopy(right.keys, 0, keys, n, right.n);
+        System.arraycopy(right.ridPage, 0, ridPage, n, right.n);
+        System.arraycopy(right.ridSlot, 0, ridSlot, n, right.n);
+        n += right.n;
+        next = right.next;
+        Arrays.fill(right.keys, 0, right.n, null);
+        right.init(FREE);
+    }
+
+    /** @return the bytes of a free page */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.PAGE_SIZE];
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     */
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.PAGE_SIZE);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(kind);
+            dos.write(new byte[3]);
+            dos.writeInt(n);
+            dos.writeInt(next);
+            if (kind == META) {
+                dos.writeInt(height);
+            } else if (kind == LEAF) {
+                for (int i = 0; i < n; i++)
+                    writeEntry(dos, i);
+            } else if (kind == INNER) {
+                dos.writeInt(children[0]);
+                for (int i = 0; i < n; i++) {
+                    writeEntry(dos, i);
+                    dos.writeInt(children[i + 1]);
+                }
+            }
+            dos.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        byte[] data = new byte[BufferPool.PAGE_SIZE];
+        byte[] written = baos.toByteArray();
+        System.arraycopy(written, 0, data, 0, written.length);
+        return data;
+    }
+
+    private void writeEntry(DataOutputStream dos, int i) throws IOException {
+        keys[i].serialize(dos);
+        dos.writeInt(ridPage[i]);
+        dos.writeInt(ridSlot[i]);
+    }
+
+    public BTreePage getBeforeImage() {
+        try {
+            return new BTreePage(pid, oldData, keyType);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        oldData = getPageData();
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        if(dirty) dirtytid = tid;
+        else dirtytid = null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtytid;
+    }
+}
@@ -0,0 +1,58 @@
+package simpledb;
+
+/** Unique identifier for BTreePage objects. */
+public class BTreePageId implements PageId {
+
+    private int tableId;
+    private int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of a
+     * specific index file.
+     *
+     * @param tableId The id of the BTreeFile
+     * @param pgNo The page number in that file.
+     */
+    public BTreePageId(int tableId, int pgNo) {
+        this.tableId = tableId;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the index file associated with this PageId */
+    public int getTableId() {
+        return this.tableId;
+    }
+
+    /**
+     * @return the page number in the file getTableId() associated with
+     *   this PageId
+     */
+    public int pageNumber() {
+        return this.pgNo;
+    }
+
+    public int hashCode() {
+        return 31 * this.tableId + this.pgNo;
+    }
+
+    public boolean equals(Object o) {
+        if(o == this) return true;
+        if(!(o instanceof BTreePageId)) return false;
+        BTreePageId other = (BTreePageId) o;
+        return other.tableId == this.tableId && other.pgNo == this.pgNo;
+    }
+
+    public String toString() {
+        return "BTreePageId(" + tableId + ", " + pgNo + ")";
+    }
+
+    public int[] serialize() {
+        int data[] = new int[2];
+
+        data[0] = getTableId();
+        data[1] = pageNumber();
+
+        return data;
+    }
+
+}
@@ -0,0 +1,257 @@
+package simpledb;
+
+/**
+ * A Batch holds a block of rows in column order, for the batch-at-a-time
+ * execution path (see {@link BatchIterator}). INT_TYPE columns are plain
+ * int[] vectors; other columns hold their Fields. A selection vector lists
+ * the rows that are still live, so a filter narrows a batch without moving
+ * any data, and a projection shares the vectors of its input.
+ * <p>
+ * Rows are addressed two ways: the i-th live row, for i below
+ * {@link #numRows}, is stored at position {@link #row row(i)} of the
+ * vectors, and getInt and getField take that position. A batch belongs to
+ * whoever it was handed to; producers make a new one for every call.
+ */
+public class Batch {
+
+    /** Number of rows a batch is made to hold. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    /** by column: the values of an INT_TYPE column, else null */
+    private final int[][] ints;
+    /** by column: the values of any other column, else null */
+    private final Field[][] fields;
+    private int size = 0;
+    /** positions of the live rows, or null if rows 0 to size-1 all are */
+    private int[] sel = null;
+    private int selSize = 0;
+
+    public Batch(TupleDesc td) {
+        this(td, DEFAULT_SIZE);
+    }
+
+    public Batch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.fields = new Field[td.numFields()][];
+        for (int c = 0; c < td.numFields(); c++) {
+            if (td.getFieldType(c) == Type.INT_TYPE)
+                ints[c] = new int[capacity];
+            else
+                fields[c] = new Field[capacity];
+        }
+    }
+
+    private Batch(TupleDesc td, int capacity, int[][] ints, Field[][] fields) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = ints;
+        this.fields = fields;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /** @return the number of live rows */
+    public int numRows() {
+        return sel == null ? size : selSize;
+    }
+
+    /** @return the position in the vectors of the i-th live row */
+    public int row(int i) {
+        return sel == null ? i : sel[i];
+    }
+
+    /**
+     * @return the vector of INT_TYPE column c, indexed by position; only
+     *   the live rows' entries are meaningful
+     */
+    public int[] ints(int c) {
+        return ints[c];
+    }
+
+    /** @return the value of INT_TYPE column c at position pos */
+    public int getInt(int c, int pos) {
+        return ints[c][pos];
+    }
+
+    /** @return the value of column c at position pos, as a Field */
+    public Field getField(int c, int pos) {
+        if (ints[c] != null)
+            return new IntField(ints[c][pos]);
+        return fields[c][pos];
+    }
+
+    /**
+     * Add an empty row, to be filled in with {@link #setInt} and
+     * {@link #setField}. Only allowed while every row is live.
+     *
+     * @return the row's position
+     */
+    public int addRow() {
+        if (sel != null)
+            throw new IllegalStateException("can't add rows after a selection");
+        return size++;
+    }
+
+    /** @return how many more rows can be added */
+    public int room() {
+        return capacity - size;
+    }
+
+    /**
+     * Add n empty rows, as {@link #addRow} does.
+     *
+     * @return the position of the first
+     */
+    public int addRows(int n) {
+        if (sel != null)
+            throw new IllegalStateException("can't add rows after a selection");
+        size += n;
+        return size - n;
+    }
+
+    public void setInt(int c, int pos, int v) {
+        ints[c][pos] = v;
+    }
+
+    public void setField(int c, int pos, Field f) {
+        if (ints[c] != null)
+            ints[c][pos] = ((IntField) f).getValue();
+        else
+            fields[c][pos] = f;
+    }
+
+    /** Add a row holding the fields of t. */
+    public void addTuple(Tuple t) {
+        int pos = addRow();
+        for (int c = 0; c < ints.length; c++)
+            setField(c, pos, t.getField(c));
+    }
+
+    /**
+     * Add a row made of row pos1 of b1 followed by row pos2 of b2, as a join
+     * produces it.
+     */
+    public void addJoined(Batch b1, int pos1, Batch b2, int pos2) {
+        int pos = addRow();
+        int n1 = b1.ints.length;
+        for (int c = 0; c < n1; c++)
+            copy(b1, c, pos1, c, pos);
+        for (int c = 0; c < b2.ints.length; c++)
+            copy(b2, c, pos2, n1 + c, pos);
+    }
+
+    /** Add a row made of t followed by row pos2 of b2. */
+    public void addJoined(Tuple t, Batch b2, int pos2) {
+        int pos = addRow();
+        int n1 = t.getTupleDesc().numFields();
+        for (int c = 0; c < n1; c++)
+            setField(c, pos, t.getField(c));
+        for (int c = 0; c < b2.ints.length; c++)
+            copy(b2, c, pos2, n1 + c, pos);
+    }
+
+    private void copy(Batch from, int fromCol, int fromPos, int toCol, int toPos) {
+        if (ints[toCol] != null)
+            ints[toCol][toPos] = from.ints[fromCol][fromPos];
+        else
+            fields[toCol][toPos] = from.fields[fromCol][fromPos];
+    }
+
+    /** @return the i-th live row as a Tuple */
+    public Tuple getTuple(int i) {
+        int pos = row(i);
+        Tuple t = new Tuple(td);
+        for (int c = 0; c < ints.length; c++)
+            t.setField(c, getField(c, pos));
+        return t;
+    }
+
+    /**
+     * Drop the live rows that fail p. INT_TYPE columns compared with an
+     * IntField are tested straight on the vector.
+     */
+    public void filter(Predicate p) {
+        int c = p.getField();
+        int n = numRows();
+        int[] out = sel != null ? sel : new int[capacity];
+        int m = 0;
+        if (ints[c] != null && p.getOperand() instanceof IntField) {
+            int[] v = ints[c];
+            int k = ((IntField) p.getOperand()).getValue();
+            Predicate.Op op = p.getOp();
+            for (int i = 0; i < n; i++) {
+                int pos = row(i);
+                if (compare(v[pos], op, k))
+                    out[m++] = pos;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int pos = row(i);
+                if (getField(c, pos).compare(p.getOp(), p.getOperand()))
+                    out[m++] = pos;
+            }
+        }
+        sel = out;
+        selSize = m;
+    }
+
+    /** @return a op b, with the meaning of {@link IntField#compare} */
+    public static boolean compare(int a, Predicate.Op op, int b) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return a == b;
+        case NOT_EQUALS:
+            return a != b;
+        case GREATER_THAN:
+            return a > b;
+        case GREATER_THAN_OR_EQ:
+            return a >= b;
+        case LESS_THAN:
+            return a < b;
+        case LESS_THAN_OR_EQ:
+            return a <= b;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if column c1 of row pos1 of b1 and column c2 of row pos2
+     *   of b2 satisfy op
+     */
+    public static boolean compare(Batch b1, int c1, int pos1, Predicate.Op op,
+            Batch b2, int c2, int pos2) {
+        if (b1.ints[c1] != null && b2.ints[c2] != null)
+            return compare(b1.ints[c1][pos1], op, b2.ints[c2][pos2]);
+        return b1.getField(c1, pos1).compare(op, b2.getField(c2, pos2));
+    }
+
+    /**
+     * @return a batch of the given columns of this one, with the schema
+     *   td. It shares this batch's vectors and live rows.
+     */
+    public Batch project(int[] columns, TupleDesc td) {
+        int[][] pints = new int[columns.length][];
+        Field[][] pfields = new Field[columns.length][];
+        for (int i = 0; i < columns.length; i++) {
+            pints[i] = ints[columns[i]];
+            pfields[i] = fields[columns[i]];
+        }
+        Batch b = new Batch(td, capacity, pints, pfields);
+        b.size = size;
+        b.sel = sel;
+        b.selSize = selSize;
+        return b;
+    }
+}
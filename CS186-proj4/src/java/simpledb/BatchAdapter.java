@@ -0,0 +1,68 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchAdapter lets a tuple-at-a-time DbIterator be read in batches, by
+ * collecting its tuples {@link Batch#DEFAULT_SIZE} at a time. Everything
+ * else is passed through to the wrapped iterator.
+ */
+public class BatchAdapter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+    private final DbIterator child;
+
+    public BatchAdapter(DbIterator child) {
+        this.child = child;
+    }
+
+    /** @return it itself if it has a batch path, else it wrapped */
+    public static BatchIterator of(DbIterator it) {
+        if (it instanceof BatchIterator)
+            return (BatchIterator) it;
+        return new BatchAdapter(it);
+    }
+
+    /**
+     * @return a batch of the next tuples of it, or null if it has none
+     *   left
+     */
+    public static Batch fill(DbIterator it) throws DbException,
+            TransactionAbortedException {
+        if (!it.hasNext())
+            return null;
+        Batch b = new Batch(it.getTupleDesc());
+        while (!b.isFull() && it.hasNext())
+            b.addTuple(it.next());
+        return b;
+    }
+
+    public Batch nextBatch() throws DbException, TransactionAbortedException {
+        return fill(child);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        return child.hasNext();
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        return child.next();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+}
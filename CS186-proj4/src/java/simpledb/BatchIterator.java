@@ -0,0 +1,21 @@
+package simpledb;
+
+/**
+ * A BatchIterator is a DbIterator that can also hand out its tuples a
+ * {@link Batch} at a time, which saves building a Tuple per row and a pair
+ * of virtual calls per row at every operator boundary. After open or
+ * rewind a caller reads either with next() or with nextBatch(), not both.
+ * <p>
+ * Operators that have a batch path read their children through
+ * {@link BatchAdapter#of}, so a child that only works a tuple at a time
+ * still fits under them.
+ */
+public interface BatchIterator extends DbIterator {
+
+    /**
+     * @return the next batch, with at least one live row, or null if there
+     *   are no more tuples
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public Batch nextBatch() throws DbException, TransactionAbortedException;
+}
@@ -0,0 +1,32 @@
+package simpledb;
+
+/**
+ * Broadcast is one copy of a broadcast: every tuple of the inputs goes to
+ * each of a number of outputs. It lets each parallel copy of a join see all
+ * of a small input.
+ */
+public class Broadcast extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private Broadcast(Producer producer, int output) {
+        super(producer, output);
+    }
+
+    /**
+     * @param inputs the subplans to run; they must have the same schema
+     * @param outputs how many copies to make
+     * @return the copies, which must all be read for any of them to finish
+     */
+    public static Broadcast[] copies(DbIterator[] inputs, int outputs) {
+        Producer p = new Producer(inputs, outputs, -1);
+        Broadcast[] out = new Broadcast[outputs];
+        for (int o = 0; o < outputs; o++)
+            out[o] = new Broadcast(p, o);
+        return out;
+    }
+
+    public String getName() {
+        return "broadcast(" + output + " of " + producer.numOutputs() + ")";
+    }
+}
@@ -2,6 +2,9 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -11,6 +14,23 @@ import java.util.*;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * There is no pool-wide monitor. Pages live in frames kept in a concurrent
+ * map, so a cache hit is a single lookup. Each frame has a latch, held
+ * while its page is being read, written, replaced or thrown out, and a pin
+ * count of the pool operations currently using it; pinned frames are never
+ * evicted. Waiting for a page lock happens before any latch is taken.
+ * <p>
+ * For every transaction the pool remembers the pages it fetched for
+ * writing; only those can be dirty on its behalf, so commit and abort
+ * visit just them instead of the whole pool.
+ * <p>
+ * A dirty page is written only after its before and after images are in
+ * the log and the log is forced; a commit logs all of its pages first and
+ * forces the log once. Transactions change pages without a latch, so
+ * what is written is the image that was logged, never the page itself,
+ * and a page written while its transaction goes on stays dirty if it was
+ * changed again since it was logged.
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -21,25 +41,65 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
     private int max_page;
-    private LinkedHashMap<PageId, Page> pages;
+    private ConcurrentHashMap<PageId, Frame> frames;
     private LockManager lockmanager;
-    private PageId nowpid;
+    private ReplacementPolicy policy;
+    /** pages each transaction got with READ_WRITE, i.e. the ones it may dirty */
+    private ConcurrentHashMap<TransactionId, Set<PageId>> written;
+    /** Serializes eviction only; hits never touch it. */
+    private final Object evictLock = new Object();
+
+    /**
+     * A slot of the pool. page is null while the page is still being read
+     * in; the thread reading it holds the latch, so others wait on it.
+     */
+    private static class Frame {
+        final ReentrantLock latch = new ReentrantLock();
+        final AtomicInteger pins = new AtomicInteger(0);
+        volatile Page page;
+        /** bumped, under the latch, whenever the page is marked dirty or thrown out */
+        long changes = 0;
+    }
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks the
+     * pages to evict with the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy; it must not be shared with
+     *   another BufferPool.
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         // some code goes here
         this.max_page = numPages;
-        this.pages = new LinkedHashMap<PageId, Page>();
+        int stripes = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+        this.frames = new ConcurrentHashMap<PageId, Frame>(numPages * 2, 0.75f, stripes);
         lockmanager = new LockManager();
+        this.written = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+        this.policy = policy;
+        policy.init(numPages);
+    }
+
+    /** @return the replacement policy of this pool, with its counters */
+    public ReplacementPolicy getReplacementPolicy() {
+        return policy;
     }
 
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
-     * transaction.
+     * transaction. Throws TransactionAbortedException if waiting for the
+     * lock would deadlock and this transaction is the one picked to abort.
      * <p>
      * The retrieved page should be looked up in the buffer pool.  If it
      * is present, it should be returned.  If it is not present, it should
@@ -51,47 +111,109 @@ public class BufferPool {
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
      */
-    public synchronized Page getPage(TransactionId tid, PageId pid, Permissions perm)
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        boolean hasLock = lockmanager.getLock(perm, pid, tid);
-        long stime = System.currentTimeMillis();
-       
-        while(!hasLock){
-            if(System.currentTimeMillis() - stime > 300){
-                throw new TransactionAbortedException();
-            }
-            try{
-                Thread.sleep(10);
-                hasLock = lockmanager.getLock(perm, pid, tid);
-            }catch (Exception e){
-                e.printStackTrace();
-            }
+        lockmanager.acquireLock(perm, pid, tid);
+        if(perm == Permissions.READ_WRITE) noteWrite(tid, pid);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Like {@link #getPage}, but never waits: if the lock can't be had right
+     * away, returns null.
+     */
+    public Page getPageIfAvailable(TransactionId tid, PageId pid, Permissions perm)
+        throws DbException {
+        if(!lockmanager.getLock(perm, pid, tid)) return null;
+        if(perm == Permissions.READ_WRITE) noteWrite(tid, pid);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Retrieve a page without locking it, for pages that the caller guards
+     * by other means, like the inner nodes of an index, which its own latch
+     * guards.
+     */
+    Page getPageUnlocked(PageId pid) throws DbException {
+        return fetchPage(pid);
+    }
+
+    private void noteWrite(TransactionId tid, PageId pid) {
+        if(tid == null) return; // a page dirtied by nobody is clean
+        Set<PageId> pids = written.get(tid);
+        if(pids == null){
+            Set<PageId> mine = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+            pids = written.putIfAbsent(tid, mine);
+            if(pids == null) pids = mine;
         }
-        Page mypage = pages.get(pid);
-        if(mypage == null){
-            DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
-            mypage = file.readPage(pid);
-            if(pages.size() >= this.max_page){
-                boolean flag = false;
-                for(Page page : pages.values()){
-                    if(page.isDirty() == null){
-                        flag = true;
-                        try {
-                            flushPage(page.getId());
-                            pages.remove(page.getId());
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        break;
-                    }
+        pids.add(pid);
+    }
+
+    /** @return the pages tid may have dirtied */
+    private Set<PageId> writtenBy(TransactionId tid) {
+        Set<PageId> pids = tid == null ? null : written.get(tid);
+        return pids == null ? Collections.<PageId>emptySet() : pids;
+    }
+
+    /**
+     * Find the page in the pool or read it in. Only the thread that wins
+     * the race to install the frame reads the page; the others wait on its
+     * latch.
+     */
+    private Page fetchPage(PageId pid) throws DbException {
+        while(true){
+            Frame frame = frames.get(pid);
+            if(frame != null){
+                Page page = frame.page;
+                if(page == null){
+                    // still being read by another thread
+                    frame.latch.lock();
+                    page = frame.page;
+                    frame.latch.unlock();
                 }
-                if(!flag) throw new DbException("All pages in BufferPool are dirty!");
+                if(page != null){
+                    policy.pageHit(pid);
+                    return page;
+                }
+                continue; // the read failed and the frame is gone; try again
+            }
+            Frame mine = new Frame();
+            mine.latch.lock();
+            mine.pins.incrementAndGet();
+            if(frames.putIfAbsent(pid, mine) != null){
+                mine.latch.unlock();
+                continue;
+            }
+            boolean loaded = false;
+            try{
+                makeRoom();
+                DbFile file = Database.getCatalog().getDbFile(pid.getTableId());
+                Page page = file.readPage(pid);
+                // a failed read leaves no frame behind, so waiters try again
+                if(page == null) throw new DbException("could not read page " + pid);
+                mine.page = page;
+                policy.pageMiss(pid);
+                loaded = true;
+                return page;
+            }finally{
+                if(!loaded) frames.remove(pid, mine);
+                mine.pins.decrementAndGet();
+                mine.latch.unlock();
             }
-            pages.put(pid, mypage);
         }
-        nowpid = pid;
-        return mypage;
+    }
+
+    /**
+     * Used by the replacement policy while it looks for a victim: a page can
+     * be evicted if it is in the pool, fully read in, not pinned and clean
+     * (we are running NO STEAL).
+     */
+    boolean isEvictable(PageId pid) {
+        Frame frame = frames.get(pid);
+        if(frame == null || frame.pins.get() > 0) return false;
+        Page page = frame.page;
+        return page != null && page.isDirty() == null;
     }
 
     /**
@@ -103,7 +225,7 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      * @param pid the ID of the page to unlock
      */
-    public synchronized void releasePage(TransactionId tid, PageId pid) {
+    public void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for proj1
         lockmanager.releaseOneLock(pid, tid);
@@ -114,7 +236,7 @@ public class BufferPool {
      *
      * @param tid the ID of the transaction requesting the unlock
      */
-    public synchronized void transactionComplete(TransactionId tid) throws IOException {
+    public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
         transactionComplete(tid, true);
@@ -134,24 +256,35 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
-    public synchronized void transactionComplete(TransactionId tid, boolean commit)
+    public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for proj1
         if(commit){
             flushPages(tid);
+            // what it wrote is what later transactions' changes undo to
+            for(PageId tmppid : writtenBy(tid)){
+                Frame frame = frames.get(tmppid);
+                Page page = frame == null ? null : frame.page;
+                if(page != null) page.setBeforeImage();
+            }
         }else{
-            for(Map.Entry<PageId, Page> entry : pages.entrySet()){
-                Page tmppage = entry.getValue();
-                PageId tmppid = entry.getKey();
-                if(tmppage.isDirty() != null && tmppage.isDirty().equals(tid)){
-                    tmppage = Database.getCatalog().getDbFile(tmppid.getTableId()).readPage(tmppid);
-                    pages.put(tmppid, tmppage);
+            // throw away the changes by reading back what is on disk
+            for(PageId tmppid : writtenBy(tid)){
+                Frame frame = frames.get(tmppid);
+                if(frame == null) continue;
+                frame.latch.lock();
+                try{
+                    Page tmppage = frame.page;
+                    if(tmppage != null && tmppage.isDirty() != null && tmppage.isDirty().equals(tid))
+                        frame.page = Database.getCatalog().getDbFile(tmppid.getTableId()).readPage(tmppid);
+                }finally{
+                    frame.latch.unlock();
                 }
             }
         }
+        if(tid != null) written.remove(tid);
         lockmanager.releaseAllLocks(tid);
-//        lockmanager.debugPage(nowpid);
     }
 
     /**
@@ -163,20 +296,24 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and updates cached versions of any pages that have 
      * been dirtied so that future requests see up-to-date pages. 
+     * The tuple is also added to every index on the table.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
      */
-    public synchronized void insertTuple(TransactionId tid, int tableId, Tuple t)
+    public void insertTuple(TransactionId tid, int tableId, Tuple t)
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for proj1
-        HeapFile file = (HeapFile)Database.getCatalog().getDbFile(tableId);
+        DbFile file = Database.getCatalog().getDbFile(tableId);
         ArrayList<Page> dirpages = file.insertTuple(tid, t);
+        // t now has its record id, which is what the indexes point at
+        for(BTreeFile index : Database.getCatalog().getIndexes(tableId))
+            dirpages.addAll(index.insertTuple(tid, t));
         for(Page page : dirpages){
-            page.markDirty(true, tid);
-            this.pages.put(page.getId(), page);
+            noteWrite(tid, page.getId());
+            installPage(page, tid);
         }
         return ;
     }
@@ -189,30 +326,83 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit.  Does not need to update cached versions of any pages that have 
      * been dirtied, as it is not possible that a new page was created during the deletion
-     * (note difference from addTuple).
+     * (note difference from addTuple). The tuple is also removed from every
+     * index on the table.
      *
      * @param tid the transaction adding the tuple.
      * @param t the tuple to add
      */
-    public synchronized void deleteTuple(TransactionId tid, Tuple t)
+    public void deleteTuple(TransactionId tid, Tuple t)
         throws DbException, TransactionAbortedException {
         // some code goes here
         // not necessary for proj1
-        HeapFile file = (HeapFile)Database.getCatalog().getDbFile(t.getRecordId().getPageId().getTableId());
-        Page page = file.deleteTuple(tid, t);
-        if(pages.get(page.getId()) != null) pages.put(page.getId(), page);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile file = Database.getCatalog().getDbFile(tableId);
+        // the index entries go first, while t still has its record id
+        ArrayList<Page> dirpages = new ArrayList<Page>();
+        for(BTreeFile index : Database.getCatalog().getIndexes(tableId))
+            dirpages.addAll(index.deleteEntry(tid, t));
+        dirpages.add(file.deleteTuple(tid, t));
+        for(Page page : dirpages){
+            noteWrite(tid, page.getId());
+            installPage(page, tid);
+        }
         return ;
     }
 
+    /**
+     * Make page, just changed by tid, the cached version of its page id and
+     * mark it dirty. A page that is not in the pool (for example one that
+     * was just added to the end of a file) gets a new frame; the pool may
+     * then be over its size until the next miss evicts clean pages.
+     */
+    private void installPage(Page page, TransactionId tid) {
+        PageId pid = page.getId();
+        while(true){
+            Frame frame = frames.get(pid);
+            if(frame == null){
+                Frame mine = new Frame();
+                page.markDirty(true, tid);
+                mine.page = page;
+                mine.changes = 1;
+                if(frames.putIfAbsent(pid, mine) == null){
+                    policy.admitted(pid);
+                    return;
+                }
+                continue;
+            }
+            frame.latch.lock();
+            try{
+                if(frames.get(pid) != frame) continue; // evicted meanwhile
+                page.markDirty(true, tid);
+                frame.page = page;
+                frame.changes++;
+                return;
+            }finally{
+                frame.latch.unlock();
+            }
+        }
+    }
+
+    /** @return how many times the page of frame has been marked dirty */
+    private static long changesOf(Frame frame) {
+        frame.latch.lock();
+        try{
+            return frame.changes;
+        }finally{
+            frame.latch.unlock();
+        }
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for proj1
-        for(PageId pid : pages.keySet())
+        for(PageId pid : frames.keySet())
           flushPage(pid);
     }
 
@@ -221,43 +411,157 @@ public class BufferPool {
         buffer pool doesn't keep a rolled back page in its
         cache.
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
     // not necessary for proj1
+        Frame frame = frames.get(pid);
+        if(frame == null) return;
+        frame.latch.lock();
+        try{
+            // a flush that read the page before must not write it back
+            frame.changes++;
+            if(frames.remove(pid, frame)) policy.pageDiscarded(pid);
+        }finally{
+            frame.latch.unlock();
+        }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk. The log's checkpoint page writer
+     * calls this for the pages it finds dirty.
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for proj1
-        HeapFile file = (HeapFile)Database.getCatalog().getDbFile(pid.getTableId());
-        Page page = pages.get(pid);
-        file.writePage(page);
-        page.markDirty(false, null);
+        Frame frame = frames.get(pid);
+        if(frame == null) return;
+        frame.pins.incrementAndGet();
+        try{
+            // read before the page is logged
+            long changes = changesOf(frame);
+            Page page = frame.page;
+            TransactionId dirtier = page == null ? null : page.isDirty();
+            if(dirtier == null) return;
+            LogFile log = Database.getLogFile();
+            // not if an abort threw the page out meanwhile
+            Page image = log.logFlush(dirtier, page.getBeforeImage(), page);
+            if(image == null) return;
+            log.force();
+            writeBack(frame, page, image, changes);
+        }finally{
+            frame.pins.decrementAndGet();
+        }
+    }
+
+    /**
+     * Write the image of a page that was logged, unless its frame has
+     * moved on. The log is written without a latch held, since recovery
+     * takes latches while holding the log's lock; only pageWritten, which
+     * takes no locks, is called with it.
+     * <p>
+     * The image, not the page, is written: a change may be halfway done
+     * on the page, and the file must only ever hold what the log has.
+     *
+     * @param image the page as it was logged
+     * @param changes the frame's count of changes when the page was
+     *   logged. If the page has changed since, the log doesn't have all of
+     *   it, and it stays dirty to be logged and written again.
+     */
+    private void writeBack(Frame frame, Page page, Page image, long changes) throws IOException {
+        frame.latch.lock();
+        try{
+            if(frame.page != page || page.isDirty() == null || frame.changes != changes) return;
+            DbFile file = Database.getCatalog().getDbFile(page.getId().getTableId());
+            file.writePage(image);
+            // a change still being made is counted once it is done, and
+            // marks the page dirty again then
+            page.markDirty(false, null);
+            Database.getLogFile().pageWritten(page.getId());
+        }finally{
+            frame.latch.unlock();
+        }
+    }
+
+    /**
+     * @return whether page is the cached version of its page id. The log
+     *   asks this, with no latch held, for a page it is about to log.
+     */
+    boolean isCached(Page page) {
+        Frame frame = frames.get(page.getId());
+        return frame != null && frame.page == page;
     }
 
     /** Write all pages of the specified transaction to disk.
+     *  They are all logged first, and the log forced once.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for proj1
-        for(Map.Entry<PageId, Page> entry : pages.entrySet()){
-            Page page = entry.getValue();
-            if(page.isDirty() != null && page.isDirty().equals(tid))
-              flushPage(page.getId());
+        LogFile log = Database.getLogFile();
+        List<Frame> flushed = new ArrayList<Frame>();
+        List<Page> pages = new ArrayList<Page>();
+        List<Page> images = new ArrayList<Page>();
+        List<Long> changes = new ArrayList<Long>();
+        for(PageId pid : writtenBy(tid)){
+            Frame frame = frames.get(pid);
+            if(frame == null) continue;
+            long c = changesOf(frame);
+            Page page = frame.page;
+            if(page != null && page.isDirty() != null && page.isDirty().equals(tid)){
+                Page image = log.logFlush(tid, page.getBeforeImage(), page);
+                if(image == null) continue;
+                flushed.add(frame);
+                pages.add(page);
+                images.add(image);
+                changes.add(c);
+            }
+        }
+        if(pages.isEmpty()) return;
+        log.force();
+        for(int i = 0; i < pages.size(); i++)
+            writeBack(flushed.get(i), pages.get(i), images.get(i), changes.get(i));
+    }
+
+    /** Evict clean pages until the pool is back to its size. */
+    private void makeRoom() throws DbException {
+        if(frames.size() <= max_page) return;
+        synchronized(evictLock){
+            while(frames.size() > max_page)
+                evictPage();
         }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Only clean pages are evicted, so nothing has to be written back.
+     * A victim that turns out to be busy is left out for the rest of the
+     * call, so the policy is not asked for it over and over.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for proj1
+        Set<PageId> skip = new HashSet<PageId>();
+        while(true){
+            PageId victim = policy.victim(this, skip);
+            if(victim == null) throw new DbException("All pages in BufferPool are dirty!");
+            Frame frame = frames.get(victim);
+            if(frame == null || !frame.latch.tryLock()){
+                skip.add(victim);
+                continue;
+            }
+            try{
+                // the page may have been pinned or dirtied since the policy looked
+                if(!isEvictable(victim) || !frames.remove(victim, frame)){
+                    skip.add(victim);
+                    continue;
+                }
+            }finally{
+                frame.latch.unlock();
+            }
+            policy.pageEvicted(victim);
+            return;
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -8,7 +8,7 @@ import java.util.*;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
- * associated schemas.
+ * associated schemas, and of the indexes on those tables.
  * For now, this is a stub catalog that must be populated with tables by a
  * user program before it can be used -- eventually, this should be converted
  * to a catalog that reads a catalog table from disk.
@@ -32,9 +32,15 @@ public class Catalog {
         }
     }
 
+    /** indexes by their own id, and by the id of their table */
+    private Map<Integer, BTreeFile> indexes;
+    private Map<Integer, List<BTreeFile>> tableIndexes;
+
     public Catalog() {
         // some code goes here
         tables = new HashMap<Integer, table>();
+        indexes = new HashMap<Integer, BTreeFile>();
+        tableIndexes = new HashMap<Integer, List<BTreeFile>>();
     }
 
     /**
@@ -91,22 +97,59 @@ public class Catalog {
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // some code goes here
-        table tb = tables.get(tableid);
-        if(tb == null) throw new NoSuchElementException();
-        else return tb.db.getTupleDesc();
+        return getDbFile(tableid).getTupleDesc();
     }
 
     /**
      * Returns the DbFile that can be used to read the contents of the
-     * specified table.
-     * @param tableid The id of the table, as specified by the DbFile.getId()
-     *     function passed to addTable
+     * specified table or index.
+     * @param tableid The id of the table or index, as specified by the
+     *     DbFile.getId() function passed to addTable or addIndex
      */
     public DbFile getDbFile(int tableid) throws NoSuchElementException {
         // some code goes here
         table tb = tables.get(tableid);
-        if(tb == null) throw new NoSuchElementException();
-        else return tb.db;
+        if(tb != null) return tb.db;
+        BTreeFile index = indexes.get(tableid);
+        if(index == null) throw new NoSuchElementException();
+        return index;
+    }
+
+    /**
+     * Add an index to the catalog. It is kept up to date as tuples are
+     * added to and removed from its table, and the planner may use it.
+     * An index on the same field of the same table is replaced.
+     * @param index the index; index.getTableId() must be in the catalog
+     */
+    public void addIndex(BTreeFile index) {
+        if(!tables.containsKey(index.getTableId())) throw new NoSuchElementException();
+        List<BTreeFile> onTable = tableIndexes.get(index.getTableId());
+        if(onTable == null){
+            onTable = new ArrayList<BTreeFile>();
+            tableIndexes.put(index.getTableId(), onTable);
+        }
+        BTreeFile old = getIndex(index.getTableId(), index.getKeyField());
+        if(old != null){
+            onTable.remove(old);
+            indexes.remove(old.getId());
+        }
+        onTable.add(index);
+        indexes.put(index.getId(), index);
+    }
+
+    /** @return the indexes on the specified table; empty if there are none */
+    public List<BTreeFile> getIndexes(int tableid) {
+        List<BTreeFile> onTable = tableIndexes.get(tableid);
+        if(onTable == null) return Collections.emptyList();
+        return onTable;
+    }
+
+    /** @return the index on field of the specified table, or null */
+    public BTreeFile getIndex(int tableid, int field) {
+        for(BTreeFile index : getIndexes(tableid))
+          if(index.getKeyField() == field)
+            return index;
+        return null;
     }
 
     public String getPrimaryKey(int tableid) {
@@ -126,14 +169,24 @@ public class Catalog {
         return tables.get(id).name;
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables and indexes from the catalog */
     public void clear() {
         // some code goes here
         tables.clear();
+        indexes.clear();
+        tableIndexes.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A field annotated with "index" instead of "pk" gets a B+tree index,
+     * stored as name.field.idx next to the table's file. A table followed
+     * by "columnar", as in name (field type, ...) columnar, is stored in
+     * PAX pages; see {@link HeapFile#isColumnar}. One followed by "slotted"
+     * is stored in slotted pages of variable-length records; see
+     * {@link HeapFile#isSlotted}. One followed by
+     * "compressed" or "deflate" has its pages compressed; see
+     * {@link PageCodec}.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -147,10 +200,27 @@ public class Catalog {
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                boolean columnar = false, slotted = false;
+                PageCodec.Compression compression = PageCodec.Compression.NONE;
+                for (String a : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (a.equals("columnar"))
+                        columnar = true;
+                    else if (a.equals("slotted"))
+                        slotted = true;
+                    else if (a.equals("compressed"))
+                        compression = PageCodec.Compression.LIGHT;
+                    else if (a.equals("deflate"))
+                        compression = PageCodec.Compression.DEFLATE;
+                    else if (!a.equals("")) {
+                        System.out.println("Unknown annotation " + a);
+                        System.exit(0);
+                    }
+                }
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<Integer> indexed = new ArrayList<Integer>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -165,6 +235,8 @@ public class Catalog {
                     if (els2.length == 3) {
                         if (els2[2].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[2].trim().equals("index"))
+                            indexed.add(names.size() - 1);
                         else {
                             System.out.println("Unknown annotation " + els2[2]);
                             System.exit(0);
@@ -174,9 +246,19 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t,
+                        columnar, slotted, compression);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (int field : indexed) {
+                    // name.field.idx next to the table; built on first load
+                    File idxFile = new File(baseFolder+"/"+name + "." + namesAr[field] + ".idx");
+                    BTreeFile idx = idxFile.exists()
+                        ? new BTreeFile(idxFile, tabHf.getId(), field)
+                        : BTreeFile.create(idxFile, tabHf.getId(), field);
+                    addIndex(idx);
+                    System.out.println("Added index on " + name + "." + namesAr[field]);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
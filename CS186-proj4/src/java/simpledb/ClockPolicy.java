@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit on a circular list
+ * of frames, each with a reference bit that is set on every access. The
+ * clock hand sweeps the frames, clearing reference bits, and evicts the
+ * first clean page whose bit is already clear.
+ * <p>
+ * A hit only sets a reference bit, so accessed() takes no lock; a bit set
+ * while the hand is passing may be lost, which costs the page at most one
+ * extra trip around the clock.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+
+    private PageId[] frames;
+    private volatile boolean[] referenced;
+    private ConcurrentHashMap<PageId, Integer> slotOf;
+    private int hand;
+
+    public ClockPolicy() {
+        init(BufferPool.DEFAULT_PAGES);
+    }
+
+    protected synchronized void init(int capacity) {
+        frames = new PageId[Math.max(capacity, 1)];
+        referenced = new boolean[frames.length];
+        slotOf = new ConcurrentHashMap<PageId, Integer>();
+        hand = 0;
+    }
+
+    protected void accessed(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        boolean[] ref = referenced;
+        if (slot != null && slot < ref.length)
+            ref[slot] = true;
+    }
+
+    protected synchronized void admitted(PageId pid) {
+        if (slotOf.containsKey(pid)) {
+            accessed(pid);
+            return;
+        }
+        int slot = freeSlot();
+        frames[slot] = pid;
+        referenced[slot] = true;
+        slotOf.put(pid, slot);
+    }
+
+    protected synchronized void removed(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            frames[slot] = null;
+            referenced[slot] = false;
+        }
+    }
+
+    protected synchronized PageId chooseVictim(BufferPool pool, Set<PageId> skip) {
+        // two full turns: the first one may only clear reference bits
+        for (int i = 0; i < 2 * frames.length; i++) {
+            PageId pid = frames[hand];
+            int slot = hand;
+            hand = (hand + 1) % frames.length;
+            if (pid == null || skip.contains(pid) || !pool.isEvictable(pid))
+                continue;
+            if (referenced[slot])
+                referenced[slot] = false;
+            else
+                return pid;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return "CLOCK";
+    }
+
+    /** Find an empty frame, growing the clock if the pool overshot it. */
+    private int freeSlot() {
+        for (int i = 0; i < frames.length; i++) {
+            int slot = (hand + i) % frames.length;
+            if (frames[slot] == null)
+                return slot;
+        }
+        int old = frames.length;
+        frames = Arrays.copyOf(frames, old * 2);
+        referenced = Arrays.copyOf(referenced, old * 2);
+        return old;
+    }
+}
@@ -0,0 +1,71 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Consumer is an {@link Exchange} that reads one of the outputs of a
+ * {@link Producer}. Consumers of the same Producer share its inputs, which
+ * are started by the first of them to open and stopped once all of them
+ * are closed. A rewind of every consumer, as by a {@link Gather} above
+ * them, starts the inputs over for all of them; a consumer rewound alone
+ * gets the inputs run again for itself once its siblings have been fed.
+ */
+public abstract class Consumer extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final Producer producer;
+    protected final int output;
+    private transient Iterator<Tuple> chunk;
+
+    /**
+     * @param producer the producer to read from
+     * @param output which of its outputs this consumer reads
+     */
+    protected Consumer(Producer producer, int output) {
+        this.producer = producer;
+        this.output = output;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return producer.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        super.open();
+        chunk = null;
+        producer.open(output);
+    }
+
+    public void close() {
+        super.close();
+        chunk = null;
+        producer.close(output);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (chunk == null || !chunk.hasNext()) {
+            List<Tuple> c = producer.take(output);
+            if (c == null)
+                return null;
+            chunk = c.iterator();
+        }
+        return chunk.next();
+    }
+
+    /** @return the producer's inputs */
+    @Override
+    public DbIterator[] getChildren() {
+        return producer.getInputs();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        producer.setInputs(children);
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.util.concurrent.*;
 
 /** Database is a class that initializes several static
     variables used by the database system (the catalog, the buffer pool,
@@ -16,6 +17,15 @@ public class Database {
     private BufferPool _bufferpool; 
 
     private final static String LOGFILENAME = "log";
+
+    /** Threads shared by the operators that run parts of a query in parallel */
+    private final static ExecutorService _workers = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "simpledb-worker");
+            t.setDaemon(true);
+            return t;
+        }
+    });
     private LogFile _logfile;
 
     private Database() {
@@ -41,6 +51,12 @@ public class Database {
         return _instance._bufferpool;
     }
 
+    /** Return the worker threads for parallel query execution; they
+        outlive reset() */
+    public static ExecutorService getWorkers() {
+        return _workers;
+    }
+
     /** Return the catalog of the static Database instance*/
     public static Catalog getCatalog() {
         return _instance._catalog;
@@ -54,8 +70,17 @@ public class Database {
         return _instance._bufferpool;
     }
 
+    /** Method used for testing -- create a new instance of the
+        buffer pool that evicts pages with the given replacement policy
+    */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy policy) {
+        _instance._bufferpool = new BufferPool(pages, policy);
+        return _instance._bufferpool;
+    }
+
     //reset the database, used for unit tests only.
     public static void reset() {
+        PageFile.closeAll();
     	_instance = new Database();
     }
 
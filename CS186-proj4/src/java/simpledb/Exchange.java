@@ -0,0 +1,22 @@
+package simpledb;
+
+/**
+ * Exchange is the base of the operators that connect parts of a plan
+ * running on different threads. Each input runs on a thread of its own
+ * (see {@link Producer}) and hands its tuples over through bounded queues;
+ * the operator above an Exchange reads them like any other child's.
+ * <p>
+ * Inputs are opened and read on their worker threads, never on the
+ * thread that reads the Exchange, so they must not be shared with the rest
+ * of the plan.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @return a short description of the exchange, for
+     *         {@link QueryPlanVisualizer}
+     */
+    public abstract String getName();
+}
@@ -0,0 +1,234 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples using a bounded amount of memory.
+ * Tuples are collected until the memory budget is full; the batch is then
+ * sorted and written to a temporary run file. At the end the runs are
+ * merged, several at a time if there are more of them than pages of
+ * memory, and the last merge is streamed to the reader. Input that fits in
+ * the budget is sorted in memory and never touches the disk.
+ * <p>
+ * Runs are {@link SpillFile}s.
+ * <p>
+ * The memory budget is counted in pages of BufferPool.PAGE_SIZE bytes of
+ * heap, not in pages of tuples: a run holds as many tuples as fit in the
+ * budget by their {@link SpillFile#heapSize}, which is several times fewer
+ * than would fit on that many pages on disk. The merge reads one page of
+ * each run at a time.
+ *
+ * @see OrderBy
+ */
+public class ExternalSort {
+
+    /** Default memory budget, in pages of heap. */
+    public static final int DEFAULT_MEMORY_PAGES = 1024;
+    /** bytes a tuple takes in the run besides itself: its slot in the list */
+    private static final int SLOT_BYTES = 8;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> cmp;
+    private final int memoryPages;
+    private final int runCapacity;
+
+    private ArrayList<Tuple> current = new ArrayList<Tuple>();
+    private final ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+    private boolean sorted = false;
+
+    /**
+     * @param td the schema of the tuples to sort
+     * @param cmp the order to sort them in
+     * @param memoryPages how many pages of heap the tuples of a run may
+     *   take; also the number of runs merged at once, less one for the
+     *   output
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> cmp, int memoryPages) {
+        this.td = td;
+        this.cmp = cmp;
+        this.memoryPages = Math.max(3, memoryPages);
+        this.runCapacity = Math.max(1, (int) Math.min(Integer.MAX_VALUE,
+                (long) this.memoryPages * BufferPool.PAGE_SIZE
+                        / (SpillFile.heapSize(td) + SLOT_BYTES)));
+    }
+
+    /** Add a tuple to sort. */
+    public void add(Tuple t) throws DbException {
+        if (sorted)
+            throw new IllegalStateException("already sorted");
+        current.add(t);
+        if (current.size() >= runCapacity)
+            spill();
+    }
+
+    /**
+     * Finish the input. Afterwards no more tuples can be added and the
+     * result can be read with {@link #iterator}.
+     */
+    public void sort() throws DbException {
+        if (sorted)
+            return;
+        sorted = true;
+        Collections.sort(current, cmp);
+        if (runs.isEmpty())
+            return;
+        spill();
+        // merge until one pass can take all the runs
+        int fanIn = memoryPages - 1;
+        while (runs.size() > fanIn) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+                SpillFile out = newRun();
+                Merger m = new Merger(group);
+                Tuple t;
+                while ((t = m.next()) != null)
+                    out.append(t);
+                out.finish();
+                for (SpillFile r : group)
+                    r.delete();
+                merged.add(out);
+            }
+            runs.clear();
+            runs.addAll(merged);
+        }
+    }
+
+    /** @return the number of runs written to disk so far */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * @return an iterator over the sorted tuples; it can be rewound and
+     *   several can be open at once
+     */
+    public DbFileIterator iterator() {
+        if (!sorted)
+            throw new IllegalStateException("call sort() first");
+        return new DbFileIterator() {
+            private static final long serialVersionUID = 1L;
+            private Iterator<Tuple> mem;
+            private Merger merger;
+            private Tuple nextTuple;
+
+            public void open() throws DbException {
+                if (runs.isEmpty())
+                    mem = current.iterator();
+                else
+                    merger = new Merger(runs);
+                nextTuple = null;
+            }
+
+            public boolean hasNext() throws DbException {
+                if (nextTuple == null) {
+                    if (mem != null)
+                        nextTuple = mem.hasNext() ? mem.next() : null;
+                    else if (merger != null)
+                        nextTuple = merger.next();
+                }
+                return nextTuple != null;
+            }
+
+            public Tuple next() throws DbException, NoSuchElementException {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = nextTuple;
+                nextTuple = null;
+                return t;
+            }
+
+            public void rewind() throws DbException {
+                open();
+            }
+
+            public void close() {
+                mem = null;
+                merger = null;
+                nextTuple = null;
+            }
+        };
+    }
+
+    /** Throw away the tuples and delete the run files. */
+    public void close() {
+        for (SpillFile r : runs)
+            r.delete();
+        runs.clear();
+        current = new ArrayList<Tuple>();
+    }
+
+    /** Sort the tuples in memory and write them out as a run. */
+    private void spill() throws DbException {
+        if (current.isEmpty())
+            return;
+        Collections.sort(current, cmp);
+        SpillFile r = newRun();
+        for (Tuple t : current)
+            r.append(t);
+        r.finish();
+        runs.add(r);
+        current = new ArrayList<Tuple>();
+    }
+
+    private SpillFile newRun() throws DbException {
+        return new SpillFile(td, "sort");
+    }
+
+    /** Reads one run a page at a time. */
+    private static class Cursor {
+        final SpillFile run;
+        int pgNo = 0;
+        Tuple[] page;
+        int pos = 0;
+        /** the current tuple, or null at the end of the run */
+        Tuple head;
+
+        Cursor(SpillFile run) throws DbException {
+            this.run = run;
+            advance();
+        }
+
+        void advance() throws DbException {
+            while (page == null || pos == page.length) {
+                if (pgNo == run.numPages()) {
+                    head = null;
+                    return;
+                }
+                page = run.readPage(pgNo++);
+                pos = 0;
+            }
+            head = page[pos++];
+        }
+    }
+
+    /** k-way merge of sorted runs, keeping one page of each in memory. */
+    private class Merger {
+        private final PriorityQueue<Cursor> heap;
+
+        Merger(List<SpillFile> runs) throws DbException {
+            heap = new PriorityQueue<Cursor>(Math.max(1, runs.size()), new Comparator<Cursor>() {
+                public int compare(Cursor a, Cursor b) {
+                    return cmp.compare(a.head, b.head);
+                }
+            });
+            for (SpillFile r : runs) {
+                Cursor c = new Cursor(r);
+                if (c.head != null)
+                    heap.add(c);
+            }
+        }
+
+        /** @return the smallest remaining tuple, or null if there are none */
+        Tuple next() throws DbException {
+            Cursor c = heap.poll();
+            if (c == null)
+                return null;
+            Tuple t = c.head;
+            c.advance();
+            if (c.head != null)
+                heap.add(c);
+            return t;
+        }
+    }
+}
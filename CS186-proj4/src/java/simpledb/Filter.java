@@ -5,7 +5,7 @@ import java.util.*;
 /**
  * Filter is an operator that implements a relational select.
  */
-public class Filter extends Operator {
+public class Filter extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -21,6 +21,8 @@ public class Filter extends Operator {
 
     Predicate p;
     DbIterator child;
+    /** true if the scan below already applies p */
+    private boolean pushed;
     public Filter(Predicate p, DbIterator child) {
         // some code goes here
         this.p = p;
@@ -41,6 +43,7 @@ public class Filter extends Operator {
             TransactionAbortedException {
         // some code goes here
         super.open();
+        pushed = child instanceof SeqScan && ((SeqScan) child).pushPredicate(p);
         this.child.open();
     }
 
@@ -69,7 +72,25 @@ public class Filter extends Operator {
         // some code goes here
         while(this.child.hasNext()){
             Tuple now = child.next();
-            if(p.filter(now)) return now;
+            if(pushed || p.filter(now)) return now;
+        }
+        return null;
+    }
+
+    /**
+     * Narrows each batch of the child to the rows that pass the predicate.
+     *
+     * @return the next batch with a row that passes, or null if there are
+     *         no more
+     */
+    public Batch nextBatch() throws TransactionAbortedException, DbException {
+        BatchIterator in = BatchAdapter.of(child);
+        Batch b;
+        while ((b = in.nextBatch()) != null) {
+            if (!pushed)
+                b.filter(p);
+            if (b.numRows() > 0)
+                return b;
         }
         return null;
     }
@@ -0,0 +1,162 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap remembers which pages of a HeapFile have at least one empty
+ * slot, so an insert can go straight to such a page instead of trying
+ * every page from the start of the file.
+ * <p>
+ * The map of a HeapFile is kept in a file next to it (see {@link #fileOf})
+ * and written as it changes, so it survives a restart. It holds the number
+ * of pages it covers followed by a bit per page, in blocks that are
+ * written one at a time through a {@link PageFile}; a page that fills up
+ * or gets room again costs the write of one block.
+ * <p>
+ * The map is only a hint: it is written outside of transactions, and
+ * neither an aborted change nor recovery corrects it. Whoever uses it must
+ * check the page itself once it holds the page's lock, and report what it
+ * found with {@link #markFree} or {@link #markFull}.
+ */
+public class FreeSpaceMap {
+
+    /** bytes per block of the file the map is kept in */
+    static final int BLOCK_SIZE = 512;
+    /** bytes of block 0 before the bits: the number of pages covered */
+    private static final int HEADER = 4;
+
+    private final BitSet free = new BitSet();
+    /** where the map is kept, or null for a map kept in memory only */
+    private final PageFile store;
+    private int numPages = 0;
+
+    /** A map kept in memory only. */
+    public FreeSpaceMap() {
+        this.store = null;
+    }
+
+    private FreeSpaceMap(PageFile store) {
+        this.store = store;
+    }
+
+    /** @return the file the free space map of heap file f is kept in */
+    public static File fileOf(File f) {
+        return new File(f.getPath() + ".fsm");
+    }
+
+    /**
+     * @return the map kept next to heap file f, as it was last written, or
+     *   an empty one covering no pages if there is none yet
+     */
+    public static FreeSpaceMap open(File f) throws IOException {
+        FreeSpaceMap fsm = new FreeSpaceMap(PageFile.open(fileOf(f), BLOCK_SIZE));
+        fsm.read();
+        return fsm;
+    }
+
+    /**
+     * Delete the map kept next to heap file f, for when f is written anew.
+     */
+    public static void delete(File f) {
+        PageFile.open(fileOf(f), BLOCK_SIZE).delete();
+    }
+
+    /** Note that page pgNo has an empty slot. */
+    public synchronized void markFree(int pgNo) {
+        set(pgNo, true);
+    }
+
+    /** Note that page pgNo is full. */
+    public synchronized void markFull(int pgNo) {
+        set(pgNo, false);
+    }
+
+    public synchronized boolean isFree(int pgNo) {
+        return free.get(pgNo);
+    }
+
+    /**
+     * @return the first page at or after pgNo that is believed to have an
+     *   empty slot, or -1 if there is none
+     */
+    public synchronized int nextFree(int pgNo) {
+        return free.nextSetBit(pgNo);
+    }
+
+    /** @return the number of pages believed to have an empty slot */
+    public synchronized int numFree() {
+        return free.cardinality();
+    }
+
+    /**
+     * @return the number of pages the map knows about; pages from here on
+     *   have never been marked
+     */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /** Forget every page, for a map left over from an older file. */
+    public synchronized void clear() {
+        free.clear();
+        numPages = 0;
+        if (store == null)
+            return;
+        try {
+            store.truncate(0);
+            store.writePage(0, block(0));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void set(int pgNo, boolean isFree) {
+        boolean grew = pgNo >= numPages;
+        if (!grew && free.get(pgNo) == isFree)
+            return;
+        free.set(pgNo, isFree);
+        if (grew)
+            numPages = pgNo + 1;
+        if (store == null)
+            return;
+        // a lost write only makes the hint wrong, so it doesn't fail the change
+        try {
+            int b = (HEADER * 8 + pgNo) / (BLOCK_SIZE * 8);
+            store.writePage(b, block(b));
+            if (grew && b != 0)
+                store.writePage(0, block(0));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** @return block b of the file, as it is in memory */
+    private byte[] block(int b) {
+        byte[] data = new byte[BLOCK_SIZE];
+        if (b == 0)
+            ByteBuffer.wrap(data).putInt(numPages);
+        int first = b * BLOCK_SIZE * 8 - HEADER * 8;
+        for (int i = Math.max(0, -first); i < BLOCK_SIZE * 8; i++) {
+            if (free.get(first + i))
+                data[i / 8] |= (byte) (1 << (i % 8));
+        }
+        return data;
+    }
+
+    private synchronized void read() throws IOException {
+        int blocks = store.numPages();
+        if (blocks == 0)
+            return;
+        numPages = ByteBuffer.wrap(store.readPage(0)).getInt();
+        for (int b = 0; b < blocks; b++) {
+            byte[] data = store.readPage(b);
+            int first = b * BLOCK_SIZE * 8 - HEADER * 8;
+            for (int i = Math.max(0, -first); i < BLOCK_SIZE * 8 && first + i < numPages; i++) {
+                if ((data[i / 8] & (1 << (i % 8))) != 0)
+                    free.set(first + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package simpledb;
+
+/**
+ * Gather runs several copies of a subplan in parallel, one thread each,
+ * and returns all of their tuples, in whatever order they come. Rewinding
+ * it runs the copies again.
+ */
+public class Gather extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param inputs the subplans to run; they must have the same schema
+     */
+    public Gather(DbIterator[] inputs) {
+        super(new Producer(inputs, 1, -1), 0);
+    }
+
+    public String getName() {
+        return "gather(" + producer.getInputs().length + ")";
+    }
+}
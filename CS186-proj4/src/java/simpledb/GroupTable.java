@@ -0,0 +1,286 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * GroupTable keeps, for each group of an aggregation, the number of rows
+ * and the long sum, min and max of a few int columns. Groups are numbered
+ * in the order they first show up, and the accumulators live in primitive
+ * arrays indexed by group number, so merging a row allocates nothing once
+ * the arrays have grown to fit the groups.
+ * <p>
+ * A group is keyed by the values of its group-by fields. One or two
+ * INT_TYPE fields are packed into a long key, found in an open-addressing
+ * table with linear probing. Any other key is looked up in a dictionary
+ * with a reused probe, so only a new group allocates its key. Without
+ * group-by fields, every row goes to the single group {@link #single}.
+ */
+public class GroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int EMPTY = -1;
+
+    private final Type[] keyTypes;
+    /** whether the key is packed into a long, rather than in the dictionary */
+    private final boolean packed;
+    /** int columns accumulated per group */
+    private final int width;
+    /** the group number stored at each slot of the table, or EMPTY */
+    private int[] slots = new int[16];
+    private int numGroups = 0;
+    /** by group: its packed key */
+    private long[] keys = new long[8];
+    /** by group: its row count */
+    private long[] counts = new long[8];
+    /** by group * width + column */
+    private long[] sums, mins, maxs;
+    /** the groups of keys that aren't packed, and their keys by group */
+    private HashMap<Key, Integer> dictionary;
+    private ArrayList<Field[]> values;
+    private transient Key probe;
+
+    /** The values of a group's fields, as a dictionary key. */
+    private static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final Field[] fields;
+
+        Key(Field[] fields) {
+            this.fields = fields;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(fields, ((Key) o).fields);
+        }
+
+        public int hashCode() {
+            return Arrays.hashCode(fields);
+        }
+    }
+
+    /**
+     * @param keyTypes the types of the group-by fields, none if there is no
+     *            grouping
+     * @param width the number of int columns to accumulate per group
+     */
+    public GroupTable(Type[] keyTypes, int width) {
+        this.keyTypes = keyTypes;
+        this.width = width;
+        boolean allInts = keyTypes.length <= 2;
+        for (Type t : keyTypes)
+            allInts &= t == Type.INT_TYPE;
+        this.packed = allInts;
+        if (!packed) {
+            dictionary = new HashMap<Key, Integer>();
+            values = new ArrayList<Field[]>();
+        }
+        Arrays.fill(slots, EMPTY);
+        sums = new long[8 * width];
+        mins = new long[8 * width];
+        maxs = new long[8 * width];
+    }
+
+    /** @return the number of groups so far */
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /** @return the number of group-by fields */
+    public int numKeys() {
+        return keyTypes.length;
+    }
+
+    /** @return the group of the rows of an aggregate without grouping */
+    public int single() {
+        return numGroups == 0 ? group(0L) : 0;
+    }
+
+    /**
+     * @return the group of the packed key, added if new. A single INT_TYPE
+     *   field is its own key; see {@link #pack} for two.
+     */
+    public int group(long key) {
+        int mask = slots.length - 1;
+        int i = slot(key, mask);
+        int g;
+        while ((g = slots[i]) != EMPTY) {
+            if (keys[g] == key)
+                return g;
+            i = (i + 1) & mask;
+        }
+        g = add(key);
+        slots[i] = g;
+        if (numGroups * 2 > slots.length)
+            rehash();
+        return g;
+    }
+
+    /** @return the packed key of two INT_TYPE group-by values */
+    public static long pack(int a, int b) {
+        return ((long) a << 32) | (b & 0xffffffffL);
+    }
+
+    /** @return the group of fields of t, added if new */
+    public int group(Tuple t, int[] fields) {
+        if (packed) {
+            if (fields.length == 0)
+                return single();
+            int a = ((IntField) t.getField(fields[0])).getValue();
+            if (fields.length == 1)
+                return group((long) a);
+            return group(pack(a, ((IntField) t.getField(fields[1])).getValue()));
+        }
+        Key k = probe();
+        for (int i = 0; i < fields.length; i++)
+            k.fields[i] = t.getField(fields[i]);
+        return lookup(k);
+    }
+
+    /** @return the group of fields of the row at position pos of b, added if new */
+    public int group(Batch b, int pos, int[] fields) {
+        if (packed) {
+            if (fields.length == 0)
+                return single();
+            int a = b.getInt(fields[0], pos);
+            if (fields.length == 1)
+                return group((long) a);
+            return group(pack(a, b.getInt(fields[1], pos)));
+        }
+        Key k = probe();
+        for (int i = 0; i < fields.length; i++)
+            k.fields[i] = b.getField(fields[i], pos);
+        return lookup(k);
+    }
+
+    private Key probe() {
+        if (probe == null)
+            probe = new Key(new Field[keyTypes.length]);
+        return probe;
+    }
+
+    private int lookup(Key k) {
+        Integer g = dictionary.get(k);
+        if (g != null)
+            return g;
+        Field[] fields = k.fields.clone();
+        dictionary.put(new Key(fields), numGroups);
+        values.add(fields);
+        return add(0L);
+    }
+
+    /**
+     * Add the groups of other, which has the same key types and width, to
+     * this table: counts and sums add up, and mins and maxes are combined.
+     */
+    public void combine(GroupTable other) {
+        for (int h = 0; h < other.numGroups; h++) {
+            int g = packed ? group(other.keys[h]) : lookup(new Key(other.values.get(h)));
+            counts[g] += other.counts[h];
+            for (int c = 0; c < width; c++) {
+                int i = h * width + c;
+                add(g, c, other.sums[i], other.mins[i], other.maxs[i]);
+            }
+        }
+    }
+
+    /** @return the value of group-by field i of group g */
+    public Field key(int g, int i) {
+        if (!packed)
+            return values.get(g)[i];
+        if (keyTypes.length == 1)
+            return new IntField((int) keys[g]);
+        return new IntField(i == 0 ? (int) (keys[g] >> 32) : (int) keys[g]);
+    }
+
+    /** Add a row to group g; its columns are added with {@link #add}. */
+    public void count(int g, long n) {
+        counts[g] += n;
+    }
+
+    /** Add x to column c of group g. */
+    public void add(int g, int c, int x) {
+        int i = g * width + c;
+        sums[i] += x;
+        if (x < mins[i])
+            mins[i] = x;
+        if (x > maxs[i])
+            maxs[i] = x;
+    }
+
+    /** Add some values, given their sum, min and max, to column c of group g. */
+    public void add(int g, int c, long sum, long min, long max) {
+        int i = g * width + c;
+        sums[i] += sum;
+        if (min < mins[i])
+            mins[i] = min;
+        if (max > maxs[i])
+            maxs[i] = max;
+    }
+
+    public long count(int g) {
+        return counts[g];
+    }
+
+    public long sum(int g, int c) {
+        return sums[g * width + c];
+    }
+
+    public long min(int g, int c) {
+        return mins[g * width + c];
+    }
+
+    public long max(int g, int c) {
+        return maxs[g * width + c];
+    }
+
+    /** @return op of column c of group g; AVG truncates like int division */
+    public long result(int g, int c, Aggregator.Op op) {
+        switch (op) {
+        case COUNT:
+            return counts[g];
+        case SUM:
+            return sums[g * width + c];
+        case AVG:
+            return counts[g] == 0 ? 0 : sums[g * width + c] / counts[g];
+        case MIN:
+            return mins[g * width + c];
+        case MAX:
+            return maxs[g * width + c];
+        }
+        throw new IllegalArgumentException("unknown aggregate " + op);
+    }
+
+    private static int slot(long key, int mask) {
+        int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int add(long key) {
+        int g = numGroups++;
+        if (g == keys.length) {
+            int n = keys.length * 2;
+            keys = Arrays.copyOf(keys, n);
+            counts = Arrays.copyOf(counts, n);
+            sums = Arrays.copyOf(sums, n * width);
+            mins = Arrays.copyOf(mins, n * width);
+            maxs = Arrays.copyOf(maxs, n * width);
+        }
+        keys[g] = key;
+        Arrays.fill(mins, g * width, (g + 1) * width, Long.MAX_VALUE);
+        Arrays.fill(maxs, g * width, (g + 1) * width, Long.MIN_VALUE);
+        return g;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, EMPTY);
+        int mask = slots.length - 1;
+        for (int g = 0; g < numGroups; g++) {
+            int i = slot(keys[g], mask);
+            while (slots[i] != EMPTY)
+                i = (i + 1) & mask;
+            slots[i] = g;
+        }
+    }
+}
@@ -3,9 +3,11 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements the relational join operation for
+ * equality predicates with a hybrid hash join that stays within a memory
+ * budget; see {@link #fetchNext}.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private JoinPredicate pred;
@@ -50,57 +52,345 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
+    /** Default memory budget for the build side, in pages of heap. */
+    public static final int DEFAULT_MEMORY_PAGES = 1024;
+    /**
+     * bytes a build tuple takes in the hash table besides itself, taking
+     * every key to be distinct: its map entry, and a list with its array
+     */
+    private static final int ENTRY_BYTES = 128;
+    /** The most partitions an input is split into at once. */
+    static final int MAX_FANOUT = 64;
+    /**
+     * How many times a partition that is still too big is split again
+     * before it is joined a memory-load at a time instead; only a heavily
+     * repeated key gets that far.
+     */
+    static final int MAX_LEVEL = 4;
+
+    private int memoryPages = DEFAULT_MEMORY_PAGES;
+    private transient int capacity;
+    private transient int fanout;
+
+    HashMap<Field, ArrayList<Tuple>> map = new HashMap<Field, ArrayList<Tuple>>();
+    transient Iterator<Tuple> listIt = null;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    // the first pass: child2 is read, and if child1 didn't fit in memory
+    // both are split into partitions of which one may stay in memory
+    private transient boolean firstPass;
+    private transient boolean partitioned;
+    private transient int residentPart;
+    private transient SpillFile[] buildParts, probeParts;
+
+    // later passes join one pair of spilled partitions at a time
+    private LinkedList<Partition> pending = new LinkedList<Partition>();
+    private transient Partition current;
+    private transient DbFileIterator build, probe;
+    private transient int spilled;
+
+    // where nextBatch is: a batch of child2, a row of it and its matches
+    private transient Batch probeBatch;
+    private transient int probeRow, probePos, matchNo;
+    private transient ArrayList<Tuple> matches;
+
+    /** A partition of each input, spilled to disk. */
+    private static class Partition {
+        final SpillFile build, probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+
+        void delete() {
+            build.delete();
+            probe.delete();
+        }
+    }
+
+    /**
+     * Set how many pages of heap the child1 tuples the join holds may take,
+     * hash table included. A child1 larger than that is partitioned to
+     * disk, into at most one partition per page less one.
+     */
+    public void setMemoryPages(int pages) {
+        this.memoryPages = Math.max(3, pages);
+    }
+
+    /** @return the number of partitions written to disk since open */
+    public int numSpilledPartitions() {
+        return spilled;
+    }
+
+    /**
+     * @return how many child1 tuples of td fit in the given pages of heap,
+     *   counting what each takes as a live Tuple in the hash table rather
+     *   than on disk
+     */
+    static int capacity(TupleDesc td, int memoryPages) {
+        return Math.max(1, (int) Math.min(Integer.MAX_VALUE,
+                (long) memoryPages * BufferPool.PAGE_SIZE
+                        / (SpillFile.heapSize(td) + ENTRY_BYTES)));
+    }
+
+    /** @return the partition of key at the given level of splitting */
+    static int partition(Field key, int level, int fanout) {
+        int h = key.hashCode() + level * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % fanout;
+    }
+
+    private void put(Tuple t) {
+        Field key = t.getField(pred.getField1());
+        ArrayList<Tuple> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(key, list);
+        }
+        list.add(t);
+    }
+
+    private void append(SpillFile[] parts, int p, Tuple t, String prefix)
+            throws DbException {
+        if (parts[p] == null) {
+            parts[p] = new SpillFile(t.getTupleDesc(), prefix);
+            spilled++;
+        }
+        parts[p].append(t);
+    }
+
+    /**
+     * Read child1 into the hash table. If it doesn't fit, switch to
+     * partitioning: partition 0 stays in memory as long as it fits and the
+     * others go to disk.
+     */
+    private void buildFirstPass() throws DbException,
+            TransactionAbortedException {
+        capacity = capacity(child1.getTupleDesc(), memoryPages);
+        fanout = Math.max(2, Math.min(memoryPages - 1, MAX_FANOUT));
+        firstPass = true;
+        partitioned = false;
+        spilled = 0;
         map.clear();
+        int count = 0;
+        int residentCapacity = capacity(child1.getTupleDesc(),
+                Math.max(1, memoryPages - fanout));
         while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+            Tuple t = child1.next();
+            if (!partitioned) {
+                put(t);
+                if (++count > capacity) {
+                    // out of memory: split what we have
+                    partitioned = true;
+                    residentPart = 0;
+                    buildParts = new SpillFile[fanout];
+                    probeParts = new SpillFile[fanout];
+                    HashMap<Field, ArrayList<Tuple>> old = map;
+                    map = new HashMap<Field, ArrayList<Tuple>>();
+                    count = 0;
+                    for (Map.Entry<Field, ArrayList<Tuple>> e : old.entrySet()) {
+                        int p = partition(e.getKey(), 0, fanout);
+                        for (Tuple u : e.getValue()) {
+                            if (p == residentPart) {
+                                put(u);
+                                count++;
+                            } else {
+                                append(buildParts, p, u, "hjb");
+                            }
+                        }
+                    }
+                    if (count > residentCapacity)
+                        spillResident();
+                }
+                continue;
+            }
+            int p = partition(t.getField(pred.getField1()), 0, fanout);
+            if (p != residentPart) {
+                append(buildParts, p, t, "hjb");
+            } else {
+                put(t);
+                if (++count > residentCapacity)
+                    spillResident();
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
         }
-        return cnt > 0;
+        if (partitioned)
+            for (SpillFile f : buildParts)
+                if (f != null)
+                    f.finish();
+    }
 
+    /** The resident partition grew too big: write it out like the rest. */
+    private void spillResident() throws DbException {
+        for (ArrayList<Tuple> list : map.values())
+            for (Tuple t : list)
+                append(buildParts, residentPart, t, "hjb");
+        map.clear();
+        residentPart = -1;
+    }
+
+    /** @return the next tuple of the probe side, or null at its end */
+    private Tuple nextProbe() throws DbException, TransactionAbortedException {
+        if (firstPass)
+            return child2.hasNext() ? child2.next() : null;
+        return probe.hasNext() ? probe.next() : null;
     }
 
+    /**
+     * The probe side is exhausted: set up the next memory-load of the
+     * current partition, or the next partition.
+     *
+     * @return false if there is nothing more to join
+     */
+    private boolean nextLoad() throws DbException, TransactionAbortedException {
+        if (current != null && build.hasNext()) {
+            loadChunk();
+            probe.rewind();
+            return true;
+        }
+        if (current != null) {
+            build.close();
+            probe.close();
+            current.delete();
+            current = null;
+        }
+        if (firstPass) {
+            firstPass = false;
+            if (partitioned)
+                queue(buildParts, probeParts, 0);
+            buildParts = probeParts = null;
+        }
+        map.clear();
+        while (!pending.isEmpty()) {
+            Partition part = pending.removeFirst();
+            if (part.build.numTuples() > capacity && part.level < MAX_LEVEL) {
+                split(part);
+                continue;
+            }
+            current = part;
+            build = part.build.iterator();
+            build.open();
+            probe = part.probe.iterator();
+            probe.open();
+            loadChunk();
+            return true;
+        }
+        return false;
+    }
+
+    /** Fill the hash table with the next memory-load of the build partition. */
+    private void loadChunk() throws DbException, TransactionAbortedException {
+        map.clear();
+        for (int n = 0; n < capacity && build.hasNext(); n++)
+            put(build.next());
+    }
+
+    /**
+     * Queue the pairs of partitions to join. A partition with no match on
+     * the other side produces nothing and is dropped.
+     */
+    private void queue(SpillFile[] builds, SpillFile[] probes, int level)
+            throws DbException {
+        for (int p = builds.length - 1; p >= 0; p--) {
+            if (builds[p] != null && probes[p] != null) {
+                builds[p].finish();
+                probes[p].finish();
+                pending.addFirst(new Partition(builds[p], probes[p], level));
+            } else if (builds[p] != null) {
+                builds[p].delete();
+            } else if (probes[p] != null) {
+                probes[p].delete();
+            }
+        }
+    }
+
+    /** Split a partition that doesn't fit in memory with the next hash. */
+    private void split(Partition part) throws DbException,
+            TransactionAbortedException {
+        int level = part.level + 1;
+        SpillFile[] builds = new SpillFile[fanout];
+        SpillFile[] probes = new SpillFile[fanout];
+        DbFileIterator it = part.build.iterator();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            append(builds, partition(t.getField(pred.getField1()), level, fanout), t, "hjb");
+        }
+        it.close();
+        it = part.probe.iterator();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int p = partition(t.getField(pred.getField2()), level, fanout);
+            if (builds[p] != null)
+                append(probes, p, t, "hjp");
+        }
+        it.close();
+        part.delete();
+        queue(builds, probes, level);
+    }
+
+    /** Delete any spill files left over. */
+    private void cleanUp() {
+        if (current != null)
+            current.delete();
+        current = null;
+        for (Partition part : pending)
+            part.delete();
+        pending.clear();
+        for (SpillFile[] parts : new SpillFile[][] { buildParts, probeParts })
+            if (parts != null)
+                for (SpillFile f : parts)
+                    if (f != null)
+                        f.delete();
+        buildParts = probeParts = null;
+        map.clear();
+        listIt = null;
+        t2 = null;
+        probeBatch = null;
+        matches = null;
+    }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        super.open();
+        buildFirstPass();
     }
 
     public void close() {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        cleanUp();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        cleanUp();
         child1.rewind();
         child2.rewind();
+        buildFirstPass();
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
-     * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * more tuples.
+     * <p>
+     * child1 is the build side: it is loaded into a hash table on the join
+     * field, and child2 is read once and probed against it. When child1
+     * does not fit in the memory budget this becomes a hybrid hash join:
+     * both inputs are split by a hash of the join field into partitions
+     * that are spilled to disk, except for one partition of child1 that is
+     * kept in memory and joined while child2 is being read. Each pair of
+     * spilled partitions is then joined the same way, splitting it again
+     * if it is still too big. Every tuple is thus read about three times
+     * in all, however large the inputs are.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -114,7 +404,66 @@ public class HashEquiJoin extends Operator {
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() throws TransactionAbortedException, DbException {
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (listIt != null && listIt.hasNext())
+                return processList();
+            listIt = null;
+            Tuple t = nextProbe();
+            if (t == null) {
+                if (!nextLoad())
+                    return null;
+                continue;
+            }
+            Field key = t.getField(pred.getField2());
+            if (firstPass && partitioned) {
+                int p = partition(key, 0, fanout);
+                if (p != residentPart) {
+                    if (buildParts[p] != null)
+                        append(probeParts, p, t, "hjp");
+                    continue;
+                }
+            }
+            ArrayList<Tuple> l = map.get(key);
+            if (l != null) {
+                t2 = t;
+                listIt = l.iterator();
+            }
+        }
+    }
+
+    /**
+     * Probes the hash table with batches of child2 when child1 fit in
+     * memory; a join that spilled is read through its tuple path.
+     *
+     * @return the next batch of joined tuples, or null if there are no more
+     */
+    public Batch nextBatch() throws TransactionAbortedException, DbException {
+        if (partitioned)
+            return BatchAdapter.fill(this);
+        BatchIterator right = BatchAdapter.of(child2);
+        int f2 = pred.getField2();
+        Batch out = new Batch(comboTD);
+        while (!out.isFull()) {
+            if (matches != null && matchNo < matches.size()) {
+                out.addJoined(matches.get(matchNo++), probeBatch, probePos);
+                continue;
+            }
+            matches = null;
+            if (probeBatch == null || probeRow == probeBatch.numRows()) {
+                probeBatch = right.nextBatch();
+                probeRow = 0;
+                if (probeBatch == null)
+                    break;
+            }
+            probePos = probeBatch.row(probeRow++);
+            matches = map.get(probeBatch.getField(f2, probePos));
+            matchNo = 0;
+        }
+        return out.numRows() > 0 ? out : null;
+    }
+
+    private Tuple processList() {
         t1 = listIt.next();
 
         int td1n = t1.getTupleDesc().numFields();
@@ -127,37 +476,6 @@ public class HashEquiJoin extends Operator {
         for (int i = 0; i < td2n; i++)
             t.setField(td1n + i, t2.getField(i));
         return t;
-
-    }
-
-
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
-
-        }
-
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
-
-        return null;
     }
 
     @Override
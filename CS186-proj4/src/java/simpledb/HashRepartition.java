@@ -0,0 +1,36 @@
+package simpledb;
+
+/**
+ * HashRepartition is one output of a repartitioning: the tuples of several
+ * inputs, running in parallel, are spread over a number of outputs by the
+ * hash of a field, so that equal values of the field meet in the same
+ * output. A join or an aggregate on that field can then run on each output
+ * separately.
+ */
+public class HashRepartition extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private HashRepartition(Producer producer, int output) {
+        super(producer, output);
+    }
+
+    /**
+     * @param inputs the subplans to run; they must have the same schema
+     * @param field the field to hash
+     * @param outputs how many outputs to spread the tuples over
+     * @return the outputs, which must all be read for any of them to finish
+     */
+    public static HashRepartition[] split(DbIterator[] inputs, int field, int outputs) {
+        Producer p = new Producer(inputs, outputs, field);
+        HashRepartition[] out = new HashRepartition[outputs];
+        for (int o = 0; o < outputs; o++)
+            out[o] = new HashRepartition(p, o);
+        return out;
+    }
+
+    public String getName() {
+        return "repartition(" + getTupleDesc().getFieldName(producer.getHashField())
+                + ", " + output + " of " + producer.numOutputs() + ")";
+    }
+}
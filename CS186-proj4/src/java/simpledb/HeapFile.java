@@ -1,7 +1,6 @@
 package simpledb;
 
 import java.io.*;
-import java.nio.Buffer;
 import java.util.*;
 
 /**
@@ -10,6 +9,25 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * All page I/O goes through the file's {@link PageFile}, which keeps the
+ * file open; see {@link #setMemoryMapped} for read-mostly tables.
+ * <p>
+ * A {@link FreeSpaceMap}, kept in a file next to this one, tracks the
+ * pages with empty slots, so an insert locks only the page it ends up
+ * writing to.
+ * <p>
+ * A columnar heap file stores its pages in the PAX layout described in
+ * HeapPage, for analytic tables whose queries read a few of many columns.
+ * A slotted heap file stores its pages as slotted pages of variable-length
+ * records, so a string takes only the bytes it needs instead of a fixed
+ * STRING_LEN slot. Either layout is chosen when the table is created;
+ * nothing in the file says which one it has.
+ * <p>
+ * A compressed heap file stores its pages encoded by a {@link PageCodec},
+ * for archive tables that are scanned much more than they are written.
+ * Pages are decoded as they are read, so the BufferPool holds them
+ * decoded and scans never see the encoding.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -24,10 +42,76 @@ public class HeapFile implements DbFile {
      */
     File file;
     TupleDesc td;
+    private final PageFile pageFile;
+    /** pages with empty slots; null until the first insert or delete */
+    private volatile FreeSpaceMap freeSpace;
+    /** pages with room an insert may try without waiting for their locks */
+    private static final int MAX_PROBES = 4;
+    /** whether the pages are in the PAX layout */
+    private final boolean columnar;
+    /** whether the pages are slotted pages of variable-length records */
+    private final boolean slotted;
+    private final PageCodec.Compression compression;
+
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * @param columnar whether the pages store each column in a minipage of
+     *   its own (see {@link HeapPage}); only for tables of fixed-length fields
+     * @throws IllegalArgumentException if columnar and td has a string field
+     */
+    public HeapFile(File f, TupleDesc td, boolean columnar) {
+        this(f, td, columnar, PageCodec.Compression.NONE);
+    }
+
+    /**
+     * @param compression how the pages are stored on disk; they must have
+     *   been written that way, by this class or by HeapFileEncoder
+     * @throws IllegalArgumentException if columnar and td has a string field
+     */
+    public HeapFile(File f, TupleDesc td, boolean columnar, PageCodec.Compression compression) {
+        this(f, td, columnar, false, compression);
+    }
+
+    /**
+     * @param slotted whether the pages are slotted pages of variable-length
+     *   records (see {@link HeapPage}); a compressed table with a string
+     *   field must be slotted
+     * @throws IllegalArgumentException if columnar and td has a string
+     *   field, if both columnar and slotted, or if the pages can't be
+     *   compressed in this layout
+     */
+    public HeapFile(File f, TupleDesc td, boolean columnar, boolean slotted,
+            PageCodec.Compression compression) {
         // some code goes here
+        if (columnar && !td.isFixedLength())
+            throw new IllegalArgumentException("a columnar table needs fixed-length fields");
+        if (columnar && slotted)
+            throw new IllegalArgumentException("a table can't be both columnar and slotted");
         this.file = f;
         this.td = td;
+        this.columnar = columnar;
+        this.slotted = slotted;
+        this.compression = compression;
+        this.pageFile = PageFile.open(f, BufferPool.PAGE_SIZE,
+                PageCodec.forTable(td, columnar, slotted, compression));
+    }
+
+    /** @return whether the pages are in the PAX layout */
+    public boolean isColumnar() {
+        return columnar;
+    }
+
+    /** @return whether the pages are slotted pages of variable-length records */
+    public boolean isSlotted() {
+        return slotted;
+    }
+
+    /** @return how the pages are stored on disk */
+    public PageCodec.Compression getCompression() {
+        return compression;
     }
 
     /**
@@ -40,6 +124,14 @@ public class HeapFile implements DbFile {
         return this.file;
     }
 
+    /**
+     * Read pages of this file out of a memory mapping instead of with
+     * read calls. Worth it for big tables that are rarely written.
+     */
+    public void setMemoryMapped(boolean mapped) {
+        pageFile.setMapped(mapped);
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere ensure that each
@@ -70,16 +162,13 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) {
         // some code goes here
         HeapPageId hpid = (HeapPageId) pid;
-        RandomAccessFile rf;
-        byte[] data = new byte[BufferPool.PAGE_SIZE];
         try{
-            rf = new RandomAccessFile(this.file, "r");
-            rf.seek(BufferPool.PAGE_SIZE * pid.pageNumber());
-            rf.read(data);
-            rf.close();
-            return new HeapPage(hpid, data);
-        } catch (FileNotFoundException e){
-            e.printStackTrace();
+            HeapPage page = new HeapPage(hpid, pageFile.readPage(pid.pageNumber()));
+            // pages come back from disk after an abort, too
+            FreeSpaceMap fsm = freeSpace;
+            if (fsm != null && page.getNumEmptySlots() > 0)
+                fsm.markFree(pid.pageNumber());
+            return page;
         } catch (IOException e){
             e.printStackTrace();
         }
@@ -90,17 +179,7 @@ public class HeapFile implements DbFile {
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for proj1
-        RandomAccessFile wf;
-        byte[] data = page.getPageData();
-        try{
-            wf = new RandomAccessFile(file, "rw");
-            wf.seek(BufferPool.PAGE_SIZE * page.getId().pageNumber());
-            wf.write(data);
-            wf.close();;
-            return;
-        }catch (IOException e){
-            e.printStackTrace();
-        }
+        pageFile.writePage(page.getId().pageNumber(), page.getPageData());
     }
 
     /**
@@ -108,7 +187,43 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int)Math.ceil(this.file.length() * 1.0 / BufferPool.PAGE_SIZE);
+        try{
+            return pageFile.numPages();
+        } catch (IOException e){
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * @return the free space map of this file, read from next to it the
+     *   first time it is asked for. Pages the saved map doesn't cover, or
+     *   all of them if it is from an older file, are looked at through the
+     *   BufferPool, so pages changed since they were written are seen as
+     *   they are now.
+     */
+    FreeSpaceMap freeSpace() throws DbException, IOException {
+        FreeSpaceMap fsm = freeSpace;
+        if (fsm != null)
+            return fsm;
+        synchronized (this) {
+            if (freeSpace == null) {
+                fsm = FreeSpaceMap.open(file);
+                int n = pageFile.numPages();
+                if (fsm.numPages() > n)
+                    fsm.clear();
+                BufferPool bp = Database.getBufferPool();
+                for (int i = fsm.numPages(); i < n; i++) {
+                    HeapPage page = (HeapPage) bp.getPageUnlocked(new HeapPageId(getId(), i));
+                    if (page.getNumEmptySlots() > 0)
+                        fsm.markFree(i);
+                    else
+                        fsm.markFull(i);
+                }
+                freeSpace = fsm;
+            }
+            return freeSpace;
+        }
     }
 
     // see DbFile.java for javadocs
@@ -116,50 +231,132 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         ArrayList<Page> pages = new ArrayList<Page>();
-        BufferPool bp = Database.getBufferPool();
-        for(int i = 0; i < numPages(); i++){
-            HeapPageId pid = new HeapPageId(getId(), i);
-            HeapPage page = (HeapPage)bp.getPage(tid, pid, Permissions.READ_WRITE);
-            if(page.getNumEmptySlots() != 0){
-                page.insertTuple(t);
-                pages.add(page);
-                return pages;
+        HeapPage page = pageWithRoom(tid);
+        if(page == null){
+            int pgNo;
+            synchronized (this) {
+                pgNo = numPages();
+                pageFile.writePage(pgNo, HeapPage.createEmptyPageData());
             }
+            page = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(getId(), pgNo), Permissions.READ_WRITE);
         }
-        if(pages.isEmpty()){
-            HeapPageId pid = new HeapPageId(getId(), numPages());
-            RandomAccessFile rf;
-            byte[] data = HeapPage.createEmptyPageData();
-            try{
-                rf = new RandomAccessFile(this.file, "rw");
-                rf.seek(BufferPool.PAGE_SIZE * pid.pageNumber());
-                rf.write(data);
-                rf.close();
-            } catch (FileNotFoundException e){
-                e.printStackTrace();
-            } catch (IOException e){
-                e.printStackTrace();
-            }
-            HeapPage page = (HeapPage)bp.getPage(tid, pid, Permissions.READ_WRITE);
-            page.insertTuple(t);
-            pages.add(page);
-        }
+        page.insertTuple(t);
+        if(page.getNumEmptySlots() == 0)
+            freeSpace().markFull(page.getId().pageNumber());
+        else
+            freeSpace().markFree(page.getId().pageNumber());
+        pages.add(page);
         return pages;
         // not necessary for proj1
     }
 
+    /**
+     * Find a page with an empty slot and lock it for writing. Pages the free
+     * space map suggests are tried first without waiting, so inserters
+     * spread over the pages that have room; if all of those are locked, the
+     * first one is waited for.
+     *
+     * @return the page, or null if no page has room
+     */
+    private HeapPage pageWithRoom(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        FreeSpaceMap fsm = freeSpace();
+        while(true){
+            int busy = -1;
+            int pg = fsm.nextFree(0);
+            for(int probes = 0; pg >= 0 && probes < MAX_PROBES; probes++, pg = fsm.nextFree(pg + 1)){
+                HeapPage page = tryPage(tid, pg, false);
+                if(page != null) return page;
+                if(busy < 0 && fsm.isFree(pg)) busy = pg; // locked by somebody else
+            }
+            if(busy < 0 && fsm.nextFree(0) < 0) return null;
+            if(busy >= 0){
+                HeapPage page = tryPage(tid, busy, true);
+                if(page != null) return page;
+            }
+        }
+    }
+
+    /**
+     * Lock page pgNo for writing and return it if it has an empty slot. A
+     * full page is taken out of the free space map and, unless tid held a
+     * lock on it already, unlocked again.
+     *
+     * @param wait whether to wait for the lock
+     * @return the page, or null if it is full or (without wait) locked by
+     *   another transaction
+     */
+    private HeapPage tryPage(TransactionId tid, int pgNo, boolean wait)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(getId(), pgNo);
+        boolean held = bp.holdsLock(tid, pid);
+        HeapPage page = (HeapPage)(wait ? bp.getPage(tid, pid, Permissions.READ_WRITE)
+                                        : bp.getPageIfAvailable(tid, pid, Permissions.READ_WRITE));
+        if(page == null) return null;
+        if(page.getNumEmptySlots() > 0) return page;
+        freeSpace().markFull(pgNo);
+        if(!held) bp.releasePage(tid, pid);
+        return null;
+    }
+
     // see DbFile.java for javadocs
     public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
         HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
+        try{
+            freeSpace().markFree(page.getId().pageNumber());
+        } catch (IOException e){
+            e.printStackTrace();
+        }
         return page;
         // not necessary for proj1
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
+        return iterator(tid, null);
+    }
+
+    /**
+     * @return an iterator over the tuples of this file that satisfy pred,
+     *   or all tuples if pred is null. The predicate is checked against
+     *   the page bytes, so rejected rows are never turned into Tuples.
+     */
+    public DbFileIterator iterator(TransactionId tid, final Predicate pred) {
+        return iterator(tid, pred, 0, 1);
+    }
+
+    /**
+     * @return the first page at or after pgNo in partition part of parts;
+     *   page p is in partition (p / MorselScan.MORSEL_PAGES) % parts
+     */
+    public static int nextPageOf(int pgNo, int part, int parts) {
+        int m = pgNo / MorselScan.MORSEL_PAGES;
+        if (m % parts == part)
+            return pgNo;
+        return (m + (part - m % parts + parts) % parts) * MorselScan.MORSEL_PAGES;
+    }
+
+    /**
+     * @return an iterator like iterator(tid, pred) over only the pages of
+     *   partition part of parts, so that parts iterators running side by
+     *   side read every page once. See {@link #nextPageOf}.
+     */
+    public DbFileIterator iterator(TransactionId tid, final Predicate pred,
+            final int part, final int parts) {
+        return iterator(tid, pred, part, parts, null, td);
+    }
+
+    /**
+     * @return an iterator like iterator(tid, pred, part, parts) whose
+     *   tuples have only the given fields, as tuples of ptd; pred refers to
+     *   the fields of ptd. See {@link HeapPage#iterator(Predicate, int[], TupleDesc)}.
+     */
+    public DbFileIterator iterator(TransactionId tid, final Predicate pred,
+            final int part, final int parts, final int[] fields, final TupleDesc ptd) {
         // some code goes here
         class Itr implements DbFileIterator{
             private static final long serialVersionUID = 1L;
@@ -170,16 +367,20 @@ public class HeapFile implements DbFile {
 
             public Itr(TransactionId tid){
                 this.tid = tid;
-                this.pageCursor = 0;
+                this.pageCursor = nextPageOf(0, part, parts);
                 this.iterator = null;
             }
 
             @Override
             public void open() throws DbException, TransactionAbortedException{
                 opened = true;
+                if(pageCursor >= numPages()){
+                    iterator = null;
+                    return;
+                }
                 HeapPageId pid = new HeapPageId(getId(), pageCursor);
                 HeapPage page = (HeapPage)(Database.getBufferPool()).getPage(this.tid, pid, Permissions.READ_ONLY);
-                iterator = page.iterator();
+                iterator = page.iterator(pred, fields, ptd);
             }
 
             @Override
@@ -187,11 +388,12 @@ public class HeapFile implements DbFile {
                 if(opened){
                     if(iterator == null) return false;
                     if(iterator.hasNext()) return true;
-                    while(pageCursor < numPages() - 1){
-                        pageCursor++;
+                    int n = numPages();
+                    while(nextPageOf(pageCursor + 1, part, parts) < n){
+                        pageCursor = nextPageOf(pageCursor + 1, part, parts);
                         HeapPageId pid = new HeapPageId(getId(), pageCursor);
                         HeapPage page = (HeapPage)(Database.getBufferPool()).getPage(this.tid, pid, Permissions.READ_ONLY);
-                        iterator = page.iterator();
+                        iterator = page.iterator(pred, fields, ptd);
                         if(iterator.hasNext()) return true;
                     }
                     return false;
@@ -211,7 +413,7 @@ public class HeapFile implements DbFile {
 
             @Override
             public void rewind() throws DbException, TransactionAbortedException{
-                pageCursor = 0;
+                pageCursor = nextPageOf(0, part, parts);
                 open();
             }
         }
@@ -2,13 +2,18 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
  * an array of tuples and converts it to
  * pages of binary data in the appropriate format for simpledb heap pages
  * Pages are padded out to a specified length, and written consecutive in a
- * data file.
+ * data file. A table is written in slotted pages of variable-length
+ * records only when the slotted argument says so, as it does for a table
+ * the catalog marks "slotted"; any other table, strings or not, gets
+ * fixed-size records. Pages of a compressed table are written encoded,
+ * through a compressed PageFile.
  */
 
 public class HeapFileEncoder {
@@ -90,6 +95,52 @@ public class HeapFileEncoder {
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, false);
+  }
+
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, boolean columnar)
+      throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, columnar,
+              PageCodec.Compression.NONE);
+  }
+
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, boolean columnar,
+                 PageCodec.Compression compression)
+      throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, columnar,
+              false, compression);
+  }
+
+  /**
+   * Like convert(inFile, outFile, npagebytes, numFields, typeAr,
+   * fieldSeparator), but for a columnar table writes the pages in the PAX
+   * layout, for a slotted one as slotted pages (see {@link HeapPage}), and
+   * for a compressed one writes them encoded (see {@link PageCodec}). The
+   * HeapFile that reads the file must be made with the same options.
+   *
+   * @throws IllegalArgumentException if columnar and a field is a string,
+   *   if both columnar and slotted, or if the pages can't be compressed in
+   *   this layout
+   */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, boolean columnar,
+                 boolean slotted, PageCodec.Compression compression)
+      throws IOException {
+
+      TupleDesc td = new TupleDesc(Arrays.copyOf(typeAr, numFields));
+      if (columnar && !td.isFixedLength())
+          throw new IllegalArgumentException("a columnar table needs fixed-length fields");
+      if (columnar && slotted)
+          throw new IllegalArgumentException("a table can't be both columnar and slotted");
+      PageCodec codec = PageCodec.forTable(td, columnar, slotted, compression);
+      // the free space map of whatever was there before is no good
+      FreeSpaceMap.delete(outFile);
+      if (slotted) {
+          convertSlotted(inFile, outFile, npagebytes, td, fieldSeparator, codec);
+          return;
+      }
 
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
@@ -105,7 +156,9 @@ public class HeapFileEncoder {
     int nheaderbits = nheaderbytes * 8;
 
     BufferedReader br = new BufferedReader(new FileReader(inFile));
-    FileOutputStream os = new FileOutputStream(outFile);
+    PageFile out = PageFile.open(outFile, npagebytes, codec);
+    out.truncate(0);
+    byte[] page = new byte[npagebytes];
 
     // our numbers probably won't be much larger than 1024 digits
     char buf[] = new char[1024];
@@ -206,9 +259,12 @@ public class HeapFileEncoder {
             
             // write header and body to file
             headerStream.flush();
-            headerBAOS.writeTo(os);
             pageStream.flush();
-            pageBAOS.writeTo(os);
+            byte[] header = headerBAOS.toByteArray();
+            byte[] body = pageBAOS.toByteArray();
+            System.arraycopy(header, 0, page, 0, header.length);
+            System.arraycopy(body, 0, page, header.length, npagebytes - header.length);
+            out.writePage(npages, columnar ? HeapPage.toColumnar(page, td) : page);
             
             // reset header and body for next page
             headerBAOS = new ByteArrayOutputStream(nheaderbytes);
@@ -221,6 +277,67 @@ public class HeapFileEncoder {
         }
     }
     br.close();
-    os.close();
+    out.force();
+  }
+
+  /**
+   * Convert a text file of tuples into slotted pages (see {@link HeapPage}).
+   * Records are added to a page until the next one doesn't fit, so a short
+   * string takes only the room it needs.
+   */
+  private static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 TupleDesc td, char fieldSeparator, PageCodec codec) throws IOException {
+      BufferedReader br = new BufferedReader(new FileReader(inFile));
+      PageFile out = PageFile.open(outFile, npagebytes, codec);
+      out.truncate(0);
+      byte[] page = new byte[npagebytes];
+      int npages = 0;
+      String line;
+      while ((line = br.readLine()) != null) {
+          if (line.length() == 0)
+              continue;
+          Tuple t = parse(line, td, fieldSeparator);
+          if (t == null)
+              continue;
+          byte[] record = HeapPage.record(td, t);
+          if (HeapPage.addRecord(page, record) < 0) {
+              out.writePage(npages++, page);
+              page = new byte[npagebytes];
+              if (HeapPage.addRecord(page, record) < 0)
+                  throw new IOException("a record of " + record.length + " bytes doesn't fit in a page");
+          }
+      }
+      // the last page, or an empty one if there were no tuples
+      out.writePage(npages, page);
+      br.close();
+      out.force();
+  }
+
+  /** @return the tuple of a line of input, or null if it is malformed */
+  private static Tuple parse(String line, TupleDesc td, char fieldSeparator) {
+      Tuple t = new Tuple(td);
+      int start = 0;
+      for (int i = 0; i < td.numFields(); i++) {
+          if (start > line.length()) {
+              System.out.println ("BAD LINE : " + line);
+              return null;
+          }
+          int end = line.indexOf(fieldSeparator, start);
+          if (end < 0)
+              end = line.length();
+          String s = line.substring(start, end).trim();
+          if (td.getFieldType(i) == Type.INT_TYPE) {
+              try {
+                  t.setField(i, new IntField(Integer.parseInt(s)));
+              } catch (NumberFormatException e) {
+                  System.out.println ("BAD LINE : " + line);
+                  return null;
+              }
+          } else {
+              t.setField(i, new StringField(s, Type.STRING_LEN));
+          }
+          start = end + 1;
+      }
+      return t;
   }
 }
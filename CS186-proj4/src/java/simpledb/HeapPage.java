@@ -1,11 +1,38 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its bytes as read from disk and decodes a tuple only when
+ * it is asked for; {@link #getInt} reads a single field without allocating
+ * anything.
+ * <p>
+ * A table uses fixed slots after a bitmap header (see {@link #HeapPage});
+ * a string there takes STRING_LEN bytes whatever its length. A slotted
+ * HeapFile (see {@link HeapFile#isSlotted}) uses slotted pages instead:
+ * <pre>
+ *   entries (2 bytes) | records start (2 bytes) | entry 0 | entry 1 | ...
+ *   ... free space ... | record n | ... | record 0
+ * </pre>
+ * Entry i holds the offset and length (2 bytes each) of the record of
+ * slot i, or zeros if the slot is empty. Records are packed at the end of
+ * the page with no gaps; a delete moves the records below it up, so the
+ * free space is all in one piece. A record has the fixed-length fields
+ * first, in order, then the others, a string as its length and its bytes
+ * with no padding; so an int field is always at the same offset in a
+ * record.
+ * <p>
+ * A columnar HeapFile (see {@link HeapFile#isColumnar}) of fixed-length
+ * fields uses PAX pages: the same header and number of slots as fixed
+ * slots, but the values of each field are stored together in a minipage,
+ * field 0 of every slot, then field 1 of every slot, and so on. Reading
+ * one column then touches only the bytes of that column.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,11 +42,41 @@ public class HeapPage implements Page {
 
     HeapPageId pid;
     TupleDesc td;
-    byte header[];
-    Tuple tuples[];
     int numSlots;
     TransactionId dirtytid;
 
+    /**
+     * The page itself, header and slots, exactly as it is on disk. Tuples
+     * and fields are decoded from it only when somebody asks for them.
+     */
+    byte[] data;
+    /** tuples decoded so far, by slot */
+    private final AtomicReferenceArray<Tuple> tuples;
+    private final int headerSize;
+    private final int tupleSize;
+    /**
+     * offset of each field within a tuple; in a slotted page, of each
+     * fixed-length field, and -1 for the others
+     */
+    private final int[] fieldOffsets;
+    /** whether the page is slotted, for variable-length records */
+    private final boolean slotted;
+    /** in a slotted page, the bytes of the fixed-length fields of a record */
+    private final int fixedSize;
+    /** in a PAX page, where the minipage of each field starts; else null */
+    private final int[] columnStarts;
+    /** the bytes of each field, if fixed */
+    private final int[] fieldLens;
+
+    /** bytes before the first entry of a slotted page */
+    static final int SLOTTED_HEADER = 4;
+    /** bytes of an entry of a slotted page */
+    static final int ENTRY_SIZE = 4;
+
+    /**
+     * The data this page was created from. It shares the array with data
+     * until the first change, so reading a page copies nothing.
+     */
     byte[] oldData;
 
     /**
@@ -34,6 +91,11 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * A slotted HeapFile uses slotted pages instead, as described above.
+     * <p>
+     * The page keeps data as it is; the caller must not change the array
+     * afterwards.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#PAGE_SIZE
@@ -41,32 +103,49 @@ public class HeapPage implements Page {
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        DbFile file = Database.getCatalog().getDbFile(id.getTableId());
+        this.slotted = file instanceof HeapFile && ((HeapFile) file).isSlotted();
+        boolean columnar = file instanceof HeapFile && ((HeapFile) file).isColumnar();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        try{
-            // allocate and read the actual records of this page
-            tuples = new Tuple[numSlots];
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        if (data.length != BufferPool.PAGE_SIZE)
+            throw new IOException("page is " + data.length + " bytes, not " + BufferPool.PAGE_SIZE);
+        this.data = data;
+        this.tuples = new AtomicReferenceArray<Tuple>(numSlots);
+        this.fieldOffsets = new int[td.numFields()];
+        this.fieldLens = new int[td.numFields()];
+        int off = 0;
+        for (int j = 0; j < fieldOffsets.length; j++) {
+            Type type = td.getFieldType(j);
+            fieldLens[j] = type.getLen();
+            if (slotted && !type.isFixedLength()) {
+                fieldOffsets[j] = -1;
+                continue;
+            }
+            fieldOffsets[j] = off;
+            off += type.getLen();
+        }
+        this.fixedSize = off;
+        if (columnar) {
+            columnStarts = new int[fieldOffsets.length];
+            for (int j = 0; j < columnStarts.length; j++)
+                columnStarts[j] = headerSize + numSlots * fieldOffsets[j];
+        } else {
+            columnStarts = null;
         }
-        dis.close();
 
         setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
-        @return the number of tuples on this page
+        @return the number of tuples on this page; for a slotted page, the
+        most that fit
     */
     private int getNumTuples() {        
         // some code goes here
+        if (slotted)
+            return (BufferPool.PAGE_SIZE - SLOTTED_HEADER) / (ENTRY_SIZE + td.getMinSize());
         return (BufferPool.PAGE_SIZE*8) / (td.getSize() * 8 + 1);
     }
 
@@ -77,6 +156,8 @@ public class HeapPage implements Page {
     private int getHeaderSize() {        
         
         // some code goes here
+        if (slotted)
+            return SLOTTED_HEADER;
         return (int)Math.ceil(this.numSlots * 1.0 / 8);
                  
     }
@@ -95,7 +176,13 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
-        oldData = getPageData().clone();
+        oldData = data;
+    }
+
+    /** Copy the page before its first change, so oldData stays as it was. */
+    private void beforeWrite() {
+        if (data == oldData)
+            data = data.clone();
     }
 
     /**
@@ -107,37 +194,173 @@ public class HeapPage implements Page {
         return this.pid;
     }
 
+    private int recordOffset(int slot) {
+        if (slotted)
+            return getShortAt(data, SLOTTED_HEADER + slot * ENTRY_SIZE);
+        return headerSize + slot * tupleSize;
+    }
+
+    private int fieldOffset(int slot, int field) {
+        if (columnStarts != null)
+            return columnStarts[field] + slot * fieldLens[field];
+        int off = recordOffset(slot);
+        if (fieldOffsets[field] >= 0)
+            return off + fieldOffsets[field];
+        // skip the variable-length fields before it, each a length and bytes
+        off += fixedSize;
+        for (int j = 0; j < field; j++)
+            if (fieldOffsets[j] < 0)
+                off += 4 + getIntAt(off);
+        return off;
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Read an integer field straight from the page, without building a
+     * Tuple or Field.
+     *
+     * @param slot a used slot of this page
+     * @param field the index of an INT_TYPE field
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    public int getInt(int slot, int field) {
+        return getIntAt(fieldOffset(slot, field));
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+    /**
+     * @return field of the tuple in slot, decoded on its own
+     */
+    public Field getField(int slot, int field) {
+        if (td.getFieldType(field) == Type.INT_TYPE)
+            return new IntField(getInt(slot, field));
+        int off = fieldOffset(slot, field);
+        int len = Math.min(Math.max(getIntAt(off), 0), Type.STRING_LEN);
+        return new StringField(new String(data, off + 4, len), Type.STRING_LEN);
+    }
+
+    private int getIntAt(int off) {
+        byte[] d = data;
+        return (d[off] << 24) | ((d[off + 1] & 0xff) << 16)
+                | ((d[off + 2] & 0xff) << 8) | (d[off + 3] & 0xff);
+    }
+
+    private static int getShortAt(byte[] d, int off) {
+        return ((d[off] & 0xff) << 8) | (d[off + 1] & 0xff);
+    }
+
+    private static void putShortAt(byte[] d, int off, int v) {
+        d[off] = (byte) (v >> 8);
+        d[off + 1] = (byte) v;
+    }
+
+    /** @return the number of entries of slotted page d */
+    private static int entries(byte[] d) {
+        return getShortAt(d, 0);
+    }
+
+    /** @return where the records of slotted page d start */
+    private static int recordsStart(byte[] d) {
+        int start = getShortAt(d, 2);
+        return start == 0 ? d.length : start; // an empty page is all zeros
+    }
+
+    /**
+     * Add a record to slotted page d, in the first empty slot or a new one.
+     * Shared with {@link HeapFileEncoder}, which builds pages the same way.
+     *
+     * @return the slot of the record, or -1 if it doesn't fit
+     */
+    static int addRecord(byte[] d, byte[] record) {
+        int n = entries(d), start = recordsStart(d);
+        int slot = 0;
+        while (slot < n && getShortAt(d, SLOTTED_HEADER + slot * ENTRY_SIZE) != 0)
+            slot++;
+        int entriesEnd = SLOTTED_HEADER + Math.max(n, slot + 1) * ENTRY_SIZE;
+        if (start - record.length < entriesEnd)
+            return -1;
+        if (slot == n)
+            putShortAt(d, 0, n + 1);
+        start -= record.length;
+        System.arraycopy(record, 0, d, start, record.length);
+        putShortAt(d, 2, start);
+        putShortAt(d, SLOTTED_HEADER + slot * ENTRY_SIZE, start);
+        putShortAt(d, SLOTTED_HEADER + slot * ENTRY_SIZE + 2, record.length);
+        return slot;
+    }
+
+    /**
+     * Remove the record of slot from slotted page d, moving the records
+     * below it up to close the gap. Slots keep their numbers, so the
+     * record ids of the other tuples stay the same.
+     */
+    private static void removeRecord(byte[] d, int slot) {
+        int n = entries(d), start = recordsStart(d);
+        int entry = SLOTTED_HEADER + slot * ENTRY_SIZE;
+        int off = getShortAt(d, entry), len = getShortAt(d, entry + 2);
+        System.arraycopy(d, start, d, start + len, off - start);
+        Arrays.fill(d, start, start + len, (byte) 0);
+        for (int i = 0; i < n; i++) {
+            int e = SLOTTED_HEADER + i * ENTRY_SIZE;
+            int o = getShortAt(d, e);
+            if (o != 0 && o < off)
+                putShortAt(d, e, o + len);
         }
+        putShortAt(d, entry, 0);
+        putShortAt(d, entry + 2, 0);
+        while (n > 0 && getShortAt(d, SLOTTED_HEADER + (n - 1) * ENTRY_SIZE) == 0)
+            n--;
+        putShortAt(d, 0, n);
+        putShortAt(d, 2, start + len == d.length ? 0 : start + len);
+    }
 
+    /**
+     * @return t as a record of a slotted page: the fixed-length fields in
+     *   order, then the others without padding
+     */
+    static byte[] record(TupleDesc td, Tuple t) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize(t));
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int j = 0; j < td.numFields(); j++)
+            if (td.getFieldType(j).isFixedLength())
+                t.getField(j).serialize(dos);
+        for (int j = 0; j < td.numFields(); j++)
+            if (!td.getFieldType(j).isFixedLength())
+                ((StringField) t.getField(j)).serializeUnpadded(dos);
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return a tuple of ptd with just the given fields of the tuple in
+     *   slot, or null if the slot is empty; the other fields are never
+     *   decoded. With fields null, the whole tuple.
+     */
+    public Tuple getTuple(int slot, int[] fields, TupleDesc ptd) {
+        if (fields == null)
+            return getTuple(slot);
+        if (!isSlotUsed(slot))
+            return null;
+        Tuple t = new Tuple(ptd);
+        t.setRecordId(new RecordId(pid, slot));
+        for (int k = 0; k < fields.length; k++)
+            t.setField(k, getField(slot, fields[k]));
+        return t;
+    }
+
+    /**
+     * @return the tuple in slot, decoded the first time it is asked for,
+     *   or null if the slot is empty
+     */
+    public Tuple getTuple(int slot) {
+        if (!isSlotUsed(slot))
+            return null;
+        Tuple t = tuples.get(slot);
+        if (t == null) {
+            t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, slot));
+            for (int j = 0; j < fieldOffsets.length; j++)
+                t.setField(j, getField(slot, j));
+            if (!tuples.compareAndSet(slot, null, t))
+                t = tuples.get(slot);
+        }
         return t;
     }
 
@@ -153,64 +376,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.PAGE_SIZE;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.PAGE_SIZE - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data.clone();
     }
 
     /**
@@ -241,8 +407,20 @@ public class HeapPage implements Page {
         if(!isSlotUsed(t.getRecordId().tupleno())) throw new DbException("Slot is already empty");
         if(!t.getRecordId().getPageId().equals(this.pid)) throw new DbException("The tuple is not on this page");
         int tuid = t.getRecordId().tupleno();
-        markSlotUsed(tuid, false);
-        tuples[tuid] = null;
+        beforeWrite();
+        if (slotted) {
+            removeRecord(data, tuid);
+        } else if (columnStarts != null) {
+            markSlotUsed(tuid, false);
+            for (int j = 0; j < fieldOffsets.length; j++) {
+                int off = fieldOffset(tuid, j);
+                Arrays.fill(data, off, off + fieldLens[j], (byte) 0);
+            }
+        } else {
+            markSlotUsed(tuid, false);
+            Arrays.fill(data, headerSize + tuid * tupleSize, headerSize + (tuid + 1) * tupleSize, (byte) 0);
+        }
+        tuples.set(tuid, null);
         t.setRecordId(null);
     }
 
@@ -256,18 +434,74 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if(getNumEmptySlots() == 0) throw new DbException("Slot is already full");
         if(!t.getTupleDesc().equals(td)) throw new DbException("The tuple doesn't match!");
-        for(int i = 0; i < getNumTuples(); i++)
+        if(slotted){
+            byte[] record;
+            try {
+                record = record(td, t);
+            } catch (IOException e) {
+                throw new DbException("could not serialize tuple: " + e.getMessage());
+            }
+            beforeWrite();
+            int slot = addRecord(data, record);
+            if(slot < 0) throw new DbException("Page is already full");
+            tuples.set(slot, t);
+            t.setRecordId(new RecordId(pid, slot));
+            return;
+        }
+        if(getNumEmptySlots() == 0) throw new DbException("Slot is already full");
+        for(int i = 0; i < numSlots; i++)
           if(!isSlotUsed(i)){
-              tuples[i] = t;
+              beforeWrite();
+              writeTuple(i, t);
               markSlotUsed(i, true);
+              tuples.set(i, t);
               t.setRecordId(new RecordId(pid, i));
               break;
           }
         
     }
 
+    private void writeTuple(int slot, Tuple t) throws DbException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < fieldOffsets.length; j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("could not serialize tuple: " + e.getMessage());
+        }
+        byte[] row = baos.toByteArray();
+        if (columnStarts == null) {
+            System.arraycopy(row, 0, data, headerSize + slot * tupleSize, tupleSize);
+            return;
+        }
+        for (int j = 0; j < fieldOffsets.length; j++)
+            System.arraycopy(row, fieldOffsets[j], data, fieldOffset(slot, j), fieldLens[j]);
+    }
+
+    /**
+     * @return page, a page of fixed slots of tuples of td, as a PAX page
+     *   of the same tuples in the same slots
+     */
+    static byte[] toColumnar(byte[] page, TupleDesc td) {
+        byte[] out = new byte[page.length];
+        int numSlots = (page.length * 8) / (td.getSize() * 8 + 1);
+        int headerSize = (numSlots + 7) / 8;
+        int tupleSize = td.getSize();
+        System.arraycopy(page, 0, out, 0, headerSize);
+        int off = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            int len = td.getFieldType(j).getLen();
+            int start = headerSize + numSlots * off;
+            for (int i = 0; i < numSlots; i++)
+                System.arraycopy(page, headerSize + i * tupleSize + off, out, start + i * len, len);
+            off += len;
+        }
+        return out;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -289,13 +523,32 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Returns the number of empty slots on this page.
+     * Returns the number of empty slots on this page. For a slotted page,
+     * that is the number of tuples of the largest size that still fit, so
+     * any tuple can be inserted if it isn't 0.
      */
     public int getNumEmptySlots() {
         // some code goes here
+        if (slotted) {
+            byte[] d = data;
+            int n = entries(d), unused = 0;
+            for (int i = 0; i < n; i++)
+                if (getShortAt(d, SLOTTED_HEADER + i * ENTRY_SIZE) == 0)
+                    unused++;
+            int room = recordsStart(d) - (SLOTTED_HEADER + n * ENTRY_SIZE);
+            int fit = 0;
+            while (true) {
+                int need = tupleSize + (fit < unused ? 0 : ENTRY_SIZE);
+                if (need > room)
+                    return fit;
+                room -= need;
+                fit++;
+            }
+        }
         int usedSlots = 0;
-        for(int i = 0; i < numSlots; i++)
-          if(isSlotUsed(i)) usedSlots++;
+        byte[] d = data;
+        for(int i = 0; i < headerSize; i++)
+          usedSlots += Integer.bitCount(d[i] & 0xff);
         return this.numSlots - usedSlots;
     }
 
@@ -304,10 +557,11 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
+        if(slotted)
+            return i >= 0 && i < entries(data) && getShortAt(data, SLOTTED_HEADER + i * ENTRY_SIZE) != 0;
         int n = i / 8, p = i % 8;
-        if(n >= header.length) return false;
-        if(((int)header[n] & (1 << p)) == 0) return false;
-        else return true;
+        if(i < 0 || i >= numSlots) return false;
+        return (data[n] & (1 << p)) != 0;
     }
 
     /**
@@ -317,8 +571,9 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         int n = i / 8, p = i % 8;
-        if(n >= header.length) return ;
-        header[n] ^= (1 << p);
+        if(i < 0 || i >= numSlots) return ;
+        if(value) data[n] |= (1 << p);
+        else data[n] &= ~(1 << p);
     }
 
     /**
@@ -326,27 +581,102 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
+        return iterator(null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy pred
+     *   (all of them if pred is null). Rows that fail are never decoded.
+     */
+    public Iterator<Tuple> iterator(final Predicate pred) {
+        return iterator(pred, null, null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy pred,
+     *   each cut down to the given fields as a tuple of ptd (see
+     *   {@link #getTuple(int, int[], TupleDesc)}); pred refers to the fields
+     *   of ptd. With fields null, like iterator(pred).
+     */
+    public Iterator<Tuple> iterator(Predicate pred, final int[] fields, final TupleDesc ptd) {
         // some code goes here
+        final Predicate onPage = pred == null || fields == null ? pred
+                : new Predicate(fields[pred.getField()], pred.getOp(), pred.getOperand());
         class Itr implements Iterator<Tuple>{
-            private int cursor = 0, cnt = 0, emptySlot = getNumEmptySlots();
+            private int cursor = nextMatch(0);
             @Override
             public boolean hasNext(){
-                return cnt < numSlots - emptySlot;
+                return cursor < numSlots;
             }
             @Override
             public Tuple next(){
-                Tuple ans = tuples[cursor];
-                cursor++; cnt++;
-                while(!isSlotUsed(cursor) && cursor < numSlots) cursor++;
+                if(!hasNext()) throw new NoSuchElementException();
+                Tuple ans = getTuple(cursor, fields, ptd);
+                cursor = nextMatch(cursor + 1);
                 return ans;
             }
             @Override
             public void remove(){
                 throw new UnsupportedOperationException("unimplemented");
             }
+            private int nextMatch(int slot){
+                slot = nextUsed(slot);
+                if(onPage != null)
+                    while(slot < numSlots && !onPage.filter(HeapPage.this, slot))
+                        slot = nextUsed(slot + 1);
+                return slot;
+            }
         }
         return new Itr();
     }
 
+    /**
+     * Copy the tuples in the used slots from slot on into b, straight from
+     * the page bytes, until b is full or the page ends.
+     *
+     * @return the slot to continue from, or -1 if the page is done
+     */
+    public int fillBatch(Batch b, int slot) {
+        return fillBatch(b, slot, null);
+    }
+
+    /**
+     * Like fillBatch(b, slot), but column k of b gets field fields[k] of
+     * each tuple; the other fields aren't read at all. With fields null,
+     * every field.
+     */
+    public int fillBatch(Batch b, int slot, int[] fields) {
+        // find the slots first, then decode a column at a time
+        int[] slots = new int[Math.min(b.room(), numSlots)];
+        int n = 0;
+        slot = nextUsed(slot);
+        while (slot < numSlots && n < slots.length) {
+            slots[n++] = slot;
+            slot = nextUsed(slot + 1);
+        }
+        int first = b.addRows(n);
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int columns = fields == null ? fieldOffsets.length : fields.length;
+        for (int k = 0; k < columns; k++) {
+            int j = fields == null ? k : fields[k];
+            int[] v = b.ints(k);
+            if (v != null) {
+                for (int i = 0; i < n; i++)
+                    v[first + i] = buf.getInt(fieldOffset(slots[i], j));
+            } else {
+                for (int i = 0; i < n; i++)
+                    b.setField(k, first + i, getField(slots[i], j));
+            }
+        }
+        return slot < numSlots ? slot : -1;
+    }
+
+    /** @return the first used slot at or after slot, or numSlots if none */
+    public int nextUsed(int slot) {
+        int end = slotted ? entries(data) : numSlots;
+        while(slot < end && !isSlotUsed(slot)) slot++;
+        return slot < end ? slot : numSlots;
+    }
+
 }
 
@@ -45,7 +45,9 @@ public class HeapPageId implements PageId {
     public int hashCode() {
         // some code goes here
     //    throw new UnsupportedOperationException("implement this");
-        return this.tableId * this.pgNo;    
+        // a product would send every page 0 (and every table's page n to
+        // multiples of n) to the same bucket of the BufferPool's frame map
+        return 31 * this.tableId + this.pgNo;
     }
 
     /**
@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexJoin is an index nested loops join of an equality predicate: for
+ * each tuple of child1 it looks up the matching tuples of a base table in a
+ * {@link BTreeFile} on the table's join field, instead of scanning the
+ * table. It pays off when child1 is small compared to the table.
+ */
+public class IndexJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private DbIterator child1;
+    private SeqScan child2;
+    private TupleDesc comboTD;
+    transient private Tuple t1 = null;
+    transient private DbFileIterator matches = null;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; it must be an
+     *            equality
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            A scan of the right(inner) table, which must have an index
+     *            on the field p joins on. The scan is not run: the table is
+     *            read through the index, and its tuples cut down to the
+     *            scan's projection.
+     * @throws IllegalArgumentException if there is no such index
+     */
+    public IndexJoin(JoinPredicate p, DbIterator child1, SeqScan child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("index join needs an equality");
+        if (Database.getCatalog().getIndex(child2.getTableId(), child2.tableField(p.getField2())) == null)
+            throw new IllegalArgumentException("no index on "
+                    + child2.getTupleDesc().getFieldName(p.getField2()));
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    private BTreeFile index() {
+        return Database.getCatalog().getIndex(child2.getTableId(), child2.tableField(pred.getField2()));
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        if (matches != null)
+            matches.close();
+        matches = null;
+        t1 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        if (matches != null)
+            matches.close();
+        matches = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the next match in the index for the current tuple of
+     * child1, or the first match of the next tuple that has one.
+     * <p>
+     * As with {@link Join}, the result is the concatenation of the joining
+     * tuples, so it holds two copies of the join attribute.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null && matches.hasNext()) {
+                // a whole tuple of the table
+                Tuple t2 = matches.next();
+                int td1n = t1.getTupleDesc().numFields();
+                int td2n = comboTD.numFields() - td1n;
+                Tuple t = new Tuple(comboTD);
+                for (int i = 0; i < td1n; i++)
+                    t.setField(i, t1.getField(i));
+                for (int i = 0; i < td2n; i++)
+                    t.setField(td1n + i, t2.getField(child2.tableField(i)));
+                return t;
+            }
+            if (matches != null)
+                matches.close();
+            matches = null;
+            if (!child1.hasNext())
+                return null;
+            t1 = child1.next();
+            matches = index().iterator(child2.getTransactionId(),
+                    Predicate.Op.EQUALS, t1.getField(pred.getField1()));
+            matches.open();
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = (SeqScan) children[1];
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.util.*;
+
+import simpledb.TupleDesc.TDItem;
+
+/**
+ * IndexScan returns the tuples of a table whose indexed field satisfies
+ * <tt>field op operand</tt>, using a {@link BTreeFile} on that field. An
+ * equality lookup reads one page per level of the tree and then only the
+ * leaves and heap pages holding matches; a range reads the leaves between
+ * its bounds. Tuples come back in key order.
+ */
+public class IndexScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+    private TransactionId tid;
+    private int indexid;
+    private String tableAlias;
+    private Predicate.Op op;
+    private Field operand;
+    private DbFileIterator iterator;
+
+    /**
+     * Creates a scan of the index indexid as a part of the specified
+     * transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param indexid
+     *            the id of the BTreeFile to read
+     * @param tableAlias
+     *            the alias of the indexed table; field names are prefixed
+     *            with it, as in {@link SeqScan}
+     * @param op
+     *            the comparison on the indexed field
+     * @param operand
+     *            the value the indexed field is compared with
+     */
+    public IndexScan(TransactionId tid, int indexid, String tableAlias,
+            Predicate.Op op, Field operand) {
+        this.tid = tid;
+        this.indexid = indexid;
+        this.tableAlias = tableAlias;
+        this.op = op;
+        this.operand = operand;
+    }
+
+    private BTreeFile index() {
+        return (BTreeFile) Database.getCatalog().getDbFile(indexid);
+    }
+
+    /** @return the name of the indexed table */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index().getTableId());
+    }
+
+    public String getAlias() {
+        return this.tableAlias;
+    }
+
+    /** @return the predicate the index is searched with */
+    public Predicate getPredicate() {
+        return new Predicate(index().getKeyField(), op, operand);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        iterator = index().iterator(tid, op, operand);
+        iterator.open();
+    }
+
+    public TupleDesc getTupleDesc() {
+        TupleDesc oldtd = index().getTupleDesc();
+        Iterator<TDItem> it = oldtd.iterator();
+        Type[] types = new Type[oldtd.numFields()];
+        String[] fields = new String[oldtd.numFields()];
+        int cnt = 0;
+        while (it.hasNext()) {
+            TDItem item = it.next();
+            types[cnt] = item.fieldType;
+            fields[cnt] = this.tableAlias + "." + item.fieldName;
+            cnt++;
+        }
+        return new TupleDesc(types, fields);
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        return iterator.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        return iterator.next();
+    }
+
+    public void close() {
+        iterator.close();
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        iterator.rewind();
+    }
+}
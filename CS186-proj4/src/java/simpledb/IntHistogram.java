@@ -125,7 +125,15 @@ public class IntHistogram {
     public double avgSelectivity()
     {
         // some code goes here
-        return 1.0;
+        // the selectivity of "= v" for a v drawn from the values added
+        if(tot == 0) return 1.0;
+        double sel = 0;
+        for(int i = 0; i < buckets; i++){
+            int width = (i == buckets - 1) ? (max - left[i] + 1) : len;
+            double frac = 1.0 * nums[i] / tot;
+            sel += frac * frac / Math.max(1, width);
+        }
+        return sel;
     }
     
     /**
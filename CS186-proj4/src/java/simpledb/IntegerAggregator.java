@@ -22,36 +22,43 @@ public class IntegerAggregator implements Aggregator {
      * @param what
      *            the aggregation operator
      */
-    private int gbfield, afield;
-    private Type gbfieldtype;
-    private Op what;
-    private HashMap<Field, Integer> minMap, maxMap, sumMap, countMap;
+    private int[] gbfields;
+    private Type[] gbfieldtypes;
+    private int[] afields;
+    private Op[] whats;
+    private GroupTable groups;
     private TupleDesc td;
 
     public IntegerAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
-        this.gbfield = gbfield;
-        this.gbfieldtype = gbfieldtype;
-        this.what = what;
-        this.afield = afield;
-        switch(what){
-            case MAX:
-                maxMap = new HashMap<Field, Integer>();
-                break;
-            case MIN:
-                minMap = new HashMap<Field, Integer>();
-                break;
-            case COUNT:
-                countMap = new HashMap<Field, Integer>();
-                break;
-            case AVG:
-                sumMap = new HashMap<Field, Integer>();
-                countMap = new HashMap<Field, Integer>();
-                break;
-            case SUM:
-                sumMap = new HashMap<Field, Integer>();
-                break;
-        }
+        this(gbfield == NO_GROUPING ? new int[0] : new int[]{gbfield},
+             gbfield == NO_GROUPING ? new Type[0] : new Type[]{gbfieldtype},
+             new int[]{afield}, new Op[]{what});
+    }
+
+    /**
+     * Compute several aggregates in one pass, grouped by several fields;
+     * the results hold the group-by fields, then one column per aggregate.
+     * COUNT may be over a field of any type; the others need INT_TYPE.
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields, none if there
+     *            is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param whats
+     *            the aggregation operator of each aggregate field
+     */
+    public IntegerAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields, Op[] whats) {
+        if(afields.length != whats.length || afields.length == 0)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        this.gbfields = gbfields;
+        this.gbfieldtypes = gbfieldtypes;
+        this.afields = afields;
+        this.whats = whats;
+        this.groups = new GroupTable(gbfieldtypes, afields.length);
     }
 
     /**
@@ -63,56 +70,66 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field field;
-        int value;
-        if(gbfield == -1) field = new IntField(-1);
-        else field = tup.getField(gbfield);
-        value = ((IntField)tup.getField(afield)).getValue();
-        switch(what){
-            case MAX:
-                if(maxMap.get(field) == null) maxMap.put(field, value);
-                else{
-                    value = Math.max(value, maxMap.get(field));
-                    maxMap.put(field, value);
-                }
-                break;
-            case AVG:
-                if(sumMap.get(field) == null){
-                    sumMap.put(field, value);
-                    countMap.put(field, 1);
-                }else{
-                    value += sumMap.get(field);
-                    sumMap.put(field, value);
-                    value = countMap.get(field) + 1;
-                    countMap.put(field, value);
-                }
-                break;
-            case SUM:
-                if(sumMap.get(field) == null)  sumMap.put(field, value);
-                else{
-                    value += sumMap.get(field);
-                    sumMap.put(field, value);
-                }
-                break;
-            case MIN:
-                if(minMap.get(field) == null) minMap.put(field, value);
-                else{
-                    value = Math.min(value, minMap.get(field));
-                    minMap.put(field, value);
-                }
-                break;
-            case COUNT:
-                if(countMap.get(field) == null) countMap.put(field, 1);
-                else{
-                    value = countMap.get(field) + 1;
-                    countMap.put(field, value);
-                }
-                break;
-        }
+        int g = groups.group(tup, gbfields);
+        groups.count(g, 1);
+        for(int a = 0; a < afields.length; a++)
+            if(whats[a] != Op.COUNT)
+                groups.add(g, a, ((IntField)tup.getField(afields[a])).getValue());
         if(td == null) td = tup.getTupleDesc();
         return ;
     }
 
+    /**
+     * Merge the live rows of a batch. Without grouping, each aggregate
+     * column's vector is folded in one pass and merged once.
+     */
+    public void mergeBatch(Batch b) {
+        int n = b.numRows();
+        if(td == null) td = b.getTupleDesc();
+        if(n == 0) return ;
+        if(gbfields.length == 0){
+            int g = groups.single();
+            groups.count(g, n);
+            for(int a = 0; a < afields.length; a++){
+                if(whats[a] == Op.COUNT) continue;
+                int[] v = b.ints(afields[a]);
+                long sum = 0;
+                int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+                for(int i = 0; i < n; i++){
+                    int x = v[b.row(i)];
+                    sum += x;
+                    if(x < min) min = x;
+                    if(x > max) max = x;
+                }
+                groups.add(g, a, sum, min, max);
+            }
+            return ;
+        }
+        int[] keys = gbfields.length == 1 && gbfieldtypes[0] == Type.INT_TYPE ? b.ints(gbfields[0]) : null;
+        for(int i = 0; i < n; i++){
+            int pos = b.row(i);
+            int g = keys != null ? groups.group((long) keys[pos]) : groups.group(b, pos, gbfields);
+            groups.count(g, 1);
+            for(int a = 0; a < afields.length; a++)
+                if(whats[a] != Op.COUNT)
+                    groups.add(g, a, b.getInt(afields[a], pos));
+        }
+    }
+
+    public Aggregator emptyCopy() {
+        return new IntegerAggregator(gbfields, gbfieldtypes, afields, whats);
+    }
+
+    /**
+     * Merge the groups of other into this one's. Every aggregate's state
+     * is a count, a long sum, a min and a max, so AVG merges exactly.
+     */
+    public void combine(Aggregator other) {
+        IntegerAggregator o = (IntegerAggregator) other;
+        groups.combine(o.groups);
+        if(td == null) td = o.td;
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      * 
@@ -127,35 +144,23 @@ public class IntegerAggregator implements Aggregator {
     //    throw new
     //    UnsupportedOperationException("please implement me for proj2");
         ArrayList<Tuple> tuples = new ArrayList<Tuple>();
-        HashMap<Field, Integer> map = new HashMap<Field, Integer>();
-        TupleDesc restd;
-        if(gbfield == -1) restd = new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{td.getFieldName(afield)});
-        else restd = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE}, new String[]{td.getFieldName(gbfield), td.getFieldName(afield)});
-        switch(what){
-            case MAX:
-                map = maxMap;
-                break;
-            case MIN:
-                map = minMap;
-                break;
-            case COUNT:
-                map = countMap;
-                break;
-            case AVG:
-                for(Map.Entry<Field, Integer> entry : countMap.entrySet())
-                    map.put(entry.getKey(), sumMap.get(entry.getKey()) / entry.getValue());
-                break;
-            case SUM:
-                map = sumMap;
-                break;
+        int off = gbfields.length;
+        Type[] types = new Type[off + afields.length];
+        String[] names = new String[off + afields.length];
+        for(int k = 0; k < off; k++){
+            types[k] = gbfieldtypes[k];
+            names[k] = td == null ? null : td.getFieldName(gbfields[k]);
+        }
+        for(int a = 0; a < afields.length; a++){
+            types[off + a] = Type.INT_TYPE;
+            names[off + a] = td == null ? null : td.getFieldName(afields[a]);
         }
-        for(Map.Entry<Field, Integer> entry : map.entrySet()){
+        TupleDesc restd = new TupleDesc(types, names);
+        for(int g = 0; g < groups.numGroups(); g++){
             Tuple tmptuple = new Tuple(restd);
-            if(gbfield == -1)    tmptuple.setField(0, new IntField(entry.getValue()));
-            else{
-                tmptuple.setField(0, entry.getKey());
-                tmptuple.setField(1, new IntField(entry.getValue()));
-            }
+            for(int k = 0; k < off; k++) tmptuple.setField(k, groups.key(g, k));
+            for(int a = 0; a < afields.length; a++)
+                tmptuple.setField(off + a, new IntField((int) groups.result(g, a, whats[a])));
             tuples.add(tmptuple);
         }
         return new TupleIterator(restd, tuples);
@@ -5,7 +5,7 @@ import java.util.*;
 /**
  * The Join operator implements the relational join operation.
  */
-public class Join extends Operator {
+public class Join extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
 
@@ -23,6 +23,9 @@ public class Join extends Operator {
     JoinPredicate p;
     DbIterator child1, child2;
     Tuple t1, t2;
+    // where nextBatch is: a batch of each side and a row of each
+    transient Batch outerBatch, innerBatch;
+    transient int oi, ii;
     
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
         // some code goes here
@@ -71,6 +74,7 @@ public class Join extends Operator {
         super.open();
         child1.open();
         child2.open();
+        outerBatch = innerBatch = null;
     }
 
     public void close() {
@@ -84,6 +88,8 @@ public class Join extends Operator {
         // some code goes here
         child1.rewind();
         child2.rewind();
+        t1 = null;
+        outerBatch = innerBatch = null;
     }
 
     /**
@@ -146,6 +152,55 @@ public class Join extends Operator {
         return null;
     }
 
+    /**
+     * A block nested loops join: every batch of child1 is joined with every
+     * batch of child2, so child2 is read once per batch of child1 rather
+     * than once per tuple.
+     *
+     * @return the next batch of joined tuples, or null if there are no more
+     */
+    public Batch nextBatch() throws TransactionAbortedException, DbException {
+        BatchIterator left = BatchAdapter.of(child1);
+        BatchIterator right = BatchAdapter.of(child2);
+        int f1 = p.getField1(), f2 = p.getField2();
+        Predicate.Op op = p.getOperator();
+        Batch out = new Batch(getTupleDesc());
+        while (!out.isFull()) {
+            if (outerBatch == null) {
+                outerBatch = left.nextBatch();
+                if (outerBatch == null)
+                    break;
+            }
+            if (innerBatch == null) {
+                innerBatch = right.nextBatch();
+                if (innerBatch == null) {
+                    // done with this outer batch
+                    child2.rewind();
+                    outerBatch = null;
+                    continue;
+                }
+                oi = 0;
+                ii = 0;
+            }
+            int no = outerBatch.numRows(), ni = innerBatch.numRows();
+            while (oi < no && !out.isFull()) {
+                int po = outerBatch.row(oi);
+                while (ii < ni && !out.isFull()) {
+                    int pi = innerBatch.row(ii++);
+                    if (Batch.compare(outerBatch, f1, po, op, innerBatch, f2, pi))
+                        out.addJoined(outerBatch, po, innerBatch, pi);
+                }
+                if (ii == ni) {
+                    ii = 0;
+                    oi++;
+                }
+            }
+            if (oi == no)
+                innerBatch = null;
+        }
+        return out.numRows() > 0 ? out : null;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         // some code goes here
@@ -13,6 +13,8 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    /** cost of reading each table alias, where it isn't a full scan */
+    HashMap<String, Double> accessCosts = new HashMap<String, Double>();
 
     /**
      * Constructor
@@ -27,6 +29,23 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Tell the optimizer that the table with the given alias will be read
+     * at the given cost (e.g. through an index) rather than scanned whole.
+     */
+    public void setAccessCost(String tableAlias, double cost) {
+        accessCosts.put(tableAlias, cost);
+    }
+
+    /** @return the cost of reading the table with the given alias */
+    private double accessCost(HashMap<String, TableStats> stats,
+            String tableName, String tableAlias) {
+        Double cost = accessCosts.get(tableAlias);
+        if (cost != null)
+            return cost;
+        return stats.get(tableName).estimateScanCost();
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -68,7 +87,19 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // an index join whose inner table turned out to be filtered hashes
+        // it instead, and a hash join that isn't an equi-join loops
+        boolean hash = lj.algorithm == LogicalJoinNode.Algorithm.INDEX
+                || lj.algorithm == LogicalJoinNode.Algorithm.HASH;
+        if (lj.algorithm == LogicalJoinNode.Algorithm.INDEX && plan2 instanceof SeqScan
+                && Database.getCatalog().getIndex(((SeqScan) plan2).getTableId(),
+                        ((SeqScan) plan2).tableField(t2id)) != null) {
+            j = new IndexJoin(p, plan1, (SeqScan) plan2);
+        } else if (hash && lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
@@ -102,19 +133,150 @@ public class JoinOptimizer {
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, j.algorithm, card1, card2, cost1, cost2);
+    }
+
+    /**
+     * Estimate the cost of running a join with the given algorithm:
+     * <ul>
+     * <li>nested loops scans the right-hand side once per left-hand tuple
+     * and compares every pair;
+     * <li>a hash join reads each side once and hashes every tuple; if the
+     * left-hand side is too big for the join's memory it also writes both
+     * sides out in partitions and reads them back;
+     * <li>an index join reads the left-hand side once and does one lookup
+     * in the index on the right-hand join field per left-hand tuple.
+     * </ul>
+     * Algorithms that can't run the join cost
+     * <tt>Double.POSITIVE_INFINITY</tt>.
+     *
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double)
+     */
+    public double estimateJoinCost(LogicalJoinNode j, LogicalJoinNode.Algorithm algorithm,
+            int card1, int card2, double cost1, double cost2) {
+        return estimateJoinCost(j, algorithm, card1, card2, cost1, cost2,
+                tupleDesc(j.t1Alias));
+    }
+
+    /**
+     * Estimate the cost of running a join with the given algorithm, whose
+     * left-hand side produces tuples of leftTd.
+     *
+     * @see #estimateJoinCost(LogicalJoinNode, LogicalJoinNode.Algorithm,
+     *      int, int, double, double)
+     */
+    private double estimateJoinCost(LogicalJoinNode j, LogicalJoinNode.Algorithm algorithm,
+            int card1, int card2, double cost1, double cost2, TupleDesc leftTd) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Project 3.
             return card1 + cost1 + cost2;
-        } else {
-            // some code goes here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic nested-loops
-            // join.
+        }
+        switch (algorithm) {
+        case HASH:
+            if (j.p != Predicate.Op.EQUALS)
+                return Double.POSITIVE_INFINITY;
+            double cost = cost1 + cost2 + card1 + card2;
+            if (card1 > hashMemoryTuples(leftTd))
+                cost += 2 * (cost1 + cost2);
+            return cost;
+        case INDEX:
+            double lookup = indexLookupCost(j);
+            return cost1 + card1 * (lookup + 1);
+        default:
             return cost1 + card1 * card2 + cost2 * card1;
         }
     }
 
+    /**
+     * @return how many left-hand tuples of leftTd a {@link HashEquiJoin}
+     *         holds before it has to spill; a left-hand side whose tuples
+     *         aren't known is taken to fit
+     */
+    private static int hashMemoryTuples(TupleDesc leftTd) {
+        if (leftTd == null)
+            return Integer.MAX_VALUE;
+        return HashEquiJoin.capacity(leftTd, HashEquiJoin.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * @return the tuples of the table with the given alias, or null if the
+     *         plan has no such alias
+     */
+    private TupleDesc tupleDesc(String alias) {
+        Integer tableId = p.getTableId(alias);
+        if (tableId == null)
+            return null;
+        return Database.getCatalog().getTupleDesc(tableId);
+    }
+
+    /** @return the tuples the joins of plan produce */
+    private TupleDesc tupleDesc(Vector<LogicalJoinNode> plan) {
+        TupleDesc td = null;
+        Set<String> seen = new HashSet<String>();
+        for (LogicalJoinNode j : plan) {
+            for (String alias : new String[] { j.t1Alias, j.t2Alias }) {
+                if (alias == null || !seen.add(alias))
+                    continue;
+                TupleDesc t = tupleDesc(alias);
+                if (t != null)
+                    td = td == null ? t : TupleDesc.merge(td, t);
+            }
+        }
+        return td;
+    }
+
+    /**
+     * @return the cost of looking up one left-hand tuple of j in the index
+     *         on j's right-hand field, or infinity if there is no such index
+     */
+    private double indexLookupCost(LogicalJoinNode j) {
+        if (j.p != Predicate.Op.EQUALS || j.t2Alias == null)
+            return Double.POSITIVE_INFINITY;
+        Integer tableId = p.getTableId(j.t2Alias);
+        if (tableId == null)
+            return Double.POSITIVE_INFINITY;
+        int field;
+        try {
+            field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(j.f2PureName);
+        } catch (NoSuchElementException e) {
+            return Double.POSITIVE_INFINITY;
+        }
+        BTreeFile index = Database.getCatalog().getIndex(tableId, field);
+        TableStats stats = TableStats.getTableStats(Database.getCatalog().getTableName(tableId));
+        if (index == null || stats == null)
+            return Double.POSITIVE_INFINITY;
+        // each left-hand tuple matches as many tuples as a typical key
+        double matches = stats.totalTuples() * stats.avgSelectivity(field, Predicate.Op.EQUALS);
+        return stats.estimateIndexLookupCost(index, matches);
+    }
+
+    /**
+     * @return a copy of j set to run with whichever algorithm is cheapest
+     * @param innerIsTable
+     *            true if the right-hand side is a whole base table, which
+     *            can be read through an index
+     */
+    private LogicalJoinNode cheapestAlgorithm(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2, TupleDesc leftTd,
+            boolean innerIsTable) {
+        LogicalJoinNode best = j.withAlgorithm(LogicalJoinNode.Algorithm.NESTED_LOOPS);
+        if (j instanceof LogicalSubplanJoinNode)
+            return best;
+        double bestCost = estimateJoinCost(best, best.algorithm, card1, card2,
+                cost1, cost2, leftTd);
+        for (LogicalJoinNode.Algorithm a : LogicalJoinNode.Algorithm.values()) {
+            if (a == LogicalJoinNode.Algorithm.INDEX && !innerIsTable)
+                continue;
+            double cost = estimateJoinCost(j, a, card1, card2, cost1, cost2, leftTd);
+            if (cost < bestCost) {
+                best = j.withAlgorithm(a);
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -223,6 +385,8 @@ public class JoinOptimizer {
 
         // some code goes here
         //Replace the following
+        if(joins.isEmpty())
+          return joins; // a single table: nothing to order
         PlanCache bestplans = new PlanCache();
         for(int i = 1; i <= joins.size(); i++){
             Set<Set<LogicalJoinNode>> S = enumerateSubsets(joins, i);
@@ -302,16 +466,22 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        // the tuples each side produces
+        TupleDesc t1td = tupleDesc(j.t1Alias);
+        TupleDesc t2td = j.t2Alias == null ? null : tupleDesc(j.t2Alias);
+        // whether each side is a base table read by a bare scan
+        boolean t1Table = isScanned(j.t1Alias, filterSelectivities);
+        boolean t2Table = j.t2Alias != null && isScanned(j.t2Alias, filterSelectivities);
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
+            t1cost = accessCost(stats, table1Name, j.t1Alias);
             t1card = stats.get(table1Name).estimateTableCardinality(
                     filterSelectivities.get(j.t1Alias));
             leftPkey = isPkey(j.t1Alias, j.f1PureName);
 
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
+            t2cost = table2Alias == null ? 0 : accessCost(stats,
+                    table2Name, table2Alias);
             t2card = table2Alias == null ? 0 : stats.get(table2Name)
                     .estimateTableCardinality(
                             filterSelectivities.get(j.t2Alias));
@@ -336,10 +506,12 @@ public class JoinOptimizer {
                                        // left
                 // subtree is
                 t1card = bestCard;
+                t1td = tupleDesc(prevBest);
+                t1Table = false;
                 leftPkey = hasPkey(prevBest);
 
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
+                t2cost = j.t2Alias == null ? 0 : accessCost(stats,
+                        table2Name, j.t2Alias);
                 t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateTableCardinality(
                                 filterSelectivities.get(j.t2Alias));
@@ -352,9 +524,11 @@ public class JoinOptimizer {
                                        // left
                 // subtree is
                 t2card = bestCard;
+                t2td = tupleDesc(prevBest);
+                t2Table = false;
                 rightPkey = hasPkey(prevBest);
 
-                t1cost = stats.get(table1Name).estimateScanCost();
+                t1cost = accessCost(stats, table1Name, j.t1Alias);
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
@@ -367,10 +541,14 @@ public class JoinOptimizer {
         }
 
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        j = cheapestAlgorithm(j, t1card, t2card, t1cost, t2cost, t1td, t2Table);
+        double cost1 = estimateJoinCost(j, j.algorithm, t1card, t2card,
+                t1cost, t2cost, t1td);
+
+        j2 = cheapestAlgorithm(j2, t2card, t1card, t2cost, t1cost, t2td, t1Table);
+        double cost2 = estimateJoinCost(j2, j2.algorithm, t2card, t1card,
+                t2cost, t1cost, t2td);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -392,6 +570,16 @@ public class JoinOptimizer {
         return cc;
     }
 
+    /**
+     * Return true if the table with the given alias is read by a plain scan,
+     * with no index or filter in front of it
+     */
+    private boolean isScanned(String tableAlias,
+            HashMap<String, Double> filterSelectivities) {
+        Double sel = filterSelectivities.get(tableAlias);
+        return !accessCosts.containsKey(tableAlias) && sel != null && sel >= 1.0;
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
@@ -1,79 +1,319 @@
 package simpledb;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * LockManager keeps the page-level shared and exclusive locks of strict
+ * two-phase locking. A transaction that cannot get a lock is parked on the
+ * page's wait queue and woken when a holder releases the page.
+ * <p>
+ * Each time a transaction starts to wait, the wait-for graph is searched
+ * for a cycle through it. When one is found, the youngest transaction on
+ * the cycle is the victim: its acquireLock() throws
+ * TransactionAbortedException and the others keep waiting.
+ * <p>
+ * Locks are also indexed by transaction, so releasing all locks at commit
+ * or abort only visits the pages that transaction locked.
+ */
 public class LockManager{
-    private ConcurrentHashMap<PageId, ArrayList<TransactionId>> share;
-    private ConcurrentHashMap<PageId, TransactionId> exclude;
+
+    /** Holders and waiters of one page. */
+    private static class PageLock {
+        /** all holders; exactly one if exclusive is set */
+        final HashSet<TransactionId> holders = new HashSet<TransactionId>();
+        boolean exclusive;
+        final LinkedHashMap<TransactionId, Permissions> waiters = new LinkedHashMap<TransactionId, Permissions>();
+        final Condition released;
+
+        PageLock(Condition released) {
+            this.released = released;
+        }
+
+        boolean unused() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+    }
+
+    private final ReentrantLock mutex = new ReentrantLock();
+    private final HashMap<PageId, PageLock> locks = new HashMap<PageId, PageLock>();
+    /** the pages each transaction holds a lock on */
+    private final HashMap<TransactionId, HashSet<PageId>> held = new HashMap<TransactionId, HashSet<PageId>>();
+    /**
+     * the pages each blocked transaction waits for, one entry per waiting
+     * thread (a query running on several threads may block in several)
+     */
+    private final HashMap<TransactionId, ArrayList<PageId>> waitingFor = new HashMap<TransactionId, ArrayList<PageId>>();
+    /** blocked transactions that were picked to break a deadlock */
+    private final HashSet<TransactionId> victims = new HashSet<TransactionId>();
+    private long deadlocks = 0;
 
     public LockManager(){
-        share = new ConcurrentHashMap<>();
-        exclude = new ConcurrentHashMap<>();
     }
 
-    public synchronized boolean hasSharedLock(PageId pid, TransactionId tid){
-        return share.get(pid) != null && share.get(pid).contains(tid);
+    public boolean hasSharedLock(PageId pid, TransactionId tid){
+        mutex.lock();
+        try{
+            PageLock l = locks.get(pid);
+            return l != null && !l.exclusive && l.holders.contains(tid);
+        }finally{
+            mutex.unlock();
+        }
     }
-    public synchronized boolean hasExclusiveLock(PageId pid, TransactionId tid){
-        return exclude.get(pid) != null && exclude.get(pid).equals(tid);
+
+    public boolean hasExclusiveLock(PageId pid, TransactionId tid){
+        mutex.lock();
+        try{
+            PageLock l = locks.get(pid);
+            return l != null && l.exclusive && l.holders.contains(tid);
+        }finally{
+            mutex.unlock();
+        }
     }
 
-    public synchronized boolean getLock(Permissions perm, PageId pid, TransactionId tid){
-        if(perm.equals(Permissions.READ_ONLY)){
-            if(hasSharedLock(pid, tid) || hasExclusiveLock(pid, tid)) return true;
-            if(exclude.get(pid) == null){
-                if(share.get(pid) == null) share.put(pid, new ArrayList<TransactionId>());
-                share.get(pid).add(tid);
-                return true;
+    /**
+     * Try to take a lock without waiting.
+     * @return true if tid now holds the lock
+     */
+    public boolean getLock(Permissions perm, PageId pid, TransactionId tid){
+        mutex.lock();
+        try{
+            PageLock l = lockFor(pid);
+            boolean granted = tryGrant(pid, l, tid, perm == Permissions.READ_WRITE);
+            if(l.unused()) locks.remove(pid);
+            return granted;
+        }finally{
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Take a lock, waiting as long as it takes for it to be released.
+     *
+     * @throws TransactionAbortedException if tid was chosen to break a
+     *   deadlock, its locks were released while it waited, or the waiting
+     *   thread was interrupted
+     */
+    public void acquireLock(Permissions perm, PageId pid, TransactionId tid)
+        throws TransactionAbortedException {
+        boolean wantX = perm == Permissions.READ_WRITE;
+        mutex.lock();
+        try{
+            PageLock l = lockFor(pid);
+            if(tryGrant(pid, l, tid, wantX)) return;
+            l.waiters.put(tid, perm);
+            ArrayList<PageId> waits = waitingFor.get(tid);
+            if(waits == null){
+                waits = new ArrayList<PageId>();
+                waitingFor.put(tid, waits);
             }
-            return false;
-        }else{
-        //    if(!tid.toString().equals(last))
-          //    System.out.println("get an exclusiveLock for " + tid.toString());
-            if(hasExclusiveLock(pid, tid)) return true;
-            if(exclude.get(pid) != null){
-                System.out.println("pid already exist!");
-                return false;
-            } 
-            if(share.get(pid) == null || share.get(pid).size() == 0){
-                exclude.put(pid, tid);
-                return true;
+            waits.add(pid);
+            try{
+                // several cycles may go through tid (e.g. all readers of a
+                // page upgrading at once); break every one of them
+                TransactionId victim;
+                while((victim = findDeadlockVictim(tid)) != null){
+                    deadlocks++;
+                    if(sameTransaction(victim, tid)) throw new TransactionAbortedException();
+                    victims.add(victim);
+                    wakeUp(victim);
+                }
+                while(true){
+                    if(victims.contains(tid)) throw new TransactionAbortedException();
+                    if(tryGrant(pid, l, tid, wantX)) return;
+                    l.released.await();
+                }
+            }catch(InterruptedException e){
+                throw new TransactionAbortedException();
+            }finally{
+                waits.remove(pid);
+                if(!waits.contains(pid)) l.waiters.remove(tid);
+                if(waits.isEmpty()){
+                    // the last of its threads has stopped waiting
+                    waitingFor.remove(tid);
+                    victims.remove(tid);
+                }
+                if(l.unused()) locks.remove(pid);
             }
-            if(share.get(pid).size() == 1 && share.get(pid).contains(tid)){
-                share.get(pid).remove(tid);
-                exclude.put(pid, tid);
+        }finally{
+            mutex.unlock();
+        }
+    }
+
+    public void releaseOneLock(PageId pid, TransactionId tid){
+        mutex.lock();
+        try{
+            PageLock l = locks.get(pid);
+            if(l != null) release(pid, l, tid);
+        }finally{
+            mutex.unlock();
+        }
+    }
+
+    public void releaseAllLocks(TransactionId tid){
+        mutex.lock();
+        try{
+            HashSet<PageId> pages = held.remove(tid);
+            if(pages != null){
+                for(PageId pid : pages){
+                    PageLock l = locks.get(pid);
+                    l.holders.remove(tid);
+                    l.exclusive = false;
+                    l.released.signalAll();
+                    if(l.unused()) locks.remove(pid);
+                }
+            }
+            // other threads of the same transaction may still be waiting
+            if(waitingFor.containsKey(tid)){
+                victims.add(tid);
+                wakeUp(tid);
+            }
+        }finally{
+            mutex.unlock();
+        }
+    }
+
+    public boolean holdsLock(PageId pid, TransactionId tid){
+        mutex.lock();
+        try{
+            PageLock l = locks.get(pid);
+            return l != null && l.holders.contains(tid);
+        }finally{
+            mutex.unlock();
+        }
+    }
+
+    /** @return the number of deadlocks found so far */
+    public long getDeadlockCount(){
+        mutex.lock();
+        try{
+            return deadlocks;
+        }finally{
+            mutex.unlock();
+        }
+    }
+
+    public void debugPage(PageId pid){
+        mutex.lock();
+        try{
+            PageLock l = locks.get(pid);
+            if(l == null) System.out.println("No lock on " + pid);
+            else System.out.println((l.exclusive ? "ExclusiveLock" : "SharedLock")
+                    + " held by " + l.holders.size() + ", " + l.waiters.size() + " waiting");
+        }finally{
+            mutex.unlock();
+        }
+    }
+
+    private PageLock lockFor(PageId pid){
+        PageLock l = locks.get(pid);
+        if(l == null){
+            l = new PageLock(mutex.newCondition());
+            locks.put(pid, l);
+        }
+        return l;
+    }
+
+    /** Grant the lock if tid already has it or nobody conflicts with it. */
+    private boolean tryGrant(PageId pid, PageLock l, TransactionId tid, boolean wantX){
+        boolean holds = l.holders.contains(tid);
+        if(holds && (l.exclusive || !wantX)) return true;
+        if(wantX){
+            // free, or an upgrade by the only reader
+            if(l.holders.isEmpty() || (holds && l.holders.size() == 1)){
+                l.exclusive = true;
+                addHolder(pid, l, tid);
                 return true;
             }
             return false;
         }
+        if(l.exclusive) return false;
+        addHolder(pid, l, tid);
+        return true;
     }
 
-    public synchronized void releaseOneLock(PageId pid, TransactionId tid){
-        if(exclude.get(pid) != null && exclude.get(pid).equals(tid)) exclude.remove(pid);
-        if(share.get(pid) != null && share.get(pid).contains(tid)) share.get(pid).remove(tid);
+    private void addHolder(PageId pid, PageLock l, TransactionId tid){
+        if(!l.holders.add(tid)) return;
+        HashSet<PageId> pages = held.get(tid);
+        if(pages == null){
+            pages = new HashSet<PageId>();
+            held.put(tid, pages);
+        }
+        pages.add(pid);
     }
 
-    public synchronized void releaseAllLocks(TransactionId tid){
-        for(Map.Entry<PageId, TransactionId> entry : exclude.entrySet())
-          if(entry.getValue().equals(tid)) exclude.remove(entry.getKey());
-        for(Map.Entry<PageId, ArrayList<TransactionId>> entry : share.entrySet())
-          if(entry.getValue().contains(tid)) entry.getValue().remove(tid);
+    private void release(PageId pid, PageLock l, TransactionId tid){
+        if(l.holders.remove(tid)){
+            l.exclusive = false;
+            l.released.signalAll();
+            HashSet<PageId> pages = held.get(tid);
+            pages.remove(pid);
+            if(pages.isEmpty()) held.remove(tid);
+        }
+        if(l.unused()) locks.remove(pid);
     }
 
-    public synchronized boolean holdsLock(PageId pid, TransactionId tid){
-        if(share.get(pid) != null)
-          return share.get(pid).contains(tid);
-        if(exclude.get(pid) != null)
-          return exclude.get(pid).equals(tid);
+    /**
+     * Look for a cycle in the wait-for graph through start, which has just
+     * started to wait. Any cycle must go through it, since the graph had
+     * none before.
+     *
+     * @return the youngest transaction on the cycle, or null if there is none
+     */
+    private TransactionId findDeadlockVictim(TransactionId start){
+        ArrayList<TransactionId> path = new ArrayList<TransactionId>();
+        path.add(start);
+        if(!cycleBack(start, start, path, new HashSet<TransactionId>())) return null;
+        TransactionId victim = start;
+        for(TransactionId t : path)
+            if(startOrder(t) > startOrder(victim)) victim = t;
+        return victim;
+    }
+
+    /** Depth-first search along wait-for edges from t back to start. */
+    private boolean cycleBack(TransactionId t, TransactionId start,
+            ArrayList<TransactionId> path, HashSet<TransactionId> visited){
+        for(TransactionId next : waitsFor(t)){
+            if(sameTransaction(next, start)) return true;
+            if(!visited.add(next)) continue;
+            path.add(next);
+            if(cycleBack(next, start, path, visited)) return true;
+            path.remove(path.size() - 1);
+        }
         return false;
     }
 
-    public synchronized void debugPage(PageId pid){
-        if(share.get(pid) != null) System.out.println("SharedLock still exist!");
-        else System.out.println("SharedLock doesn't exist!");
-        if(exclude.get(pid) != null) System.out.println("ExclusiveLock still exist!");
-        else System.out.println("ExclusiveLock doesn't exist!");
+    /**
+     * @return the transactions t is blocked behind, if it is blocked;
+     *   victims are left out since they are about to let go of their locks
+     */
+    private List<TransactionId> waitsFor(TransactionId t){
+        ArrayList<PageId> pids = waitingFor.get(t);
+        if(pids == null || victims.contains(t)) return Collections.emptyList();
+        ArrayList<TransactionId> blockers = new ArrayList<TransactionId>();
+        for(PageId pid : pids){
+            PageLock l = locks.get(pid);
+            boolean wantX = l.waiters.get(t) == Permissions.READ_WRITE;
+            if(wantX || l.exclusive)
+                for(TransactionId h : l.holders)
+                    if(!sameTransaction(h, t) && !victims.contains(h)) blockers.add(h);
+        }
+        return blockers;
+    }
+
+    /** Wake every thread of t that is waiting for a lock. */
+    private void wakeUp(TransactionId t){
+        for(PageId pid : waitingFor.get(t))
+            locks.get(pid).released.signalAll();
+    }
+
+    /** Transactions are numbered in the order they start. */
+    private static long startOrder(TransactionId t){
+        return t == null ? -1 : t.getId();
+    }
+
+    private static boolean sameTransaction(TransactionId a, TransactionId b){
+        return a == null ? b == null : a.equals(b);
     }
-}
\ No newline at end of file
+}
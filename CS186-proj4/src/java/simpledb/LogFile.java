@@ -3,7 +3,21 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -14,24 +28,55 @@ two-phase locking discipline are followed.  <p>
 <u> Locking note: </u>
 <p>
 
-Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+Appending a record takes appendLock shared, so any number of threads
+append at once; reading or rewriting the file (rollback, checkpoints,
+truncation and recovery) takes it exclusively, after the buffer is
+written out (see below). Those are also serialized on the LogFile's
+monitor. Committers waiting for a force are grouped under commitLock.
+The BufferPool has no monitor of its own to take first: it writes log
+records while it holds no latch, and while a LogFile method holds
+appendLock exclusively it only takes the latch of a frame it throws out
+(see {@link BufferPool#discardPage}), so the two don't deadlock.
+
+<u> Group commit: </u>
+<p>
 
+logCommit appends the COMMIT record under the lock like any other
+record, but forces the log after letting the lock go. Committers that
+are waiting for the log to reach their records form a group; the first
+of them forces the log once for the whole group and then wakes them all
+up, and whoever arrives while it does so waits for the next force. With
+a batching window (see {@link #setGroupCommit}) the flusher also waits
+up to that long for more committers, or until the group is full, before
+it forces. Committers wait on log sequence numbers (LSNs), which
+number the bytes of the log from its start and keep growing when the
+log is truncated, so truncating the log doesn't confuse them.
+
+<u> Log buffer: </u>
 <p>
-<pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
 
-       ..
+Records are built in memory and appended to a ring buffer: the
+appender reserves room for its record by advancing the next LSN with a
+CAS, copies the record in, and says it is there. A background writer,
+run on the shared workers, writes what is there to the file in order,
+in large writes; force() waits for it to get as far as the log went,
+and then forces the file. BEGIN, COMMIT and UPDATE records are appended
+without the lock on the LogFile and under a shared appendLock;
+whatever reads or rewrites the file (abort, checkpoints, truncation and
+recovery) takes the lock exclusively, and first waits for the buffer to
+be written out.
+
+<u> Checkpoints: </u>
+<p>
 
-       }
-    }
-</pre>
+Checkpoints are fuzzy: they don't write out the BufferPool. The log
+keeps a table of the pages it has changes of that aren't in their files
+yet, with the first such record of each, and a checkpoint records it
+along with the active transactions, holding appendLock exclusively only
+for that long. A background writer then writes those pages out one at
+a time, so that a later truncation can drop the log before them.
+Truncation and recovery start from the earliest record either table
+points at.
 */
 
 /**
@@ -51,8 +96,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and DELTA
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,11 +106,20 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li> DELTA records are UPDATEs of a page the log has the last image of
+since the last checkpoint: the page and the ranges of bytes that changed
+from that image, before and after (see appendDelta).  The first change
+of a page after a checkpoint is always a full UPDATE, so redo starts
+from an image.
+
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, and of the
+pages whose logged changes weren't in their files yet, with the first
+record of those.  The format of the record is an integer count of the
+number of transactions, as well as a long integer transaction id and a
+long integer first record offset for each active transaction; then an
+integer count of pages, and for each the id class name and id as for a
+page image and a long integer first record offset.
 
 </ul>
 
@@ -74,24 +128,88 @@ for each active transaction.
 public class LogFile {
 
     File logFile;
-    RandomAccessFile raf;
-    Boolean recoveryUndecided; // no call to recover() and no append to log
+    volatile RandomAccessFile raf;
+    volatile boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
     static final int COMMIT_RECORD = 2;
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     static int INT_SIZE = 4;
     static int LONG_SIZE = 8;
 
-    long currentOffset = -1;
     int pageSize;
-    int totalRecords = 0; // for PatchTest
-
-    HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    final AtomicInteger totalRecords = new AtomicInteger(); // for PatchTest
+
+    Map<Long,Long> tidToFirstLogRecord = new ConcurrentHashMap<Long,Long>();
+
+    /** shared by appends; exclusive for reading or rewriting the file */
+    private final ReentrantReadWriteLock appendLock = new ReentrantReadWriteLock();
+
+    /** bytes in the log buffer */
+    static final int LOG_BUFFER_SIZE = 1 << 20;
+    private ByteBuffer ring;
+    /** the LSN of the next record appended */
+    private final AtomicLong nextLsn = new AtomicLong();
+    /** the LSN of the start of the file */
+    private volatile long base = 0;
+    /** the records copied into the buffer, from their LSN to where they end */
+    private final ConcurrentHashMap<Long, Long> copied = new ConcurrentHashMap<Long, Long>();
+    /** how far the buffer was copied into without gaps; only the writer moves it */
+    private long filledLsn = 0;
+    /** how far the log was written to the file; guarded by ringMonitor */
+    private volatile long writtenLsn = 0;
+    /** why the writer couldn't write the buffer out; once set, the log
+        takes no more records until it is opened again. Guarded by
+        ringMonitor */
+    private IOException writeFailure;
+    private final Object ringMonitor = new Object();
+    private final AtomicBoolean writerScheduled = new AtomicBoolean(false);
+    private final Runnable writer = new Runnable() {
+        public void run() {
+            writeBuffer();
+        }
+    };
+
+    /** the pages with records in the log that weren't written to their
+        files yet, and the LSN of the first such record of each */
+    final ConcurrentHashMap<PageId, Long> dirtyPages = new ConcurrentHashMap<PageId, Long>();
+    /** whether a page writer is writing out the pages of a checkpoint */
+    private final AtomicBoolean pageWriterBusy = new AtomicBoolean(false);
+
+    /** guards the group commit state below; never held while taking this */
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition groupChanged = commitLock.newCondition();
+    /** how far the log is on disk, and the furthest any committer waits for */
+    private long durableLsn = 0, requestedLsn = 0;
+    /** committers waiting for their records to be on disk */
+    private int waiting = 0;
+    /** whether a committer is forcing the log for a group */
+    private boolean flushing = false;
+    private long groupCommitWindowNanos = 0;
+    private int groupCommitSize = 64;
+    /** the number of forces for groups of commits, for tests */
+    private long groupForces = 0;
+
+    private int recoveryParallelism = Runtime.getRuntime().availableProcessors();
+    /** what the last recover() did, for getRecoveryReport */
+    int redonePages, undoneTransactions, skippedPages;
+    private long analysisNanos, redoNanos, undoNanos, restartNanos;
+
+    /** how many pages the log remembers the last image of */
+    static final int LOGGED_PAGES = 1024;
+    /** the last image logged of recently logged pages, since the last
+        checkpoint; UPDATEs of them are logged as DELTAs from it */
+    private final Map<PageId, byte[]> logged = new LinkedHashMap<PageId, byte[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        protected boolean removeEldestEntry(Map.Entry<PageId, byte[]> eldest) {
+            return size() > LOGGED_PAGES;
+        }
+    };
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -108,6 +226,7 @@ public class LogFile {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        restartAt(raf.length());
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -122,21 +241,30 @@ public class LogFile {
 
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
-    // the log.
+    // the log. Not to be called while holding appendLock shared.
     void preAppend() throws IOException {
-        totalRecords++;
         if(recoveryUndecided){
-            recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            appendLock.writeLock().lock();
+            try {
+                if(recoveryUndecided){
+                    recoveryUndecided = false;
+                    raf.seek(0);
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    restartAt(LONG_SIZE);
+                    synchronized (logged) {
+                        logged.clear();
+                    }
+                    dirtyPages.clear();
+                }
+            } finally {
+                appendLock.writeLock().unlock();
+            }
         }
     }
 
     public int getTotalRecords() {
-        return totalRecords;
+        return totalRecords.get();
     }
     
     /** Write an abort record to the log for the specified tid, force
@@ -144,46 +272,308 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
-
-        synchronized (Database.getBufferPool()) {
+        synchronized(this) {
+            preAppend();
+            //Debug.log("ABORT");
+            //should we verify that this is a live transaction?
 
-            synchronized(this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
+            // must do this here, since rollback only works for
+            // live transactions (needs tidToFirstLogRecord)
+            rollback(tid);
 
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
-                tidToFirstLogRecord.remove(tid.getId());
+            appendLock.readLock().lock();
+            try {
+                append(new RecordBuffer(ABORT_RECORD, tid.getId()));
+            } finally {
+                appendLock.readLock().unlock();
             }
+            force();
+            tidToFirstLogRecord.remove(tid.getId());
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk. The log is forced once for a group
+        of concurrent committers; see the class comment.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
         preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+        long end;
+        appendLock.readLock().lock();
+        try {
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+            RecordBuffer record = new RecordBuffer(COMMIT_RECORD, tid.getId());
+            long lsn = reserve(record);
+            fill(record, lsn);
+            end = lsn + record.size();
+            tidToFirstLogRecord.remove(tid.getId());
+        } finally {
+            appendLock.readLock().unlock();
+        }
+        awaitDurable(end);
+    }
+
+    /** The bytes of a record as it is built: the type and transaction id,
+        then what the caller writes to out; reserve adds room for the
+        start offset and fill writes it in. */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        final DataOutputStream out = new DataOutputStream(this);
+
+        RecordBuffer(int type, long tid) throws IOException {
+            out.writeInt(type);
+            out.writeLong(tid);
+        }
+
+        void setStartOffset(long offset) {
+            for (int i = 0; i < LONG_SIZE; i++)
+                buf[count - 1 - i] = (byte)(offset >>> (8 * i));
+        }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        void copyTo(ByteBuffer dst, int from, int len) {
+            dst.put(buf, from, len);
+        }
+    }
+
+    /** Take the room for a record in the log buffer, waiting for the writer
+        if the buffer is full.
+        @return the LSN of the record */
+    private long reserve(RecordBuffer record) throws IOException {
+        record.out.writeLong(0);
+        int len = record.size();
+        if (len > LOG_BUFFER_SIZE)
+            throw new IOException("log record of " + len + " bytes is larger than the log buffer");
+        checkWritten();
+        while (true) {
+            long lsn = nextLsn.get();
+            if (lsn + len - writtenLsn > LOG_BUFFER_SIZE)
+                awaitWritten(lsn + len - LOG_BUFFER_SIZE);
+            else if (nextLsn.compareAndSet(lsn, lsn + len))
+                return lsn;
+        }
+    }
+
+    /** Copy a record into the room reserved for it, and hand it to the writer.
+        @return the offset of the record in the file */
+    private long fill(RecordBuffer record, long lsn) {
+        long start = lsn - base;
+        record.setStartOffset(start);
+        int len = record.size();
+        int pos = (int)(lsn % LOG_BUFFER_SIZE);
+        int first = Math.min(len, LOG_BUFFER_SIZE - pos);
+        ByteBuffer dst = ring.duplicate();
+        dst.position(pos);
+        record.copyTo(dst, 0, first);
+        if (first < len) {
+            dst.position(0);
+            record.copyTo(dst, first, len - first);
+        }
+        copied.put(lsn, lsn + len);
+        totalRecords.incrementAndGet();
+        if (writerScheduled.compareAndSet(false, true))
+            Database.getWorkers().execute(writer);
+        return start;
+    }
+
+    /** Append a record to the log.
+        @return the offset of the record in the file */
+    private long append(RecordBuffer record) throws IOException {
+        return fill(record, reserve(record));
+    }
+
+    /** The background writer: write out the records copied into the buffer,
+        for as long as there are more. */
+    private void writeBuffer() {
+        while (true) {
+            synchronized (ringMonitor) {
+                if (writeFailure != null) {
+                    writerScheduled.set(false);
+                    return;
+                }
+            }
+            long from = writtenLsn;
+            long to = filledLsn;
+            Long end;
+            while ((end = copied.remove(to)) != null)
+                to = end;
+            filledLsn = to;
+            if (to > from) {
+                IOException failure = null;
+                try {
+                    writeRing(from, to);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                synchronized (ringMonitor) {
+                    // what didn't make it to the file was never written
+                    if (failure != null)
+                        writeFailure = failure;
+                    else
+                        writtenLsn = to;
+                    ringMonitor.notifyAll();
+                }
+                continue;
+            }
+            writerScheduled.set(false);
+            // a record may have come in after we looked
+            if (!copied.containsKey(to) || !writerScheduled.compareAndSet(false, true))
+                return;
+        }
+    }
+
+    /** Write the buffer from one LSN to another to the file. */
+    private void writeRing(long from, long to) throws IOException {
+        FileChannel channel = raf.getChannel();
+        while (from < to) {
+            int pos = (int)(from % LOG_BUFFER_SIZE);
+            int len = (int)Math.min(to - from, LOG_BUFFER_SIZE - pos);
+            ByteBuffer src = ring.duplicate();
+            src.limit(pos + len);
+            src.position(pos);
+            long offset = from - base;
+            while (src.hasRemaining())
+                offset += channel.write(src, offset);
+            from += len;
+        }
+    }
+
+    /** Wait until the log is written to the file up to lsn, or fail if the
+        writer couldn't write it. */
+    private void awaitWritten(long lsn) throws IOException {
+        synchronized (ringMonitor) {
+            while (true) {
+                if (writeFailure != null)
+                    throw writeFailure;
+                if (writtenLsn >= lsn)
+                    return;
+                if (writerScheduled.compareAndSet(false, true))
+                    Database.getWorkers().execute(writer);
+                try {
+                    ringMonitor.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("waiting for the log writer");
+                }
+            }
+        }
+    }
+
+    /** Fail if the writer couldn't write the buffer out, as every append
+        and force does from then on. */
+    private void checkWritten() throws IOException {
+        synchronized (ringMonitor) {
+            if (writeFailure != null)
+                throw writeFailure;
+        }
+    }
+
+    /** Write out everything appended so far; with appendLock held
+        exclusively, nothing is then in the buffer but the file. */
+    private void drain() throws IOException {
+        awaitWritten(nextLsn.get());
+    }
+
+    /** Start the buffer again at the given end of the file, after the
+        file was rewritten; the buffer must be drained and appendLock
+        held exclusively. */
+    private void restartAt(long fileEnd) {
+        if (ring == null)
+            ring = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+        long lsn = nextLsn.get();
+        base = lsn - fileEnd;
+        filledLsn = lsn;
+        synchronized (ringMonitor) {
+            writtenLsn = lsn;
+        }
+    }
+
+    /**
+     * Set how committers are grouped: the flusher of a group waits up to
+     * window for more committers before it forces the log, or until size
+     * of them are waiting. With a window of 0, the default, a group is
+     * whoever came while the last force was running.
+     */
+    public void setGroupCommit(long window, TimeUnit unit, int size) {
+        commitLock.lock();
+        try {
+            groupCommitWindowNanos = unit.toNanos(window);
+            groupCommitSize = Math.max(size, 1);
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** @return how many times the log was forced for groups of commits */
+    public long getGroupForces() {
+        commitLock.lock();
+        try {
+            return groupForces;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Wait until the log is on disk up to lsn, forcing it for the group of
+     * waiting committers if nobody else is.
+     */
+    private void awaitDurable(long lsn) throws IOException {
+        commitLock.lock();
+        try {
+            requestedLsn = Math.max(requestedLsn, lsn);
+            waiting++;
+            groupChanged.signalAll();
+            try {
+                while (durableLsn < lsn) {
+                    if (flushing) {
+                        groupChanged.awaitUninterruptibly();
+                        continue;
+                    }
+                    flushing = true;
+                    try {
+                        long left = groupCommitWindowNanos;
+                        while (waiting < groupCommitSize && left > 0)
+                            left = groupChanged.awaitNanos(left);
+                        // every record up to target was appended before it was asked for
+                        long target = requestedLsn;
+                        commitLock.unlock();
+                        try {
+                            awaitWritten(target);
+                            raf.getChannel().force(true);
+                        } catch (ClosedChannelException e) {
+                            // logTruncate replaced the file, after forcing the new one
+                        } finally {
+                            commitLock.lock();
+                        }
+                        durableLsn = Math.max(durableLsn, target);
+                        groupForces++;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        flushing = false;
+                        groupChanged.signalAll();
+                    }
+                }
+            } finally {
+                waiting--;
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** Note that the log is on disk up to lsn. */
+    private void durableUpTo(long lsn) {
+        commitLock.lock();
+        try {
+            if (lsn > durableLsn) {
+                durableLsn = lsn;
+                groupChanged.signalAll();
+            }
+        } finally {
+            commitLock.unlock();
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -194,10 +584,9 @@ public class LogFile {
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
-                                       Page after)
+    public void logWrite(TransactionId tid, Page before,
+                         Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
         /* update record conists of
 
@@ -207,20 +596,135 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        appendLock.readLock().lock();
+        try {
+            long offset = appendUpdate(tid.getId(), before, after);
+            Debug.log("WRITE OFFSET = " + offset);
+        } finally {
+            appendLock.readLock().unlock();
+        }
+    }
+
+    /** Like logWrite, for the BufferPool's flush of a page it holds: the
+        record is written only if the pool still has the page. Rollback
+        and recovery throw out the pages they put back, holding appendLock
+        exclusively, so a flush that waited for them doesn't log the
+        undone change after the rollback.
+
+        <p> Pages are changed without a latch, so the page may be in the
+        middle of a change; the flush must write the image returned, which
+        is the one logged, and not the page.
+
+        @return a copy of after with the bytes that were logged, or null
+        if the pool no longer has the page and nothing was logged */
+    Page logFlush(TransactionId tid, Page before, Page after)
+        throws IOException {
+        preAppend();
+        appendLock.readLock().lock();
+        try {
+            if (!Database.getBufferPool().isCached(after))
+                return null;
+            byte[] data = after.getPageData();
+            appendUpdate(tid.getId(), before, after, data);
+            PageId pid = after.getId();
+            return (Page) newInstance(after.getClass().getName(),
+                                      new Class<?>[] { pid.getClass(), byte[].class },
+                                      new Object[] { pid, data.clone() });
+        } finally {
+            appendLock.readLock().unlock();
+        }
+    }
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+    /** Append an UPDATE record to the log, or a DELTA record if the log
+        has the last image of the page since the checkpoint. Each image is
+        taken from its page once, so the record, and the image later
+        DELTAs are built on, are the same bytes even if the page changes
+        meanwhile.
+        @return the offset of the record in the file */
+    private long appendUpdate(long tid, Page before, Page after) throws IOException {
+        return appendUpdate(tid, before, after, after.getPageData());
+    }
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+    /** appendUpdate with data, the bytes of after, taken already. */
+    private long appendUpdate(long tid, Page before, Page after, byte[] data) throws IOException {
+        RecordBuffer record;
+        long lsn;
+        // records of a page are in the order their images are remembered
+        synchronized (logged) {
+            byte[] last = logged.get(after.getId());
+            if (last != null && last.length == data.length && data.length <= 0xffff) {
+                record = delta(tid, after, last, data);
+            } else {
+                record = new RecordBuffer(UPDATE_RECORD, tid);
+                writePageData(record.out, before, before.getPageData());
+                writePageData(record.out, after, data);
+            }
+            logged.put(after.getId(), data.clone());
+            lsn = reserve(record);
+            dirtyPages.putIfAbsent(after.getId(), lsn);
+        }
+        return fill(record, lsn);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
+    /** Gaps between changed bytes up to this long are logged as changed,
+        since a range costs as much as this many bytes before and after. */
+    private static final int DELTA_GAP = 2;
+
+    /** Build a DELTA record: the ranges of bytes that differ between the
+        last image logged of a page and its new data, with the bytes from
+        before and after.
+
+        <p> A DELTA record is the type and transaction id, the page class
+        name, id class name and id as for a page image, an integer count
+        of ranges, and for each range an unsigned short offset and length
+        followed by the bytes before and the bytes after; then the start
+        offset as for all records.
+    */
+    private RecordBuffer delta(long tid, Page page, byte[] last, byte[] data) throws IOException {
+        RecordBuffer record = new RecordBuffer(DELTA_RECORD, tid);
+        DataOutputStream out = record.out;
+        PageId pid = page.getId();
+        out.writeUTF(page.getClass().getName());
+        writePageId(out, pid);
+
+        List<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < data.length) {
+            if (data[i] == last[i]) {
+                i++;
+                continue;
+            }
+            int start = i, end = i + 1;
+            for (int j = end; j < data.length && j <= end + DELTA_GAP; j++)
+                if (data[j] != last[j])
+                    end = j + 1;
+            ranges.add(new int[] { start, end });
+            i = end;
+        }
+        out.writeInt(ranges.size());
+        for (int[] r : ranges) {
+            out.writeShort(r[0]);
+            out.writeShort(r[1] - r[0]);
+            out.write(last, r[0], r[1] - r[0]);
+            out.write(data, r[0], r[1] - r[0]);
+        }
+        return record;
+    }
+
+    /** Write a page id as in a page image: its class name and the ints
+        it serializes to; readPageId reads it back. */
+    private static void writePageId(DataOutput out, PageId pid) throws IOException {
         int pageInfo[] = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++)
+            out.writeInt(pageInfo[i]);
+    }
+
+    /** Write an image of p whose bytes are pageData, as taken from p once
+        by the caller. */
+    void writePageData(DataOutput raf, Page p, byte[] pageData) throws IOException{
+        PageId pid = p.getId();
 
         //page data is:
         // page class name
@@ -231,56 +735,65 @@ public class LogFile {
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
         raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
-        byte[] pageData = p.getPageData();
+        writePageId(raf, pid);
         raf.writeInt(pageData.length);
         raf.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
     Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
         String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+        PageId pid = readPageId(raf, raf.readUTF());
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        int pageSize = raf.readInt();
+        byte[] pageData = new byte[pageSize];
+        raf.readFully(pageData); //read before image
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        // Page(PageId, byte[]), whatever other constructors the page has
+        Page newPage = (Page)newInstance(pageClassName,
+                                          new Class<?>[] { pid.getClass(), byte[].class },
+                                          new Object[] { pid, pageData });
+        //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+        return newPage;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** Read the id of a page image, which follows the class names. */
+    private PageId readPageId(RandomAccessFile raf, String idClassName) throws IOException {
+        int numIdArgs = raf.readInt();
+        Class<?> idTypes[] = new Class<?>[numIdArgs];
+        Object idArgs[] = new Object[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idTypes[i] = int.class;
+            idArgs[i] = new Integer(raf.readInt());
+        }
+        return (PageId)newInstance(idClassName, idTypes, idArgs);
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Skip a page image, checking that all of it is there.
+        @return the id of the page */
+    private PageId skipPageData(RandomAccessFile raf) throws IOException {
+        raf.readUTF();
+        PageId pid = readPageId(raf, raf.readUTF());
+        int pageSize = raf.readInt();
+        long end = raf.getFilePointer() + pageSize;
+        if (end > raf.length())
+            throw new EOFException();
+        raf.seek(end);
+        return pid;
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+    private static Object newInstance(String className, Class<?>[] types, Object[] args)
+        throws IOException {
+        try {
+            return Class.forName(className).getDeclaredConstructor(types).newInstance(args);
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         } catch (InstantiationException e) {
             e.printStackTrace();
             throw new IOException();
@@ -291,15 +804,188 @@ public class LogFile {
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
+    }
+
+    /** A record of the log, with the page of an UPDATE or DELTA. */
+    private static class Record {
+        int type;
+        long tid;
+        long offset;
+        PageId pid;
+    }
+
+    /** Skip what an UPDATE or DELTA record says about its page.
+        @return the id of the page */
+    private PageId skipChange(RandomAccessFile raf, int type) throws IOException {
+        if (type == UPDATE_RECORD) {
+            PageId pid = skipPageData(raf);
+            skipPageData(raf);
+            return pid;
+        }
+        raf.readUTF();
+        PageId pid = readPageId(raf, raf.readUTF());
+        int numRanges = raf.readInt();
+        while (numRanges-- > 0) {
+            raf.readUnsignedShort();
+            int len = raf.readUnsignedShort();
+            long end = raf.getFilePointer() + 2 * len;
+            if (end > raf.length())
+                throw new EOFException();
+            raf.seek(end);
+        }
+        return pid;
+    }
+
+    /** An UPDATE or DELTA record read back. */
+    private class Change {
+        int type;
+        long tid;
+        String pageClassName;
+        PageId pid;
+        /** the page images of an UPDATE */
+        byte[] before, after;
+        /** the ranges of a DELTA, with their bytes */
+        int[] offsets;
+        byte[][] befores, afters;
+
+        /** @return the page as this change left it, given it as it was */
+        byte[] redo(byte[] data) {
+            if (type == UPDATE_RECORD)
+                return after;
+            return patch(data, afters);
+        }
+
+        /** @return the page as it was before this change, given it after */
+        byte[] undo(byte[] data) {
+            if (type == UPDATE_RECORD)
+                return before;
+            return patch(data, befores);
+        }
 
+        private byte[] patch(byte[] data, byte[][] bytes) {
+            byte[] out = data.clone();
+            for (int i = 0; i < offsets.length; i++)
+                System.arraycopy(bytes[i], 0, out, offsets[i], bytes[i].length);
+            return out;
+        }
+
+        Page page(byte[] data) throws IOException {
+            return (Page)newInstance(pageClassName,
+                                     new Class<?>[] { pid.getClass(), byte[].class },
+                                     new Object[] { pid, data });
+        }
+    }
+
+    /** Read the UPDATE or DELTA record at offset. */
+    private Change readChange(RandomAccessFile raf, long offset) throws IOException {
+        raf.seek(offset);
+        Change c = new Change();
+        c.type = raf.readInt();
+        c.tid = raf.readLong();
+        c.pageClassName = raf.readUTF();
+        c.pid = readPageId(raf, raf.readUTF());
+        if (c.type == UPDATE_RECORD) {
+            c.before = new byte[raf.readInt()];
+            raf.readFully(c.before);
+            raf.readUTF();
+            readPageId(raf, raf.readUTF());
+            c.after = new byte[raf.readInt()];
+            raf.readFully(c.after);
+        } else {
+            int numRanges = raf.readInt();
+            c.offsets = new int[numRanges];
+            c.befores = new byte[numRanges][];
+            c.afters = new byte[numRanges][];
+            for (int i = 0; i < numRanges; i++) {
+                c.offsets[i] = raf.readUnsignedShort();
+                int len = raf.readUnsignedShort();
+                c.befores[i] = new byte[len];
+                raf.readFully(c.befores[i]);
+                c.afters[i] = new byte[len];
+                raf.readFully(c.afters[i]);
+            }
+        }
+        return c;
+    }
+
+    /** The tables of a CHECKPOINT record, with file offsets. */
+    private static class Checkpoint {
+        /** the active transactions and their first records */
+        Map<Long, Long> active = new HashMap<Long, Long>();
+        /** the pages not written out and their first records since */
+        Map<PageId, Long> dirty = new HashMap<PageId, Long>();
+
+        /** @return the first record recovery may need, given where the
+            checkpoint is */
+        long start(long cpLoc) {
+            long start = cpLoc;
+            for (long offset : active.values())
+                start = Math.min(start, offset);
+            for (long offset : dirty.values())
+                start = Math.min(start, offset);
+            return start;
+        }
+    }
+
+    /** Read the tables of a CHECKPOINT record, after its type and tid. */
+    private Checkpoint readCheckpoint(RandomAccessFile raf) throws IOException {
+        Checkpoint cp = new Checkpoint();
+        int numXactions = raf.readInt();
+        if (numXactions < 0 || raf.getFilePointer() + 2L * LONG_SIZE * numXactions > raf.length())
+            throw new EOFException();
+        while (numXactions-- > 0) {
+            long tid = raf.readLong();
+            cp.active.put(tid, raf.readLong());
+        }
+        int numPages = raf.readInt();
+        if (numPages < 0)
+            throw new EOFException();
+        while (numPages-- > 0) {
+            PageId pid = readPageId(raf, raf.readUTF());
+            cp.dirty.put(pid, raf.readLong());
+        }
+        return cp;
+    }
+
+    /** Read the record at the position of raf, skipping page images and
+        the contents of checkpoints.
+        @return the record, or null at the end of the log or at a record
+        that a crash cut short
+    */
+    private Record readRecord(RandomAccessFile raf) throws IOException {
+        Record r = new Record();
+        r.offset = raf.getFilePointer();
+        try {
+            r.type = raf.readInt();
+            r.tid = raf.readLong();
+            switch (r.type) {
+            case UPDATE_RECORD:
+            case DELTA_RECORD:
+                r.pid = skipChange(raf, r.type);
+                break;
+            case CHECKPOINT_RECORD:
+                readCheckpoint(raf);
+                break;
+            case ABORT_RECORD:
+            case COMMIT_RECORD:
+            case BEGIN_RECORD:
+                break;
+            default:
+                return null;
+            }
+            if (raf.readLong() != r.offset)
+                return null;
+        } catch (EOFException e) {
+            return null;
+        }
+        return r;
     }
 
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
     */
-    public synchronized  void logXactionBegin(TransactionId tid)
+    public void logXactionBegin(TransactionId tid)
         throws IOException {
         Debug.log("BEGIN");
         if(tidToFirstLogRecord.get(tid.getId()) != null){
@@ -307,60 +993,123 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
-
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        appendLock.readLock().lock();
+        try {
+            long offset = append(new RecordBuffer(BEGIN_RECORD, tid.getId()));
+            tidToFirstLogRecord.put(tid.getId(), offset);
+            Debug.log("BEGIN OFFSET = " + offset);
+        } finally {
+            appendLock.readLock().unlock();
+        }
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record. The pages are
+        not written out here but by a background writer afterwards; see
+        the class comment. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
+        Map<PageId, Long> dirty;
+        synchronized (this) {
+            preAppend();
+            long end, startCpOffset;
+            appendLock.writeLock().lock();
+            try {
+                // pages are logged in full again after a checkpoint, so
+                // that redo of them doesn't need what came before it
+                synchronized (logged) {
+                    logged.clear();
+                }
+                RecordBuffer record = new RecordBuffer(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
 
                 //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                Map<Long,Long> active = new HashMap<Long,Long>(tidToFirstLogRecord);
+                record.out.writeInt(active.size());
+                for (Map.Entry<Long,Long> e : active.entrySet()) {
+                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                    record.out.writeLong(e.getKey());
+                    record.out.writeLong(e.getValue());
                 }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                // and the pages that aren't written out
+                dirty = new HashMap<PageId, Long>(dirtyPages);
+                record.out.writeInt(dirty.size());
+                for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                    writePageId(record.out, e.getKey());
+                    record.out.writeLong(e.getValue() - base);
+                }
+                long lsn = reserve(record);
+                startCpOffset = fill(record, lsn);
+                end = lsn + record.size();
+            } finally {
+                appendLock.writeLock().unlock();
             }
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated; whatever rewrites the
+            // file waits for this, and appends go on meanwhile
+            awaitWritten(end);
+            ByteBuffer header = ByteBuffer.allocate(LONG_SIZE);
+            header.putLong(0, startCpOffset);
+            FileChannel channel = raf.getChannel();
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+            force();
         }
+        schedulePageWriter(Database.getBufferPool(), dirty);
 
         logTruncate();
     }
 
+    /** Note that a page was written to its file: the log no longer has
+        changes of it that its file doesn't. Called by the BufferPool with
+        the page's latch held, so it takes no locks. */
+    void pageWritten(PageId pid) {
+        dirtyPages.remove(pid);
+    }
+
+    /** Write out the pages of a checkpoint in the background, unless a
+        writer is still at those of the last one. */
+    private void schedulePageWriter(final BufferPool pool, final Map<PageId, Long> pages) {
+        if (pages.isEmpty() || !pageWriterBusy.compareAndSet(false, true))
+            return;
+        Database.getWorkers().execute(new Runnable() {
+            public void run() {
+                try {
+                    writeDirtyPages(pool, pages);
+                } catch (IOException e) {
+                    // the log went away; the next checkpoint tries again
+                } finally {
+                    pageWriterBusy.set(false);
+                }
+            }
+        });
+    }
+
+    /** Write out the pages a checkpoint found dirty, one at a time and
+        without holding any lock of the log, skipping those written since.
+        @param pages the pages and the LSNs of their first records */
+    private void writeDirtyPages(BufferPool pool, Map<PageId, Long> pages) throws IOException {
+        for (Map.Entry<PageId, Long> e : pages.entrySet()) {
+            if (Database.getLogFile() != this || Database.getBufferPool() != pool)
+                return;
+            Long first = dirtyPages.get(e.getKey());
+            if (first != null && first <= e.getValue())
+                pool.flushPage(e.getKey());
+        }
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
         consumption */
     public synchronized void logTruncate() throws IOException {
-        preAppend();
+        appendLock.writeLock().lock();
+        try {
+            preAppend();
+            drain();
+            truncate();
+        } finally {
+            appendLock.writeLock().unlock();
+        }
+    }
+
+    private void truncate() throws IOException {
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -376,17 +1125,11 @@ public class LogFile {
                 throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
             }
 
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+            // the first record of an active transaction or a dirty page
+            minLogRecord = readCheckpoint(raf).start(cpLoc);
         }
+        if (minLogRecord <= LONG_SIZE)
+            return; // nothing to drop
 
         // we can truncate everything before minLogRecord
         File newFile = new File("logtmp" + System.currentTimeMillis());
@@ -410,11 +1153,14 @@ public class LogFile {
 
                 switch (type) {
                 case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                case DELTA_RECORD:
+                    // images and changes don't refer to offsets
+                    long bodyStart = raf.getFilePointer();
+                    skipChange(raf, type);
+                    byte[] body = new byte[(int)(raf.getFilePointer() - bodyStart)];
+                    raf.seek(bodyStart);
+                    raf.readFully(body);
+                    logNew.write(body);
                     break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
@@ -425,6 +1171,12 @@ public class LogFile {
                         logNew.writeLong(xid);
                         logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
                     }
+                    int numPages = raf.readInt();
+                    logNew.writeInt(numPages);
+                    while (numPages-- > 0) {
+                        writePageId(logNew, readPageId(raf, raf.readUTF()));
+                        logNew.writeLong((raf.readLong() - minLogRecord) + LONG_SIZE);
+                    }
                     break;
                 case BEGIN_RECORD:
                     tidToFirstLogRecord.put(record_tid,newStart);
@@ -442,6 +1194,9 @@ public class LogFile {
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
+        // whatever was on disk in the old file must be in the new one
+        logNew.getChannel().force(true);
+        logNew.close();
         raf.close();
         logFile.delete();
         newFile.renameTo(logFile);
@@ -449,7 +1204,8 @@ public class LogFile {
         raf.seek(raf.length());
         newFile.delete();
 
-        currentOffset = raf.getFilePointer();
+        restartAt(raf.length());
+        durableUpTo(nextLsn.get());
         //print();
     }
 
@@ -463,20 +1219,75 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized(this) {
-                preAppend();
-                // some code goes here
+        synchronized(this) {
+            preAppend();
+            // some code goes here
+            Long first = tidToFirstLogRecord.get(tid.getId());
+            if (first == null)
+                throw new NoSuchElementException("no BEGIN record for " + tid.getId());
+            appendLock.writeLock().lock();
+            try {
+                drain();
+                Map<PageId, List<Long>> pages = new HashMap<PageId, List<Long>>();
+                raf.seek(first);
+                Record r;
+                while ((r = readRecord(raf)) != null) {
+                    if ((r.type == UPDATE_RECORD || r.type == DELTA_RECORD) && r.tid == tid.getId())
+                        noteChange(pages, r);
+                }
+                undo(tid.getId(), pages);
+            } finally {
+                appendLock.writeLock().unlock();
             }
         }
     }
 
+    /** Add the offset of an UPDATE or DELTA record to those of its page. */
+    private static void noteChange(Map<PageId, List<Long>> pages, Record r) {
+        List<Long> offsets = pages.get(r.pid);
+        if (offsets == null) {
+            offsets = new ArrayList<Long>();
+            pages.put(r.pid, offsets);
+        }
+        offsets.add(r.offset);
+    }
+
+    /** Put back the pages a transaction changed as they were before it,
+        undoing its changes to each from the last one on, and log the
+        page going back like any other change.  Only the log says what a
+        page looked like before a transaction wrote it, so the BufferPool
+        must not keep the page either.
+
+        @param pages the offsets of the transaction's records about each
+        page, in order, as from noteChange
+    */
+    private void undo(long tid, Map<PageId, List<Long>> pages) throws IOException {
+        for (Map.Entry<PageId, List<Long>> e : pages.entrySet()) {
+            DbFile file = Database.getCatalog().getDbFile(e.getKey().getTableId());
+            Page current = file.readPage(e.getKey());
+            byte[] data = current.getPageData();
+            List<Long> offsets = e.getValue();
+            Change c = null;
+            for (int i = offsets.size() - 1; i >= 0; i--) {
+                c = readChange(raf, offsets.get(i));
+                data = c.undo(data);
+            }
+            Page restored = c.page(data);
+            appendUpdate(tid, current, restored);
+            file.writePage(restored);
+            pageWritten(e.getKey());
+            Database.getBufferPool().discardPage(e.getKey());
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
     public synchronized void shutdown() {
         try {
+            // write out the pages first, so that the checkpoint has none
+            writeDirtyPages(Database.getBufferPool(), new HashMap<PageId, Long>(dirtyPages));
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
         } catch (IOException e) {
@@ -488,14 +1299,218 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+
+        <p> Recovery is in three passes over the log after the last
+        checkpoint, or after the first record of a page it found dirty.
+        Analysis reads the records without their page images
+        and finds the transactions that never finished and the last image
+        of every page. Redo installs those images, whoever wrote them, in
+        parallel: the pages are split among the workers by PageId, and
+        each reads its images with a file of its own. Undo puts back the
+        pages of unfinished transactions as rollback does and aborts them.
+        A checkpoint at the end keeps the next restart short; see
+        {@link #getRecoveryReport}.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
+        synchronized (this) {
+            appendLock.writeLock().lock();
+            try {
                 recoveryUndecided = false;
                 // some code goes here
+                long start = System.nanoTime();
+                if (raf.length() < LONG_SIZE) {
+                    // nothing to recover from
+                    raf.seek(0);
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    restartAt(LONG_SIZE);
+                    return;
+                }
+
+                // analysis
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                long redoStart = LONG_SIZE, scanStart = LONG_SIZE;
+                Map<Long, Long> live = new HashMap<Long, Long>();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    raf.seek(cpLoc);
+                    if (raf.readInt() != CHECKPOINT_RECORD)
+                        throw new IOException("Checkpoint pointer does not point to checkpoint record");
+                    raf.readLong();
+                    Checkpoint cp = readCheckpoint(raf);
+                    live.putAll(cp.active);
+                    redoStart = cpLoc;
+                    for (long first : cp.dirty.values())
+                        redoStart = Math.min(redoStart, first);
+                    scanStart = cp.start(cpLoc);
+                }
+                // the changes of live transactions, and those of pages
+                // that weren't written out, reach back before the
+                // checkpoint; everything else there is on disk already
+                Map<PageId, List<Long>> redo = new HashMap<PageId, List<Long>>();
+                Map<Long, Map<PageId, List<Long>>> changed = new HashMap<Long, Map<PageId, List<Long>>>();
+                raf.seek(scanStart);
+                long end = scanStart;
+                Record r;
+                while ((r = readRecord(raf)) != null) {
+                    end = raf.getFilePointer();
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        live.put(r.tid, r.offset);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        live.remove(r.tid);
+                        changed.remove(r.tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                        if (r.offset >= redoStart) {
+                            // redo a page from its last full image on
+                            if (r.type == UPDATE_RECORD)
+                                redo.remove(r.pid);
+                            noteChange(redo, r);
+                        }
+                        Map<PageId, List<Long>> pages = changed.get(r.tid);
+                        if (pages == null) {
+                            pages = new HashMap<PageId, List<Long>>();
+                            changed.put(r.tid, pages);
+                        }
+                        noteChange(pages, r);
+                        break;
+                    }
+                }
+                // whatever follows was cut short by the crash
+                raf.setLength(end);
+                restartAt(end);
+                skippedPages = 0;
+                for (Iterator<PageId> it = redo.keySet().iterator(); it.hasNext(); ) {
+                    if (!inCatalog(it.next())) {
+                        it.remove();
+                        skippedPages++;
+                    }
+                }
+                long analyzed = System.nanoTime();
+
+                // redo
+                redoPages(redo);
+                long redone = System.nanoTime();
+
+                // undo: transactions without BEGIN records are left alone,
+                // as their changes were never rolled back either
+                for (Map.Entry<Long, Long> loser : live.entrySet()) {
+                    Map<PageId, List<Long>> pages = changed.get(loser.getKey());
+                    if (pages != null) {
+                        for (Iterator<PageId> it = pages.keySet().iterator(); it.hasNext(); ) {
+                            if (!inCatalog(it.next())) {
+                                it.remove();
+                                skippedPages++;
+                            }
+                        }
+                        undo(loser.getKey(), pages);
+                    }
+                    append(new RecordBuffer(ABORT_RECORD, loser.getKey()));
+                }
+                tidToFirstLogRecord.clear();
+                force();
+                for (PageId pid : redo.keySet())
+                    Database.getBufferPool().discardPage(pid);
+                long undone = System.nanoTime();
+
+                redonePages = redo.size();
+                undoneTransactions = live.size();
+                analysisNanos = analyzed - start;
+                redoNanos = redone - analyzed;
+                undoNanos = undone - redone;
+                restartNanos = undone - start;
+            } finally {
+                appendLock.writeLock().unlock();
             }
-         }
+        }
+        // the log before here is no longer needed
+        logCheckpoint();
+    }
+
+    private static boolean inCatalog(PageId pid) {
+        try {
+            Database.getCatalog().getDbFile(pid.getTableId());
+            return true;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    /** Replay the records at the given offsets of the log on their pages,
+        splitting the pages by id among the workers. */
+    private void redoPages(Map<PageId, List<Long>> changes) throws IOException {
+        int n = Math.max(1, Math.min(recoveryParallelism, changes.size()));
+        List<List<Map.Entry<PageId, List<Long>>>> parts = new ArrayList<List<Map.Entry<PageId, List<Long>>>>();
+        for (int i = 0; i < n; i++)
+            parts.add(new ArrayList<Map.Entry<PageId, List<Long>>>());
+        for (Map.Entry<PageId, List<Long>> e : changes.entrySet())
+            parts.get((e.getKey().hashCode() & Integer.MAX_VALUE) % n).add(e);
+
+        List<Future<Void>> done = new ArrayList<Future<Void>>();
+        for (final List<Map.Entry<PageId, List<Long>>> part : parts) {
+            done.add(Database.getWorkers().submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    RandomAccessFile in = new RandomAccessFile(logFile, "r");
+                    try {
+                        for (Map.Entry<PageId, List<Long>> e : part) {
+                            DbFile file = Database.getCatalog().getDbFile(e.getKey().getTableId());
+                            byte[] data = null;
+                            Change c = null;
+                            for (long offset : e.getValue()) {
+                                c = readChange(in, offset);
+                                // only if the page was last logged in full before the checkpoint
+                                if (data == null && c.type == DELTA_RECORD)
+                                    data = file.readPage(e.getKey()).getPageData();
+                                data = c.redo(data);
+                            }
+                            file.writePage(c.page(data));
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    return null;
+                }
+            }));
+        }
+        IOException failure = null;
+        for (Future<Void> f : done) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause() instanceof IOException
+                        ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null)
+                    failure = new InterruptedIOException("redo interrupted");
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /** Set how many workers redo pages at recovery; by default, one per core. */
+    public void setRecoveryParallelism(int parallelism) {
+        recoveryParallelism = Math.max(parallelism, 1);
+    }
+
+    /** @return how long the last recover() took, in milliseconds */
+    public synchronized double getRestartMillis() {
+        return restartNanos / 1e6;
+    }
+
+    /** @return what the last recover() did and how long each pass took */
+    public synchronized String getRecoveryReport() {
+        return String.format("Recovered in %.1f ms (analysis %.1f, redo %.1f with %d workers, undo %.1f):"
+                             + " %d pages redone, %d transactions rolled back%s",
+                             restartNanos / 1e6, analysisNanos / 1e6, redoNanos / 1e6,
+                             recoveryParallelism, undoNanos / 1e6, redonePages, undoneTransactions,
+                             skippedPages == 0 ? "" : ", " + skippedPages + " pages of unknown tables skipped");
     }
 
     /** Print out a human readable represenation of the log */
@@ -503,8 +1518,19 @@ public class LogFile {
         // some code goes here
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force the log to disk, once the writer has written out everything
+        appended so far. */
+    public void force() throws IOException {
+        long lsn = nextLsn.get();
+        awaitWritten(lsn);
+        // logTruncate may not swap the file while it is being forced
+        appendLock.readLock().lock();
+        try {
+            raf.getChannel().force(true);
+        } finally {
+            appendLock.readLock().unlock();
+        }
+        durableUpTo(lsn);
     }
 
 }
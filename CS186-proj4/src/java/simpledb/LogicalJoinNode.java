@@ -23,6 +23,19 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The ways a join can be run; see {@link JoinOptimizer#instantiateJoin}. */
+    public enum Algorithm {
+        /** {@link Join}: rescan t2 for every tuple of t1 */
+        NESTED_LOOPS,
+        /** {@link HashEquiJoin}: hash t1 on f1 and probe it with t2 */
+        HASH,
+        /** {@link IndexJoin}: look up each tuple of t1 in an index on t2.f2 */
+        INDEX
+    }
+
+    /** The algorithm the join is run with, chosen by the JoinOptimizer */
+    public Algorithm algorithm = Algorithm.NESTED_LOOPS;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +76,13 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this join that is run with the given algorithm. */
+    public LogicalJoinNode withAlgorithm(Algorithm a) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.algorithm = a;
+        return j2;
+    }
+
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
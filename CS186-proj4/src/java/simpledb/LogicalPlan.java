@@ -22,6 +22,9 @@ import java.util.NoSuchElementException;
  * best implementations for joins.
  */
 public class LogicalPlan {
+    /** Tables of at least this many pages are scanned in parallel. */
+    public static final int PARALLEL_SCAN_PAGES = 4 * MorselScan.MORSEL_PAGES;
+
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
@@ -29,13 +32,15 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields = new Vector<String>();
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
     private String query;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -66,6 +71,14 @@ public class LogicalPlan {
         return query;
     }
 
+    /** Set how many threads the physical plan may run a scan, join or
+        aggregate with; 1 gives a serial plan. Defaults to the number of
+        processors.
+    */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
     /** Given a table alias, return id of the table object (this id can be supplied to {@link Catalog#getDbFile(int)}).
         Aliases are added as base tables are added via {@link #addScan}.
 
@@ -185,34 +198,41 @@ public class LogicalPlan {
         selectList.addElement(new LogicalSelectListNode(aggOp, fname));
     }
     
-    /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+    /** Add an aggregate over the field to the query.  With several
+        aggregates, call this once per aggregate; they are all computed
+        in one pass, grouped by the fields added via {@link #addGroupBy}.
         @param op the aggregation operator
-        @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param afield the field to aggregate over, or * for COUNT(*)
      * @throws ParsingException 
     */
-    public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+    public void addAggregate(String op, String afield) throws ParsingException {
         afield=disambiguateName(afield);
-        if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+        if (afield.equals("*"))
+            afield="null.*";
+        aggOps.add(op);
+        aggFields.add(afield);
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a GROUP BY field to the query.  With several, call this once
+        per field, in the order they are grouped by.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupBy(String gfield) throws ParsingException {
+        groupByFields.add(disambiguateName(gfield));
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  With several
+        ORDER BY fields, call this once per field, most significant first.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
@@ -271,6 +291,23 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * @return the constant of lf, typed like the field it is compared with
+     * @throws ParsingException if td has no such field
+     */
+    private Field filterConstant(LogicalFilterNode lf, TupleDesc td) throws ParsingException {
+        Type ftyp;
+        try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
+            ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
+        } catch (java.util.NoSuchElementException e) {
+            throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
+        }
+        if (ftyp == Type.INT_TYPE)
+            return new IntField(new Integer(lf.c).intValue());
+        else
+            return new StringField(lf.c, Type.STRING_LEN);
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned DbIterator will run as a part of
@@ -289,6 +326,9 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        // the parallel copies of a subplan, for those running in parallel;
+        // subplanMap then holds a Gather of them
+        HashMap<String,DbIterator[]> fragmentMap = new HashMap<String,DbIterator[]>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -298,7 +338,8 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
-            
+            ss.setProjection(usedFields(table));
+
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
@@ -306,7 +347,57 @@ public class LogicalPlan {
 
         }
 
-        Iterator<LogicalFilterNode> filterIt = filters.iterator();        
+        // read a table through an index when one beats scanning it; those
+        // filters go first, so their scan is still the bare SeqScan
+        HashMap<String,LogicalFilterNode> indexFilters = new HashMap<String,LogicalFilterNode>();
+        HashMap<String,Double> accessCosts = new HashMap<String,Double>();
+        for (LogicalFilterNode lf : filters) {
+            if (subplanMap.get(lf.tableAlias) == null)
+                continue; // reported below
+            int tableId = this.getTableId(lf.tableAlias);
+            int field;
+            try {
+                field = Database.getCatalog().getTupleDesc(tableId).fieldNameToIndex(lf.fieldPureName);
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            BTreeFile index = Database.getCatalog().getIndex(tableId, field);
+            if (index == null)
+                continue;
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+            Field f = filterConstant(lf, subplanMap.get(lf.tableAlias).getTupleDesc());
+            double cost = s.estimateIndexScanCost(index, lf.p, f);
+            Double best = accessCosts.get(lf.tableAlias);
+            if (cost < (best == null ? s.estimateScanCost() : best)) {
+                indexFilters.put(lf.tableAlias, lf);
+                accessCosts.put(lf.tableAlias, cost);
+            }
+        }
+
+        // split the scans of big tables that aren't read through an index
+        for (LogicalScanNode table : tables) {
+            DbFile file = Database.getCatalog().getDbFile(table.t);
+            if (parallelism < 2 || indexFilters.containsKey(table.alias)
+                    || !(file instanceof HeapFile)
+                    || ((HeapFile) file).numPages() < PARALLEL_SCAN_PAGES)
+                continue;
+            DbIterator[] frags = new DbIterator[parallelism];
+            for (int i = 0; i < parallelism; i++) {
+                SeqScan ss = new SeqScan(t, file.getId(), table.alias);
+                ss.setPartition(i, parallelism);
+                ss.setProjection(usedFields(table));
+                frags[i] = ss;
+            }
+            fragmentMap.put(table.alias, frags);
+            subplanMap.put(table.alias, new Gather(frags));
+        }
+
+        Vector<LogicalFilterNode> orderedFilters = new Vector<LogicalFilterNode>(indexFilters.values());
+        for (LogicalFilterNode lf : filters)
+            if (!indexFilters.containsValue(lf))
+                orderedFilters.add(lf);
+
+        Iterator<LogicalFilterNode> filterIt = orderedFilters.iterator();        
         while (filterIt.hasNext()) {
             LogicalFilterNode lf = filterIt.next();
             DbIterator subplan = subplanMap.get(lf.tableAlias);
@@ -314,37 +405,42 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lf.tableAlias);
             }
 
-            Field f;
-            Type ftyp;
-            TupleDesc td = subplanMap.get(lf.tableAlias).getTupleDesc();
-            
-            try {//td.fieldNameToIndex(disambiguateName(lf.fieldPureName))
-                ftyp = td.getFieldType(td.fieldNameToIndex(lf.fieldQuantifiedName));
-            } catch (java.util.NoSuchElementException e) {
-                throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
-            }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            Field f = filterConstant(lf, subplan.getTupleDesc());
 
             Predicate p = null;
+            // the scan may return just some fields; stats and indexes
+            // number them as the table does
+            int tableField;
             try {
                 p = new Predicate(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p,f);
+                tableField = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias))
+                        .fieldNameToIndex(lf.fieldPureName);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (indexFilters.get(lf.tableAlias) == lf) {
+                BTreeFile index = Database.getCatalog().getIndex(this.getTableId(lf.tableAlias), tableField);
+                subplanMap.put(lf.tableAlias, new IndexScan(t, index.getId(), lf.tableAlias, lf.p, f));
+            } else if (fragmentMap.containsKey(lf.tableAlias)) {
+                DbIterator[] frags = fragmentMap.get(lf.tableAlias);
+                for (int i = 0; i < frags.length; i++)
+                    frags[i] = new Filter(p, frags[i]);
+                subplanMap.put(lf.tableAlias, new Gather(frags));
+            } else {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            double sel= s.estimateSelectivity(tableField, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
+        for (Map.Entry<String,Double> e : accessCosts.entrySet())
+            jo.setAccessCost(e.getKey(), e.getValue());
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
@@ -383,6 +479,17 @@ public class LogicalPlan {
             
             DbIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
+            DbIterator[] joined = null;
+            if (j instanceof HashEquiJoin && !isSubqueryJoin)
+                joined = parallelJoin(lj, plan1, fragmentMap.get(t1name),
+                        plan2, fragmentMap.get(t2name));
+            if (joined != null) {
+                j = new Gather(joined);
+                fragmentMap.put(t1name, joined);
+            } else {
+                fragmentMap.remove(t1name);
+            }
+            fragmentMap.remove(t2name);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -406,7 +513,9 @@ public class LogicalPlan {
             throw new ParsingException("Query does not include join expressions joining all nodes!");
         }
         
-        DbIterator node =  (DbIterator)(subplanMap.entrySet().iterator().next().getValue());
+        Map.Entry<String,DbIterator> last = subplanMap.entrySet().iterator().next();
+        DbIterator node = last.getValue();
+        DbIterator[] frags = fragmentMap.get(last.getKey());
 
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
@@ -414,28 +523,26 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
-                TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
-                }
+                int k = 0;
+                while (k < aggOps.size() && !(aggOps.get(k).equals(si.aggOp) && aggFields.get(k).equals(si.fname)))
+                    k++;
+                if (k == aggOps.size())
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                outFields.add(groupByFields.size() + k);
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int k = groupByFields.indexOf(si.fname);
+                    if (k < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(k);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -460,12 +567,39 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            int[] gfields = new int[groupByFields.size()];
+            for (int i = 0; i < gfields.length; i++) {
+                try {
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + groupByFields.get(i) + " in GROUP BY statement");
+                }
+            }
+            int[] afields = new int[aggFields.size()];
+            Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
+            for (int k = 0; k < afields.length; k++) {
+                ops[k] = getAggOp(aggOps.get(k));
+                if (aggFields.get(k).equals("null.*")) {
+                    if (ops[k] != Aggregator.Op.COUNT)
+                        throw new ParsingException("Only COUNT can be taken over *");
+                    afields[k] = 0; // any field counts the rows
+                    continue;
+                }
+                try {
+                    afields[k] = td.fieldNameToIndex(aggFields.get(k));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + aggFields.get(k) + " in SELECT list");
+                }
+            }
+            DbIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                if (frags != null) {
+                    // each fragment is aggregated on its own thread, and
+                    // the partial results combined
+                    aggNode = new Aggregate(frags, afields, gfields, ops);
+                } else {
+                    aggNode = new Aggregate(node, afields, gfields, ops);
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -475,12 +609,109 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oFields = new int[oByFields.size()];
+            boolean[] oAscs = new boolean[oByFields.size()];
+            for (int i = 0; i < oFields.length; i++) {
+                try {
+                    oFields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.get(i) + " in ORDER BY");
+                }
+                oAscs[i] = oByAscs.get(i);
+            }
+            node = new OrderBy(oFields, oAscs, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * @return the fields of table that the query refers to, in table order,
+     *   for its scan to return; null if it needs them all
+     */
+    private int[] usedFields(LogicalScanNode table) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        boolean[] used = new boolean[td.numFields()];
+        Vector<String> names = new Vector<String>();
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.tableAlias + "." + lf.fieldPureName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.t1Alias + "." + lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.t2Alias + "." + lj.f2PureName);
+        }
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*")) {
+                if (si.aggOp == null)
+                    return null;
+                continue; // COUNT(*)
+            }
+            names.add(si.fname);
+        }
+        names.addAll(groupByFields);
+        names.addAll(aggFields);
+        names.addAll(oByFields);
+        for (String name : names) {
+            int dot = name.indexOf('.');
+            if (!name.substring(0, dot).equals(table.alias))
+                continue;
+            try {
+                used[td.fieldNameToIndex(name.substring(dot + 1))] = true;
+            } catch (NoSuchElementException e) {
+                // reported when the plan is built
+            }
+        }
+        int n = 0;
+        for (boolean u : used)
+            if (u)
+                n++;
+        if (n == used.length)
+            return null;
+        if (n == 0) {
+            used[0] = true; // still need a field for each row, as for COUNT(*)
+            n = 1;
+        }
+        int[] fields = new int[n];
+        for (int i = 0, k = 0; i < used.length; i++)
+            if (used[i])
+                fields[k++] = i;
+        return fields;
+    }
+
+    /**
+     * Run the hash join lj in parallel copies when either side runs in
+     * parallel. With both sides split, each is repartitioned on its join
+     * field so that matching tuples meet in the same copy; with one, each
+     * of its fragments is joined with a broadcast of the whole other side.
+     *
+     * @param frags1 the parallel copies of plan1, or null if it is serial
+     * @param frags2 the parallel copies of plan2, or null if it is serial
+     * @return the parallel copies of the join, or null if neither side is split
+     */
+    private DbIterator[] parallelJoin(LogicalJoinNode lj, DbIterator plan1,
+            DbIterator[] frags1, DbIterator plan2, DbIterator[] frags2) throws ParsingException {
+        if (frags1 == null && frags2 == null)
+            return null;
+        DbIterator[] left, right;
+        if (frags1 != null && frags2 != null) {
+            left = HashRepartition.split(frags1,
+                    plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName), parallelism);
+            right = HashRepartition.split(frags2,
+                    plan2.getTupleDesc().fieldNameToIndex(lj.f2QuantifiedName), parallelism);
+        } else if (frags1 != null) {
+            left = frags1;
+            right = Broadcast.copies(new DbIterator[] { plan2 }, frags1.length);
+        } else {
+            left = Broadcast.copies(new DbIterator[] { plan1 }, frags2.length);
+            right = frags2;
+        }
+        DbIterator[] joined = new DbIterator[left.length];
+        for (int i = 0; i < left.length; i++)
+            joined[i] = JoinOptimizer.instantiateJoin(lj.withAlgorithm(LogicalJoinNode.Algorithm.HASH),
+                    left[i], right[i]);
+        return joined;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
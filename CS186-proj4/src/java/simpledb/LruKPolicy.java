@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). For each page we remember
+ * the times of its last K references; the victim is the clean page whose
+ * K-th most recent reference is the oldest. Pages referenced fewer than K
+ * times count as infinitely old, so a page touched once by a large scan is
+ * thrown out before a page that is looked up over and over again.
+ * <p>
+ * The history of recently evicted pages is kept for a while, so that a page
+ * which comes back soon does not start over from a single reference.
+ * <p>
+ * Every hit updates the history under the policy's lock; use CLOCK when
+ * many threads hammer the same small set of pages.
+ */
+public class LruKPolicy extends ReplacementPolicy {
+
+    private final int k;
+    private long clock = 0;
+    private HashMap<PageId, long[]> resident = new HashMap<PageId, long[]>();
+    private LinkedHashMap<PageId, long[]> retained;
+
+    /**
+     * @param k the number of references to remember per page (k &gt;= 1);
+     *   LRU-1 is plain LRU
+     */
+    public LruKPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("K must be at least 1");
+        this.k = k;
+        init(BufferPool.DEFAULT_PAGES);
+    }
+
+    public LruKPolicy() {
+        this(2);
+    }
+
+    protected synchronized void init(final int capacity) {
+        resident.clear();
+        retained = new LinkedHashMap<PageId, long[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<PageId, long[]> e) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    protected synchronized void accessed(PageId pid) {
+        long[] hist = resident.get(pid);
+        if (hist == null) {
+            admitted(pid);
+            return;
+        }
+        touch(hist);
+    }
+
+    protected synchronized void admitted(PageId pid) {
+        long[] hist = retained.remove(pid);
+        if (hist == null) {
+            hist = new long[k];
+            Arrays.fill(hist, -1);
+        }
+        touch(hist);
+        resident.put(pid, hist);
+    }
+
+    protected synchronized void removed(PageId pid) {
+        long[] hist = resident.remove(pid);
+        if (hist != null)
+            retained.put(pid, hist);
+    }
+
+    protected synchronized PageId chooseVictim(BufferPool pool, Set<PageId> skip) {
+        PageId victim = null;
+        long victimKth = Long.MAX_VALUE, victimLast = Long.MAX_VALUE;
+        for (Map.Entry<PageId, long[]> e : resident.entrySet()) {
+            if (skip.contains(e.getKey()) || !pool.isEvictable(e.getKey()))
+                continue;
+            long[] hist = e.getValue();
+            long kth = hist[k - 1], last = hist[0];
+            // smallest K-th reference wins; -1 means fewer than K references
+            // ties (mostly among those) are broken by plain LRU
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                victim = e.getKey();
+                victimKth = kth;
+                victimLast = last;
+            }
+        }
+        return victim;
+    }
+
+    public String getName() {
+        return "LRU-" + k;
+    }
+
+    /** Shift the reference history and record a reference now. */
+    private void touch(long[] hist) {
+        System.arraycopy(hist, 0, hist, 1, hist.length - 1);
+        hist[0] = clock++;
+    }
+}
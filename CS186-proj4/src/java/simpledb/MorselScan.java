@@ -0,0 +1,295 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MorselScan reads a HeapFile with several worker threads. The file is cut
+ * into morsels of {@link #MORSEL_PAGES} consecutive pages; each worker
+ * claims the next morsel nobody has taken, reads its pages, keeps the
+ * tuples that pass the predicate and hands them over in chunks. Chunks
+ * come out in whatever order the workers finish them, so the scan has no
+ * order at all.
+ * <p>
+ * Pages are locked in the scan's transaction, as a serial scan would lock
+ * them. Workers only take locks that are free right away: a page whose lock
+ * is held by another transaction is left to the thread reading the scan,
+ * which waits for it with getPage once the workers are done. That way a
+ * transaction never has more than one thread waiting in the LockManager.
+ * <p>
+ * The workers start on the first call to hasNext or nextBatch, and produce
+ * Tuples or {@link Batch}es depending on which it was.
+ */
+public class MorselScan implements DbFileIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Pages in a morsel. */
+    public static final int MORSEL_PAGES = 16;
+    /** Chunks the workers may get ahead of the reader, per worker. */
+    private static final int QUEUE_PER_WORKER = 4;
+
+    /** What a worker hands over: some tuples, or a batch. */
+    private static class Chunk {
+        final ArrayList<Tuple> tuples;
+        final Batch batch;
+
+        Chunk(ArrayList<Tuple> tuples, Batch batch) {
+            this.tuples = tuples;
+            this.batch = batch;
+        }
+    }
+
+    /** put in the queue by the last worker to finish */
+    private static final Chunk END = new Chunk(null, null);
+
+    private final TransactionId tid;
+    private final HeapFile file;
+    private final Predicate pred;
+    private final int[] fields;
+    private final TupleDesc td;
+    private final int parallelism;
+
+    private boolean open;
+    /** the workers since the last open, or null if not started */
+    private Run run;
+    private Iterator<Tuple> current;
+
+    /**
+     * @param tid the transaction the scan runs in
+     * @param file the file to scan
+     * @param pred only the tuples that satisfy it are returned; may be null
+     * @param fields the fields of the file to return, or null for all
+     * @param td the schema of the tuples and batches returned, which pred
+     *   refers to
+     * @param parallelism the most worker threads to use
+     */
+    public MorselScan(TransactionId tid, HeapFile file, Predicate pred,
+            int[] fields, TupleDesc td, int parallelism) {
+        this.tid = tid;
+        this.file = file;
+        this.pred = pred;
+        this.fields = fields;
+        this.td = td;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * One pass over the file. Workers only see their own Run, so the ones
+     * still finishing after a rewind or close can't disturb the next.
+     */
+    private class Run {
+        final boolean batches;
+        final int numPages;
+        final AtomicInteger nextMorsel = new AtomicInteger(0);
+        final AtomicInteger running;
+        final BlockingQueue<Chunk> queue;
+        final ConcurrentLinkedQueue<Integer> deferred = new ConcurrentLinkedQueue<Integer>();
+        volatile boolean closed;
+        volatile Throwable failure;
+        boolean workersDone;
+
+        Run(boolean batches) {
+            this.batches = batches;
+            numPages = file.numPages();
+            int morsels = (numPages + MORSEL_PAGES - 1) / MORSEL_PAGES;
+            int n = Math.min(parallelism, morsels);
+            running = new AtomicInteger(n);
+            queue = new ArrayBlockingQueue<Chunk>(Math.max(1, n) * QUEUE_PER_WORKER + 1);
+            workersDone = n == 0;
+            for (int i = 0; i < n; i++) {
+                Database.getWorkers().execute(new Runnable() {
+                    public void run() {
+                        work();
+                    }
+                });
+            }
+        }
+
+        /** A worker: scan morsels until there are none left. */
+        void work() {
+            try {
+                int m;
+                BufferPool pool = Database.getBufferPool();
+                while (!closed && (m = nextMorsel.getAndIncrement()) * MORSEL_PAGES < numPages) {
+                    int end = Math.min(numPages, (m + 1) * MORSEL_PAGES);
+                    Chunk c = null;
+                    for (int p = m * MORSEL_PAGES; p < end && !closed; p++) {
+                        HeapPage page = (HeapPage) pool.getPageIfAvailable(tid,
+                                new HeapPageId(file.getId(), p), Permissions.READ_ONLY);
+                        if (page == null)
+                            deferred.add(p); // locked by someone else: the reader waits for it
+                        else
+                            c = read(page, c);
+                    }
+                    if (c != null)
+                        put(finish(c));
+                }
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                if (running.decrementAndGet() == 0)
+                    put(END);
+            }
+        }
+
+        /**
+         * Add the matching tuples of page to c, handing c over and starting
+         * another whenever it fills up.
+         *
+         * @return the chunk being filled
+         */
+        Chunk read(HeapPage page, Chunk c) {
+            if (batches) {
+                int slot = 0;
+                while (slot >= 0) {
+                    if (c == null)
+                        c = new Chunk(null, new Batch(td));
+                    slot = page.fillBatch(c.batch, slot, fields);
+                    if (c.batch.isFull()) {
+                        put(finish(c));
+                        c = null;
+                    }
+                }
+            } else {
+                Iterator<Tuple> it = page.iterator(pred, fields, td);
+                while (it.hasNext()) {
+                    if (c == null)
+                        c = new Chunk(new ArrayList<Tuple>(Batch.DEFAULT_SIZE), null);
+                    c.tuples.add(it.next());
+                    if (c.tuples.size() == Batch.DEFAULT_SIZE) {
+                        put(c);
+                        c = null;
+                    }
+                }
+            }
+            return c;
+        }
+
+        /** @return c, with its batch filtered */
+        Chunk finish(Chunk c) {
+            if (c.batch != null && pred != null)
+                c.batch.filter(pred);
+            return c;
+        }
+
+        /** Hand c to the reader, unless it has gone away. */
+        void put(Chunk c) {
+            try {
+                while (!closed && !queue.offer(c, 10, TimeUnit.MILLISECONDS))
+                    ;
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+        }
+
+        /**
+         * @return the next chunk, or null when the pass is done. Once the
+         *   workers are done, reads the pages they left, waiting for their
+         *   locks.
+         */
+        Chunk next() throws DbException, TransactionAbortedException {
+            while (!workersDone) {
+                Chunk c;
+                try {
+                    c = queue.take();
+                } catch (InterruptedException e) {
+                    throw new TransactionAbortedException();
+                }
+                if (c != END)
+                    return c;
+                workersDone = true;
+                if (failure instanceof DbException)
+                    throw (DbException) failure;
+                if (failure != null)
+                    throw new DbException("parallel scan failed: " + failure);
+            }
+            // the queue is empty now and a page fills at most one chunk, so
+            // read() can put without blocking
+            Integer p;
+            while (queue.isEmpty() && (p = deferred.poll()) != null) {
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(file.getId(), p), Permissions.READ_ONLY);
+                Chunk c = read(page, null);
+                if (c != null)
+                    put(finish(c));
+            }
+            return queue.poll();
+        }
+
+        void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+
+    public void open() {
+        open = true;
+        run = null;
+        current = null;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!open)
+            return false;
+        if (run == null)
+            run = new Run(false);
+        while (current == null || !current.hasNext()) {
+            Chunk c = run.next();
+            if (c == null)
+                return false;
+            current = run.batches ? tuples(c.batch).iterator() : c.tuples.iterator();
+        }
+        return true;
+    }
+
+    private static ArrayList<Tuple> tuples(Batch b) {
+        ArrayList<Tuple> out = new ArrayList<Tuple>(b.numRows());
+        for (int i = 0; i < b.numRows(); i++)
+            out.add(b.getTuple(i));
+        return out;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return current.next();
+    }
+
+    /** @return the next non-empty batch of matching rows, or null if none */
+    public Batch nextBatch() throws DbException, TransactionAbortedException {
+        if (!open)
+            return null;
+        if (run == null)
+            run = new Run(true);
+        if (!run.batches) {
+            // started by hasNext: gather the tuples
+            if (!hasNext())
+                return null;
+            Batch b = new Batch(td);
+            while (!b.isFull() && hasNext())
+                b.addTuple(next());
+            return b;
+        }
+        Chunk c;
+        while ((c = run.next()) != null)
+            if (c.batch.numRows() > 0)
+                return c.batch;
+        return null;
+    }
+
+    public void rewind() {
+        close();
+        open();
+    }
+
+    public void close() {
+        open = false;
+        if (run != null)
+            run.close();
+        run = null;
+        current = null;
+    }
+}
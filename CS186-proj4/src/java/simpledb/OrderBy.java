@@ -3,18 +3,21 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY, on one or
+ * more fields. The child is sorted with an {@link ExternalSort}, so inputs
+ * larger than the memory budget spill to disk in sorted runs that are then
+ * merged as the output is read.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private int[] orderByFields;
+    private boolean[] ascs;
+    private int memoryPages = ExternalSort.DEFAULT_MEMORY_PAGES;
+    private ExternalSort sorter;
+    private DbFileIterator it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,26 +30,60 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: by the first
+     * one, then the second one among tuples equal on the first, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to sort on, most significant first.
+     * @param ascs
+     *            for each of those fields, true if it is sorted ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, DbIterator child) {
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields;
+        this.ascs = ascs;
     }
-    
+
+    /**
+     * Set how many pages of heap the tuples the sort holds may take before
+     * it spills to disk; see {@link ExternalSort}.
+     */
+    public void setMemoryPages(int pages) {
+        this.memoryPages = pages;
+    }
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
     
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /** @return the fields sorted on, most significant first */
+    public int[] getOrderByFields()
+    {
+        return this.orderByFields;
+    }
+
+    /** @return whether each of the fields is sorted ascending */
+    public boolean[] getAscending()
+    {
+        return this.ascs;
     }
     
     public TupleDesc getTupleDesc() {
@@ -56,21 +93,30 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
+        if (sorter != null)
+            sorter.close();
+        sorter = new ExternalSort(td, new TupleComparator(orderByFields, ascs), memoryPages);
         while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            sorter.add(child.next());
+        sorter.sort();
+        it = sorter.iterator();
+        it.open();
         super.open();
     }
 
     public void close() {
         super.close();
+        if (it != null)
+            it.close();
         it = null;
+        if (sorter != null)
+            sorter.close();
+        sorter = null;
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        it.rewind();
     }
 
     /**
@@ -101,23 +147,30 @@ public class OrderBy extends Operator {
 }
 
 class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
+    int[] fields;
+    boolean[] ascs;
 
     public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] ascs) {
+        this.fields = fields;
+        this.ascs = ascs;
     }
 
     public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return ascs[i] ? 1 : -1;
+            else
+                return ascs[i] ? -1 : 1;
+        }
+        return 0;
     }
     
 }
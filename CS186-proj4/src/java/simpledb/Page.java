@@ -7,8 +7,8 @@ package simpledb;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, pages MUST have a constructor of the form:
+ *     Page(XPageId id, byte[] data), where XPageId is the class of their ids
  */
 public interface Page {
 
@@ -0,0 +1,487 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PageCodec compresses the HeapPages of one table, for a compressed
+ * {@link PageFile}. A page is taken apart into columns, the values of its
+ * used slots, and each column is stored in the smallest of a few
+ * lightweight encodings:
+ * <ul>
+ * <li>ints: frame of reference, the least value and each value's
+ *   difference from it bit-packed in as few bits as the largest needs; or
+ *   runs of equal values (RLE), their values and lengths packed the same way.
+ * <li>strings: a dictionary of the distinct values and a code per value,
+ *   coded like an int column; or the values one after another.
+ * </ul>
+ * The slot bitmap of a page of fixed slots and the entries of a slotted
+ * page are int columns too. With deflate on, the result is compressed
+ * again with zlib when that makes it smaller.
+ * <p>
+ * Decoding gives back the page byte for byte, as long as the bytes of its
+ * empty slots and free space are zero, which HeapPage and HeapFileEncoder
+ * see to.
+ */
+public class PageCodec {
+
+    /** How the pages of a table are stored. */
+    public enum Compression {
+        /** fixed-size pages as they are */
+        NONE,
+        /** pages in the lightweight encodings */
+        LIGHT,
+        /** the lightweight encodings, then deflate */
+        DEFLATE
+    }
+
+    private static final int PLAIN = 0, DEFLATED = 1;
+    private static final int FRAME = 0, RUNS = 1;
+    private static final int VALUES = 0, DICTIONARY = 1;
+
+    private final TupleDesc td;
+    private final boolean columnar;
+    private final boolean slotted;
+    private final boolean deflate;
+    /** offset of each fixed-length field in a tuple or record */
+    private final int[] fieldOffsets;
+    /** the bytes of the fixed-length fields of a record */
+    private final int fixedSize;
+
+    /**
+     * @param columnar whether the pages are PAX pages (see {@link HeapPage})
+     * @param deflate whether to deflate the encoded pages
+     * @throws IllegalArgumentException if td has a string field
+     */
+    public PageCodec(TupleDesc td, boolean columnar, boolean deflate) {
+        this(td, columnar, false, deflate);
+    }
+
+    /**
+     * @param slotted whether the pages are slotted pages (see {@link HeapPage})
+     * @throws IllegalArgumentException if td has a string field and the
+     *   pages aren't slotted; strings in fixed slots have no encoding
+     */
+    public PageCodec(TupleDesc td, boolean columnar, boolean slotted, boolean deflate) {
+        this.td = td;
+        this.columnar = columnar;
+        this.slotted = slotted;
+        this.deflate = deflate;
+        fieldOffsets = new int[td.numFields()];
+        int off = 0;
+        for (int j = 0; j < fieldOffsets.length; j++) {
+            Type type = td.getFieldType(j);
+            if (slotted && !type.isFixedLength()) {
+                fieldOffsets[j] = -1;
+                continue;
+            }
+            if (type != Type.INT_TYPE)
+                throw new IllegalArgumentException("no encoding for " + type);
+            fieldOffsets[j] = off;
+            off += type.getLen();
+        }
+        fixedSize = off;
+    }
+
+    /** @return the codec of a table's pages, or null if they aren't compressed */
+    public static PageCodec forTable(TupleDesc td, boolean columnar, boolean slotted,
+            Compression compression) {
+        if (compression == Compression.NONE)
+            return null;
+        return new PageCodec(td, columnar, slotted, compression == Compression.DEFLATE);
+    }
+
+    /** @return page, a page of this table, encoded */
+    public byte[] encode(byte[] page) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(page.length / 4);
+        DataOutputStream out = new DataOutputStream(baos);
+        if (!slotted)
+            encodeFixed(page, out);
+        else
+            encodeSlotted(page, out);
+        out.flush();
+        byte[] light = baos.toByteArray();
+        if (deflate) {
+            byte[] packed = deflate(light);
+            if (packed.length + 4 < light.length) {
+                ByteBuffer b = ByteBuffer.allocate(5 + packed.length);
+                b.put((byte) DEFLATED).putInt(light.length).put(packed);
+                return b.array();
+            }
+        }
+        byte[] plain = new byte[1 + light.length];
+        plain[0] = PLAIN;
+        System.arraycopy(light, 0, plain, 1, light.length);
+        return plain;
+    }
+
+    /** @return the page of pageSize bytes that encode turned into bytes */
+    public byte[] decode(byte[] bytes, int pageSize) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+        if (bytes[0] == DEFLATED) {
+            byte[] light = inflate(bytes, 5, ByteBuffer.wrap(bytes, 1, 4).getInt());
+            in = new DataInputStream(new ByteArrayInputStream(light));
+        }
+        byte[] page = new byte[pageSize];
+        if (!slotted)
+            decodeFixed(in, page);
+        else
+            decodeSlotted(in, page);
+        return page;
+    }
+
+    // pages of fixed slots, in rows or PAX; all their fields are ints
+
+    private int numSlots(int pageSize) {
+        return (pageSize * 8) / (td.getSize() * 8 + 1);
+    }
+
+    private int fieldOffset(int numSlots, int headerSize, int slot, int field) {
+        if (columnar)
+            return headerSize + numSlots * fieldOffsets[field] + slot * 4;
+        return headerSize + slot * td.getSize() + fieldOffsets[field];
+    }
+
+    private void encodeFixed(byte[] page, DataOutputStream out) throws IOException {
+        int numSlots = numSlots(page.length), headerSize = (numSlots + 7) / 8;
+        int[] header = new int[headerSize];
+        int[] slots = new int[numSlots];
+        int n = 0;
+        for (int i = 0; i < headerSize; i++)
+            header[i] = page[i] & 0xff;
+        for (int i = 0; i < numSlots; i++)
+            if ((page[i / 8] & (1 << (i % 8))) != 0)
+                slots[n++] = i;
+        writeInts(out, header, headerSize);
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        int[] column = new int[n];
+        for (int j = 0; j < fieldOffsets.length; j++) {
+            for (int i = 0; i < n; i++)
+                column[i] = buf.getInt(fieldOffset(numSlots, headerSize, slots[i], j));
+            writeInts(out, column, n);
+        }
+    }
+
+    private void decodeFixed(DataInputStream in, byte[] page) throws IOException {
+        int numSlots = numSlots(page.length), headerSize = (numSlots + 7) / 8;
+        int[] header = readInts(in, headerSize);
+        int[] slots = new int[numSlots];
+        int n = 0;
+        for (int i = 0; i < headerSize; i++)
+            page[i] = (byte) header[i];
+        for (int i = 0; i < numSlots; i++)
+            if ((page[i / 8] & (1 << (i % 8))) != 0)
+                slots[n++] = i;
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        for (int j = 0; j < fieldOffsets.length; j++) {
+            int[] column = readInts(in, n);
+            for (int i = 0; i < n; i++)
+                buf.putInt(fieldOffset(numSlots, headerSize, slots[i], j), column[i]);
+        }
+    }
+
+    // slotted pages; see HeapPage for their layout
+
+    private void encodeSlotted(byte[] page, DataOutputStream out) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        int entries = buf.getShort(0) & 0xffff;
+        int[] offsets = new int[entries];
+        int n = 0;
+        for (int i = 0; i < entries; i++) {
+            offsets[i] = buf.getShort(HeapPage.SLOTTED_HEADER + i * HeapPage.ENTRY_SIZE) & 0xffff;
+            if (offsets[i] != 0)
+                n++;
+        }
+        out.writeShort(entries);
+        writeInts(out, offsets, entries);
+        int[] records = new int[n];
+        n = 0;
+        for (int i = 0; i < entries; i++)
+            if (offsets[i] != 0)
+                records[n++] = offsets[i];
+        // where the next variable-length field of each record starts
+        int[] next = new int[n];
+        for (int i = 0; i < n; i++)
+            next[i] = records[i] + fixedSize;
+        int[] ints = new int[n];
+        byte[][] strings = new byte[n][];
+        for (int j = 0; j < fieldOffsets.length; j++) {
+            if (fieldOffsets[j] >= 0) {
+                for (int i = 0; i < n; i++)
+                    ints[i] = buf.getInt(records[i] + fieldOffsets[j]);
+                writeInts(out, ints, n);
+            }
+        }
+        for (int j = 0; j < fieldOffsets.length; j++) {
+            if (fieldOffsets[j] < 0) {
+                for (int i = 0; i < n; i++) {
+                    int len = buf.getInt(next[i]);
+                    strings[i] = Arrays.copyOfRange(page, next[i] + 4, next[i] + 4 + len);
+                    next[i] += 4 + len;
+                }
+                writeStrings(out, strings, n);
+            }
+        }
+    }
+
+    private void decodeSlotted(DataInputStream in, byte[] page) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        int entries = in.readUnsignedShort();
+        int[] offsets = readInts(in, entries);
+        int n = 0, start = 0;
+        for (int i = 0; i < entries; i++)
+            if (offsets[i] != 0) {
+                n++;
+                start = start == 0 ? offsets[i] : Math.min(start, offsets[i]);
+            }
+        int[] records = new int[n];
+        n = 0;
+        for (int i = 0; i < entries; i++)
+            if (offsets[i] != 0)
+                records[n++] = offsets[i];
+        int[] next = new int[n];
+        for (int i = 0; i < n; i++)
+            next[i] = records[i] + fixedSize;
+        for (int j = 0; j < fieldOffsets.length; j++) {
+            if (fieldOffsets[j] >= 0) {
+                int[] ints = readInts(in, n);
+                for (int i = 0; i < n; i++)
+                    buf.putInt(records[i] + fieldOffsets[j], ints[i]);
+            }
+        }
+        for (int j = 0; j < fieldOffsets.length; j++) {
+            if (fieldOffsets[j] < 0) {
+                byte[][] strings = readStrings(in, n);
+                for (int i = 0; i < n; i++) {
+                    buf.putInt(next[i], strings[i].length);
+                    System.arraycopy(strings[i], 0, page, next[i] + 4, strings[i].length);
+                    next[i] += 4 + strings[i].length;
+                }
+            }
+        }
+        buf.putShort(0, (short) entries);
+        buf.putShort(2, (short) start);
+        n = 0;
+        for (int i = 0; i < entries; i++) {
+            int entry = HeapPage.SLOTTED_HEADER + i * HeapPage.ENTRY_SIZE;
+            buf.putShort(entry, (short) offsets[i]);
+            if (offsets[i] != 0) {
+                buf.putShort(entry + 2, (short) (next[n] - records[n]));
+                n++;
+            }
+        }
+    }
+
+    // columns
+
+    /** Write the first n values of v, as a frame of reference or as runs. */
+    static void writeInts(DataOutputStream out, int[] v, int n) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        writePacked(new DataOutputStream(frame), v, n);
+        int runs = 0;
+        for (int i = 0; i < n; i++)
+            if (i == 0 || v[i] != v[i - 1])
+                runs++;
+        if (runs * 2 <= n) {
+            int[] values = new int[runs], lengths = new int[runs];
+            int r = -1;
+            for (int i = 0; i < n; i++) {
+                if (i == 0 || v[i] != v[i - 1])
+                    values[++r] = v[i];
+                lengths[r]++;
+            }
+            ByteArrayOutputStream rle = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(rle);
+            dos.writeInt(runs);
+            writePacked(dos, values, runs);
+            writePacked(dos, lengths, runs);
+            if (rle.size() < frame.size()) {
+                out.writeByte(RUNS);
+                rle.writeTo(out);
+                return;
+            }
+        }
+        out.writeByte(FRAME);
+        frame.writeTo(out);
+    }
+
+    /** @return the n values writeInts wrote */
+    static int[] readInts(DataInputStream in, int n) throws IOException {
+        if (in.readUnsignedByte() == FRAME)
+            return readPacked(in, n);
+        int runs = in.readInt();
+        int[] values = readPacked(in, runs), lengths = readPacked(in, runs);
+        int[] v = new int[n];
+        int i = 0;
+        for (int r = 0; r < runs; r++)
+            for (int k = 0; k < lengths[r]; k++)
+                v[i++] = values[r];
+        return v;
+    }
+
+    /**
+     * Write the least of the first n values of v, the bits each difference
+     * from it needs, and the differences in that many bits each.
+     */
+    private static void writePacked(DataOutputStream out, int[] v, int n) throws IOException {
+        if (n == 0)
+            return;
+        long min = v[0], max = v[0];
+        for (int i = 1; i < n; i++) {
+            min = Math.min(min, v[i]);
+            max = Math.max(max, v[i]);
+        }
+        int width = 64 - Long.numberOfLeadingZeros(max - min);
+        out.writeInt((int) min);
+        out.writeByte(width);
+        long acc = 0;
+        int bits = 0;
+        for (int i = 0; i < n; i++) {
+            acc |= (v[i] - min) << bits;
+            bits += width;
+            while (bits >= 8) {
+                out.writeByte((int) acc);
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        if (bits > 0)
+            out.writeByte((int) acc);
+    }
+
+    private static int[] readPacked(DataInputStream in, int n) throws IOException {
+        int[] v = new int[n];
+        if (n == 0)
+            return v;
+        long min = in.readInt();
+        int width = in.readUnsignedByte();
+        long mask = (1L << width) - 1;
+        long acc = 0;
+        int bits = 0;
+        for (int i = 0; i < n; i++) {
+            while (bits < width) {
+                acc |= (long) in.readUnsignedByte() << bits;
+                bits += 8;
+            }
+            v[i] = (int) (min + (acc & mask));
+            acc >>>= width;
+            bits -= width;
+        }
+        return v;
+    }
+
+    /** Write the first n values of v, with a dictionary or one by one. */
+    static void writeStrings(DataOutputStream out, byte[][] v, int n) throws IOException {
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
+        writeValues(new DataOutputStream(values), v, n);
+        HashMap<ByteBuffer, Integer> codes = new HashMap<ByteBuffer, Integer>();
+        ArrayList<byte[]> dictionary = new ArrayList<byte[]>();
+        int[] coded = new int[n];
+        for (int i = 0; i < n; i++) {
+            ByteBuffer key = ByteBuffer.wrap(v[i]);
+            Integer code = codes.get(key);
+            if (code == null) {
+                code = dictionary.size();
+                codes.put(key, code);
+                dictionary.add(v[i]);
+            }
+            coded[i] = code;
+        }
+        if (dictionary.size() < n) {
+            ByteArrayOutputStream dict = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(dict);
+            dos.writeShort(dictionary.size());
+            writeValues(dos, dictionary.toArray(new byte[0][]), dictionary.size());
+            writeInts(dos, coded, n);
+            if (dict.size() < values.size()) {
+                out.writeByte(DICTIONARY);
+                dict.writeTo(out);
+                return;
+            }
+        }
+        out.writeByte(VALUES);
+        values.writeTo(out);
+    }
+
+    /** @return the n values writeStrings wrote */
+    static byte[][] readStrings(DataInputStream in, int n) throws IOException {
+        if (in.readUnsignedByte() == VALUES)
+            return readValues(in, n);
+        byte[][] dictionary = readValues(in, in.readUnsignedShort());
+        int[] coded = readInts(in, n);
+        byte[][] v = new byte[n][];
+        for (int i = 0; i < n; i++)
+            v[i] = dictionary[coded[i]];
+        return v;
+    }
+
+    /** Write the lengths of the first n values of v as ints, then their bytes. */
+    private static void writeValues(DataOutputStream out, byte[][] v, int n) throws IOException {
+        int[] lengths = new int[n];
+        for (int i = 0; i < n; i++)
+            lengths[i] = v[i].length;
+        writeInts(out, lengths, n);
+        for (int i = 0; i < n; i++)
+            out.write(v[i]);
+    }
+
+    private static byte[][] readValues(DataInputStream in, int n) throws IOException {
+        int[] lengths = readInts(in, n);
+        byte[][] v = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            v[i] = new byte[lengths[i]];
+            in.readFully(v[i]);
+        }
+        return v;
+    }
+
+    // the general codec
+
+    private static byte[] deflate(byte[] data) {
+        Deflater d = new Deflater();
+        d.setInput(data);
+        d.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        byte[] buf = new byte[1024];
+        while (!d.finished())
+            out.write(buf, 0, d.deflate(buf));
+        d.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data, int off, int len) throws IOException {
+        Inflater inf = new Inflater();
+        inf.setInput(data, off, data.length - off);
+        byte[] out = new byte[len];
+        try {
+            int n = 0;
+            while (n < len && !inf.finished()) {
+                int k = inf.inflate(out, n, len - n);
+                if (k == 0 && (inf.needsInput() || inf.needsDictionary()))
+                    throw new IOException("deflated page is cut short");
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("bad deflated page: " + e.getMessage());
+        } finally {
+            inf.end();
+        }
+        return out;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof PageCodec))
+            return false;
+        PageCodec c = (PageCodec) o;
+        return td.equals(c.td) && columnar == c.columnar && slotted == c.slotted
+                && deflate == c.deflate;
+    }
+
+    public int hashCode() {
+        return td.numFields() * 8 + (slotted ? 4 : 0) + (columnar ? 2 : 0) + (deflate ? 1 : 0);
+    }
+}
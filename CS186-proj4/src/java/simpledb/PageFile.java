@@ -0,0 +1,499 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageFile does the fixed-size page I/O for one file on disk. It keeps a
+ * single FileChannel open for the file and uses positional reads and
+ * writes, so any number of threads can read and write pages at once
+ * without seeking or opening the file again.
+ * <p>
+ * Read-mostly files can be switched to memory-mapped mode. In that mode
+ * the file is mapped once and pages are copied straight out of the
+ * mapping. Writes to pages inside the mapping go through it as well;
+ * writes past its end go to the channel and the file is mapped again on
+ * the next read that needs it.
+ * <p>
+ * There is one PageFile per file (see {@link #open}); HeapFile,
+ * HeapFileEncoder and anything else that reads or writes pages of a file
+ * share it. A channel that was closed, by {@link #closeAll} or because a
+ * thread using it was interrupted, is reopened on the next access.
+ * <p>
+ * A file opened with a {@link PageCodec} is compressed. Each page is
+ * stored encoded, as a record of its page number, its room, its length
+ * and its bytes, and callers still read and write whole pages. A page
+ * that still fits in its room is written over in place; otherwise it is
+ * appended with a little room to spare, and its old record becomes
+ * garbage until {@link #compact}, which a write runs once there is more
+ * garbage than live records. The last record of a page in the file is
+ * its current one, so the directory of where each page is is rebuilt by
+ * reading the record headers when the file is opened.
+ */
+public class PageFile {
+
+    private static final ConcurrentHashMap<File, PageFile> open = new ConcurrentHashMap<File, PageFile>();
+
+    private final File file;
+    private final int pageSize;
+    private volatile FileChannel channel;
+    private volatile boolean mapped = false;
+    private volatile MappedByteBuffer map;
+
+    /** the codec of a compressed file, else null */
+    private final PageCodec codec;
+    /** bytes before the encoded page in a record of a compressed file */
+    private static final int RECORD_HEADER = 12;
+    /** the room of an appended record is rounded up to this */
+    private static final int ROOM_ALIGN = 64;
+    /** garbage below this many pages' worth is never compacted away */
+    private static final int COMPACT_MIN_PAGES = 16;
+    /** guards the directory: readers share it, writes and compaction don't */
+    private final ReentrantReadWriteLock directoryLock = new ReentrantReadWriteLock();
+    /** by page: where its record starts, or -1; null until read from the file */
+    private long[] offsets;
+    /** by page: the room and the length of its encoded bytes */
+    private int[] rooms, lengths;
+    /** pages in the directory, and where the next record goes */
+    private int numRecordPages;
+    private long end;
+    /** bytes of the current records of pages; the rest up to end is garbage */
+    private long live;
+
+    /**
+     * @return the PageFile of f. If f is open with another page size, the
+     *   old PageFile is closed and replaced.
+     */
+    public static PageFile open(File f, int pageSize) {
+        return open(f, pageSize, null);
+    }
+
+    /**
+     * @return the PageFile of f, compressed with codec unless it is null.
+     *   If f is open with another page size or codec, the old PageFile is
+     *   closed and replaced.
+     */
+    public static PageFile open(File f, int pageSize, PageCodec codec) {
+        File key = f.getAbsoluteFile();
+        while (true) {
+            PageFile pf = open.get(key);
+            if (pf != null && pf.pageSize == pageSize
+                    && (codec == null ? pf.codec == null : codec.equals(pf.codec)))
+                return pf;
+            PageFile mine = new PageFile(key, pageSize, codec);
+            if (pf == null ? open.putIfAbsent(key, mine) == null : open.replace(key, pf, mine)) {
+                if (pf != null)
+                    pf.close();
+                return mine;
+            }
+        }
+    }
+
+    /** Close all open files; they are opened again when they are used. */
+    public static void closeAll() {
+        for (PageFile pf : open.values())
+            pf.close();
+    }
+
+    private PageFile(File f, int pageSize, PageCodec codec) {
+        this.file = f;
+        this.pageSize = pageSize;
+        this.codec = codec;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /** @return whether pages are stored encoded by a PageCodec */
+    public boolean isCompressed() {
+        return codec != null;
+    }
+
+    /**
+     * Switch memory-mapped mode on or off. Meant for tables that are read
+     * much more often than they are written. A compressed file reads its
+     * records with read calls either way.
+     */
+    public synchronized void setMapped(boolean mapped) {
+        this.mapped = mapped;
+        map = null;
+    }
+
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /** @return the number of pages in the file, counting a partial last page */
+    public int numPages() throws IOException {
+        if (codec != null) {
+            lockDirectory();
+            try {
+                return numRecordPages;
+            } finally {
+                directoryLock.readLock().unlock();
+            }
+        }
+        long len = length();
+        return (int) ((len + pageSize - 1) / pageSize);
+    }
+
+    public long length() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null || !ch.isOpen())
+            return file.length();
+        try {
+            return ch.size();
+        } catch (ClosedChannelException e) {
+            return file.length();
+        }
+    }
+
+    /**
+     * Read page pgNo. Bytes past the end of the file read as zeroes.
+     */
+    public byte[] readPage(int pgNo) throws IOException {
+        if (codec != null)
+            return readCompressed(pgNo);
+        byte[] data = new byte[pageSize];
+        long pos = (long) pgNo * pageSize;
+        if (mapped) {
+            MappedByteBuffer m = mapping(pos + pageSize);
+            if (m != null) {
+                ByteBuffer b = m.duplicate();
+                b.position((int) pos);
+                b.get(data);
+                return data;
+            }
+        }
+        ByteBuffer b = ByteBuffer.wrap(data);
+        while (b.hasRemaining()) {
+            int n = channel().read(b, pos + b.position());
+            if (n < 0)
+                break;
+        }
+        return data;
+    }
+
+    /** Write data (one page) as page pgNo, growing the file if needed. */
+    public void writePage(int pgNo, byte[] data) throws IOException {
+        if (data.length != pageSize)
+            throw new IllegalArgumentException("page is " + data.length + " bytes, not " + pageSize);
+        if (codec != null) {
+            writeCompressed(pgNo, codec.encode(data));
+            return;
+        }
+        long pos = (long) pgNo * pageSize;
+        MappedByteBuffer m = map;
+        if (mapped && m != null && pos + pageSize <= m.capacity()) {
+            ByteBuffer b = m.duplicate();
+            b.position((int) pos);
+            b.put(data);
+            return;
+        }
+        ByteBuffer b = ByteBuffer.wrap(data);
+        while (b.hasRemaining())
+            channel().write(b, pos + b.position());
+    }
+
+    /** Cut the file down to numPages pages. */
+    public void truncate(int numPages) throws IOException {
+        if (codec != null) {
+            compact(numPages);
+            return;
+        }
+        synchronized (this) {
+            map = null;
+            channel().truncate((long) numPages * pageSize);
+        }
+    }
+
+    /**
+     * Rewrite a compressed file without the garbage left by pages that
+     * outgrew their room. Writes do this when the garbage grows; it is
+     * public for files that should be made as small as they can be.
+     */
+    public void compact() throws IOException {
+        if (codec != null)
+            compact(numPages());
+    }
+
+    /** Force everything written so far to disk. */
+    public void force() throws IOException {
+        if (codec != null) {
+            // not while a compaction swaps the file
+            lockDirectory();
+            try {
+                channel().force(false);
+            } finally {
+                directoryLock.readLock().unlock();
+            }
+            return;
+        }
+        MappedByteBuffer m = map;
+        if (m != null)
+            m.force();
+        channel().force(false);
+    }
+
+    /**
+     * Close the file, forget it and delete it from disk. For temporary
+     * files; the PageFile must not be used afterwards.
+     */
+    public void delete() {
+        open.remove(file, this);
+        close();
+        file.delete();
+    }
+
+    /**
+     * Close the channel; the next access reopens it, and reads the
+     * directory of a compressed file again.
+     */
+    public void close() {
+        if (codec != null) {
+            directoryLock.writeLock().lock();
+            offsets = null;
+            directoryLock.writeLock().unlock();
+        }
+        synchronized (this) {
+            map = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                channel = null;
+            }
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null && ch.isOpen())
+            return ch;
+        synchronized (this) {
+            if (channel == null || !channel.isOpen()) {
+                map = null;
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        }
+    }
+
+    /** Read b from pos on, stopping early only at the end of the file. */
+    private void read(ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            int n = channel().read(b, pos + b.position());
+            if (n < 0)
+                break;
+        }
+    }
+
+    private void write(ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining())
+            channel().write(b, pos + b.position());
+    }
+
+    /** Take the read lock of the directory, reading it first if need be. */
+    private void lockDirectory() throws IOException {
+        while (true) {
+            directoryLock.readLock().lock();
+            if (offsets != null)
+                return;
+            directoryLock.readLock().unlock();
+            directoryLock.writeLock().lock();
+            try {
+                if (offsets == null)
+                    loadDirectory();
+            } finally {
+                directoryLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Read the record headers of a compressed file. A record cut short at
+     * the end of the file, by a crash while it was appended, is left out
+     * and written over by the next append.
+     */
+    private void loadDirectory() throws IOException {
+        offsets = new long[0];
+        rooms = new int[0];
+        lengths = new int[0];
+        numRecordPages = 0;
+        live = 0;
+        long size = channel().size(), pos = 0;
+        ByteBuffer h = ByteBuffer.allocate(RECORD_HEADER);
+        while (pos + RECORD_HEADER <= size) {
+            h.clear();
+            read(h, pos);
+            int pgNo = h.getInt(0), room = h.getInt(4), len = h.getInt(8);
+            if (pgNo < 0 || len < 0 || room < len || pos + RECORD_HEADER + room > size)
+                break;
+            place(pgNo, pos, room, len);
+            pos += RECORD_HEADER + room;
+        }
+        end = pos;
+    }
+
+    private void place(int pgNo, long offset, int room, int len) {
+        if (pgNo >= offsets.length) {
+            int n = Math.max(pgNo + 1, offsets.length * 2);
+            int old = offsets.length;
+            offsets = Arrays.copyOf(offsets, n);
+            Arrays.fill(offsets, old, n, -1L);
+            rooms = Arrays.copyOf(rooms, n);
+            lengths = Arrays.copyOf(lengths, n);
+        }
+        if (offsets[pgNo] >= 0)
+            live -= RECORD_HEADER + rooms[pgNo];
+        live += RECORD_HEADER + room;
+        offsets[pgNo] = offset;
+        rooms[pgNo] = room;
+        lengths[pgNo] = len;
+        numRecordPages = Math.max(numRecordPages, pgNo + 1);
+    }
+
+    private byte[] readCompressed(int pgNo) throws IOException {
+        byte[] bytes;
+        lockDirectory();
+        try {
+            if (pgNo >= numRecordPages || offsets[pgNo] < 0)
+                return new byte[pageSize];
+            bytes = new byte[lengths[pgNo]];
+            read(ByteBuffer.wrap(bytes), offsets[pgNo] + RECORD_HEADER);
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+        return codec.decode(bytes, pageSize);
+    }
+
+    private void writeCompressed(int pgNo, byte[] bytes) throws IOException {
+        directoryLock.writeLock().lock();
+        try {
+            if (offsets == null)
+                loadDirectory();
+            long pos;
+            int room;
+            ByteBuffer b;
+            if (pgNo < numRecordPages && offsets[pgNo] >= 0 && rooms[pgNo] >= bytes.length) {
+                pos = offsets[pgNo];
+                room = rooms[pgNo];
+                b = ByteBuffer.allocate(RECORD_HEADER + bytes.length);
+            } else {
+                // the whole room is written, so the record isn't cut short
+                pos = end;
+                room = roomFor(bytes.length);
+                b = ByteBuffer.allocate(RECORD_HEADER + room);
+                end += RECORD_HEADER + room;
+            }
+            b.putInt(pgNo).putInt(room).putInt(bytes.length).put(bytes);
+            b.clear();
+            write(b, pos);
+            place(pgNo, pos, room, bytes.length);
+            long garbage = end - live;
+            if (garbage > live && garbage >= (long) COMPACT_MIN_PAGES * pageSize)
+                compact(numRecordPages);
+        } finally {
+            directoryLock.writeLock().unlock();
+        }
+    }
+
+    /** @return the room of an appended record of len encoded bytes */
+    private static int roomFor(int len) {
+        return (len + ROOM_ALIGN - 1) / ROOM_ALIGN * ROOM_ALIGN;
+    }
+
+    /**
+     * Keep only the pages before numPages: write their records, in page
+     * order and each with just the room it needs, to a new file, and
+     * move it over the old one. A crash leaves one file or the other.
+     */
+    private void compact(int numPages) throws IOException {
+        directoryLock.writeLock().lock();
+        try {
+            if (offsets == null)
+                loadDirectory();
+            int n = Math.min(numRecordPages, numPages);
+            long[] newOffsets = new long[n];
+            int[] newRooms = new int[n];
+            File tmp = new File(file.getPath() + ".compact");
+            RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+            long pos = 0;
+            try {
+                out.setLength(0);
+                FileChannel ch = out.getChannel();
+                for (int pg = 0; pg < n; pg++) {
+                    newOffsets[pg] = -1;
+                    if (offsets[pg] < 0)
+                        continue;
+                    int room = roomFor(lengths[pg]);
+                    ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER + room);
+                    b.limit(RECORD_HEADER + lengths[pg]);
+                    read(b, offsets[pg]);
+                    b.putInt(4, room);
+                    b.clear();
+                    while (b.hasRemaining())
+                        ch.write(b, pos + b.position());
+                    newOffsets[pg] = pos;
+                    newRooms[pg] = room;
+                    pos += RECORD_HEADER + room;
+                }
+                ch.force(true);
+            } finally {
+                out.close();
+            }
+            synchronized (this) {
+                map = null;
+                if (channel != null) {
+                    channel.close();
+                    channel = null;
+                }
+                Files.move(tmp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Arrays.fill(offsets, -1L);
+            System.arraycopy(newOffsets, 0, offsets, 0, n);
+            System.arraycopy(newRooms, 0, rooms, 0, n);
+            numRecordPages = n;
+            end = live = pos;
+        } finally {
+            directoryLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return a mapping of the file covering at least the first end bytes,
+     *   or null if the file is too short or too large to map
+     */
+    private MappedByteBuffer mapping(long end) throws IOException {
+        MappedByteBuffer m = map;
+        if (m != null && end <= m.capacity())
+            return m;
+        synchronized (this) {
+            m = map;
+            if (m != null && end <= m.capacity())
+                return m;
+            FileChannel ch = channel();
+            long size = ch.size();
+            if (end > size || size > Integer.MAX_VALUE)
+                return null;
+            map = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return map;
+        }
+    }
+}
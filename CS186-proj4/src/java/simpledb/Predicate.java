@@ -117,6 +117,34 @@ public class Predicate implements Serializable {
         return t.getField(field).compare(op, operand);
     }
 
+    /**
+     * Like {@link #filter(Tuple)}, for the tuple in a slot of page. Integer
+     * comparisons read the field straight from the page and allocate
+     * nothing.
+     */
+    public boolean filter(HeapPage page, int slot) {
+        if (!(operand instanceof IntField) || op == Op.LIKE)
+            return page.getField(slot, field).compare(op, operand);
+        int value = page.getInt(slot, field);
+        int other = ((IntField) operand).getValue();
+        switch (op) {
+        case EQUALS:
+            return value == other;
+        case NOT_EQUALS:
+            return value != other;
+        case GREATER_THAN:
+            return value > other;
+        case GREATER_THAN_OR_EQ:
+            return value >= other;
+        case LESS_THAN:
+            return value < other;
+        case LESS_THAN_OR_EQ:
+            return value <= other;
+        default:
+            return page.getField(slot, field).compare(op, operand);
+        }
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string
@@ -0,0 +1,337 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Producer runs the inputs of an {@link Exchange}, one worker thread each
+ * (from {@link Database#getWorkers}), and routes their tuples to a number of
+ * outputs, each read by a {@link Consumer}. A tuple goes to output 0 when
+ * there is only one, to the output its hash field picks when there is a
+ * hash field, and to every output otherwise.
+ * <p>
+ * Tuples are handed over in chunks of {@link #CHUNK_SIZE} through one
+ * bounded queue per output, so a slow consumer holds back the inputs
+ * instead of letting them fill memory.
+ * <p>
+ * An output that is closed and opened again while others still read the
+ * run it left (a rewind of just one consumer) gets a new run of the
+ * inputs that feeds only the outputs not busy with an older run. The
+ * inputs can't be run twice at once, so it starts once the older run's
+ * inputs are done, which needs its other outputs to be read.
+ */
+public class Producer implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Tuples handed over at a time. */
+    public static final int CHUNK_SIZE = 256;
+    /** Chunks an output queue holds. */
+    public static final int QUEUE_CHUNKS = 8;
+
+    /** put in every queue once all inputs are done */
+    private static final List<Tuple> END = Collections.unmodifiableList(new ArrayList<Tuple>());
+
+    private DbIterator[] inputs;
+    private final int outputs;
+    private final int hashField;
+    /** which outputs are open now */
+    private final boolean[] isOpen;
+    /** the runs some output still reads or will read, oldest first */
+    private transient LinkedList<Run> runs;
+    /** the run each open output reads */
+    private transient Run[] reading;
+    /** the newest run, which may still be winding down */
+    private transient Run newest;
+
+    /**
+     * @param inputs the iterators to run, which must all have the same schema
+     * @param outputs the number of outputs
+     * @param hashField the field whose hash picks a tuple's output, or -1
+     *   to send each tuple to every output
+     */
+    public Producer(DbIterator[] inputs, int outputs, int hashField) {
+        if (inputs.length == 0 || outputs < 1)
+            throw new IllegalArgumentException("need an input and an output");
+        this.inputs = inputs;
+        this.outputs = outputs;
+        this.hashField = hashField;
+        this.isOpen = new boolean[outputs];
+    }
+
+    public TupleDesc getTupleDesc() {
+        return inputs[0].getTupleDesc();
+    }
+
+    public DbIterator[] getInputs() {
+        return inputs;
+    }
+
+    public void setInputs(DbIterator[] inputs) {
+        this.inputs = inputs;
+    }
+
+    public int numOutputs() {
+        return outputs;
+    }
+
+    /** @return the field whose hash picks a tuple's output, or -1 */
+    public int getHashField() {
+        return hashField;
+    }
+
+    /**
+     * @return the output of t when it goes to just one. Uses a seed no
+     *   level of HashEquiJoin does, so a join above a repartition still
+     *   spreads its tuples over its own partitions.
+     */
+    private int outputOf(Tuple t) {
+        if (outputs == 1)
+            return 0;
+        return HashEquiJoin.partition(t.getField(hashField), -1, outputs);
+    }
+
+    /**
+     * One run of the inputs, from the first open of an output it feeds to
+     * the last close. Until it starts, any output may join it.
+     */
+    private class Run {
+        final ArrayList<BlockingQueue<List<Tuple>>> queues = new ArrayList<BlockingQueue<List<Tuple>>>();
+        final AtomicInteger running = new AtomicInteger(inputs.length);
+        final CountDownLatch done = new CountDownLatch(inputs.length);
+        /** 1 for the outputs whose consumer has closed, or that it doesn't feed */
+        final AtomicIntegerArray discarded = new AtomicIntegerArray(outputs);
+        volatile boolean stopped;
+        volatile Throwable failure;
+        /** the run before, whose inputs must be done before this one starts */
+        volatile Run prev;
+        volatile boolean started;
+        /** outputs that have been closed during the run, and how many */
+        final boolean[] closed = new boolean[outputs];
+        int numClosed = 0;
+        /** outputs the run feeds, and how many */
+        final boolean[] feeds = new boolean[outputs];
+        int numFed = 0;
+
+        Run(Run prev) {
+            this.prev = prev;
+            for (int o = 0; o < outputs; o++)
+                queues.add(new ArrayBlockingQueue<List<Tuple>>(QUEUE_CHUNKS));
+        }
+
+        /**
+         * Start the workers, feeding every output but those reading an
+         * older run. The caller holds the producer's lock, and prev is done.
+         */
+        void start() {
+            prev = null;
+            started = true;
+            for (int o = 0; o < outputs; o++) {
+                feeds[o] = !isOpen[o] || reading[o] == this;
+                if (feeds[o])
+                    numFed++;
+                else
+                    discarded.set(o, 1);
+            }
+            for (final DbIterator in : inputs) {
+                Database.getWorkers().execute(new Runnable() {
+                    public void run() {
+                        drain(in);
+                    }
+                });
+            }
+        }
+
+        void drain(DbIterator in) {
+            boolean opened = false;
+            try {
+                in.open();
+                opened = true;
+                // the chunk being filled for each output, or null
+                List<List<Tuple>> pending = new ArrayList<List<Tuple>>(
+                        Collections.<List<Tuple>>nCopies(outputs, null));
+                while (!stopped && in.hasNext()) {
+                    Tuple t = in.next();
+                    if (outputs > 1 && hashField < 0) {
+                        for (int o = 0; o < outputs; o++)
+                            add(pending, o, t);
+                    } else {
+                        add(pending, outputOf(t), t);
+                    }
+                }
+                for (int o = 0; o < outputs; o++)
+                    if (pending.get(o) != null)
+                        put(o, pending.get(o));
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                if (opened)
+                    in.close();
+                if (running.decrementAndGet() == 0)
+                    for (int o = 0; o < outputs; o++)
+                        put(o, END);
+                done.countDown();
+            }
+        }
+
+        void add(List<List<Tuple>> pending, int o, Tuple t) {
+            List<Tuple> c = pending.get(o);
+            if (c == null) {
+                c = new ArrayList<Tuple>(CHUNK_SIZE);
+                pending.set(o, c);
+            }
+            c.add(t);
+            if (c.size() == CHUNK_SIZE) {
+                put(o, c);
+                pending.set(o, null);
+            }
+        }
+
+        /**
+         * Queue c for output o, unless the run was stopped or nobody reads
+         * o any more; the other outputs may still be read.
+         */
+        void put(int o, List<Tuple> c) {
+            try {
+                while (!stopped && discarded.get(o) == 0
+                        && !queues.get(o).offer(c, 10, TimeUnit.MILLISECONDS))
+                    ;
+            } catch (InterruptedException e) {
+                stopped = true;
+            }
+        }
+
+        void discard(int o) {
+            discarded.set(o, 1);
+            queues.get(o).clear();
+        }
+
+        void stop() {
+            stopped = true;
+            for (BlockingQueue<List<Tuple>> q : queues)
+                q.clear();
+        }
+
+        /** Wait for the workers to let go of the inputs. */
+        void awaitDone() {
+            if (!started)
+                return;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Called by the consumer of output o when it opens. It reads the oldest
+     * run that feeds it and that it hasn't closed, or else a new one; a
+     * new run starts right away unless an older one is still read.
+     */
+    public synchronized void open(int o) {
+        if (isOpen[o])
+            return;
+        if (runs == null) {
+            runs = new LinkedList<Run>();
+            reading = new Run[outputs];
+        }
+        Run r = null;
+        for (Run x : runs) {
+            if (!x.closed[o] && (!x.started || x.feeds[o])) {
+                r = x;
+                break;
+            }
+        }
+        if (r == null) {
+            r = new Run(newest);
+            runs.add(r);
+            newest = r;
+        }
+        isOpen[o] = true;
+        reading[o] = r;
+        if (!r.started && (r.prev == null || !runs.contains(r.prev))) {
+            // the inputs can't be reopened while the last run still reads them
+            if (r.prev != null)
+                r.prev.awaitDone();
+            r.start();
+        }
+    }
+
+    /**
+     * Called by the consumer of output o when it closes. A run stops once
+     * every output it feeds has been closed; until then the others are
+     * still fed, so consumers may open and finish at different times.
+     */
+    public synchronized void close(int o) {
+        if (!isOpen[o])
+            return;
+        isOpen[o] = false;
+        Run r = reading[o];
+        reading[o] = null;
+        // a run that hasn't started has nothing to discard, and o may
+        // come back to it
+        if (!r.started || r.closed[o])
+            return;
+        r.closed[o] = true;
+        r.discard(o);
+        if (++r.numClosed == r.numFed) {
+            r.stop();
+            runs.remove(r);
+        }
+    }
+
+    /** @return the run output o reads, started */
+    private Run started(int o) {
+        Run r;
+        synchronized (this) {
+            r = isOpen[o] ? reading[o] : null;
+        }
+        if (r == null)
+            throw new IllegalStateException("exchange not open");
+        if (!r.started) {
+            // without the lock: the older run may need other outputs read
+            Run prev = r.prev;
+            if (prev != null)
+                prev.awaitDone();
+            synchronized (this) {
+                if (!r.started)
+                    r.start();
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return the next chunk for output o, or null once all inputs are done
+     * @throws DbException or TransactionAbortedException if an input failed
+     */
+    public List<Tuple> take(int o) throws DbException, TransactionAbortedException {
+        Run r = started(o);
+        List<Tuple> c;
+        try {
+            c = r.queues.get(o).take();
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        }
+        if (c != END)
+            return c;
+        r.queues.get(o).offer(END); // for a later call
+        if (r.failure instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) r.failure;
+        if (r.failure instanceof DbException)
+            throw (DbException) r.failure;
+        if (r.failure != null)
+            throw new DbException("exchange input failed: " + r.failure);
+        return null;
+    }
+}
@@ -5,7 +5,7 @@ import java.util.*;
 /**
  * Project is an operator that implements a relational projection.
  */
-public class Project extends Operator {
+public class Project extends Operator implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
@@ -80,6 +80,20 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * @return the next batch of the child with only the output fields; it
+     *         shares the child's vectors
+     */
+    public Batch nextBatch() throws TransactionAbortedException, DbException {
+        Batch b = BatchAdapter.of(child).nextBatch();
+        if (b == null)
+            return null;
+        int[] columns = new int[outFieldIds.size()];
+        for (int i = 0; i < columns.length; i++)
+            columns[i] = outFieldIds.get(i);
+        return b.project(columns, td);
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -0,0 +1,168 @@
+package simpledb;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ReplacementPolicy decides which page the BufferPool throws out when it is
+ * full. The BufferPool tells the policy about every hit, every page it
+ * brings in, and every page that leaves the pool; the policy only has to
+ * pick a victim among the resident pages.
+ * <p>
+ * Each policy also keeps hit/miss/eviction counters so that the policy for
+ * a workload can be chosen by looking at its numbers.
+ * <p>
+ * The BufferPool does not serialize calls into the policy: accessed() is
+ * called on every cache hit from any number of threads at once, so
+ * policies have to do their own locking, and should keep the hit path as
+ * cheap as they can.
+ *
+ * @see BufferPool
+ * @see Database#resetBufferPool(int, ReplacementPolicy)
+ */
+public abstract class ReplacementPolicy {
+
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+    private final Counter evictions = new Counter();
+
+    /**
+     * Called once by the BufferPool before the policy is used.
+     * @param capacity the number of pages the pool can hold
+     */
+    protected void init(int capacity) {
+    }
+
+    /** A resident page was requested again. */
+    protected abstract void accessed(PageId pid);
+
+    /** A page that was not resident has just been brought into the pool. */
+    protected abstract void admitted(PageId pid);
+
+    /** A page has left the pool (evicted or discarded). */
+    protected abstract void removed(PageId pid);
+
+    /**
+     * Pick the page to throw out of the pool.
+     *
+     * @param pool the pool asking; use {@link BufferPool#isEvictable} to
+     *   skip pages that cannot be thrown out
+     * @param skip pages the pool already failed to evict this round; they
+     *   must not be returned again
+     * @return the id of a page that may be evicted, or null if no resident
+     *   page outside skip can be evicted right now
+     */
+    protected abstract PageId chooseVictim(BufferPool pool, Set<PageId> skip);
+
+    /** @return a short name of this policy, used by toString() */
+    public abstract String getName();
+
+    // ------------------------------------------------------------------
+    // entry points used by BufferPool; these keep the counters up to date
+
+    void pageHit(PageId pid) {
+        hits.increment();
+        accessed(pid);
+    }
+
+    void pageMiss(PageId pid) {
+        misses.increment();
+        admitted(pid);
+    }
+
+    PageId victim(BufferPool pool, Set<PageId> skip) {
+        return chooseVictim(pool, skip);
+    }
+
+    void pageEvicted(PageId pid) {
+        evictions.increment();
+        removed(pid);
+    }
+
+    void pageDiscarded(PageId pid) {
+        removed(pid);
+    }
+
+    // ------------------------------------------------------------------
+    // statistics
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /** @return hits / (hits + misses), or 0 if no page was requested yet */
+    public double getHitRatio() {
+        long h = getHits(), total = h + getMisses();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    public String toString() {
+        return getName() + "(hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + ")";
+    }
+
+    /**
+     * Build a policy from its name, for command line convenience.
+     * Accepts "clock", "lru-k" (K = 2), "lru-&lt;k&gt;" and "2q".
+     *
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static ReplacementPolicy forName(String name) {
+        String s = name.trim().toLowerCase();
+        if (s.equals("clock"))
+            return new ClockPolicy();
+        if (s.equals("2q"))
+            return new TwoQueuePolicy();
+        if (s.equals("lru-k") || s.equals("lruk"))
+            return new LruKPolicy(2);
+        if (s.startsWith("lru-")) {
+            try {
+                return new LruKPolicy(Integer.parseInt(s.substring(4)));
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        throw new IllegalArgumentException("Unknown replacement policy " + name);
+    }
+
+    /**
+     * A counter that many threads can bump without fighting over one cache
+     * line: each thread adds to its own padded stripe and get() sums them.
+     */
+    private static class Counter {
+        private static final int STRIPES = 16;
+        private static final int PAD = 8; // longs per 64 byte line
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        void increment() {
+            int stripe = (int) (Thread.currentThread().getId() % STRIPES);
+            cells.incrementAndGet(stripe * PAD);
+        }
+
+        long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++)
+                sum += cells.get(i * PAD);
+            return sum;
+        }
+
+        void reset() {
+            for (int i = 0; i < STRIPES; i++)
+                cells.set(i * PAD, 0);
+        }
+    }
+}
@@ -12,13 +12,25 @@ import simpledb.TupleDesc.TDItem;
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
  */
-public class SeqScan implements DbIterator {
+public class SeqScan implements BatchIterator {
 
     private static final long serialVersionUID = 1L;
     private TransactionId tid;
     private int tableid;
     private String tableAlias;
     private DbFileIterator iterator;
+    private Predicate pushed;
+    // where nextBatch is in a heap file
+    private int batchPage, batchSlot;
+    private int parallelism = 1;
+    // which pages to read: partition part of parts
+    private int part = 0, parts = 1;
+    /** the parallel scan, if this open is one */
+    private MorselScan morsels;
+    /** the fields of the table the scan returns, or null for all */
+    private int[] projection;
+    /** the schema to cut tuples down to, if the file can't do it itself */
+    private TupleDesc projectTo;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -52,6 +64,16 @@ public class SeqScan implements DbIterator {
         return Database.getCatalog().getTableName(tableid);
     }
     
+    /** @return the id of the table the operator scans */
+    public int getTableId() {
+        return this.tableid;
+    }
+
+    /** @return the transaction the scan runs as a part of */
+    public TransactionId getTransactionId() {
+        return this.tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans. 
      * */
@@ -83,10 +105,129 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Let the scan skip the tuples that fail p instead of handing them to a
+     * Filter above it. Only heap files can do this, and only one predicate
+     * can be pushed.
+     *
+     * @return true if the scan will only return tuples satisfying p
+     */
+    public boolean pushPredicate(Predicate p) {
+        if (pushed != null)
+            return pushed == p;
+        if (!(Database.getCatalog().getDbFile(tableid) instanceof HeapFile))
+            return false;
+        pushed = p;
+        return true;
+    }
+
+    /**
+     * Let the scan read a heap file with up to workers threads at once (see
+     * {@link MorselScan}); the tuples then come in no particular order.
+     * Takes effect at the next open.
+     */
+    public void setParallelism(int workers) {
+        this.parallelism = Math.max(1, workers);
+    }
+
+    /** @return the most threads the scan reads with */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Let the scan read only partition part of parts of a heap file, as one
+     * of parts scans that together read the table once (see
+     * {@link HeapFile#nextPageOf}). Takes effect at the next open.
+     */
+    public void setPartition(int part, int parts) {
+        if (part < 0 || part >= parts)
+            throw new IllegalArgumentException("no partition " + part + " of " + parts);
+        this.part = part;
+        this.parts = parts;
+    }
+
+    /**
+     * Let the scan return only the given fields of the table, in that
+     * order, so that the others are never decoded; the plan pushes the
+     * fields the query uses down into it. Changes getTupleDesc right away,
+     * and takes effect at the next open.
+     *
+     * @param fields indexes into the table's TupleDesc, or null for all
+     */
+    public void setProjection(int[] fields) {
+        if (fields != null) {
+            int n = Database.getCatalog().getTupleDesc(tableid).numFields();
+            for (int f : fields)
+                if (f < 0 || f >= n)
+                    throw new IllegalArgumentException("no field " + f);
+        }
+        this.projection = fields;
+    }
+
+    /** @return the fields of the table the scan returns, or null for all */
+    public int[] getProjection() {
+        return projection;
+    }
+
+    /** @return the field of the table that field i of the scan's tuples is */
+    public int tableField(int i) {
+        return projection == null ? i : projection[i];
+    }
+
+    /** @return the number of partitions the table is split into for the scan */
+    public int getPartitions() {
+        return parts;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        iterator = Database.getCatalog().getDbFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        morsels = null;
+        if (parallelism > 1 && parts == 1 && file instanceof HeapFile)
+            iterator = morsels = new MorselScan(tid, (HeapFile) file, pushed,
+                    projection, getTupleDesc(), parallelism);
+        else if (file instanceof HeapFile)
+            iterator = ((HeapFile) file).iterator(tid, pushed, part, parts,
+                    projection, getTupleDesc());
+        else
+            iterator = file.iterator(tid);
+        projectTo = projection != null && !(file instanceof HeapFile) ? getTupleDesc() : null;
         iterator.open();
+        batchPage = HeapFile.nextPageOf(0, part, parts);
+        batchSlot = 0;
+    }
+
+    /**
+     * Reads the pages of a heap file straight into batches, without
+     * building tuples; the pushed predicate, if any, is applied to each
+     * batch. A parallel scan does the same on its workers. Other files are
+     * read through their tuple iterator.
+     */
+    public Batch nextBatch() throws DbException, TransactionAbortedException {
+        if (morsels != null)
+            return morsels.nextBatch();
+        DbFile file = Database.getCatalog().getDbFile(tableid);
+        if (!(file instanceof HeapFile))
+            return BatchAdapter.fill(this);
+        int numPages = ((HeapFile) file).numPages();
+        while (batchPage < numPages) {
+            Batch b = new Batch(getTupleDesc());
+            while (!b.isFull() && batchPage < numPages) {
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(tableid, batchPage), Permissions.READ_ONLY);
+                batchSlot = page.fillBatch(b, batchSlot, projection);
+                if (batchSlot < 0) {
+                    batchPage = HeapFile.nextPageOf(batchPage + 1, part, parts);
+                    batchSlot = 0;
+                }
+            }
+            if (pushed != null)
+                b.filter(pushed);
+            if (b.numRows() > 0)
+                return b;
+        }
+        return null;
     }
 
     /**
@@ -101,6 +242,15 @@ public class SeqScan implements DbIterator {
     public TupleDesc getTupleDesc() {
         // some code goes here
         TupleDesc oldtd = Database.getCatalog().getTupleDesc(tableid);
+        if (projection != null) {
+            Type[] types = new Type[projection.length];
+            String[] fields = new String[projection.length];
+            for (int k = 0; k < projection.length; k++) {
+                types[k] = oldtd.getFieldType(projection[k]);
+                fields[k] = this.tableAlias + "." + oldtd.getFieldName(projection[k]);
+            }
+            return new TupleDesc(types, fields);
+        }
         Iterator<TDItem> it = oldtd.iterator();
         Type[] types = new Type[oldtd.numFields()];
         String[] fields = new String[oldtd.numFields()];
@@ -123,7 +273,14 @@ public class SeqScan implements DbIterator {
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return iterator.next();
+        Tuple t = iterator.next();
+        if (projectTo == null)
+            return t;
+        Tuple out = new Tuple(projectTo);
+        out.setRecordId(t.getRecordId());
+        for (int k = 0; k < projection.length; k++)
+            out.setField(k, t.getField(projection[k]));
+        return out;
     }
 
     public void close() {
@@ -135,5 +292,7 @@ public class SeqScan implements DbIterator {
             TransactionAbortedException {
         // some code goes here
         iterator.rewind();
+        batchPage = HeapFile.nextPageOf(0, part, parts);
+        batchSlot = 0;
     }
 }
@@ -8,6 +8,25 @@ public class SimpleDb {
         // convert a file
         if(args[0].equals("convert")) {
         try {
+            // trailing "columnar" writes the table in PAX pages, "slotted"
+            // in slotted pages, and "compressed" or "deflate" writes them
+            // compressed
+            boolean columnar = false, slotted = false;
+            PageCodec.Compression compression = PageCodec.Compression.NONE;
+            while (args.length > 1) {
+                String a = args[args.length-1];
+                if (a.equals("columnar"))
+                    columnar = true;
+                else if (a.equals("slotted"))
+                    slotted = true;
+                else if (a.equals("compressed"))
+                    compression = PageCodec.Compression.LIGHT;
+                else if (a.equals("deflate"))
+                    compression = PageCodec.Compression.DEFLATE;
+                else
+                    break;
+                args = Arrays.copyOf(args, args.length-1);
+            }
             if (args.length<3 || args.length>5){
                 System.err.println("Unexpected number of arguments to convert ");
                 return;
@@ -45,7 +64,7 @@ public class SimpleDb {
             }
 
             HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.PAGE_SIZE,numOfAttributes,ts,fieldSeparator);
+                        BufferPool.PAGE_SIZE,numOfAttributes,ts,fieldSeparator,columnar,slotted,compression);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -0,0 +1,204 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * SpillFile is a temporary file of tuples written by an operator that ran
+ * out of memory, such as the runs of an {@link ExternalSort} or the
+ * partitions of a {@link HashEquiJoin}. Tuples are appended and then read
+ * back in the same order.
+ * <p>
+ * The file is made of BufferPool.PAGE_SIZE pages, each holding a tuple
+ * count followed by that many tuples in their on-disk format. Spill files
+ * are not part of the catalog and are read and written directly through
+ * {@link PageFile}, not through the BufferPool; only the page being filled
+ * is kept in memory.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final PageFile file;
+    private final int tuplesPerPage;
+    private int numPages = 0;
+    private int numTuples = 0;
+    private ByteArrayOutputStream buf;
+    private DataOutputStream out;
+    private int onPage = 0;
+
+    /**
+     * Create an empty spill file in the temporary directory.
+     *
+     * @param td the schema of the tuples it will hold
+     * @param prefix the start of the file's name
+     */
+    public SpillFile(TupleDesc td, String prefix) throws DbException {
+        this.td = td;
+        this.tuplesPerPage = tuplesPerPage(td);
+        try {
+            File f = File.createTempFile(prefix, ".spill");
+            f.deleteOnExit();
+            this.file = PageFile.open(f, BufferPool.PAGE_SIZE);
+        } catch (IOException e) {
+            throw new DbException("can't create spill file: " + e.getMessage());
+        }
+    }
+
+    /** @return how many tuples of td fit on a page of a spill file */
+    public static int tuplesPerPage(TupleDesc td) {
+        int n = (BufferPool.PAGE_SIZE - 4) / td.getSize();
+        if (n < 1)
+            throw new IllegalArgumentException("tuples of " + td.getSize() + " bytes don't fit in a page");
+        return n;
+    }
+
+    /**
+     * @return roughly how many bytes of heap a tuple of td takes while an
+     *   operator holds it in memory: the Tuple, its array of fields and the
+     *   fields themselves, with strings taken at their longest. That is
+     *   several times what it takes on a page.
+     */
+    public static int heapSize(TupleDesc td) {
+        int n = td.numFields();
+        // object headers and references of a 64-bit VM with compressed oops
+        int size = 24 + align(16 + 4 * n);
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.STRING_TYPE)
+                size += 24 + 24 + align(16 + Type.STRING_LEN);
+            else
+                size += 16;
+        }
+        return size;
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of full pages written so far */
+    public int numPages() {
+        return numPages;
+    }
+
+    /** @return the number of tuples appended so far */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /** Add a tuple at the end of the file. */
+    public void append(Tuple t) throws DbException {
+        try {
+            if (out == null) {
+                buf = new ByteArrayOutputStream(BufferPool.PAGE_SIZE);
+                out = new DataOutputStream(buf);
+                out.writeInt(0); // count, filled in by flush
+            }
+            for (int i = 0; i < td.numFields(); i++)
+                t.getField(i).serialize(out);
+            numTuples++;
+            if (++onPage == tuplesPerPage)
+                flush();
+        } catch (IOException e) {
+            throw new DbException("can't write spill file: " + e.getMessage());
+        }
+    }
+
+    /** Write out the last, partly filled page. Call before reading. */
+    public void finish() throws DbException {
+        try {
+            if (onPage > 0)
+                flush();
+        } catch (IOException e) {
+            throw new DbException("can't write spill file: " + e.getMessage());
+        }
+    }
+
+    private void flush() throws IOException {
+        out.flush();
+        byte[] page = new byte[BufferPool.PAGE_SIZE];
+        byte[] data = buf.toByteArray();
+        System.arraycopy(data, 0, page, 0, data.length);
+        page[0] = (byte) (onPage >>> 24);
+        page[1] = (byte) (onPage >>> 16);
+        page[2] = (byte) (onPage >>> 8);
+        page[3] = (byte) onPage;
+        file.writePage(numPages++, page);
+        out = null;
+        onPage = 0;
+    }
+
+    /** @return the tuples on page pgNo */
+    public Tuple[] readPage(int pgNo) throws DbException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(file.readPage(pgNo)));
+            Tuple[] tuples = new Tuple[in.readInt()];
+            for (int j = 0; j < tuples.length; j++) {
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+                tuples[j] = t;
+            }
+            return tuples;
+        } catch (IOException e) {
+            throw new DbException("can't read spill file: " + e.getMessage());
+        } catch (ParseException e) {
+            throw new DbException("bad spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return an iterator over the tuples written before the last
+     *   {@link #finish}, reading one page at a time
+     */
+    public DbFileIterator iterator() {
+        return new DbFileIterator() {
+            private static final long serialVersionUID = 1L;
+            private int pgNo = -1;
+            private Tuple[] page;
+            private int pos;
+
+            public void open() {
+                pgNo = 0;
+                page = null;
+                pos = 0;
+            }
+
+            public boolean hasNext() throws DbException {
+                if (pgNo < 0)
+                    return false;
+                while (page == null || pos == page.length) {
+                    if (pgNo == numPages)
+                        return false;
+                    page = readPage(pgNo++);
+                    pos = 0;
+                }
+                return true;
+            }
+
+            public Tuple next() throws DbException, NoSuchElementException {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return page[pos++];
+            }
+
+            public void rewind() {
+                open();
+            }
+
+            public void close() {
+                pgNo = -1;
+                page = null;
+            }
+        };
+    }
+
+    /** Close and delete the file. */
+    public void delete() {
+        file.delete();
+    }
+}
@@ -19,7 +19,8 @@ public class StringAggregator implements Aggregator {
     private int gbfield, afield;
     private Type gbfieldtype;
     private Op what;
-    private HashMap<Field, Integer> countMap;
+    private int[] gbfields;
+    private GroupTable groups;
     private TupleDesc td;
     public StringAggregator(int gbfield, Type gbfieldtype, int afield, Op what) {
         // some code goes here
@@ -27,7 +28,8 @@ public class StringAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.what = what;
         this.afield = afield;
-        countMap = new HashMap<Field, Integer>();
+        this.gbfields = gbfield == -1 ? new int[0] : new int[]{gbfield};
+        groups = new GroupTable(gbfield == -1 ? new Type[0] : new Type[]{gbfieldtype}, 0);
     }
 
     /**
@@ -36,16 +38,8 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field field;
-        int value = 0;
-        if(gbfield == -1) field = new IntField(-1);
-        else field = tup.getField(gbfield);
         if(this.what == Op.COUNT){
-            if(countMap.get(field) == null) countMap.put(field, 1);
-            else{
-                value = countMap.get(field) + 1;
-                countMap.put(field, value);
-            }
+            groups.count(groups.group(tup, gbfields), 1);
         }else{
             throw new UnsupportedOperationException("It doesn't support this operator!");
         }
@@ -53,6 +47,36 @@ public class StringAggregator implements Aggregator {
         return ;
     }
 
+    /**
+     * Merge the live rows of a batch into their groups' counts.
+     */
+    public void mergeBatch(Batch b) {
+        if(this.what != Op.COUNT)
+            throw new UnsupportedOperationException("It doesn't support this operator!");
+        if(td == null) td = b.getTupleDesc();
+        int n = b.numRows();
+        if(n == 0) return ;
+        if(gbfield == -1){
+            groups.count(groups.single(), n);
+            return ;
+        }
+        for(int i = 0; i < n; i++)
+            groups.count(groups.group(b, b.row(i), gbfields), 1);
+    }
+
+    public Aggregator emptyCopy() {
+        return new StringAggregator(gbfield, gbfieldtype, afield, what);
+    }
+
+    /**
+     * Add the counts of other's groups to this one's.
+     */
+    public void combine(Aggregator other) {
+        StringAggregator o = (StringAggregator) other;
+        groups.combine(o.groups);
+        if(td == null) td = o.td;
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      *
@@ -66,16 +90,17 @@ public class StringAggregator implements Aggregator {
     //    throw new UnsupportedOperationException("please implement me for proj2");
         ArrayList<Tuple> tuples = new ArrayList<Tuple>();
         TupleDesc restd;
-        if(gbfield == -1) restd = new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{td.getFieldName(afield)});
-        else restd = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE}, new String[]{td.getFieldName(gbfield), td.getFieldName(afield)});
+        String aname = td == null ? null : td.getFieldName(afield);
+        if(gbfield == -1) restd = new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{aname});
+        else restd = new TupleDesc(new Type[]{gbfieldtype, Type.INT_TYPE}, new String[]{td == null ? null : td.getFieldName(gbfield), aname});
 
         if(what == Op.COUNT){
-            for(Map.Entry<Field, Integer> entry: countMap.entrySet()){
+            for(int g = 0; g < groups.numGroups(); g++){
                 Tuple tmptuple = new Tuple(restd);
-            if(gbfield == -1)    tmptuple.setField(0, new IntField(entry.getValue()));
+            if(gbfield == -1)    tmptuple.setField(0, new IntField((int) groups.count(g)));
             else{
-                tmptuple.setField(0, entry.getKey());
-                tmptuple.setField(1, new IntField(entry.getValue()));
+                tmptuple.setField(0, groups.key(g, 0));
+                tmptuple.setField(1, new IntField((int) groups.count(g)));
             }
             tuples.add(tmptuple);
             }
@@ -66,6 +66,20 @@ public class StringField implements Field {
 			dos.write((byte) 0);
 	}
 
+	/**
+	 * Write this string to dos without padding: four bytes of length, then
+	 * the string, so at most maxSize + 4 bytes. Used for the variable-length
+	 * records of {@link HeapPage}.
+	 * 
+	 * @param dos
+	 *            Where the string is written
+	 */
+	public void serializeUnpadded(DataOutputStream dos) throws IOException {
+		String s = value.length() > maxSize ? value.substring(0, maxSize) : value;
+		dos.writeInt(s.length());
+		dos.writeBytes(s);
+	}
+
 	/**
 	 * Compare the specified field to the value of this Field. Return semantics
 	 * are as specified by Field.compare
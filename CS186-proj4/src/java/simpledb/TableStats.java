@@ -148,7 +148,7 @@ public class TableStats {
                         if(name2his.get(name) == null) his = new StringHistogram(NUM_HIST_BINS);
                         else his = (StringHistogram)name2his.get(name);
                         his.addValue(value);
-                        name2his.put(name, value);
+                        name2his.put(name, his);
                     }
                 }
             }
@@ -173,6 +173,43 @@ public class TableStats {
         return file.numPages() * ioCostPerPage;
     }
 
+    /**
+     * Estimates the cost of reading the tuples with <tt>field op constant</tt>
+     * through index: one page per inner level of the tree, the leaves
+     * holding the matching entries, and, since the index is not clustered,
+     * one heap page per match.
+     *
+     * @return The estimated cost of the index scan, comparable with
+     *         {@link #estimateScanCost}
+     */
+    public double estimateIndexScanCost(BTreeFile index, Predicate.Op op, Field constant) {
+        int matches = estimateTableCardinality(estimateSelectivity(index.getKeyField(), op, constant));
+        boolean seek = op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+        return indexCost(index, matches, seek);
+    }
+
+    /**
+     * Estimates the cost of one lookup in index that finds the given number
+     * of matches, as done for each outer tuple of an {@link IndexJoin}.
+     *
+     * @return The estimated cost of the lookup, comparable with
+     *         {@link #estimateScanCost}
+     */
+    public double estimateIndexLookupCost(BTreeFile index, double matches) {
+        return indexCost(index, matches, true);
+    }
+
+    private double indexCost(BTreeFile index, double matches, boolean seek) {
+        int leafCap = BTreePage.leafCapacity(index.getKeyType());
+        int fanout = BTreePage.innerCapacity(index.getKeyType()) + 1;
+        int leaves = Math.max(1, (totalTuples() + leafCap - 1) / leafCap);
+        int inner = (int) Math.ceil(Math.log(leaves) / Math.log(fanout));
+        double leavesRead = Math.max(1, Math.ceil(matches / leafCap));
+        if (!seek)
+            leavesRead = leaves; // every leaf is read
+        return (inner + leavesRead + matches) * ioCostPerPage;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -158,7 +158,8 @@ public class TupleDesc implements Serializable {
 
     /**
      * @return The size (in bytes) of tuples corresponding to this TupleDesc.
-     *         Note that tuples from a given TupleDesc are of a fixed size.
+     *         Tuples with only fixed-length fields all have this size;
+     *         otherwise it is the size of the largest one.
      */
     public int getSize() {
         // some code goes here
@@ -168,6 +169,38 @@ public class TupleDesc implements Serializable {
         return res;
     }
 
+    /**
+     * @return whether all fields have a fixed length, so that every tuple
+     *         takes getSize() bytes in a page
+     */
+    public boolean isFixedLength() {
+        for(TDItem item : td)
+          if(!item.fieldType.isFixedLength()) return false;
+        return true;
+    }
+
+    /**
+     * @return the size (in bytes) of the smallest tuple of this TupleDesc
+     *         in a page of variable-length records
+     */
+    public int getMinSize() {
+        int res = 0;
+        for(TDItem item : td)
+          res += item.fieldType.getMinLen();
+        return res;
+    }
+
+    /**
+     * @return the size (in bytes) of t, a tuple of this TupleDesc, in a
+     *         page of variable-length records
+     */
+    public int getSize(Tuple t) {
+        int res = 0;
+        for(int i = 0; i < td.size(); i++)
+          res += td.get(i).fieldType.getLen(t.getField(i));
+        return res;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
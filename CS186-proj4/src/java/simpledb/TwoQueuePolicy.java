@@ -0,0 +1,91 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). New pages enter a FIFO queue
+ * (A1in). When they fall out of it only their id is remembered (A1out); a
+ * page that is requested again while its id is still in A1out is hot and
+ * goes to the main LRU queue (Am). Pages seen once by a scan therefore
+ * never push hot pages out of Am.
+ * <p>
+ * Hits in Am reorder the LRU list under the policy's lock.
+ */
+public class TwoQueuePolicy extends ReplacementPolicy {
+
+    private int kin, kout;
+    private LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    private LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+
+    public TwoQueuePolicy() {
+        init(BufferPool.DEFAULT_PAGES);
+    }
+
+    /**
+     * Queue sizes follow the paper's recommendation: A1in holds a quarter
+     * of the pool and A1out remembers half a pool worth of page ids.
+     */
+    protected synchronized void init(int capacity) {
+        kin = Math.max(1, capacity / 4);
+        kout = Math.max(1, capacity / 2);
+        a1in.clear();
+        a1out.clear();
+        am.clear();
+    }
+
+    protected synchronized void accessed(PageId pid) {
+        if (am.remove(pid))
+            am.add(pid); // move to the MRU end
+        else if (!a1in.contains(pid))
+            admitted(pid);
+        // a hit in A1in is deliberately ignored
+    }
+
+    protected synchronized void admitted(PageId pid) {
+        if (am.contains(pid) || a1in.contains(pid)) {
+            accessed(pid);
+            return;
+        }
+        if (a1out.remove(pid))
+            am.add(pid);
+        else
+            a1in.add(pid);
+    }
+
+    protected synchronized void removed(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    protected synchronized PageId chooseVictim(BufferPool pool, Set<PageId> skip) {
+        PageId victim = null;
+        if (a1in.size() > kin || am.isEmpty())
+            victim = oldestEvictable(a1in, pool, skip);
+        if (victim == null)
+            victim = oldestEvictable(am, pool, skip);
+        if (victim == null)
+            victim = oldestEvictable(a1in, pool, skip);
+        return victim;
+    }
+
+    public String getName() {
+        return "2Q";
+    }
+
+    private PageId oldestEvictable(LinkedHashSet<PageId> queue,
+            BufferPool pool, Set<PageId> skip) {
+        for (PageId pid : queue)
+            if (!skip.contains(pid) && pool.isEvictable(pid))
+                return pid;
+        return null;
+    }
+}
@@ -30,6 +30,17 @@ public enum Type implements Serializable {
             return STRING_LEN+4;
         }
 
+        @Override
+        public boolean isFixedLength() {
+            return false;
+        }
+
+        @Override
+        public int getLen(Field f) {
+            // longer strings are cut to STRING_LEN when they are written
+            return 4 + Math.min(((StringField) f).getValue().length(), STRING_LEN);
+        }
+
         @Override
         public Field parse(DataInputStream dis) throws ParseException {
             try {
@@ -47,10 +58,35 @@ public enum Type implements Serializable {
     public static final int STRING_LEN = 128;
 
   /**
-   * @return the number of bytes required to store a field of this type.
+   * @return the number of bytes required to store a field of this type;
+   *   for a variable-length type, the most it can take.
    */
     public abstract int getLen();
 
+  /**
+   * @return whether every field of this type takes getLen() bytes, even
+   *   in a page of variable-length records (see {@link HeapPage}).
+   */
+    public boolean isFixedLength() {
+        return true;
+    }
+
+  /**
+   * @return the number of bytes f, a field of this type, takes in a page
+   *   of variable-length records; a string is stored without padding.
+   */
+    public int getLen(Field f) {
+        return getLen();
+    }
+
+  /**
+   * @return the fewest bytes a field of this type takes in a page of
+   *   variable-length records.
+   */
+    public int getMinLen() {
+        return isFixedLength() ? getLen() : 4;
+    }
+
   /**
    * @return a Field object of the same type as this object that has contents
    *   read from the specified DataInputStream.
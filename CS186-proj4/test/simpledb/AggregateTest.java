@@ -176,6 +176,66 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for several aggregates grouped by several fields, one of
+   * them a string
+   */
+  @Test public void severalAggregates() throws Exception {
+    DbIterator scan = TestUtil.createTupleList(3,
+        new Object[] { 1, "a", 2,
+                       1, "a", 4,
+                       1, "b", 6,
+                       3, "a", 2,
+                       3, "a", 9 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 1, 2, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.COUNT,
+                              Aggregator.Op.MAX, Aggregator.Op.AVG });
+    assertEquals(6, op.getTupleDesc().numFields());
+    assertEquals(Type.STRING_TYPE, op.getTupleDesc().getFieldType(1));
+    op.open();
+    DbIterator expected = TestUtil.createTupleList(6,
+        new Object[] { 1, "a", 6, 2, 4, 3,
+                       1, "b", 6, 1, 6, 6,
+                       3, "a", 11, 2, 9, 5 });
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
+  /**
+   * Partial aggregates of two halves combine into the aggregate of all
+   */
+  @Test public void combinePartials() throws Exception {
+    Aggregator.Op[] ops = { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+        Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG };
+    Aggregator all = new IntegerAggregator(new int[] { 0 }, new Type[] { Type.INT_TYPE },
+        new int[] { 1, 1, 1, 1, 1 }, ops);
+    Aggregator half = all.emptyCopy();
+    scan1.open();
+    for (int i = 0; scan1.hasNext(); i++)
+      (i % 2 == 0 ? all : half).mergeTupleIntoGroup(scan1.next());
+    all.combine(half);
+    DbIterator it = all.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(6,
+        new int[] { 1, 3, 12, 2, 6, 4,
+                    3, 3, 12, 2, 6, 4,
+                    5, 1, 7, 7, 7, 7 }), it);
+
+    Aggregator count = new StringAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.COUNT);
+    Aggregator other = count.emptyCopy();
+    scan2.open();
+    for (int i = 0; scan2.hasNext(); i++)
+      (i < 2 ? count : other).mergeTupleIntoGroup(scan2.next());
+    count.combine(other);
+    it = count.iterator();
+    it.open();
+    this.count.open();
+    TestUtil.matchAllTuples(this.count, it);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,356 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BTreeFileTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+    private static final int MAX_VALUE = 2000;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private BTreeFile index;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+        index = BTreeFile.create(tempFile(), hf.getId(), 0);
+        Database.getCatalog().addIndex(index);
+    }
+
+    private static File tempFile() throws Exception {
+        File f = File.createTempFile("index", ".idx");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private int expected(Predicate.Op op, int v) {
+        int n = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (new IntField(t.get(0)).compare(op, new IntField(v)))
+                n++;
+        return n;
+    }
+
+    /** Run the scan and check that it is in key order and matches op v. */
+    private int scan(TransactionId tid, Predicate.Op op, int v) throws Exception {
+        IndexScan scan = new IndexScan(tid, index.getId(), "t", op, new IntField(v));
+        scan.open();
+        int n = 0, last = Integer.MIN_VALUE;
+        while (scan.hasNext()) {
+            int key = ((IntField) scan.next().getField(0)).getValue();
+            assertTrue(new IntField(key).compare(op, new IntField(v)));
+            assertTrue(key >= last);
+            last = key;
+            n++;
+        }
+        scan.close();
+        return n;
+    }
+
+    @Test public void lookupsAndRanges() throws Exception {
+        TransactionId tid = new TransactionId();
+        assertTrue(index.getHeight(tid) > 1);
+        for (int v : new int[] { -1, 0, 17, MAX_VALUE / 2, MAX_VALUE - 1, MAX_VALUE }) {
+            assertEquals(expected(Predicate.Op.EQUALS, v), scan(tid, Predicate.Op.EQUALS, v));
+            assertEquals(expected(Predicate.Op.LESS_THAN, v), scan(tid, Predicate.Op.LESS_THAN, v));
+            assertEquals(expected(Predicate.Op.GREATER_THAN_OR_EQ, v),
+                    scan(tid, Predicate.Op.GREATER_THAN_OR_EQ, v));
+        }
+        assertEquals(ROWS, scan(tid, Predicate.Op.NOT_EQUALS, -1));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A point lookup reads a page per level plus the pages of its matches. */
+    @Test public void lookupReadsFewPages() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES, new ClockPolicy());
+        TransactionId tid = new TransactionId();
+        int height = index.getHeight(tid);
+        int v = tuples.get(0).get(0);
+        bp.getReplacementPolicy().resetStats();
+        int matches = scan(tid, Predicate.Op.EQUALS, v);
+        assertTrue(bp.getReplacementPolicy().getMisses() <= height + 1 + matches);
+        assertTrue(hf.numPages() > height + 1 + matches);
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void insertAndDeleteKeepTheIndex() throws Exception {
+        BufferPool bp = Database.resetBufferPool(500, new ClockPolicy());
+        TransactionId tid = new TransactionId();
+        // enough duplicates of one key to split leaves and inner nodes
+        int copies = 3000;
+        for (int i = 0; i < copies; i++) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(MAX_VALUE + 1));
+            t.setField(1, new IntField(i));
+            bp.insertTuple(tid, hf.getId(), t);
+        }
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        assertEquals(copies, scan(tid, Predicate.Op.EQUALS, MAX_VALUE + 1));
+        assertEquals(ROWS + copies, scan(tid, Predicate.Op.NOT_EQUALS, -1));
+
+        ArrayList<Tuple> doomed = new ArrayList<Tuple>();
+        IndexScan s = new IndexScan(tid, index.getId(), "t", Predicate.Op.GREATER_THAN, new IntField(MAX_VALUE / 2));
+        s.open();
+        while (s.hasNext())
+            doomed.add(s.next());
+        s.close();
+        for (Tuple t : doomed)
+            bp.deleteTuple(tid, t);
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        assertEquals(0, scan(tid, Predicate.Op.GREATER_THAN, MAX_VALUE / 2));
+        assertEquals(expected(Predicate.Op.LESS_THAN_OR_EQ, MAX_VALUE / 2),
+                scan(tid, Predicate.Op.LESS_THAN_OR_EQ, MAX_VALUE / 2));
+        bp.transactionComplete(tid);
+    }
+
+    @Test public void indexJoin() throws Exception {
+        ArrayList<ArrayList<Integer>> outer = new ArrayList<ArrayList<Integer>>();
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 50, MAX_VALUE, null, outer);
+        TransactionId tid = new TransactionId();
+        IndexJoin j = new IndexJoin(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, small.getId(), "s"), new SeqScan(tid, hf.getId(), "t"));
+        int n = 0;
+        for (ArrayList<Integer> o : outer)
+            n += expected(Predicate.Op.EQUALS, o.get(1));
+        j.open();
+        for (int pass = 0; pass < 2; pass++) {
+            int found = 0;
+            while (j.hasNext()) {
+                Tuple t = j.next();
+                assertEquals(t.getField(1), t.getField(2));
+                found++;
+            }
+            assertEquals(n, found);
+            j.rewind();
+        }
+        j.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean hasIndexJoin(DbIterator plan) {
+        if (plan instanceof IndexJoin)
+            return true;
+        if (plan instanceof Operator)
+            for (DbIterator child : ((Operator) plan).getChildren())
+                if (child != null && hasIndexJoin(child))
+                    return true;
+        return false;
+    }
+
+    /**
+     * The planner joins through an index on a table whose scan returns only
+     * the fields the query uses, so field numbers of the scan and of the
+     * table differ.
+     */
+    @Test public void plannerIndexJoin() throws Exception {
+        ArrayList<ArrayList<Integer>> outer = new ArrayList<ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> inner = new ArrayList<ArrayList<Integer>>();
+        // few matches per key, so that looking them up beats hashing T
+        HeapFile t = new HeapFile(SystemTestUtil.createRandomHeapFileUnopened(3, ROWS, 100 * ROWS, null, inner),
+                Utility.getTupleDesc(3, "c"));
+        Map<Integer, Integer> key = new HashMap<Integer, Integer>();
+        key.put(0, inner.get(0).get(1));
+        HeapFile s = new HeapFile(SystemTestUtil.createRandomHeapFileUnopened(2, 5, MAX_VALUE, key, outer),
+                Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(s, "S");
+        Database.getCatalog().addTable(t, "T");
+        Database.getCatalog().addIndex(BTreeFile.create(tempFile(), t.getId(), 1));
+        TableStats.setTableStats("S", new TableStats(s.getId(), 1000));
+        TableStats.setTableStats("T", new TableStats(t.getId(), 1000));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> o : outer)
+            for (ArrayList<Integer> i : inner)
+                if (o.get(0).equals(i.get(1)))
+                    expected.add(new ArrayList<Integer>(Arrays.asList(o.get(0), i.get(2))));
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT s.c0, t.c2 FROM S s, T t WHERE s.c0 = t.c1;");
+        // a split scan would be hashed instead
+        lp.setParallelism(1);
+        DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(hasIndexJoin(plan));
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** An index built empty and grown by inserts in random order. */
+    @Test public void growFromEmpty() throws Exception {
+        HeapFile empty = Utility.createEmptyHeapFile(tempFile().getAbsolutePath(), 2);
+        index = BTreeFile.create(tempFile(), empty.getId(), 0);
+        Database.getCatalog().addIndex(index);
+        BufferPool bp = Database.resetBufferPool(500, new ClockPolicy());
+        TransactionId tid = new TransactionId();
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < 5000; i++)
+            keys.add(i);
+        Collections.shuffle(keys, new Random(1));
+        for (int k : keys) {
+            Tuple t = new Tuple(empty.getTupleDesc());
+            t.setField(0, new IntField(k));
+            t.setField(1, new IntField(0));
+            bp.insertTuple(tid, empty.getId(), t);
+        }
+        assertTrue(index.getHeight(tid) > 1);
+        DbFileIterator it = index.iterator(tid);
+        it.open();
+        for (int i = 0; i < keys.size(); i++)
+            assertEquals(i, ((IntField) it.next().getField(0)).getValue());
+        assertTrue(!it.hasNext());
+        bp.transactionComplete(tid);
+    }
+
+    /** Count the entries op v; the tuples returned carry their own keys. */
+    private int count(TransactionId tid, Predicate.Op op, int v) throws Exception {
+        DbFileIterator it = index.iterator(tid, op, new IntField(v));
+        it.open();
+        int n = 0;
+        for (; it.hasNext(); it.next())
+            n++;
+        it.close();
+        return n;
+    }
+
+    /** Add copies entries for key to the index, pointing at rows of hf. */
+    private void addEntries(TransactionId tid, int key, List<Tuple> rows, int from, int copies)
+            throws Exception {
+        for (int i = from; i < from + copies; i++) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(key));
+            t.setField(1, new IntField(0));
+            t.setRecordId(rows.get(i).getRecordId());
+            index.insertTuple(tid, t);
+        }
+    }
+
+    /**
+     * Splits by open transactions do not wait for each other or for readers,
+     * and the leaf of a split that aborts is skipped afterwards.
+     */
+    @Test(timeout = 60000) public void concurrentSplits() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        ArrayList<Tuple> rows = new ArrayList<Tuple>();
+        TransactionId reader = new TransactionId();
+        DbFileIterator it = hf.iterator(reader);
+        it.open();
+        while (it.hasNext())
+            rows.add(it.next());
+        it.close();
+        assertEquals(expected(Predicate.Op.EQUALS, MAX_VALUE / 2), count(reader, Predicate.Op.EQUALS, MAX_VALUE / 2));
+
+        int copies = 2 * BTreePage.leafCapacity(Type.INT_TYPE);
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        for (int i = 0; i < copies; i += 10) {
+            addEntries(t1, -100, rows, i, 10);
+            addEntries(t2, MAX_VALUE + 1, rows, i, 10);
+        }
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t2);
+        bp.transactionComplete(reader);
+
+        TransactionId t3 = new TransactionId();
+        addEntries(t3, MAX_VALUE + 3, rows, 0, copies);
+        assertEquals(copies, count(t3, Predicate.Op.EQUALS, MAX_VALUE + 3));
+        bp.transactionComplete(t3, false);
+
+        TransactionId tid = new TransactionId();
+        assertEquals(copies, count(tid, Predicate.Op.EQUALS, -100));
+        assertEquals(copies, count(tid, Predicate.Op.EQUALS, MAX_VALUE + 1));
+        assertEquals(0, count(tid, Predicate.Op.EQUALS, MAX_VALUE + 3));
+        assertEquals(ROWS + 2 * copies, count(tid, Predicate.Op.NOT_EQUALS, MAX_VALUE + 3));
+        addEntries(tid, MAX_VALUE + 3, rows, 0, copies);
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        assertEquals(copies, count(tid, Predicate.Op.EQUALS, MAX_VALUE + 3));
+        assertEquals(ROWS + 3 * copies, count(tid, Predicate.Op.NOT_EQUALS, -1));
+        bp.transactionComplete(tid);
+    }
+
+    /** @return the number of leaves of the index, free pages not counted */
+    private int leaves() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        int n = 0;
+        for (int i = 1; i < index.numPages(); i++)
+            if (((BTreePage) bp.getPageUnlocked(new BTreePageId(index.getId(), i))).isLeaf())
+                n++;
+        return n;
+    }
+
+    /** Delete the tuples with keys above v through a scan of the index. */
+    private void deleteAbove(TransactionId tid, int v) throws Exception {
+        Delete d = new Delete(tid, new IndexScan(tid, index.getId(), "t",
+                Predicate.Op.GREATER_THAN, new IntField(v)));
+        d.open();
+        assertEquals(expected(Predicate.Op.GREATER_THAN, v),
+                ((IntField) d.next().getField(0)).getValue());
+        d.close();
+    }
+
+    /**
+     * Leaves emptied by deletes are merged, under the deleting transaction:
+     * an abort takes the merges back.
+     */
+    @Test public void deletesMergeLeaves() throws Exception {
+        BufferPool bp = Database.resetBufferPool(500, new ClockPolicy());
+        int before = leaves();
+        int v = MAX_VALUE / 4;
+        TransactionId tid = new TransactionId();
+        deleteAbove(tid, v);
+        assertTrue(leaves() < before / 2);
+        assertEquals(expected(Predicate.Op.LESS_THAN_OR_EQ, v),
+                scan(tid, Predicate.Op.NOT_EQUALS, -1));
+        bp.transactionComplete(tid, false);
+
+        assertEquals(before, leaves());
+        tid = new TransactionId();
+        assertEquals(ROWS, scan(tid, Predicate.Op.NOT_EQUALS, -1));
+        assertEquals(expected(Predicate.Op.GREATER_THAN, MAX_VALUE / 2),
+                scan(tid, Predicate.Op.GREATER_THAN, MAX_VALUE / 2));
+        deleteAbove(tid, v);
+        bp.transactionComplete(tid);
+
+        assertTrue(leaves() < before / 2);
+        tid = new TransactionId();
+        assertEquals(0, scan(tid, Predicate.Op.GREATER_THAN, v));
+        assertEquals(expected(Predicate.Op.EQUALS, v), scan(tid, Predicate.Op.EQUALS, v));
+        // keys in the range of the freed leaves go to the leaf they were merged into
+        for (int i = 0; i < 1000; i++) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(MAX_VALUE - i));
+            t.setField(1, new IntField(i));
+            bp.insertTuple(tid, hf.getId(), t);
+        }
+        bp.transactionComplete(tid);
+        tid = new TransactionId();
+        assertEquals(1000, scan(tid, Predicate.Op.GREATER_THAN, v));
+        assertEquals(1, scan(tid, Predicate.Op.EQUALS, MAX_VALUE - 500));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeFileTest.class);
+    }
+}
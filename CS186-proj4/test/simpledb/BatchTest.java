@@ -0,0 +1,119 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BatchTest extends SimpleDbTestBase {
+
+    private HeapFile left, right;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        left = SystemTestUtil.createRandomHeapFile(3, 5000, 100, null, null);
+        right = SystemTestUtil.createRandomHeapFile(2, 700, 100, null, null);
+        tid = new TransactionId();
+    }
+
+    /** @return how many times each tuple of it occurs, read a batch at a time */
+    private static Map<List<Integer>, Integer> batches(BatchIterator it) throws Exception {
+        Map<List<Integer>, Integer> out = new HashMap<List<Integer>, Integer>();
+        it.open();
+        Batch b;
+        while ((b = it.nextBatch()) != null) {
+            assertTrue(b.numRows() > 0);
+            for (int i = 0; i < b.numRows(); i++)
+                SystemTestUtil.count(out, SystemTestUtil.tupleToList(b.getTuple(i)));
+        }
+        it.close();
+        return out;
+    }
+
+    private Filter filter(int field, Predicate.Op op, int value, DbIterator child) {
+        return new Filter(new Predicate(field, op, new IntField(value)), child);
+    }
+
+    private Project project(DbIterator child) {
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        ArrayList<Type> types = new ArrayList<Type>();
+        fields.add(2);
+        fields.add(0);
+        types.add(Type.INT_TYPE);
+        types.add(Type.INT_TYPE);
+        return new Project(fields, types, child);
+    }
+
+    @Test public void scanFilterProject() throws Exception {
+        SeqScan s1 = new SeqScan(tid, left.getId(), "l");
+        SeqScan s2 = new SeqScan(tid, left.getId(), "l");
+        assertEquals(SystemTestUtil.readTuples(s1), batches(s2));
+        Project p1 = project(filter(1, Predicate.Op.LESS_THAN, 30,
+                new SeqScan(tid, left.getId(), "l")));
+        Project p2 = project(filter(1, Predicate.Op.LESS_THAN, 30,
+                new SeqScan(tid, left.getId(), "l")));
+        Map<List<Integer>, Integer> expected = SystemTestUtil.readTuples(p1);
+        assertTrue(!expected.isEmpty());
+        assertEquals(expected, batches(p2));
+    }
+
+    @Test public void joins() throws Exception {
+        JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        Map<List<Integer>, Integer> expected = SystemTestUtil.readTuples(new Join(eq,
+                new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r")));
+        assertTrue(!expected.isEmpty());
+        assertEquals(expected, batches(new Join(eq,
+                new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r"))));
+        assertEquals(expected, batches(new HashEquiJoin(eq,
+                new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r"))));
+
+        JoinPredicate lt = new JoinPredicate(1, Predicate.Op.LESS_THAN, 1);
+        DbIterator small = filter(0, Predicate.Op.LESS_THAN, 5, new SeqScan(tid, left.getId(), "l"));
+        expected = SystemTestUtil.readTuples(
+                new Join(lt, small, new SeqScan(tid, right.getId(), "r")));
+        small = filter(0, Predicate.Op.LESS_THAN, 5, new SeqScan(tid, left.getId(), "l"));
+        assertEquals(expected, batches(new Join(lt, small, new SeqScan(tid, right.getId(), "r"))));
+    }
+
+    /** A tuple-at-a-time operator under a batch one is read through an adapter. */
+    @Test public void adapter() throws Exception {
+        int[] fields = { 1 };
+        boolean[] ascs = { true };
+        Filter f1 = filter(2, Predicate.Op.GREATER_THAN, 50,
+                new OrderBy(fields, ascs, new SeqScan(tid, left.getId(), "l")));
+        Filter f2 = filter(2, Predicate.Op.GREATER_THAN, 50,
+                new OrderBy(fields, ascs, new SeqScan(tid, left.getId(), "l")));
+        assertEquals(SystemTestUtil.readTuples(f1), batches(f2));
+        assertEquals(SystemTestUtil.readTuples(f1), batches(new BatchAdapter(f1)));
+    }
+
+    @Test public void aggregates() throws Exception {
+        for (Aggregator.Op op : Aggregator.Op.values()) {
+            for (int gb : new int[] { Aggregator.NO_GROUPING, 2 }) {
+                // OrderBy has no batch path, so a1 reads tuples
+                Aggregate a1 = new Aggregate(new OrderBy(new int[] { 0 }, new boolean[] { true },
+                        filter(1, Predicate.Op.GREATER_THAN, 20,
+                        new SeqScan(tid, left.getId(), "l"))), 0, gb, op);
+                Aggregate a2 = new Aggregate(filter(1, Predicate.Op.GREATER_THAN, 20,
+                        new SeqScan(tid, left.getId(), "l")), 0, gb, op);
+                assertEquals(op + " " + gb, SystemTestUtil.readTuples(a1),
+                        SystemTestUtil.readTuples(a2));
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BatchTest.class);
+    }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    private static final int TABLE_PAGES = 8;
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 200;
+
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+    }
+
+    /**
+     * Many readers hammer the same pages at once. Each page must be read in
+     * exactly once and every reader must get the cached copy.
+     */
+    @Test public void concurrentReadersShareFrames() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(TABLE_PAGES, new ClockPolicy());
+        final Page[] first = new Page[TABLE_PAGES];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            readers[t] = new Thread() {
+                public void run() {
+                    try {
+                        TransactionId tid = new TransactionId();
+                        for (int r = 0; r < ROUNDS; r++) {
+                            for (int i = 0; i < TABLE_PAGES; i++) {
+                                HeapPageId pid = new HeapPageId(hf.getId(), i);
+                                Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                                synchronized (first) {
+                                    if (first[i] == null)
+                                        first[i] = p;
+                                    assertSame(first[i], p);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (Thread t : readers)
+            t.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        ReplacementPolicy policy = bp.getReplacementPolicy();
+        assertEquals(TABLE_PAGES, policy.getMisses());
+        assertEquals((long) THREADS * ROUNDS * TABLE_PAGES - TABLE_PAGES, policy.getHits());
+        assertEquals(0, policy.getEvictions());
+    }
+
+    /**
+     * A page a tuple was deleted from is dirty and therefore stays in the
+     * pool until it is flushed.
+     */
+    @Test public void deleteMarksPageDirty() throws Exception {
+        BufferPool bp = Database.resetBufferPool(TABLE_PAGES, new ClockPolicy());
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        PageId pid = t.getRecordId().getPageId();
+        bp.deleteTuple(tid, t);
+        Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertNotNull(p.isDirty());
+        assertEquals(tid, p.isDirty());
+        bp.transactionComplete(tid, false);
+    }
+
+    /**
+     * A page that can't be read is an error for every caller, and leaves
+     * nothing in the pool that later callers would wait on.
+     */
+    @Test(timeout = 10000) public void failedReadLeavesNoFrame() throws Exception {
+        BufferPool bp = Database.resetBufferPool(TABLE_PAGES, new ClockPolicy());
+        TupleDesc td = Utility.getTupleDesc(2);
+        Database.getCatalog().addTable(new TestUtil.SkeletonFile(-2, td) {
+            public Page readPage(PageId id) {
+                return null; // as HeapFile does on an IOException
+            }
+        }, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2; i++) {
+            try {
+                bp.getPage(tid, new HeapPageId(-2, 0), Permissions.READ_ONLY);
+                fail("expected DbException");
+            } catch (DbException e) {
+                // expected
+            }
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
@@ -0,0 +1,170 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/** Columnar (PAX) heap files, and scans that decode only some fields. */
+public class ColumnarTest extends SimpleDbTestBase {
+
+    private static final int COLUMNS = 10;
+    private static final int ROWS = 5000;
+    private ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    private HeapFile rows, columns;
+
+    @Before public void addTables() throws Exception {
+        File rowFile = SystemTestUtil.createRandomHeapFileUnopened(COLUMNS, ROWS, 1000, null, tuples);
+        TupleDesc td = Utility.getTupleDesc(COLUMNS, "c");
+        rows = new HeapFile(rowFile, td);
+        Database.getCatalog().addTable(rows, "WR");
+        TableStats.setTableStats("WR", new TableStats(rows.getId(), 1000));
+
+        // the same pages, in PAX layout
+        File colFile = File.createTempFile("columns", ".dat");
+        colFile.deleteOnExit();
+        PageFile in = PageFile.open(rowFile, BufferPool.PAGE_SIZE);
+        PageFile out = PageFile.open(colFile, BufferPool.PAGE_SIZE);
+        for (int p = 0; p < in.numPages(); p++)
+            out.writePage(p, HeapPage.toColumnar(in.readPage(p), td));
+        out.force();
+        columns = new HeapFile(colFile, td, true);
+        Database.getCatalog().addTable(columns, "WC");
+        TableStats.setTableStats("WC", new TableStats(columns.getId(), 1000));
+        Database.resetBufferPool(rows.numPages() + columns.numPages() + 10);
+    }
+
+    private static ArrayList<ArrayList<Integer>> project(List<ArrayList<Integer>> tuples, int[] fields) {
+        ArrayList<ArrayList<Integer>> out = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            ArrayList<Integer> p = new ArrayList<Integer>();
+            for (int f : fields)
+                p.add(t.get(f));
+            out.add(p);
+        }
+        return out;
+    }
+
+    @Test public void paxPages() throws Exception {
+        SystemTestUtil.matchTuples(columns, tuples);
+        // the first field of every slot comes first
+        HeapPage page = (HeapPage) columns.readPage(new HeapPageId(columns.getId(), 0));
+        byte[] data = page.getPageData();
+        int numSlots = (BufferPool.PAGE_SIZE * 8) / (COLUMNS * 4 * 8 + 1);
+        int header = (numSlots + 7) / 8;
+        java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(data);
+        for (int i = 0; i < 3; i++)
+            assertEquals(tuples.get(i).get(0).intValue(), buf.getInt(header + 4 * i));
+    }
+
+    @Test public void insertAndDelete() throws Exception {
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(new int[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 });
+        Database.getBufferPool().insertTuple(tid, columns.getId(), t);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                t.getRecordId().getPageId(), Permissions.READ_ONLY);
+        HeapPage copy = new HeapPage(page.getId(), page.getPageData());
+        Tuple back = copy.getTuple(t.getRecordId().tupleno());
+        for (int j = 0; j < COLUMNS; j++)
+            assertEquals(new IntField(j + 1), back.getField(j));
+        Database.getBufferPool().deleteTuple(tid, t);
+        assertNull(new HeapPage(page.getId(), page.getPageData()).getTuple(back.getRecordId().tupleno()));
+        Database.getBufferPool().transactionComplete(tid);
+        SystemTestUtil.matchTuples(columns, tuples);
+    }
+
+    @Test public void projectedScan() throws Exception {
+        int[] fields = { 7, 2 };
+        TransactionId tid = new TransactionId();
+        for (HeapFile hf : new HeapFile[] { rows, columns }) {
+            for (int parallelism : new int[] { 1, 4 }) {
+                SeqScan ss = new SeqScan(tid, hf.getId(), "w");
+                ss.setProjection(fields);
+                ss.setParallelism(parallelism);
+                assertEquals(2, ss.getTupleDesc().numFields());
+                assertEquals("w.c7", ss.getTupleDesc().getFieldName(0));
+                SystemTestUtil.matchTuples(ss, project(tuples, fields));
+
+                // a pushed predicate refers to the projected fields
+                ss = new SeqScan(tid, hf.getId(), "w");
+                ss.setProjection(fields);
+                ss.setParallelism(parallelism);
+                Filter f = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(300)), ss);
+                ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+                for (ArrayList<Integer> t : project(tuples, fields))
+                    if (t.get(1) < 300)
+                        expected.add(t);
+                SystemTestUtil.matchTuples(f, expected);
+
+                // batches, too
+                ss = new SeqScan(tid, hf.getId(), "w");
+                ss.setProjection(fields);
+                ss.setParallelism(parallelism);
+                Aggregate agg = new Aggregate(ss, 0, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+                int sum = 0;
+                for (ArrayList<Integer> t : tuples)
+                    sum += t.get(7);
+                agg.open();
+                assertEquals(new IntField(sum), agg.next().getField(0));
+                agg.close();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static SeqScan scanOf(DbIterator plan) {
+        if (plan instanceof SeqScan)
+            return (SeqScan) plan;
+        if (plan instanceof Operator)
+            for (DbIterator child : ((Operator) plan).getChildren()) {
+                SeqScan ss = child == null ? null : scanOf(child);
+                if (ss != null)
+                    return ss;
+            }
+        return null;
+    }
+
+    /** The planner pushes the fields a query uses into its scans. */
+    @Test public void planner() throws Exception {
+        Parser parser = new Parser();
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<ArrayList<Integer>>> results = new ArrayList<ArrayList<ArrayList<Integer>>>();
+        for (String table : new String[] { "WR", "WC" }) {
+            ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+            results.add(result);
+            LogicalPlan lp = parser.generateLogicalPlan(tid, "SELECT w.c3, SUM(w.c8) FROM "
+                    + table + " w WHERE w.c1 < 500 GROUP BY w.c3 ORDER BY w.c3;");
+            lp.setParallelism(1);
+            DbIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+            assertArrayEquals(new int[] { 1, 3, 8 }, scanOf(plan).getProjection());
+            plan.open();
+            while (plan.hasNext())
+                result.add(SystemTestUtil.tupleToList(plan.next()));
+            plan.close();
+        }
+        assertTrue(results.get(0).size() > 0);
+        assertEquals(results.get(0), results.get(1));
+
+        LogicalPlan lp = parser.generateLogicalPlan(tid, "SELECT * FROM WC w WHERE w.c1 < 500;");
+        assertNull(scanOf(lp.physicalPlan(tid, TableStats.getStatsMap(), false)).getProjection());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnarTest.class);
+    }
+}
@@ -0,0 +1,229 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 30000;
+    private HeapFile big1, big2, small;
+
+    private HeapFile table(String name, int rows) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, rows, 1000, null, null, "c");
+        Database.getCatalog().addTable(hf, name);
+        TableStats.setTableStats(name, new TableStats(hf.getId(), 1000));
+        return hf;
+    }
+
+    @Before public void setUp() throws Exception {
+        big1 = table("EA", ROWS);
+        big2 = table("EB", ROWS);
+        small = table("ES", 100);
+        assertTrue(big1.numPages() >= LogicalPlan.PARALLEL_SCAN_PAGES);
+        Database.resetBufferPool(big1.numPages() + big2.numPages() + 10);
+    }
+
+    private static DbIterator[] fragments(TransactionId tid, HeapFile hf, int n) {
+        DbIterator[] frags = new DbIterator[n];
+        for (int i = 0; i < n; i++) {
+            SeqScan ss = new SeqScan(tid, hf.getId(), "");
+            ss.setPartition(i, n);
+            frags[i] = ss;
+        }
+        return frags;
+    }
+
+    /** @return whether the plan has an operator of class c */
+    private static boolean has(DbIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (plan instanceof Operator)
+            for (DbIterator child : ((Operator) plan).getChildren())
+                if (child != null && has(child, c))
+                    return true;
+        return false;
+    }
+
+    /** @return whether the plan has an Aggregate of several children */
+    private static boolean twoPhase(DbIterator plan) {
+        if (plan instanceof Aggregate && ((Aggregate) plan).getChildren().length > 1)
+            return true;
+        if (plan instanceof Operator)
+            for (DbIterator child : ((Operator) plan).getChildren())
+                if (child != null && twoPhase(child))
+                    return true;
+        return false;
+    }
+
+    @Test public void gather() throws Exception {
+        TransactionId tid = new TransactionId();
+        Map<List<Integer>, Integer> expected =
+                SystemTestUtil.readTuples(new SeqScan(tid, big1.getId(), ""));
+        Gather g = new Gather(fragments(tid, big1, 4));
+        g.open();
+        assertEquals(expected, SystemTestUtil.tuples(g));
+        g.rewind();
+        assertEquals(expected, SystemTestUtil.tuples(g));
+        g.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Stopping early must not leave the inputs stuck on a full queue. */
+    @Test public void closeEarly() throws Exception {
+        TransactionId tid = new TransactionId();
+        Gather g = new Gather(fragments(tid, big1, 4));
+        for (int i = 0; i < 20; i++) {
+            g.open();
+            assertTrue(g.hasNext());
+            g.next();
+            g.close();
+        }
+        assertEquals(ROWS, SystemTestUtil.readTuples(new Aggregate(g, 0, Aggregator.NO_GROUPING,
+                Aggregator.Op.COUNT)).keySet().iterator().next().get(0).intValue());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void repartitionJoin() throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        Predicate f = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(30));
+        Map<List<Integer>, Integer> expected = SystemTestUtil.readTuples(new HashEquiJoin(p,
+                new Filter(f, new SeqScan(tid, big1.getId(), "")),
+                new Filter(f, new SeqScan(tid, big2.getId(), ""))));
+        assertTrue(expected.size() > 0);
+
+        DbIterator[] frags1 = fragments(tid, big1, 4), frags2 = fragments(tid, big2, 4);
+        for (int i = 0; i < 4; i++) {
+            frags1[i] = new Filter(f, frags1[i]);
+            frags2[i] = new Filter(f, frags2[i]);
+        }
+        HashRepartition[] left = HashRepartition.split(frags1, 0, 3);
+        HashRepartition[] right = HashRepartition.split(frags2, 0, 3);
+        DbIterator[] joins = new DbIterator[3];
+        for (int i = 0; i < 3; i++)
+            joins[i] = new HashEquiJoin(p, left[i], right[i]);
+        Gather g = new Gather(joins);
+        assertEquals(expected, SystemTestUtil.readTuples(g));
+        assertEquals(expected, SystemTestUtil.readTuples(g));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * One output can be read again while the others stay open. The table
+     * is small enough for the queues to hold it, so that one thread can
+     * read the outputs in turn.
+     */
+    @Test(timeout = 60000) public void rewindOneOutput() throws Exception {
+        TransactionId tid = new TransactionId();
+        HashRepartition[] outs = HashRepartition.split(fragments(tid, small, 2), 0, 2);
+        outs[0].open();
+        outs[1].open();
+        Map<List<Integer>, Integer> first = SystemTestUtil.tuples(outs[0]);
+        Map<List<Integer>, Integer> second = SystemTestUtil.tuples(outs[1]);
+        assertTrue(first.size() > 0 && second.size() > 0);
+        outs[0].rewind();
+        assertEquals(first, SystemTestUtil.tuples(outs[0]));
+        outs[0].rewind();
+        assertEquals(first, SystemTestUtil.tuples(outs[0]));
+        outs[1].rewind();
+        assertEquals(second, SystemTestUtil.tuples(outs[1]));
+        outs[0].close();
+        outs[1].close();
+
+        // and both again, as a Gather above them would
+        outs[0].open();
+        outs[1].open();
+        outs[0].rewind();
+        outs[1].rewind();
+        assertEquals(first, SystemTestUtil.tuples(outs[0]));
+        assertEquals(second, SystemTestUtil.tuples(outs[1]));
+        outs[0].close();
+        outs[1].close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void broadcastJoin() throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        Map<List<Integer>, Integer> expected = SystemTestUtil.readTuples(new HashEquiJoin(p,
+                new SeqScan(tid, big1.getId(), ""), new SeqScan(tid, small.getId(), "")));
+
+        DbIterator[] frags = fragments(tid, big1, 4);
+        Broadcast[] copies = Broadcast.copies(
+                new DbIterator[] { new SeqScan(tid, small.getId(), "") }, 4);
+        DbIterator[] joins = new DbIterator[4];
+        for (int i = 0; i < 4; i++)
+            joins[i] = new HashEquiJoin(p, frags[i], copies[i]);
+        assertEquals(expected, SystemTestUtil.readTuples(new Gather(joins)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void failedInput() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator[] frags = fragments(tid, big1, 2);
+        frags[1] = new SeqScan(tid, -1, "");
+        Gather g = new Gather(frags);
+        g.open();
+        try {
+            while (g.hasNext())
+                g.next();
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        g.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Parallel plans return what the serial ones do. */
+    @Test public void planner() throws Exception {
+        String[] queries = {
+            "SELECT * FROM EA a WHERE a.c1 < 50;",
+            "SELECT * FROM EA a, EB b WHERE a.c0 = b.c0 AND a.c1 < 20 AND b.c1 < 20;",
+            "SELECT * FROM EA a, ES s WHERE a.c0 = s.c0 AND a.c1 < 100;",
+            "SELECT a.c1, SUM(a.c2) FROM EA a GROUP BY a.c1;",
+            "SELECT COUNT(a.c2) FROM EA a;",
+            "SELECT a.c1, a.c0, AVG(a.c2), COUNT(*) FROM EA a WHERE a.c2 < 500 GROUP BY a.c1, a.c0;",
+        };
+        // null for a two-phase aggregate
+        Class<?>[] exchanges = { Gather.class, HashRepartition.class,
+                Broadcast.class, null, null, null };
+        Parser parser = new Parser();
+        TransactionId tid = new TransactionId();
+        for (int q = 0; q < queries.length; q++) {
+            LogicalPlan lp = parser.generateLogicalPlan(tid, queries[q]);
+            lp.setParallelism(1);
+            DbIterator serial = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+            assertTrue(!has(serial, Exchange.class));
+
+            lp = parser.generateLogicalPlan(tid, queries[q]);
+            lp.setParallelism(4);
+            DbIterator parallel = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+            if (exchanges[q] != null)
+                assertTrue(queries[q], has(parallel, exchanges[q]));
+            else
+                assertTrue(queries[q], twoPhase(parallel));
+            assertEquals(queries[q], SystemTestUtil.readTuples(serial),
+                    SystemTestUtil.readTuples(parallel));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> left, right;
+    private HeapFile leftFile, rightFile;
+
+    private void createTables(int leftRows, int rightRows, int maxValue,
+            Map<Integer, Integer> columnSpecification) throws Exception {
+        left = new ArrayList<ArrayList<Integer>>();
+        right = new ArrayList<ArrayList<Integer>>();
+        leftFile = SystemTestUtil.createRandomHeapFile(2, leftRows, maxValue, columnSpecification, left);
+        rightFile = SystemTestUtil.createRandomHeapFile(3, rightRows, maxValue, columnSpecification, right);
+    }
+
+    /** @return how many times each tuple of the join of left and right occurs */
+    private Map<List<Integer>, Integer> expected() {
+        Map<List<Integer>, Integer> out = new HashMap<List<Integer>, Integer>();
+        for (ArrayList<Integer> l : left)
+            for (ArrayList<Integer> r : right)
+                if (l.get(0).equals(r.get(0))) {
+                    ArrayList<Integer> t = new ArrayList<Integer>(l);
+                    t.addAll(r);
+                    SystemTestUtil.count(out, t);
+                }
+        return out;
+    }
+
+    private HashEquiJoin join(TransactionId tid, int memoryPages) {
+        HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, leftFile.getId(), "l"), new SeqScan(tid, rightFile.getId(), "r"));
+        j.setMemoryPages(memoryPages);
+        return j;
+    }
+
+    private void check(HashEquiJoin j) throws Exception {
+        Map<List<Integer>, Integer> expected = expected();
+        assertTrue(!expected.isEmpty());
+        assertEquals(expected, SystemTestUtil.tuples(j));
+        j.rewind();
+        assertEquals(expected, SystemTestUtil.tuples(j));
+    }
+
+    @Test public void fitsInMemory() throws Exception {
+        createTables(3000, 3000, 1000, null);
+        TransactionId tid = new TransactionId();
+        HashEquiJoin j = join(tid, HashEquiJoin.DEFAULT_MEMORY_PAGES);
+        j.open();
+        check(j);
+        assertEquals(0, j.numSpilledPartitions());
+        j.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void spillsPartitions() throws Exception {
+        createTables(5000, 5000, 2000, null);
+        TransactionId tid = new TransactionId();
+        HashEquiJoin j = join(tid, 3);
+        j.open();
+        check(j);
+        assertTrue(j.numSpilledPartitions() > 0);
+        j.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** The build side is held to its pages of heap, not of tuples on disk. */
+    @Test public void budgetCountsHeap() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        int rows = 2 * HashEquiJoin.capacity(td, 3);
+        assertTrue(rows < 3 * SpillFile.tuplesPerPage(td));
+        createTables(rows, 100, 50, null);
+        TransactionId tid = new TransactionId();
+        HashEquiJoin j = join(tid, 3);
+        j.open();
+        check(j);
+        assertTrue(j.numSpilledPartitions() > 0);
+        j.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** One key too common to split apart is joined a memory-load at a time. */
+    @Test public void skewedKey() throws Exception {
+        Map<Integer, Integer> spec = new HashMap<Integer, Integer>();
+        spec.put(0, 7);
+        createTables(4000, 5, 1000, spec);
+        TransactionId tid = new TransactionId();
+        HashEquiJoin j = join(tid, 3);
+        j.open();
+        check(j);
+        j.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
@@ -43,6 +43,55 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * An insert goes to a page with room and locks nothing else, even when
+     * the pages before it are full.
+     */
+    @Test public void insertLocksOnlyTargetPage() throws Exception {
+        for (int i = 0; i < 504 * 3; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // free a slot on the last page
+        tid = new TransactionId();
+        HeapPageId last = new HeapPageId(empty.getId(), 2);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, last, Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(tid, page.iterator().next());
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        assertEquals(3, empty.numPages());
+        assertTrue(Database.getBufferPool().holdsLock(tid, last));
+        for (int i = 0; i < 2; i++)
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), i)));
+    }
+
+    /** Two inserters use different pages instead of waiting for each other. */
+    @Test public void insertersSpreadOverFreePages() throws Exception {
+        empty.writePage(new HeapPage(new HeapPageId(empty.getId(), 1), HeapPage.createEmptyPageData()));
+        TransactionId other = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        empty.insertTuple(other, Utility.getHeapTuple(2, 2));
+        HeapPageId p0 = new HeapPageId(empty.getId(), 0), p1 = new HeapPageId(empty.getId(), 1);
+        assertTrue(Database.getBufferPool().holdsLock(tid, p0));
+        assertTrue(Database.getBufferPool().holdsLock(other, p1));
+        assertFalse(Database.getBufferPool().holdsLock(other, p0));
+        Database.getBufferPool().transactionComplete(other);
+    }
+
+    /** The free space map is kept next to the file and read back from there. */
+    @Test public void freeSpaceMapIsSaved() throws Exception {
+        for (int i = 0; i < 504 * 2 + 1; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(3, empty.numPages());
+
+        FreeSpaceMap saved = FreeSpaceMap.open(empty.getFile());
+        assertEquals(3, saved.numPages());
+        assertEquals(2, saved.nextFree(0));
+        assertEquals(1, saved.numFree());
+    }
+
     /**
      * JUnit suite target
      */
@@ -120,6 +120,38 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getInt() and HeapPage.getTuple()
+     */
+    @Test public void getInt() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        for (int i = 0; i < EXAMPLE_VALUES.length; ++i) {
+            assertEquals(EXAMPLE_VALUES[i][0], page.getInt(i, 0));
+            assertEquals(EXAMPLE_VALUES[i][1], page.getInt(i, 1));
+            assertEquals(new RecordId(pid, i), page.getTuple(i).getRecordId());
+        }
+        assertEquals(null, page.getTuple(EXAMPLE_VALUES.length));
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(Predicate)
+     */
+    @Test public void testFilteredIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate pred = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(30000));
+        Iterator<Tuple> it = page.iterator(pred);
+        int expected = 0;
+        for (int[] row : EXAMPLE_VALUES)
+            if (row[0] > 30000)
+                expected++;
+        int seen = 0;
+        while (it.hasNext()) {
+            assertTrue(((IntField) it.next().getField(0)).getValue() > 30000);
+            seen++;
+        }
+        assertEquals(expected, seen);
+    }
+
     /**
      * JUnit suite target
      */
@@ -178,6 +178,75 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Several aggregates of one pass come out in one tuple per group
+   */
+  @Test public void mergeSeveral() throws Exception {
+    scan1.open();
+    Aggregator.Op[] ops = { Aggregator.Op.COUNT, Aggregator.Op.SUM,
+        Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG };
+    IntegerAggregator agg = new IntegerAggregator(new int[] { 0 },
+        new Type[] { Type.INT_TYPE }, new int[] { 1, 1, 1, 1, 1 }, ops);
+    while (scan1.hasNext())
+      agg.mergeTupleIntoGroup(scan1.next());
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(6,
+        new int[] { 1, 3, 12, 2, 6, 4,
+                    3, 3, 12, 2, 6, 4,
+                    5, 1, 7, 7, 7, 7 }), it);
+  }
+
+  /**
+   * Sums are kept in longs, so AVG of large values doesn't overflow
+   */
+  @Test public void avgOfLargeValues() throws Exception {
+    DbIterator big = TestUtil.createTupleList(width1,
+        new int[] { 1, Integer.MAX_VALUE,
+                    1, Integer.MAX_VALUE - 2,
+                    2, Integer.MIN_VALUE,
+                    2, Integer.MIN_VALUE });
+    big.open();
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.AVG);
+    while (big.hasNext())
+      agg.mergeTupleIntoGroup(big.next());
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, Integer.MAX_VALUE - 1,
+                    2, Integer.MIN_VALUE }), it);
+  }
+
+  /**
+   * The group table grows past its initial size, a batch at a time
+   */
+  @Test public void manyGroups() throws Exception {
+    int groups = 50000;
+    TupleDesc td = Utility.getTupleDesc(2);
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    for (int round = 0; round < 2; round++) {
+      for (int start = 0; start < groups; start += Batch.DEFAULT_SIZE) {
+        Batch b = new Batch(td);
+        for (int g = start; g < Math.min(groups, start + Batch.DEFAULT_SIZE); g++) {
+          int pos = b.addRow();
+          b.setInt(0, pos, g * 7919);
+          b.setInt(1, pos, g);
+        }
+        agg.mergeBatch(b);
+      }
+    }
+    DbIterator it = agg.iterator();
+    it.open();
+    int n = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      int g = ((IntField) t.getField(0)).getValue() / 7919;
+      assertEquals(2 * g, ((IntField) t.getField(1)).getValue());
+      n++;
+    }
+    assertEquals(groups, n);
+  }
+
   /**
    * JUnit suite target
    */
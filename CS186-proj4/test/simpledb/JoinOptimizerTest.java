@@ -161,6 +161,37 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 		Assert.assertEquals(Boolean.TRUE, ret[0]);
 	}
 
+	/**
+	 * Verify that equality joins are hashed, other joins use nested loops,
+	 * and the hash join cost behaves like the nested loops one above
+	 */
+	@Test public void chooseJoinAlgorithm() throws ParsingException {
+		TransactionId tid = new TransactionId();
+		Parser p = new Parser();
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		filterSelectivities.put("t1", 1.0);
+		filterSelectivities.put("t2", 1.0);
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put(tableName1, stats1);
+		stats.put(tableName2, stats2);
+
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.EQUALS));
+		JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 = t2.c2;"), nodes);
+		Vector<LogicalJoinNode> result = jo.orderJoins(stats, filterSelectivities, false);
+		Assert.assertEquals(LogicalJoinNode.Algorithm.HASH, result.get(0).algorithm);
+
+		nodes = new Vector<LogicalJoinNode>();
+		nodes.add(new LogicalJoinNode("t1", "t2", "c1", "c2", Predicate.Op.LESS_THAN));
+		jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 < t2.c2;"), nodes);
+		result = jo.orderJoins(stats, filterSelectivities, false);
+		Assert.assertEquals(LogicalJoinNode.Algorithm.NESTED_LOOPS, result.get(0).algorithm);
+
+		LogicalJoinNode hashJoinNode = new LogicalJoinNode(tableName1, tableName2, Integer.toString(1), Integer.toString(2), Predicate.Op.EQUALS)
+				.withAlgorithm(LogicalJoinNode.Algorithm.HASH);
+		checkJoinEstimateCosts(jo, hashJoinNode);
+	}
+
 	/**
 	 * Verify that the join cardinalities produced by estimateJoinCardinality() are reasonable
 	 */
@@ -0,0 +1,137 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockManagerTest {
+
+    private LockManager lm;
+    private PageId p0, p1;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /** Takes a lock in its own thread and remembers how that went. */
+    private static class Acquirer extends Thread {
+        final LockManager lm;
+        final TransactionId tid;
+        final PageId pid;
+        final Permissions perm;
+        volatile boolean acquired;
+        volatile Exception error;
+
+        Acquirer(LockManager lm, TransactionId tid, PageId pid, Permissions perm) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.acquireLock(perm, pid, tid);
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+    }
+
+    @Test public void waiterIsWokenOnRelease() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquireLock(Permissions.READ_WRITE, p0, t1);
+        Acquirer a = new Acquirer(lm, t2, p0, Permissions.READ_ONLY);
+        a.join(100);
+        assertFalse(a.acquired);
+        lm.releaseAllLocks(t1);
+        a.join(1000);
+        assertTrue(a.acquired);
+        assertTrue(lm.hasSharedLock(p0, t2));
+    }
+
+    @Test public void sharedLocksAreCompatible() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquireLock(Permissions.READ_ONLY, p0, t1);
+        assertTrue(lm.getLock(Permissions.READ_ONLY, p0, t2));
+        assertFalse(lm.getLock(Permissions.READ_WRITE, p0, t1));
+        lm.releaseOneLock(p0, t2);
+        assertTrue(lm.getLock(Permissions.READ_WRITE, p0, t1));
+        assertTrue(lm.hasExclusiveLock(p0, t1));
+    }
+
+    @Test public void releaseAllLocksKeepsOthers() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquireLock(Permissions.READ_ONLY, p0, t1);
+        lm.acquireLock(Permissions.READ_WRITE, p1, t1);
+        lm.acquireLock(Permissions.READ_ONLY, p0, t2);
+        lm.releaseAllLocks(t1);
+        assertFalse(lm.holdsLock(p0, t1));
+        assertFalse(lm.holdsLock(p1, t1));
+        assertTrue(lm.holdsLock(p0, t2));
+        assertTrue(lm.getLock(Permissions.READ_WRITE, p1, t2));
+    }
+
+    /**
+     * t1 and t2 each hold a page the other one wants. Only the younger one,
+     * t2, may be aborted, and t1 must get its lock once t2 lets go.
+     */
+    @Test public void onlyTheVictimIsAborted() throws Exception {
+        TransactionId t1 = new TransactionId(), t2 = new TransactionId();
+        lm.acquireLock(Permissions.READ_WRITE, p0, t1);
+        lm.acquireLock(Permissions.READ_WRITE, p1, t2);
+        Acquirer a1 = new Acquirer(lm, t1, p1, Permissions.READ_WRITE);
+        a1.join(100);
+        Acquirer a2 = new Acquirer(lm, t2, p0, Permissions.READ_WRITE);
+        a2.join(1000);
+        assertTrue(a2.error instanceof TransactionAbortedException);
+        assertFalse(a1.acquired);
+        assertNull(a1.error);
+
+        lm.releaseAllLocks(t2);
+        a1.join(1000);
+        assertTrue(a1.acquired);
+        assertEquals(1, lm.getDeadlockCount());
+    }
+
+    /** Three readers of one page all upgrade: two of them have to go. */
+    @Test public void upgradeDeadlockAmongMany() throws Exception {
+        TransactionId[] tids = new TransactionId[3];
+        for (int i = 0; i < tids.length; i++) {
+            tids[i] = new TransactionId();
+            lm.acquireLock(Permissions.READ_ONLY, p0, tids[i]);
+        }
+        Acquirer[] as = new Acquirer[tids.length];
+        for (int i = 0; i < tids.length; i++) {
+            as[i] = new Acquirer(lm, tids[i], p0, Permissions.READ_WRITE);
+            as[i].join(100);
+        }
+        for (int i = 0; i < tids.length; i++)
+            if (as[i].error != null)
+                lm.releaseAllLocks(tids[i]);
+        int granted = 0;
+        for (Acquirer a : as) {
+            a.join(1000);
+            if (a.acquired)
+                granted++;
+        }
+        assertEquals(1, granted);
+        assertEquals(2, lm.getDeadlockCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
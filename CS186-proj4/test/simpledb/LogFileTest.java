@@ -0,0 +1,537 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+    /** Run threads transactions each in its own thread, one after another. */
+    private static void commitConcurrently(int threads, final int transactions) throws Exception {
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            ts[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int k = 0; k < transactions; k++) {
+                            Transaction t = new Transaction();
+                            t.start();
+                            t.commit();
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            ts[i].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        assertEquals(Collections.emptyList(), errors);
+    }
+
+    /** @return the number of records of each type in the log */
+    private static Map<Integer, Integer> recordTypes(LogFile log) throws IOException {
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(log.logFile)));
+        in.readLong(); // no checkpoint
+        while (in.available() > 0) {
+            int type = in.readInt();
+            in.readLong();
+            in.readLong();
+            Integer n = counts.get(type);
+            counts.put(type, n == null ? 1 : n + 1);
+        }
+        in.close();
+        return counts;
+    }
+
+    /** Concurrent committers share forces of the log. */
+    @Test public void groupCommit() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(20, TimeUnit.MILLISECONDS, 8);
+        commitConcurrently(8, 10);
+        assertTrue(log.getGroupForces() + " forces", log.getGroupForces() * 2 < 80);
+
+        Map<Integer, Integer> types = recordTypes(log);
+        assertEquals(80, types.get(LogFile.BEGIN_RECORD).intValue());
+        assertEquals(80, types.get(LogFile.COMMIT_RECORD).intValue());
+    }
+
+    /** A full group doesn't wait for the window. */
+    @Test public void fullGroup() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setGroupCommit(1, TimeUnit.MINUTES, 1);
+        long start = System.currentTimeMillis();
+        commitConcurrently(1, 5);
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        assertEquals(5, log.getGroupForces());
+    }
+
+    /** Insert count tuples (i, i) from first on, recording them in tuples. */
+    private static void insert(Transaction t, HeapFile hf, int first, int count,
+            List<ArrayList<Integer>> tuples) throws Exception {
+        for (int i = first; i < first + count; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+            if (tuples != null)
+                tuples.add(new ArrayList<Integer>(Arrays.asList(i, i)));
+        }
+    }
+
+    /** Abort puts back pages that were written before the transaction ended. */
+    @Test public void rollback() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, tuples);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, hf, 0, 10, tuples);
+        t.commit();
+
+        // the same pages as the committed one, and new ones
+        t = new Transaction();
+        t.start();
+        insert(t, hf, 1000, 2000, null);
+        Database.getBufferPool().flushPages(t.getId());
+        int grown = hf.numPages();
+        t.abort();
+        assertEquals(grown, hf.numPages());
+        SystemTestUtil.matchTuples(hf, tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * After a crash, recovery installs what committed transactions wrote,
+     * even if it never got to the file, and takes back what unfinished ones
+     * did, from before and after a checkpoint.
+     */
+    @Test public void recover() throws Exception {
+        // a table for each unfinished transaction, so that they don't wait for each other
+        HeapFile[] files = new HeapFile[4];
+        List<ArrayList<ArrayList<Integer>>> tuples = new ArrayList<ArrayList<ArrayList<Integer>>>();
+        for (int i = 0; i < files.length; i++) {
+            tuples.add(new ArrayList<ArrayList<Integer>>());
+            files[i] = SystemTestUtil.createRandomHeapFile(2, 100, null, tuples.get(i));
+        }
+        HeapFile hf = files[0];
+        Database.resetBufferPool(1000);
+        Transaction committed = new Transaction();
+        committed.start();
+        insert(committed, hf, 0, 3000, tuples.get(0));
+        committed.commit();
+
+        Transaction before = new Transaction();
+        before.start();
+        insert(before, files[1], 10000, 500, null);
+        Database.getLogFile().logCheckpoint();
+        int atCheckpoint = hf.numPages();
+        insert(before, files[1], 20000, 500, null);
+        Database.getBufferPool().flushPages(before.getId());
+
+        Transaction after = new Transaction();
+        after.start();
+        insert(after, hf, 30000, 2000, tuples.get(0));
+        after.commit();
+        Transaction unflushed = new Transaction();
+        unflushed.start();
+        insert(unflushed, files[2], 40000, 100, null);
+        Transaction flushed = new Transaction();
+        flushed.start();
+        insert(flushed, files[3], 50000, 100, null);
+        Database.getBufferPool().flushPages(flushed.getId());
+
+        // the pages since the checkpoint didn't make it to disk after all
+        int numPages = hf.numPages();
+        PageFile file = PageFile.open(hf.getFile(), BufferPool.PAGE_SIZE);
+        for (int p = atCheckpoint; p < numPages; p++)
+            file.writePage(p, HeapPage.createEmptyPageData());
+        file.force();
+
+        for (int round = 0; round < 2; round++) {
+            Database.reset();
+            for (int i = 0; i < files.length; i++)
+                files[i] = Utility.openHeapFile(2, files[i].getFile());
+            LogFile log = Database.getLogFile();
+            log.setRecoveryParallelism(4);
+            log.recover();
+            if (round == 0) {
+                assertEquals(3, log.undoneTransactions);
+                assertTrue(log.redonePages >= numPages - atCheckpoint);
+                assertTrue(log.getRecoveryReport(),
+                        log.getRecoveryReport().contains("3 transactions rolled back"));
+            } else {
+                // again, from the checkpoint the first recovery took
+                assertEquals(0, log.undoneTransactions);
+            }
+            for (int i = 0; i < files.length; i++)
+                SystemTestUtil.matchTuples(files[i], tuples.get(i));
+        }
+    }
+
+    /** Delete the tuples (i, i) for first <= i < first + count. */
+    private static void delete(Transaction t, HeapFile hf, int first, int count,
+            List<ArrayList<Integer>> tuples) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        List<Tuple> doomed = new ArrayList<Tuple>();
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tup = scan.next();
+            int v = ((IntField) tup.getField(0)).getValue();
+            if (v >= first && v < first + count && v == ((IntField) tup.getField(1)).getValue())
+                doomed.add(tup);
+        }
+        scan.close();
+        for (Tuple tup : doomed) {
+            Database.getBufferPool().deleteTuple(t.getId(), tup);
+            if (tuples != null)
+                tuples.remove(SystemTestUtil.tupleToList(tup));
+        }
+    }
+
+    /**
+     * A page the log has an image of since the checkpoint is logged as the
+     * bytes that changed, and recovery replays and takes back those.
+     */
+    @Test public void deltas() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, tuples);
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, hf, 0, 1, tuples);
+        t.commit();
+
+        long before = log.raf.length();
+        for (int i = 1; i <= 100; i++) {
+            t = new Transaction();
+            t.start();
+            insert(t, hf, i, 1, tuples);
+            t.commit();
+        }
+        // a BEGIN, a COMMIT and a DELTA, instead of two pages
+        long perInsert = (log.raf.length() - before) / 100;
+        assertTrue(perInsert + " bytes", perInsert < 256);
+
+        t = new Transaction();
+        t.start();
+        delete(t, hf, 1, 10, tuples);
+        t.commit();
+        Transaction loser = new Transaction();
+        loser.start();
+        insert(loser, hf, 5000, 5, null);
+        delete(loser, hf, 11, 10, null);
+        Database.getBufferPool().flushPages(loser.getId());
+
+        // lose the pages; redo goes back to their first image
+        PageFile file = PageFile.open(hf.getFile(), BufferPool.PAGE_SIZE);
+        for (int p = 0; p < hf.numPages(); p++)
+            file.writePage(p, HeapPage.createEmptyPageData());
+        file.force();
+        Database.reset();
+        hf = Utility.openHeapFile(2, hf.getFile());
+        log = Database.getLogFile();
+        log.recover();
+        assertEquals(1, log.undoneTransactions);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Concurrent writers log more than the buffer holds; every record makes
+     * it to the file whole and in a readable order.
+     */
+    @Test public void logBuffer() throws Exception {
+        final HeapFile[] files = new HeapFile[4];
+        final List<ArrayList<ArrayList<Integer>>> tuples = new ArrayList<ArrayList<ArrayList<Integer>>>();
+        for (int i = 0; i < files.length; i++) {
+            tuples.add(new ArrayList<ArrayList<Integer>>());
+            files[i] = SystemTestUtil.createRandomHeapFile(2, 10, null, tuples.get(i));
+        }
+        Database.resetBufferPool(1000);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] ts = new Thread[files.length];
+        for (int i = 0; i < files.length; i++) {
+            final int table = i;
+            ts[i] = new Thread() {
+                public void run() {
+                    try {
+                        Transaction t = new Transaction();
+                        t.start();
+                        insert(t, files[table], 0, 40000, tuples.get(table));
+                        t.commit();
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            ts[i].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        assertEquals(Collections.emptyList(), errors);
+        assertTrue(Database.getLogFile().raf.length() > LogFile.LOG_BUFFER_SIZE);
+
+        for (HeapFile hf : files) {
+            PageFile file = PageFile.open(hf.getFile(), BufferPool.PAGE_SIZE);
+            for (int p = 0; p < hf.numPages(); p++)
+                file.writePage(p, HeapPage.createEmptyPageData());
+            file.force();
+        }
+        Database.reset();
+        for (int i = 0; i < files.length; i++)
+            files[i] = Utility.openHeapFile(2, files[i].getFile());
+        LogFile log = Database.getLogFile();
+        log.recover();
+        assertEquals(0, log.undoneTransactions);
+        for (int i = 0; i < files.length; i++)
+            SystemTestUtil.matchTuples(files[i], tuples.get(i));
+    }
+
+    /** Log the pages of hf, as a flush would before writing them. */
+    private static List<Page> logPages(Transaction t, HeapFile hf) throws Exception {
+        List<Page> pages = new ArrayList<Page>();
+        for (int p = 0; p < hf.numPages(); p++) {
+            Page page = Database.getBufferPool().getPage(t.getId(),
+                    new HeapPageId(hf.getId(), p), Permissions.READ_ONLY);
+            Database.getLogFile().logWrite(t.getId(), page.getBeforeImage(), page);
+            pages.add(page);
+        }
+        Database.getLogFile().force();
+        return pages;
+    }
+
+    /**
+     * A checkpoint records the pages that were logged but not written, and
+     * recovery goes back to their records from before it.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, tuples);
+        Database.resetBufferPool(1000);
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, hf, 0, 1000, tuples);
+        // the pool goes away before it writes them
+        for (Page page : logPages(t, hf))
+            Database.getBufferPool().discardPage(page.getId());
+        assertEquals(hf.numPages(), log.dirtyPages.size());
+        log.logCheckpoint();
+        log.logCommit(t.getId());
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, hf.getFile());
+        log = Database.getLogFile();
+        log.recover();
+        assertEquals(0, log.undoneTransactions);
+        assertEquals(hf.numPages(), log.redonePages);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * After a checkpoint, the pages it found dirty are written out in the
+     * background, and an abort still takes them back.
+     */
+    @Test public void pageWriter() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, tuples);
+        Database.resetBufferPool(1000);
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, hf, 0, 1000, null);
+        List<Page> pages = logPages(t, hf);
+        log.logCheckpoint();
+        for (int i = 0; i < 1000 && !log.dirtyPages.isEmpty(); i++)
+            Thread.sleep(10);
+        assertEquals(Collections.emptyMap(), log.dirtyPages);
+        PageFile file = PageFile.open(hf.getFile(), BufferPool.PAGE_SIZE);
+        for (Page page : pages)
+            assertTrue(Arrays.equals(page.getPageData(), file.readPage(page.getId().pageNumber())));
+
+        t.abort();
+        SystemTestUtil.matchTuples(hf, tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A page that its transaction changes while the page writer writes it
+     * stays dirty, so the change is written at commit and not lost; the
+     * writer writes the image it logged, not the page as it is changed.
+     */
+    @Test(timeout = 60000) public void pageWriterRace() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 100, 1000, null, tuples);
+        final AtomicBoolean slow = new AtomicBoolean(false);
+        final CountDownLatch writing = new CountDownLatch(1);
+        final List<byte[]> written = Collections.synchronizedList(new ArrayList<byte[]>());
+        // once slow, a write waits for the page in the pool to change after it
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2)) {
+            public void writePage(Page page) throws IOException {
+                super.writePage(page);
+                if (!slow.get())
+                    return;
+                written.add(page.getPageData());
+                Page cached;
+                try {
+                    cached = Database.getBufferPool().getPageUnlocked(page.getId());
+                } catch (DbException e) {
+                    throw new IOException(e.getMessage());
+                }
+                writing.countDown();
+                for (int i = 0; i < 5000 && Arrays.equals(page.getPageData(), cached.getPageData()); i++) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        };
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, hf, 0, 1, tuples);
+        final BufferPool bp = Database.getBufferPool();
+        final PageId pid = new HeapPageId(hf.getId(), 0);
+        final Exception[] failure = new Exception[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    bp.flushPage(pid);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        slow.set(true);
+        writer.start();
+        writing.await();
+        insert(t, hf, 1, 1, tuples);
+        writer.join();
+        slow.set(false);
+        assertEquals(null, failure[0]);
+        assertEquals(t.getId(), bp.getPageUnlocked(pid).isDirty());
+        // the file has the first insert only, as the log does
+        PageFile file = PageFile.open(hf.getFile(), BufferPool.PAGE_SIZE);
+        assertTrue(Arrays.equals(written.get(0), file.readPage(0)));
+        HeapPage onDisk = new HeapPage((HeapPageId) pid, file.readPage(0));
+        HeapPage cached = (HeapPage) bp.getPageUnlocked(pid);
+        assertEquals(onDisk.getNumEmptySlots() - 1, cached.getNumEmptySlots());
+        t.commit();
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * A page write that waits for an abort's rollback doesn't log or write
+     * the page after the rollback put it back.
+     */
+    @Test(timeout = 60000) public void pageWriterDuringAbort() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 100, 1000, null, tuples);
+        final BufferPool bp = Database.getBufferPool();
+        final PageId[] target = new PageId[1];
+        final Exception[] failure = new Exception[1];
+        final Thread writer = new Thread() {
+            public void run() {
+                try {
+                    bp.flushPage(target[0]);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        final AtomicBoolean armed = new AtomicBoolean(false);
+        // once armed, rollback's read of the page starts a flush of it and
+        // lets it get as far as the log, which rollback holds
+        HeapFile hf = new HeapFile(f, Utility.getTupleDesc(2)) {
+            public Page readPage(PageId pid) {
+                if (armed.compareAndSet(true, false)) {
+                    writer.start();
+                    while (writer.getState() != Thread.State.WAITING && writer.isAlive())
+                        Thread.yield();
+                }
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        PageId pid = new HeapPageId(hf.getId(), 0);
+        target[0] = pid;
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, hf, 0, 1, null);
+        // written once, so the log has something to roll back
+        bp.flushPage(pid);
+        insert(t, hf, 1, 1, null);
+        armed.set(true);
+        t.abort();
+        writer.join();
+        assertEquals(null, failure[0]);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(hf, tuples);
+        Database.reset();
+        hf = Utility.openHeapFile(2, f);
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Once the writer fails to write the log, every later append and force
+     * fails, even when the file could be written again.
+     */
+    @Test(timeout = 60000) public void writeFailure() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.logXactionBegin(new TransactionId());
+        log.force();
+
+        RandomAccessFile good = log.raf;
+        RandomAccessFile broken = new RandomAccessFile(log.logFile, "rw");
+        broken.close();
+        log.raf = broken;
+        log.logXactionBegin(new TransactionId());
+        assertFails(log);
+        log.raf = good;
+        assertFails(log);
+        try {
+            log.logXactionBegin(new TransactionId());
+            fail("appended to a log that couldn't be written");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFails(log);
+    }
+
+    private static void assertFails(LogFile log) {
+        try {
+            log.force();
+            fail("forced a log that couldn't be written");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class MorselScanTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 30000;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(3, ROWS, 1000, null, null);
+        assertTrue(hf.numPages() > 4 * MorselScan.MORSEL_PAGES);
+        Database.resetBufferPool(hf.numPages() + 10);
+    }
+
+    private DbIterator scan(TransactionId tid, int parallelism, boolean filtered) {
+        SeqScan ss = new SeqScan(tid, hf.getId(), "");
+        ss.setParallelism(parallelism);
+        if (!filtered)
+            return ss;
+        return new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(100)), ss);
+    }
+
+    @Test public void sameTuplesAsSerialScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (boolean filtered : new boolean[] { false, true }) {
+            DbIterator serial = scan(tid, 1, filtered);
+            serial.open();
+            Map<List<Integer>, Integer> expected = SystemTestUtil.tuples(serial);
+            serial.close();
+
+            DbIterator parallel = scan(tid, 4, filtered);
+            parallel.open();
+            assertEquals(expected, SystemTestUtil.tuples(parallel));
+            parallel.rewind();
+            assertEquals(expected, SystemTestUtil.tuples(parallel));
+            parallel.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void batches() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM }) {
+            Aggregate serial = new Aggregate(scan(tid, 1, true), 1, Aggregator.NO_GROUPING, op);
+            serial.open();
+            Map<List<Integer>, Integer> expected = SystemTestUtil.tuples(serial);
+            serial.close();
+            Aggregate parallel = new Aggregate(scan(tid, 4, true), 1, Aggregator.NO_GROUPING, op);
+            parallel.open();
+            assertEquals(expected, SystemTestUtil.tuples(parallel));
+            parallel.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Stopping early must not leave workers stuck on a full queue. */
+    @Test public void closeEarly() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbIterator it = scan(tid, 4, false);
+        for (int i = 0; i < 20; i++) {
+            it.open();
+            assertTrue(it.hasNext());
+            it.next();
+            it.close();
+        }
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        assertEquals(ROWS, n);
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A page locked by another transaction is waited for, not skipped. */
+    @Test public void waitsForLockedPage() throws Exception {
+        TransactionId writer = new TransactionId();
+        Database.getBufferPool().getPage(writer, new HeapPageId(hf.getId(), 20),
+                Permissions.READ_WRITE);
+
+        final TransactionId tid = new TransactionId();
+        final int[] n = { -1 };
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    DbIterator it = scan(tid, 4, false);
+                    it.open();
+                    int count = 0;
+                    while (it.hasNext()) {
+                        it.next();
+                        count++;
+                    }
+                    it.close();
+                    n[0] = count;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+        reader.join(500);
+        assertTrue(reader.isAlive());
+        Database.getBufferPool().transactionComplete(writer);
+        reader.join(10000);
+        assertEquals(ROWS, n[0]);
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 20)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MorselScanTest.class);
+    }
+}
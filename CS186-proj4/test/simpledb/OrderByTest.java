@@ -0,0 +1,111 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000;
+
+    /** Check that the tuples come out ordered by a ascending, then b descending. */
+    private int checkOrder(DbIterator it) throws Exception {
+        int n = 0, lastA = Integer.MIN_VALUE, lastB = Integer.MAX_VALUE;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int a = ((IntField) t.getField(0)).getValue();
+            int b = ((IntField) t.getField(1)).getValue();
+            assertTrue(a >= lastA);
+            if (a == lastA)
+                assertTrue(b <= lastB);
+            lastA = a;
+            lastB = b;
+            n++;
+        }
+        return n;
+    }
+
+    @Test public void multiColumnSortSpillsToDisk() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, ROWS, 50, null, null);
+        TransactionId tid = new TransactionId();
+        OrderBy ob = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+                new SeqScan(tid, hf.getId(), ""));
+        ob.setMemoryPages(3);
+        ob.open();
+        assertEquals(ROWS, checkOrder(ob));
+        ob.rewind();
+        assertEquals(ROWS, checkOrder(ob));
+        ob.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** More runs than pages of memory need an intermediate merge. */
+    @Test public void manyRuns() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        int fields[] = { 1, 0 };
+        boolean ascs[] = { true, true };
+        ExternalSort sort = new ExternalSort(td,
+                new TupleComparator(fields, ascs), 3);
+        Random r = new Random(7);
+        int[] counts = new int[100];
+        for (int i = 0; i < ROWS; i++) {
+            int b = r.nextInt(counts.length);
+            counts[b]++;
+            sort.add(Utility.getHeapTuple(new int[] { i, b }));
+        }
+        sort.sort();
+        assertTrue(sort.numRuns() > 0 && sort.numRuns() <= 2);
+        DbFileIterator it = sort.iterator();
+        it.open();
+        int lastA = -1, lastB = 0, n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int a = ((IntField) t.getField(0)).getValue();
+            int b = ((IntField) t.getField(1)).getValue();
+            assertTrue(b > lastB || (b == lastB && a > lastA));
+            counts[b]--;
+            lastA = a;
+            lastB = b;
+            n++;
+        }
+        it.close();
+        sort.close();
+        assertEquals(ROWS, n);
+        for (int c : counts)
+            assertEquals(0, c);
+    }
+
+    /** A run holds no more tuples than take its pages of heap. */
+    @Test public void budgetCountsHeap() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        ExternalSort sort = new ExternalSort(td,
+                new TupleComparator(new int[] { 0 }, new boolean[] { true }), 3);
+        int fit = 3 * BufferPool.PAGE_SIZE / SpillFile.heapSize(td);
+        assertTrue(fit < 3 * SpillFile.tuplesPerPage(td));
+        for (int i = 0; i < fit; i++)
+            sort.add(Utility.getHeapTuple(new int[] { fit - i, 0 }));
+        assertTrue(sort.numRuns() > 0);
+        sort.sort();
+        DbFileIterator it = sort.iterator();
+        it.open();
+        for (int i = 1; i <= fit; i++)
+            assertEquals(i, ((IntField) it.next().getField(0)).getValue());
+        it.close();
+        sort.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
@@ -0,0 +1,183 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/** Compressed pages, and heap files stored in them. */
+public class PageCodecTest extends SimpleDbTestBase {
+
+    private static final int PAGE = BufferPool.PAGE_SIZE;
+
+    private static void roundTrip(PageCodec codec, byte[] page, int atMost) throws IOException {
+        byte[] bytes = codec.encode(page);
+        assertTrue(bytes.length + " > " + atMost, bytes.length <= atMost);
+        assertArrayEquals(page, codec.decode(bytes, PAGE));
+    }
+
+    /** Pages of fixed slots in rows and in PAX, with and without deflate. */
+    @Test public void fixedPages() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(4, 1000, 100, null, tuples);
+        TupleDesc td = Utility.getTupleDesc(4);
+        PageFile in = PageFile.open(f, PAGE);
+        for (int p = 0; p < in.numPages(); p++) {
+            byte[] page = in.readPage(p);
+            // values under 100 take 7 bits, not 32
+            for (boolean deflate : new boolean[] { false, true }) {
+                roundTrip(new PageCodec(td, false, deflate), page, PAGE / 3);
+                roundTrip(new PageCodec(td, true, deflate), HeapPage.toColumnar(page, td), PAGE / 3);
+            }
+        }
+        // runs of a sorted column, and a page with some slots empty
+        byte[] page = HeapPage.createEmptyPageData();
+        java.nio.ByteBuffer buf = java.nio.ByteBuffer.wrap(page);
+        int numSlots = (PAGE * 8) / (16 * 8 + 1), header = (numSlots + 7) / 8;
+        for (int i = 0; i < numSlots; i += 3) {
+            page[i / 8] |= 1 << (i % 8);
+            buf.putInt(header + i * 16, i / 50);
+            buf.putInt(header + i * 16 + 4, -i);
+            buf.putInt(header + i * 16 + 8, Integer.MIN_VALUE);
+            buf.putInt(header + i * 16 + 12, Integer.MAX_VALUE - i);
+        }
+        roundTrip(new PageCodec(td, false, false), page, PAGE / 4);
+        roundTrip(new PageCodec(td, false, false), HeapPage.createEmptyPageData(), 32);
+    }
+
+    /** Slotted pages of strings: dictionaries, and the entries of deleted slots. */
+    @Test public void slottedPages() throws Exception {
+        Type[] types = { Type.INT_TYPE, Type.STRING_TYPE, Type.STRING_TYPE };
+        TupleDesc td = new TupleDesc(types, new String[] { "a", "s", "t" });
+        File dat = File.createTempFile("cities", ".dat");
+        dat.deleteOnExit();
+        HeapFile hf = new HeapFile(dat, td, false, true, PageCodec.Compression.NONE);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+        String[] cities = { "Berkeley", "Oakland", "Albany", "Emeryville" };
+        ArrayList<Tuple> added = new ArrayList<Tuple>();
+        for (int i = 0; page.getNumEmptySlots() > 0; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField(cities[i % cities.length], Type.STRING_LEN));
+            t.setField(2, new StringField("row " + i, Type.STRING_LEN));
+            page.insertTuple(t);
+            added.add(t);
+        }
+        for (int i = 0; i < added.size(); i += 7)
+            page.deleteTuple(added.get(i));
+        for (boolean deflate : new boolean[] { false, true })
+            roundTrip(new PageCodec(td, false, true, deflate), page.getPageData(), PAGE * 2 / 3);
+        roundTrip(new PageCodec(td, false, true, false), HeapPage.createEmptyPageData(), 16);
+    }
+
+    /**
+     * A compressed table is a fraction of the size, reads back the same,
+     * and keeps its changes once they are flushed.
+     */
+    @Test public void compressedFile() throws Exception {
+        File text = File.createTempFile("archive", ".txt");
+        text.deleteOnExit();
+        PrintWriter w = new PrintWriter(new FileWriter(text));
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        Random r = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>(Arrays.asList(i / 100, i, r.nextInt(16)));
+            tuples.add(t);
+            w.println(t.get(0) + "," + t.get(1) + "," + t.get(2));
+        }
+        w.close();
+        Type[] types = { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
+        TupleDesc td = Utility.getTupleDesc(3);
+        long rawSize = 0;
+        for (PageCodec.Compression c : PageCodec.Compression.values()) {
+            for (boolean columnar : new boolean[] { false, true }) {
+                File dat = File.createTempFile("archive", ".dat");
+                dat.deleteOnExit();
+                HeapFileEncoder.convert(text, dat, PAGE, 3, types, ',', columnar, c);
+                if (c == PageCodec.Compression.NONE)
+                    rawSize = dat.length();
+                else
+                    assertTrue(dat.length() * 3 < rawSize);
+                HeapFile hf = new HeapFile(dat, td, columnar, c);
+                Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+                SystemTestUtil.matchTuples(hf, tuples);
+            }
+        }
+
+        File dat = File.createTempFile("archive", ".dat");
+        dat.deleteOnExit();
+        HeapFileEncoder.convert(text, dat, PAGE, 3, types, ',', false, PageCodec.Compression.LIGHT);
+        HeapFile hf = new HeapFile(dat, td, false, PageCodec.Compression.LIGHT);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        // random values don't compress; the pages outgrow their room
+        TransactionId tid = new TransactionId();
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+        for (int i = 0; i < 2000; i++) {
+            ArrayList<Integer> t = new ArrayList<Integer>(Arrays.asList(r.nextInt(), r.nextInt(), r.nextInt()));
+            Database.getBufferPool().insertTuple(tid, hf.getId(),
+                    Utility.getHeapTuple(new int[] { t.get(0), t.get(1), t.get(2) }));
+            expected.add(t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        long grown = dat.length();
+
+        // read back from disk, not from the BufferPool or the directory
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        PageFile.closeAll();
+        SystemTestUtil.matchTuples(hf, expected);
+        PageFile.open(dat, PAGE, new PageCodec(td, false, false)).compact();
+        assertTrue(dat.length() < grown);
+        SystemTestUtil.matchTuples(hf, expected);
+        PageFile.closeAll();
+        SystemTestUtil.matchTuples(hf, expected);
+    }
+
+    /**
+     * Pages that keep outgrowing their room, a few tuples per commit, leave
+     * no more garbage than the file holds live records.
+     */
+    @Test public void compressedFileStaysCompact() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(3);
+        File dat = File.createTempFile("archive", ".dat");
+        dat.deleteOnExit();
+        HeapFile hf = new HeapFile(dat, td, false, PageCodec.Compression.LIGHT);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        Random r = new Random(11);
+        for (int i = 0; i < 300; i++) {
+            TransactionId tid = new TransactionId();
+            for (int j = 0; j < 10; j++) {
+                ArrayList<Integer> t = new ArrayList<Integer>(Arrays.asList(r.nextInt(), r.nextInt(), r.nextInt()));
+                Database.getBufferPool().insertTuple(tid, hf.getId(),
+                        Utility.getHeapTuple(new int[] { t.get(0), t.get(1), t.get(2) }));
+                expected.add(t);
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        long before = dat.length();
+        PageFile.open(dat, PAGE, new PageCodec(td, false, false)).compact();
+        assertTrue(before < 2 * dat.length() + 20 * PAGE);
+        assertTrue(!new File(dat.getPath() + ".compact").exists());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        PageFile.closeAll();
+        SystemTestUtil.matchTuples(hf, expected);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageCodecTest.class);
+    }
+}
@@ -0,0 +1,74 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.Arrays;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PageFileTest {
+
+    private static final int PAGE = 64;
+    private File f;
+
+    @Before public void setUp() throws Exception {
+        f = File.createTempFile("pagefile", ".dat");
+        f.deleteOnExit();
+    }
+
+    private static byte[] page(int fill) {
+        byte[] b = new byte[PAGE];
+        Arrays.fill(b, (byte) fill);
+        return b;
+    }
+
+    private void roundTrip(PageFile pf) throws Exception {
+        pf.truncate(0);
+        for (int i = 0; i < 4; i++)
+            pf.writePage(i, page(i + 1));
+        assertEquals(4, pf.numPages());
+        for (int i = 3; i >= 0; i--)
+            assertArrayEquals(page(i + 1), pf.readPage(i));
+        // overwrite in place, then grow the file
+        pf.writePage(1, page(9));
+        pf.writePage(4, page(5));
+        assertArrayEquals(page(9), pf.readPage(1));
+        assertArrayEquals(page(5), pf.readPage(4));
+        assertEquals(5, pf.numPages());
+    }
+
+    @Test public void channelMode() throws Exception {
+        roundTrip(PageFile.open(f, PAGE));
+    }
+
+    @Test public void mappedMode() throws Exception {
+        PageFile pf = PageFile.open(f, PAGE);
+        pf.setMapped(true);
+        roundTrip(pf);
+        pf.setMapped(false);
+    }
+
+    @Test public void oneInstancePerFile() throws Exception {
+        assertSame(PageFile.open(f, PAGE), PageFile.open(new File(f.getPath()), PAGE));
+    }
+
+    @Test public void reopensAfterClose() throws Exception {
+        PageFile pf = PageFile.open(f, PAGE);
+        pf.writePage(0, page(7));
+        PageFile.closeAll();
+        assertArrayEquals(page(7), pf.readPage(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageFileTest.class);
+    }
+}
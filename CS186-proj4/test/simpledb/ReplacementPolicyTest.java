@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 4;
+    private static final int TABLE_PAGES = 10;
+
+    private HeapFile hf;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        // 504 two-int tuples fit on a page
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        assertEquals(TABLE_PAGES, hf.numPages());
+        tid = new TransactionId();
+    }
+
+    private void get(BufferPool bp, int pgNo) throws Exception {
+        bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    /** Read the pages that the warm up in hotPageSurvivesScan did not touch. */
+    private void scan(BufferPool bp) throws Exception {
+        for (int i = POOL_PAGES + 1; i < TABLE_PAGES; i++)
+            get(bp, i);
+    }
+
+    /**
+     * Make page 0 hot by asking for it again shortly after it was pushed
+     * out of the pool, then scan pages that were never read before. Return true if the
+     * lookup of page 0 after the scan was a buffer pool hit.
+     */
+    private boolean hotPageSurvivesScan(ReplacementPolicy policy) throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES, policy);
+        for (int i = 0; i <= POOL_PAGES; i++)
+            get(bp, i);
+        get(bp, 0);
+        scan(bp);
+        long hits = policy.getHits();
+        get(bp, 0);
+        return policy.getHits() == hits + 1;
+    }
+
+    /**
+     * Every request is either a hit or a miss, and every miss beyond the
+     * pool size must have evicted a page.
+     */
+    private void checkCounters(ReplacementPolicy policy) {
+        assertEquals(TABLE_PAGES + 2, policy.getHits() + policy.getMisses());
+        assertEquals(policy.getMisses() - POOL_PAGES, policy.getEvictions());
+    }
+
+    @Test public void lruKIsScanResistant() throws Exception {
+        ReplacementPolicy p = new LruKPolicy(2);
+        assertTrue(hotPageSurvivesScan(p));
+        checkCounters(p);
+    }
+
+    @Test public void twoQueueIsScanResistant() throws Exception {
+        ReplacementPolicy p = new TwoQueuePolicy();
+        assertTrue(hotPageSurvivesScan(p));
+        checkCounters(p);
+    }
+
+    @Test public void clockCounters() throws Exception {
+        ReplacementPolicy p = new ClockPolicy();
+        hotPageSurvivesScan(p);
+        checkCounters(p);
+    }
+
+    /**
+     * Dirty pages may never be chosen as victims.
+     */
+    @Test public void dirtyPagesAreNotEvicted() throws Exception {
+        ReplacementPolicy[] policies = { new ClockPolicy(), new LruKPolicy(2), new TwoQueuePolicy() };
+        for (ReplacementPolicy p : policies) {
+            BufferPool bp = Database.resetBufferPool(POOL_PAGES, p);
+            for (int i = 0; i < POOL_PAGES; i++) {
+                PageId pid = new HeapPageId(hf.getId(), i);
+                bp.getPage(tid, pid, Permissions.READ_WRITE).markDirty(true, tid);
+            }
+            try {
+                get(bp, POOL_PAGES);
+                throw new AssertionError(p.getName() + " evicted a dirty page");
+            } catch (DbException expected) {
+            }
+        }
+    }
+
+    /**
+     * Pages the pool failed to evict are left out, so asking again with
+     * every victim skipped goes through the resident pages and then ends.
+     */
+    @Test public void skippedPagesAreNotChosenAgain() throws Exception {
+        ReplacementPolicy[] policies = { new ClockPolicy(), new LruKPolicy(2), new TwoQueuePolicy() };
+        for (ReplacementPolicy p : policies) {
+            BufferPool bp = Database.resetBufferPool(POOL_PAGES, p);
+            for (int i = 0; i < POOL_PAGES; i++)
+                get(bp, i);
+            Set<PageId> skip = new HashSet<PageId>();
+            PageId victim;
+            while ((victim = p.victim(bp, skip)) != null)
+                assertTrue(p.getName() + " chose " + victim + " twice", skip.add(victim));
+            assertEquals(p.getName(), POOL_PAGES, skip.size());
+        }
+    }
+
+    @Test public void forName() {
+        assertEquals("CLOCK", ReplacementPolicy.forName("clock").getName());
+        assertEquals("LRU-2", ReplacementPolicy.forName("lru-k").getName());
+        assertEquals("LRU-3", ReplacementPolicy.forName("LRU-3").getName());
+        assertEquals("2Q", ReplacementPolicy.forName("2q").getName());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
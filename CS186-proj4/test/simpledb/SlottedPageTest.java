@@ -0,0 +1,241 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/** HeapPages of slotted tables: slotted pages of variable-length records. */
+public class SlottedPageTest extends SimpleDbTestBase {
+
+    private static final Type[] TYPES = { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE };
+    private static final String[] NAMES = { "a", "s", "b" };
+    private TupleDesc td;
+    private HeapPageId pid;
+
+    @Before public void addTable() throws IOException {
+        td = new TupleDesc(TYPES, NAMES);
+        HeapFile hf = slottedFile();
+        pid = new HeapPageId(hf.getId(), 0);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    private HeapFile slottedFile() throws IOException {
+        File dat = File.createTempFile("strings", ".dat");
+        dat.deleteOnExit();
+        return new HeapFile(dat, td, false, true, PageCodec.Compression.NONE);
+    }
+
+    private static String string(int i) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < i % 20; j++)
+            sb.append((char) ('a' + (i + j) % 26));
+        return sb.toString();
+    }
+
+    private Tuple tuple(int i) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(string(i), Type.STRING_LEN));
+        t.setField(2, new IntField(-i));
+        return t;
+    }
+
+    private static void check(HeapPage page, int slot, int i) {
+        Tuple t = page.getTuple(slot);
+        assertEquals(new IntField(i), t.getField(0));
+        assertEquals(new StringField(string(i), Type.STRING_LEN), t.getField(1));
+        assertEquals(new IntField(-i), t.getField(2));
+        assertEquals(-i, page.getInt(slot, 2));
+    }
+
+    @Test public void shortStringsPackDensely() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        while (page.getNumEmptySlots() > 0)
+            page.insertTuple(tuple(n++));
+        // a page of fixed 132-byte strings holds 29 of these
+        assertTrue(n > 100);
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        for (int i = 0; i < n; i++) {
+            check(page, i, i);
+            check(copy, i, i);
+        }
+        Iterator<Tuple> it = copy.iterator();
+        int count = 0;
+        for (; it.hasNext(); count++)
+            assertEquals(new IntField(count), it.next().getField(0));
+        assertEquals(n, count);
+
+        Batch b = new Batch(td);
+        assertEquals(-1, copy.fillBatch(b, 0));
+        assertEquals(n, b.numRows());
+        for (int i = 0; i < n; i++) {
+            assertEquals(-i, b.getInt(2, i));
+            assertEquals(new StringField(string(i), Type.STRING_LEN), b.getField(1, i));
+        }
+    }
+
+    @Test public void deleteCompacts() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        int empty = page.getNumEmptySlots();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 60; i++) {
+            tuples.add(tuple(i));
+            page.insertTuple(tuples.get(i));
+        }
+        for (int i = 0; i < 60; i += 2)
+            page.deleteTuple(tuples.get(i));
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        for (int i = 0; i < 60; i++) {
+            if (i % 2 == 0) {
+                assertNull(copy.getTuple(i));
+            } else {
+                check(page, i, i);
+                check(copy, i, i);
+            }
+        }
+
+        // a new tuple goes in the first free slot
+        Tuple t = tuple(100);
+        page.insertTuple(t);
+        assertEquals(0, t.getRecordId().tupleno());
+        check(page, 0, 100);
+
+        page.deleteTuple(t);
+        for (int i = 1; i < 60; i += 2)
+            page.deleteTuple(tuples.get(i));
+        assertEquals(empty, page.getNumEmptySlots());
+        assertTrue(Arrays.equals(HeapPage.createEmptyPageData(), page.getPageData()));
+    }
+
+    /** A string longer than STRING_LEN is counted as the bytes it is cut to. */
+    @Test public void longStringsCountAsWritten() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3 * Type.STRING_LEN; i++)
+            sb.append('x');
+        StringField f = new StringField(sb.toString(), Type.STRING_LEN);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        f.serializeUnpadded(new DataOutputStream(out));
+        assertEquals(out.size(), Type.STRING_TYPE.getLen(f));
+
+        Tuple t = tuple(1);
+        t.setField(1, f);
+        assertEquals(4 + out.size() + 4, td.getSize(t));
+    }
+
+    /** The encoder writes slotted pages, which take a fraction of the fixed ones. */
+    @Test public void encoder() throws Exception {
+        File text = File.createTempFile("strings", ".txt");
+        text.deleteOnExit();
+        File dat = File.createTempFile("strings", ".dat");
+        dat.deleteOnExit();
+        int rows = 2000;
+        PrintWriter w = new PrintWriter(new FileWriter(text));
+        long sum = 0;
+        for (int i = 0; i < rows; i++) {
+            w.println(i + "," + string(i) + "," + (-i));
+            sum -= i;
+        }
+        w.close();
+        HeapFileEncoder.convert(text, dat, BufferPool.PAGE_SIZE, 3, TYPES, ',', false, true,
+                PageCodec.Compression.NONE);
+        HeapFile hf = new HeapFile(dat, td, false, true, PageCodec.Compression.NONE);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        int fixedPerPage = (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+        assertTrue(hf.numPages() * 4 < rows / fixedPerPage);
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "t");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int i = ((IntField) t.getField(0)).getValue();
+            assertEquals(new StringField(string(i), Type.STRING_LEN), t.getField(1));
+            n++;
+        }
+        scan.close();
+        assertEquals(rows, n);
+
+        Aggregate agg = new Aggregate(new SeqScan(tid, hf.getId(), "t"), 2,
+                Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+        agg.open();
+        assertEquals(new IntField((int) sum), agg.next().getField(0));
+        agg.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A table with strings keeps fixed slots unless it is made slotted, so
+     * files written before slotted pages existed still read back.
+     */
+    @Test public void fixedSlotsByDefault() throws Exception {
+        File text = File.createTempFile("strings", ".txt");
+        text.deleteOnExit();
+        File dat = File.createTempFile("strings", ".dat");
+        dat.deleteOnExit();
+        int rows = 100;
+        PrintWriter w = new PrintWriter(new FileWriter(text));
+        for (int i = 0; i < rows; i++)
+            w.println(i + "," + string(i) + "," + (-i));
+        w.close();
+        HeapFileEncoder.convert(text, dat, BufferPool.PAGE_SIZE, 3, TYPES);
+        HeapFile hf = new HeapFile(dat, td);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        int fixedPerPage = (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+        assertEquals((rows + fixedPerPage - 1) / fixedPerPage, hf.numPages());
+
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        for (int i = 0; i < fixedPerPage; i++)
+            check(page, i, i);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Inserts fill each page before the file grows. */
+    @Test public void insertIntoFile() throws Exception {
+        HeapFile hf = slottedFile();
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        int rows = 1000;
+        for (int i = 0; i < rows; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(i));
+        Database.getBufferPool().transactionComplete(tid);
+        int fixedPerPage = (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+        assertTrue(hf.numPages() * 4 < rows / fixedPerPage);
+
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, hf.getId(), "t");
+        scan.open();
+        boolean[] seen = new boolean[rows];
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int i = ((IntField) t.getField(0)).getValue();
+            assertEquals(new StringField(string(i), Type.STRING_LEN), t.getField(1));
+            seen[i] = true;
+        }
+        scan.close();
+        for (boolean s : seen)
+            assertTrue(s);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedPageTest.class);
+    }
+}
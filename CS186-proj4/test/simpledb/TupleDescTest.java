@@ -133,6 +133,23 @@ public class TupleDescTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for the sizes of tuples with strings, which are stored
+     * without padding
+     */
+    @Test public void variableSize() {
+        TupleDesc intString = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE});
+        assertTrue(Utility.getTupleDesc(3).isFixedLength());
+        assertFalse(intString.isFixedLength());
+        assertEquals(Type.INT_TYPE.getLen() + Type.STRING_TYPE.getLen(), intString.getSize());
+        assertEquals(8, intString.getMinSize());
+
+        Tuple t = new Tuple(intString);
+        t.setField(0, new IntField(1));
+        t.setField(1, new StringField("hello", Type.STRING_LEN));
+        assertEquals(13, intString.getSize(t));
+    }
+
     /**
      * Unit test for TupleDesc.numFields()
      */
@@ -113,6 +113,62 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    /** Several aggregates and GROUP BY fields, through the parser. */
+    @Test public void testSeveralThroughParser()
+            throws IOException, DbException, TransactionAbortedException, ParsingException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, ROWS, 8, null, createdTuples, "c");
+        Database.getCatalog().addTable(table, "aggs");
+        TableStats.setTableStats("aggs", new TableStats(table.getId(), 1000));
+
+        HashMap<ArrayList<Integer>, ArrayList<Integer>> values = new HashMap<ArrayList<Integer>, ArrayList<Integer>>();
+        for (ArrayList<Integer> t : createdTuples) {
+            ArrayList<Integer> key = new ArrayList<Integer>(t.subList(0, 2));
+            if (!values.containsKey(key)) values.put(key, new ArrayList<Integer>());
+            values.get(key).add(t.get(2));
+        }
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (Map.Entry<ArrayList<Integer>, ArrayList<Integer>> e : values.entrySet()) {
+            ArrayList<Integer> result = new ArrayList<Integer>();
+            result.add(computeAggregate(e.getValue(), Aggregator.Op.SUM));
+            result.add(e.getKey().get(1));
+            result.add(computeAggregate(e.getValue(), Aggregator.Op.COUNT));
+            result.add(e.getKey().get(0));
+            result.add(computeAggregate(e.getValue(), Aggregator.Op.MAX));
+            expected.add(result);
+        }
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT SUM(c2), a.c1, COUNT(*), c0, MAX(a.c2) FROM aggs a GROUP BY c0, a.c1;");
+        SystemTestUtil.matchTuples(lp.physicalPlan(tid, TableStats.getStatsMap(), false), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** A two-phase aggregate of a table's partitions matches the serial one. */
+    @Test public void testTwoPhase() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 20 * ROWS, MAX_VALUE, null, createdTuples);
+        for (Aggregator.Op op : Aggregator.Op.values()) {
+            for (int groupColumn : new int[] { 0, Aggregator.NO_GROUPING }) {
+                TransactionId tid = new TransactionId();
+                DbIterator[] parts = new DbIterator[3];
+                for (int i = 0; i < parts.length; i++) {
+                    SeqScan ss = new SeqScan(tid, table.getId(), "");
+                    ss.setPartition(i, parts.length);
+                    parts[i] = ss;
+                }
+                Aggregate ag = new Aggregate(parts, new int[] { 1 },
+                        groupColumn == Aggregator.NO_GROUPING ? new int[0] : new int[] { groupColumn },
+                        new Aggregator.Op[] { op });
+                SystemTestUtil.matchTuples(ag, aggregate(createdTuples, op, 1, groupColumn));
+                Database.getBufferPool().transactionComplete(tid);
+            }
+        }
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
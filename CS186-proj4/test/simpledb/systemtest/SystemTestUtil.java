@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -94,6 +95,36 @@ public class SystemTestUtil {
         return list;
     }
 
+    /** Count one more occurrence of t in counts, a multiset of tuples. */
+    public static void count(Map<List<Integer>, Integer> counts, List<Integer> t) {
+        Integer n = counts.get(t);
+        counts.put(t, n == null ? 1 : n + 1);
+    }
+
+    /**
+     * @return how many times each tuple that the open iterator it has left
+     *         occurs, for comparing results that come in no set order
+     */
+    public static Map<List<Integer>, Integer> tuples(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        Map<List<Integer>, Integer> out = new HashMap<List<Integer>, Integer>();
+        while (it.hasNext())
+            count(out, tupleToList(it.next()));
+        return out;
+    }
+
+    /**
+     * @return how many times each tuple of the closed iterator it occurs;
+     *         it is opened, read to the end and closed again
+     */
+    public static Map<List<Integer>, Integer> readTuples(DbIterator it)
+            throws DbException, TransactionAbortedException {
+        it.open();
+        Map<List<Integer>, Integer> out = tuples(it);
+        it.close();
+        return out;
+    }
+
     public static void matchTuples(DbFile f, List<ArrayList<Integer>> tuples)
             throws DbException, TransactionAbortedException, IOException {
         TransactionId tid = new TransactionId();